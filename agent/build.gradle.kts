@@ -3,9 +3,9 @@ plugins {
 }
 
 dependencies {
-    implementation("io.prometheus:simpleclient:0.17.0")
-    implementation("io.prometheus:simpleclient_hotspot:0.17.0")
-    implementation("io.prometheus:simpleclient_httpserver:0.17.0")
+    implementation("io.prometheus:simpleclient:0.16.0")
+    implementation("io.prometheus:simpleclient_hotspot:0.16.0")
+    implementation("io.prometheus:simpleclient_httpserver:0.16.0")
 }
 
 java {
@@ -17,7 +17,7 @@ tasks.withType<JavaCompile> {
     options.encoding = "UTF-8"
 }
 
-jar {
+tasks.jar {
     manifest {
         attributes(
             "Premain-Class" to "com.jvmdoctor.Agent"
@@ -1,54 +1,86 @@
 package com.jvmdoctor;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.hotspot.DefaultExports;
-import io.prometheus.client.exporter.HTTPServer;
-import io.prometheus.client.Gauge;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 public class Agent {
-    private static HTTPServer server;
-    private static final Gauge sampleGauge = Gauge.build()
-        .name("jvmdoctor_sample_metric")
-        .help("A sample metric from JVMDoctor collector.")
-        .register();
-    private static final Gauge threadCountGauge = Gauge.build()
-        .name("jvmdoctor_thread_count")
-        .help("Number of live threads in the JVM.")
-        .register();
-
-    private static void pushMetricsToCentral(String centralUrl, int localPort) throws Exception {
-        // Fetch local metrics
-        java.net.URL url = java.net.URI.create("http://localhost:" + localPort + "/metrics").toURL();
-        java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("GET");
-        int responseCode = conn.getResponseCode();
-        if (responseCode == 200) {
-            java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(conn.getInputStream()));
-            StringBuilder metrics = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                metrics.append(line).append("\n");
-            }
-            reader.close();
-
-            // Send to central backend
-            java.net.URL central = java.net.URI.create(centralUrl + "/api/metrics/push").toURL();
-            java.net.HttpURLConnection centralConn = (java.net.HttpURLConnection) central.openConnection();
-            centralConn.setRequestMethod("POST");
-            centralConn.setRequestProperty("Content-Type", "text/plain");
-            centralConn.setDoOutput(true);
-            java.io.OutputStream os = centralConn.getOutputStream();
-            os.write(metrics.toString().getBytes());
-            os.flush();
-            os.close();
-            int centralResponse = centralConn.getResponseCode();
-            if (centralResponse != 200) {
-                throw new Exception("Central backend returned " + centralResponse);
+    private static MetricsHttpServer server;
+
+    /** Agent gauges computed when the registry is collected rather than by a polling thread. */
+    static class ScrapeTimeCollector extends Collector {
+        private static final List<String> NO_LABELS = Collections.emptyList();
+        private double sample;
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            // A very simple sample collector to demonstrate custom metrics
+            if (AgentControl.getSampleEnabled()) sample = Math.random();
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            return List.of(
+                new MetricFamilySamples("jvmdoctor_sample_metric", Type.GAUGE, "A sample metric from JVMDoctor collector.",
+                    List.of(new MetricFamilySamples.Sample("jvmdoctor_sample_metric", NO_LABELS, NO_LABELS, sample))),
+                new MetricFamilySamples("jvmdoctor_thread_count", Type.GAUGE, "Number of live threads in the JVM.",
+                    List.of(new MetricFamilySamples.Sample("jvmdoctor_thread_count", NO_LABELS, NO_LABELS, threads))));
+        }
+    }
+
+    // identifies this JVM to the backend: node (or host) name plus the metrics port
+    private static String instanceName(int port) {
+        String host = System.getenv("NODE_NAME");
+        if (host == null || host.isEmpty()) {
+            try {
+                host = java.net.InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                host = "localhost";
             }
-        } else {
-            throw new Exception("Failed to fetch local metrics: " + responseCode);
+        }
+        return host + ":" + port;
+    }
+
+    // numeric settings: a typo falls back to the default with a warning rather than throwing out of
+    // premain, which would stop the application from starting
+    private static long envLong(String name, long def) {
+        String v = System.getenv(name);
+        if (v == null || v.isBlank()) return def;
+        try {
+            return Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring " + name + "=" + v + ", using " + def);
+            return def;
+        }
+    }
+
+    private static double envDouble(String name, double def) {
+        String v = System.getenv(name);
+        if (v == null || v.isBlank()) return def;
+        try {
+            return Double.parseDouble(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring " + name + "=" + v + ", using " + def);
+            return def;
+        }
+    }
+
+    // null when disabled or the directory is unusable; pushes then go unspooled
+    private static PushSpool openSpool(int port) {
+        if ("false".equalsIgnoreCase(System.getenv().getOrDefault("JVMDOCTOR_SPOOL", "true"))) return null;
+        String dir = System.getenv().getOrDefault("JVMDOCTOR_SPOOL_DIR",
+            System.getProperty("java.io.tmpdir") + "/jvmdoctor-spool-" + port);
+        try {
+            int segmentBytes = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_SPOOL_SEGMENT_BYTES", String.valueOf(4 << 20)));
+            long maxBytes = Long.parseLong(System.getenv().getOrDefault("JVMDOCTOR_SPOOL_MAX_BYTES", String.valueOf(64L << 20)));
+            PushSpool spool = new PushSpool(java.nio.file.Paths.get(dir), segmentBytes, maxBytes);
+            spool.register(CollectorRegistry.defaultRegistry);
+            return spool;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to open push spool " + dir + ": " + e.getMessage());
+            return null;
         }
     }
 
@@ -64,6 +96,31 @@ public class Agent {
         try {
             // start default hotspot, memory, GC, thread metrics
             DefaultExports.register(CollectorRegistry.defaultRegistry);
+            // GC pauses, causes and allocation/promotion rates decoded from GC notifications
+            if (!"false".equalsIgnoreCase(System.getenv().getOrDefault("JVMDOCTOR_GC_TELEMETRY", "true"))) {
+                GcTelemetry.get().install();
+            }
+            // latency histograms from a continuous JFR event stream
+            if (!"false".equalsIgnoreCase(System.getenv().getOrDefault("JVMDOCTOR_JFR_STREAM", "true"))) {
+                try {
+                    JfrStreamingAggregator.get().start();
+                } catch (Exception e) {
+                    System.err.println("Failed to start JFR event streaming: " + e.getMessage());
+                }
+            }
+            // in-process stack sampler, off unless asked for
+            if ("true".equalsIgnoreCase(System.getenv().getOrDefault("JVMDOCTOR_SAMPLER", "false"))) {
+                SamplingProfiler.get().start(0);
+            }
+            // thread states, hot locks and deadlock checks; off unless asked for, as it turns on
+            // contention monitoring for the whole JVM
+            if ("true".equalsIgnoreCase(System.getenv().getOrDefault("JVMDOCTOR_LOCK_SAMPLER", "false"))) {
+                LockContentionSampler.get().start(0);
+            }
+            // allocation rates per thread name pattern
+            if (!"false".equalsIgnoreCase(System.getenv().getOrDefault("JVMDOCTOR_ALLOC_TRACKER", "true"))) {
+                AllocationRateTracker.get().start();
+            }
             // register control MBean
             try {
                 javax.management.ObjectName name = new javax.management.ObjectName("com.jvmdoctor:type=AgentControl");
@@ -82,48 +139,54 @@ public class Agent {
                 }
             }
 
-            server = new HTTPServer(port);
+            new ScrapeTimeCollector().register(CollectorRegistry.defaultRegistry);
+            // scrapers and the pusher share one collection per JVMDOCTOR_METRICS_CACHE_MS
+            ExpositionCache cache = new ExpositionCache(CollectorRegistry.defaultRegistry);
+            cache.register(CollectorRegistry.defaultRegistry);
+            server = new MetricsHttpServer(port, CollectorRegistry.defaultRegistry, cache);
 
-            // Start metrics collection thread
-            Thread t = new Thread(() -> {
-                while (true) {
-                    // A very simple sample collector to demonstrate custom metrics
-                    double value = Math.random();
-                    if (AgentControl.getSampleEnabled()) {
-                        sampleGauge.set(value);
-                    }
-                    int threads = java.lang.management.ManagementFactory.getThreadMXBean().getThreadCount();
-                    threadCountGauge.set(threads);
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                }
-            }, "jvmdoctor-metrics-thread");
-            t.setDaemon(true);
-            t.start();
+            // the agent's own CPU and allocations, and throttling to JVMDOCTOR_OVERHEAD_BUDGET (0 to only measure)
+            double budget = envDouble("JVMDOCTOR_OVERHEAD_BUDGET", 0.01);
+            OverheadGovernor governor = null;
+            if (budget > 0) {
+                governor = new OverheadGovernor(budget, cache);
+                governor.register(CollectorRegistry.defaultRegistry);
+            }
+            if (!"false".equalsIgnoreCase(System.getenv().getOrDefault("JVMDOCTOR_OVERHEAD", "true"))) {
+                long window = envLong("JVMDOCTOR_OVERHEAD_WINDOW_MS", 10000);
+                SelfOverhead.get().start(window, governor);
+            }
 
             // Start metrics push thread to central backend
             String centralUrl = System.getenv("CENTRAL_BACKEND_URL");
             if (centralUrl != null && !centralUrl.isEmpty()) {
+                String instance = instanceName(port);
+                int batch = (int) Math.min(Integer.MAX_VALUE, envLong("JVMDOCTOR_PUSH_BATCH", 1));
+                PushSpool spool = openSpool(port);
+                MetricsPusher pusher = new MetricsPusher(cache, spool, centralUrl, instance, batch);
+                long interval = envLong("JVMDOCTOR_PUSH_INTERVAL_MS", 5000);
+                OverheadGovernor pushGovernor = governor;
                 Thread pushThread = new Thread(() -> {
+                    boolean failing = false;
                     while (true) {
                         try {
-                            pushMetricsToCentral(centralUrl, port);
-                            Thread.sleep(5000); // Push every 5 seconds
+                            long sleep = pushGovernor != null ? pushGovernor.scale(interval) : interval;
+                            pusher.setInterval(sleep);
+                            try {
+                                pusher.collectAndPush();
+                                if (failing) System.err.println("Pushing metrics again");
+                                failing = false;
+                            } catch (InterruptedException e) {
+                                throw e;
+                            } catch (Exception e) {
+                                // keep collecting at the usual cadence; the spool holds what the backend misses
+                                if (!failing) System.err.println("Failed to push metrics" + (spool != null ? " (spooling)" : "") + ": " + e.getMessage());
+                                failing = true;
+                            }
+                            Thread.sleep(sleep);
                         } catch (InterruptedException e) {
                             Thread.currentThread().interrupt();
                             break;
-                        } catch (Exception e) {
-                            System.err.println("Failed to push metrics: " + e.getMessage());
-                            try {
-                                Thread.sleep(10000); // Retry after 10 seconds on error
-                            } catch (InterruptedException ie) {
-                                Thread.currentThread().interrupt();
-                                break;
-                            }
                         }
                     }
                 }, "jvmdoctor-push-thread");
@@ -1,5 +1,6 @@
 package com.jvmdoctor;
 
+import jdk.jfr.Configuration;
 import jdk.jfr.Recording;
 import java.time.Duration;
 
@@ -33,6 +34,22 @@ public class AgentControl implements AgentControlMBean {
         recording.start();
     }
 
+    @Override
+    public void startJfrWithSettings(String name, String configuration) {
+        Configuration c;
+        try {
+            c = Configuration.getConfiguration(configuration);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("unknown JFR configuration: " + configuration);
+        }
+        if (recording != null) {
+            recording.stop();
+        }
+        recording = new Recording(c);
+        if (name != null) recording.setName(name);
+        recording.start();
+    }
+
     @Override
     public String stopAndDumpJfr(String filename) {
         if (recording == null) return null;
@@ -48,6 +65,67 @@ public class AgentControl implements AgentControlMBean {
         }
     }
 
+    @Override
+    public boolean isJfrStreaming() {
+        return JfrStreamingAggregator.get().isRunning();
+    }
+
+    @Override
+    public void setJfrStreaming(boolean enabled) {
+        if (enabled) JfrStreamingAggregator.get().start();
+        else JfrStreamingAggregator.get().stop();
+    }
+
+    @Override
+    public void startProfiler(long intervalMillis) {
+        SamplingProfiler.get().start(intervalMillis);
+    }
+
+    @Override
+    public void stopProfiler() {
+        SamplingProfiler.get().stop();
+    }
+
+    @Override
+    public String snapshotProfiler(boolean reset) {
+        return SamplingProfiler.get().snapshot(reset);
+    }
+
+    @Override
+    public java.util.Map<String, Long> getProfilerStats() {
+        return SamplingProfiler.get().stats();
+    }
+
+    @Override
+    public void startLockSampler(long intervalMillis) {
+        LockContentionSampler.get().start(intervalMillis);
+    }
+
+    @Override
+    public void stopLockSampler() {
+        LockContentionSampler.get().stop();
+    }
+
+    @Override
+    public java.util.List<java.util.Map<String, Object>> hotLocks(int limit) {
+        return LockContentionSampler.get().hotLocks(limit);
+    }
+
+    @Override
+    public java.util.List<java.util.Map<String, Object>> lockOwnerStacks(int limit) {
+        return LockContentionSampler.get().ownerStacks(limit);
+    }
+
+    @Override
+    public java.util.List<java.util.Map<String, Object>> findDeadlocks() {
+        return LockContentionSampler.get().findDeadlocks();
+    }
+
+    @Override
+    public java.util.Map<String, Long> getLockStats() {
+        return LockContentionSampler.get().stats();
+    }
+
     @Override
     public String takeHeapDump(String filename, boolean live) {
         try {
@@ -59,36 +137,14 @@ public class AgentControl implements AgentControlMBean {
         }
     }
 
-    // GC logging
-    private static java.io.PrintWriter gcWriter;
-    private static final java.util.List<javax.management.NotificationEmitter> gcEmitters = new java.util.ArrayList<>();
-
+    // GC logging: decoded collections as JSON lines, written in batches by GcTelemetry
     @Override
     public void enableGcLogging(boolean on, String filename) {
         try {
-            if (on) {
-                if (gcWriter == null) gcWriter = new java.io.PrintWriter(new java.io.FileWriter(filename, true));
-                java.lang.management.GarbageCollectorMXBean gc = java.lang.management.ManagementFactory.getGarbageCollectorMXBeans().get(0);
-                // add listener to all collectors
-                for (java.lang.management.GarbageCollectorMXBean g : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) {
-                    if (g instanceof javax.management.NotificationEmitter) {
-                        javax.management.NotificationEmitter emitter = (javax.management.NotificationEmitter) g;
-                        javax.management.NotificationListener listener = (notification, handback) -> {
-                            gcWriter.println(notification.getType() + " " + notification.getMessage());
-                            gcWriter.flush();
-                        };
-                        emitter.addNotificationListener(listener, null, null);
-                        gcEmitters.add(emitter);
-                    }
-                }
-            } else {
-                if (gcWriter != null) gcWriter.close();
-                // can't easily remove anonymous listeners here; for demo we close the writer and clear emitters
-                gcEmitters.clear();
-                gcWriter = null;
-            }
+            if (on) GcTelemetry.get().startLog(filename);
+            else GcTelemetry.get().stopLog();
         } catch (Exception e) {
-            // ignore for PoC
+            System.err.println("Failed to " + (on ? "enable" : "disable") + " GC logging: " + e.getMessage());
         }
     }
 
@@ -5,7 +5,24 @@ public interface AgentControlMBean {
     void setSampleEnabled(boolean enabled);
     // JFR control
     void startJfr(String name, long maxAgeMillis);
+    // starts a recording with a predefined JFR configuration ("default" or "profile")
+    void startJfrWithSettings(String name, String configuration);
     String stopAndDumpJfr(String filename);
+    // continuous JFR event aggregation exported as metrics
+    boolean isJfrStreaming();
+    void setJfrStreaming(boolean enabled);
+    // built-in stack sampler; snapshots are collapsed stacks
+    void startProfiler(long intervalMillis);
+    void stopProfiler();
+    String snapshotProfiler(boolean reset);
+    java.util.Map<String, Long> getProfilerStats();
+    // thread state and lock contention sampler; rows are plain maps and lists
+    void startLockSampler(long intervalMillis);
+    void stopLockSampler();
+    java.util.List<java.util.Map<String, Object>> hotLocks(int limit);
+    java.util.List<java.util.Map<String, Object>> lockOwnerStacks(int limit);
+    java.util.List<java.util.Map<String, Object>> findDeadlocks();
+    java.util.Map<String, Long> getLockStats();
     // Heap dump
     String takeHeapDump(String filename, boolean live);
     // GC logging
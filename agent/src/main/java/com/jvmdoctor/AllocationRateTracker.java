@@ -0,0 +1,186 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Which threads allocate. Every interval the allocated bytes of all threads are read in one call and
+ * the growth since the last read is charged to the thread's name with digit runs collapsed, so
+ * {@code pool-3-thread-17} and {@code pool-3-thread-2} count as {@code pool-*-thread-*}. Names are kept
+ * in a bounded {@link TopTable}, and only its top {@code JVMDOCTOR_ALLOC_TOP_K} are exported, however
+ * many pools the application creates. A name's table total only grows, even across eviction and
+ * re-entry, so it is a counter; the remainder is not (it drops whenever a name climbs into the top),
+ * so {@code other} appears only in the rate gauge and byte totals leave it to
+ * {@code jvmdoctor_alloc_bytes_total} minus the named series.
+ */
+public class AllocationRateTracker extends Collector {
+    private static final long INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("JVMDOCTOR_ALLOC_INTERVAL_MS", "1000"));
+    private static final int TOP_K = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_ALLOC_TOP_K", "10"));
+    // rates are smoothed over about this long
+    private static final double RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final Pattern DIGITS = Pattern.compile("\\d+");
+    private static final String OTHER = "other";
+
+    private static final List<String> NO_LABELS = Collections.emptyList();
+    private static final List<String> THREADS = List.of("threads");
+
+    private static AllocationRateTracker instance;
+
+    private final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // guarded by this
+    private final TopTable table = TopTable.forTop(TOP_K);
+    // thread id -> collapsed name, and allocated bytes at the last read
+    private final Map<Long, String> names = new HashMap<>();
+    private final Map<Long, Long> lastRead = new HashMap<>();
+    // smoothed bytes/s of the names in the table
+    private final Map<String, Double> rates = new HashMap<>();
+    private double totalRate;
+    private long totalBytes;
+
+    private Thread tracker;
+
+    private AllocationRateTracker() {
+        if (threads.isThreadAllocatedMemorySupported() && !threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /** The tracker for this JVM. Creating it turns on per-thread allocation counting, which sampling relies on. */
+    public static synchronized AllocationRateTracker get() {
+        if (instance == null) {
+            instance = new AllocationRateTracker();
+            instance.register(CollectorRegistry.defaultRegistry);
+        }
+        return instance;
+    }
+
+    public synchronized boolean isRunning() {
+        return tracker != null;
+    }
+
+    public synchronized void start() {
+        if (tracker != null || !threads.isThreadAllocatedMemorySupported()) return;
+        Thread t = new Thread(this::run, "jvmdoctor-alloc");
+        t.setDaemon(true);
+        tracker = t;
+        t.start();
+    }
+
+    public synchronized void stop() {
+        if (tracker == null) return;
+        tracker.interrupt();
+        tracker = null;
+    }
+
+    private void run() {
+        Thread self = Thread.currentThread();
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(10, INTERVAL_MS));
+        long prev = System.nanoTime();
+        while (!self.isInterrupted()) {
+            LockSupport.parkNanos(intervalNanos);
+            if (self.isInterrupted()) break;
+            long now = System.nanoTime();
+            try {
+                sample(now - prev);
+            } catch (RuntimeException e) {
+                System.err.println("Allocation tracker failed: " + e.getMessage());
+            }
+            prev = now;
+        }
+    }
+
+    private synchronized void sample(long elapsedNanos) {
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+
+        List<Long> unknown = new ArrayList<>();
+        for (long id : ids) if (!names.containsKey(id)) unknown.add(id);
+        if (!unknown.isEmpty()) {
+            // names are looked up once per thread; renamed threads keep the name they had
+            long[] u = new long[unknown.size()];
+            for (int i = 0; i < u.length; i++) u[i] = unknown.get(i);
+            ThreadInfo[] infos = threads.getThreadInfo(u, 0);
+            for (int i = 0; i < u.length; i++) {
+                names.put(u[i], infos[i] == null ? OTHER : collapse(infos[i].getThreadName()));
+            }
+        }
+
+        // the first read is only a baseline; earlier allocations would show up as one burst
+        boolean baseline = lastRead.isEmpty();
+        Map<String, Long> deltas = new HashMap<>();
+        Set<Long> alive = new HashSet<>();
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] < 0) continue;
+            alive.add(ids[i]);
+            Long last = lastRead.put(ids[i], allocated[i]);
+            // a thread started since the last read is charged from its start
+            long delta = allocated[i] - (last == null ? 0 : last);
+            if (delta <= 0) continue;
+            deltas.merge(names.get(ids[i]), delta, Long::sum);
+            total += delta;
+        }
+        names.keySet().retainAll(alive);
+        lastRead.keySet().retainAll(alive);
+        if (baseline) return;
+        for (Map.Entry<String, Long> e : deltas.entrySet()) table.add(e.getKey(), e.getValue());
+        totalBytes += total;
+
+        double alpha = 1 - Math.exp(-elapsedNanos / RATE_WINDOW_NANOS);
+        double seconds = elapsedNanos / 1e9;
+        totalRate += alpha * (total / seconds - totalRate);
+        Map<String, Double> next = new HashMap<>();
+        for (TopTable.Entry e : table.top(table.capacity())) {
+            double r = rates.getOrDefault(e.key, 0.0);
+            next.put(e.key, r + alpha * (deltas.getOrDefault(e.key, 0L) / seconds - r));
+        }
+        rates.clear();
+        rates.putAll(next);
+    }
+
+    static String collapse(String threadName) {
+        return DIGITS.matcher(threadName).replaceAll("*");
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> bytes = new ArrayList<>();
+        List<MetricFamilySamples.Sample> rate = new ArrayList<>();
+        double topRate = 0;
+        for (TopTable.Entry e : table.top(TOP_K)) {
+            List<String> value = List.of(e.key);
+            double r = rates.getOrDefault(e.key, 0.0);
+            bytes.add(new MetricFamilySamples.Sample("jvmdoctor_alloc_top_bytes_total", THREADS, value, e.total));
+            rate.add(new MetricFamilySamples.Sample("jvmdoctor_alloc_top_rate_bytes", THREADS, value, r));
+            topRate += r;
+        }
+        // the remainder, so the exported rates add up to the whole
+        rate.add(new MetricFamilySamples.Sample("jvmdoctor_alloc_top_rate_bytes", THREADS, List.of(OTHER), Math.max(0, totalRate - topRate)));
+
+        List<MetricFamilySamples> mfs = new ArrayList<>();
+        mfs.add(new MetricFamilySamples("jvmdoctor_alloc_top_bytes", Type.COUNTER,
+            "Bytes allocated by the heaviest thread name patterns (digits collapsed).", bytes));
+        mfs.add(new MetricFamilySamples("jvmdoctor_alloc_top_rate_bytes", Type.GAUGE,
+            "Smoothed bytes/s allocated by the heaviest thread name patterns, the rest as other.", rate));
+        mfs.add(new MetricFamilySamples("jvmdoctor_alloc_bytes", Type.COUNTER, "Bytes allocated by all threads while tracked.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_alloc_bytes_total", NO_LABELS, NO_LABELS, totalBytes))));
+        mfs.add(new MetricFamilySamples("jvmdoctor_alloc_rate_bytes", Type.GAUGE, "Smoothed bytes/s allocated by all threads.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_alloc_rate_bytes", NO_LABELS, NO_LABELS, totalRate))));
+        return mfs;
+    }
+}
@@ -0,0 +1,154 @@
+package com.jvmdoctor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sampled stacks folded into a prefix tree with a fixed node budget. Frame names are interned to
+ * ints and nodes live in parallel primitive arrays, with an open-addressing (parent, frame) table
+ * for child lookup, so adding a sample whose path already exists allocates nothing. Once the budget
+ * is used up, a sample on a new path is charged to the deepest node that already exists, and new
+ * frame names are no longer interned: a frame never seen before cannot be on an existing path.
+ */
+public class CallTree {
+    private final int maxNodes;
+    private final List<String> frames = new ArrayList<>();
+    private final Map<String, Integer> frameIds = new HashMap<>();
+
+    private int[] parent = new int[256];
+    private int[] frame = new int[256];
+    private long[] self = new long[256];
+    private int size = 1;
+
+    // (parent, frame) -> node + 1
+    private long[] keys = new long[512];
+    private int[] values = new int[512];
+
+    private long samples;
+    private long truncated;
+
+    public CallTree(int maxNodes) {
+        this.maxNodes = Math.max(2, maxNodes);
+        parent[0] = -1;
+        frame[0] = -1;
+    }
+
+    /** The id of {@code name}, or -1 if it is new and the node budget is used up. */
+    public int frameId(String name) {
+        Integer id = frameIds.get(name);
+        if (id != null) return id;
+        if (size == maxNodes) return -1;
+        frames.add(name);
+        frameIds.put(name, frames.size() - 1);
+        return frames.size() - 1;
+    }
+
+    /**
+     * Adds one sample; {@code stack} holds frame ids from the outermost caller to the leaf, ending
+     * early at a -1 from {@link #frameId}.
+     */
+    public void add(int[] stack, int depth) {
+        int node = 0;
+        for (int i = 0; i < depth; i++) {
+            int next = stack[i] < 0 ? -1 : child(node, stack[i]);
+            if (next < 0) {
+                truncated++;
+                break;
+            }
+            node = next;
+        }
+        self[node]++;
+        samples++;
+    }
+
+    // -1 when the node would exceed the budget
+    private int child(int node, int frameId) {
+        long key = ((long) node << 32) | frameId;
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != 0) {
+            if (keys[i] == key) return values[i] - 1;
+            i = (i + 1) & mask;
+        }
+        if (size == maxNodes) return -1;
+        int n = size++;
+        if (n == parent.length) {
+            int cap = Math.min(maxNodes, n * 2);
+            parent = Arrays.copyOf(parent, cap);
+            frame = Arrays.copyOf(frame, cap);
+            self = Arrays.copyOf(self, cap);
+        }
+        parent[n] = node;
+        frame[n] = frameId;
+        keys[i] = key;
+        values[i] = n + 1;
+        if (size * 2 > keys.length) rehash();
+        return n;
+    }
+
+    private static int slot(long key, int mask) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == 0) continue;
+            int i = slot(oldKeys[j], mask);
+            while (values[i] != 0) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    public int nodes() {
+        return size;
+    }
+
+    public int frames() {
+        return frames.size();
+    }
+
+    public long samples() {
+        return samples;
+    }
+
+    /** Samples charged to a shorter path because the node budget was used up. */
+    public long truncated() {
+        return truncated;
+    }
+
+    /** Collapsed stacks: one line per path with samples, frames joined by ';', then the count. */
+    public String collapsed() {
+        int[] firstChild = new int[size];
+        int[] nextSibling = new int[size];
+        // linked in reverse so siblings come out in creation order
+        for (int n = size - 1; n > 0; n--) {
+            nextSibling[n] = firstChild[parent[n]];
+            firstChild[parent[n]] = n;
+        }
+        StringBuilder out = new StringBuilder();
+        StringBuilder path = new StringBuilder();
+        for (int c = firstChild[0]; c != 0; c = nextSibling[c]) collapsed(c, firstChild, nextSibling, path, out);
+        return out.toString();
+    }
+
+    private void collapsed(int node, int[] firstChild, int[] nextSibling, StringBuilder path, StringBuilder out) {
+        int mark = path.length();
+        if (mark > 0) path.append(';');
+        path.append(frames.get(frame[node]));
+        if (self[node] > 0) out.append(path).append(' ').append(self[node]).append('\n');
+        for (int c = firstChild[node]; c != 0; c = nextSibling[c]) collapsed(c, firstChild, nextSibling, path, out);
+        path.setLength(mark);
+    }
+}
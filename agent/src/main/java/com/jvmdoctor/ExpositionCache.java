@@ -0,0 +1,132 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The registry collected at most once per TTL, kept both as samples (for the pusher) and as the
+ * encoded text exposition, plain and gzipped (for scrapers). Scrapers arriving while a snapshot is
+ * being built wait for that one instead of collecting again, so the cost of collection does not grow
+ * with the number of scrapers.
+ */
+public class ExpositionCache extends Collector {
+    private static final long TTL_NANOS = TimeUnit.MILLISECONDS.toNanos(
+        Long.parseLong(System.getenv().getOrDefault("JVMDOCTOR_METRICS_CACHE_MS", "1000")));
+
+    private static final List<String> NO_LABELS = Collections.emptyList();
+
+    public static class Snapshot {
+        final long createdNanos;
+        public final long timestampMs;
+        public final List<MetricFamilySamples> families;
+        public final byte[] text;
+        public final byte[] gzip;
+
+        Snapshot(long createdNanos, long timestampMs, List<MetricFamilySamples> families, byte[] text, byte[] gzip) {
+            this.createdNanos = createdNanos;
+            this.timestampMs = timestampMs;
+            this.families = families;
+            this.text = text;
+            this.gzip = gzip;
+        }
+    }
+
+    private final CollectorRegistry registry;
+    private volatile long ttlNanos = TTL_NANOS;
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private volatile Snapshot current;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final LatencyHistogram refreshTime = new LatencyHistogram();
+
+    public ExpositionCache(CollectorRegistry registry) {
+        this.registry = registry;
+    }
+
+    /** Stretches the TTL to {@code factor} times the configured one. */
+    public void scaleTtl(int factor) {
+        ttlNanos = TTL_NANOS * Math.max(1, factor);
+    }
+
+    /** A snapshot no older than the TTL, building one if needed. */
+    public Snapshot get() {
+        Snapshot s = current;
+        if (s != null && System.nanoTime() - s.createdNanos < ttlNanos) {
+            hits.incrementAndGet();
+            return s;
+        }
+        refreshLock.lock();
+        try {
+            s = current;
+            if (s != null && System.nanoTime() - s.createdNanos < ttlNanos) {
+                // another scraper built it while we waited
+                coalesced.incrementAndGet();
+                return s;
+            }
+            misses.incrementAndGet();
+            s = build();
+            current = s;
+            return s;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private Snapshot build() {
+        long t0 = System.nanoTime();
+        long now = System.currentTimeMillis();
+        List<MetricFamilySamples> families = Collections.list(registry.metricFamilySamples());
+        try {
+            ByteArrayOutputStream plain = new ByteArrayOutputStream(64 * 1024);
+            try (Writer w = new OutputStreamWriter(plain, StandardCharsets.UTF_8)) {
+                TextFormat.write004(w, Collections.enumeration(families));
+            }
+            byte[] text = plain.toByteArray();
+            ByteArrayOutputStream zipped = new ByteArrayOutputStream(text.length / 4 + 64);
+            try (GZIPOutputStream gz = new GZIPOutputStream(zipped)) {
+                gz.write(text);
+            }
+            long t1 = System.nanoTime();
+            refreshTime.record(t1 - t0);
+            return new Snapshot(t1, now, families, text, zipped.toByteArray());
+        } catch (IOException e) {
+            // only in-memory streams are involved
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<>();
+        mfs.add(counter("jvmdoctor_metrics_cache_hits", "Scrapes served from a cached exposition.", hits.get()));
+        mfs.add(counter("jvmdoctor_metrics_cache_misses", "Scrapes that collected the registry.", misses.get()));
+        mfs.add(counter("jvmdoctor_metrics_cache_coalesced", "Scrapes that waited for a collection already in progress.", coalesced.get()));
+        List<MetricFamilySamples.Sample> refresh = new ArrayList<>();
+        refreshTime.addSamples(refresh, "jvmdoctor_metrics_cache_refresh_seconds", NO_LABELS, NO_LABELS);
+        mfs.add(new MetricFamilySamples("jvmdoctor_metrics_cache_refresh_seconds", Type.HISTOGRAM,
+            "Time to collect and encode the registry.", refresh));
+        return mfs;
+    }
+
+    private static MetricFamilySamples counter(String name, String help, long value) {
+        return new MetricFamilySamples(name, Type.COUNTER, help,
+            List.of(new MetricFamilySamples.Sample(name + "_total", NO_LABELS, NO_LABELS, value)));
+    }
+}
@@ -0,0 +1,199 @@
+package com.jvmdoctor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON-lines GC log. The notification thread only copies numbers into a preallocated record slot;
+ * a background thread turns the filled slots into text and writes them with one flush per batch.
+ * When the file passes {@code JVMDOCTOR_GC_LOG_MAX_BYTES} it is rotated to {@code .1}, {@code .2}, ...
+ * keeping {@code JVMDOCTOR_GC_LOG_FILES} old files. Records that arrive while every slot is full are
+ * counted and dropped.
+ */
+public class GcLogWriter {
+    private static final int BATCH = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_GC_LOG_BATCH", "1024"));
+    private static final long FLUSH_MS = Long.parseLong(System.getenv().getOrDefault("JVMDOCTOR_GC_LOG_FLUSH_MS", "1000"));
+    private static final long MAX_BYTES = Long.parseLong(System.getenv().getOrDefault("JVMDOCTOR_GC_LOG_MAX_BYTES", "10485760"));
+    private static final int MAX_FILES = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_GC_LOG_FILES", "5"));
+
+    private static class Record {
+        long time;
+        String gc;
+        String action;
+        String cause;
+        long id;
+        long durationMs;
+        final long[] before;
+        final long[] after;
+
+        Record(int pools) {
+            before = new long[pools];
+            after = new long[pools];
+        }
+    }
+
+    private final Path path;
+    private final String[] poolNames;
+    private final String[] poolKeys;
+    // filled by the notification thread; swapped with spare by the flusher
+    private Record[] active;
+    private Record[] spare;
+    private int count;
+    private long dropped;
+
+    private Writer writer;
+    private long written;
+    private final ScheduledExecutorService flusher;
+
+    GcLogWriter(String filename, String[] poolNames) throws IOException {
+        this.path = Paths.get(filename);
+        this.poolNames = poolNames;
+        this.poolKeys = new String[poolNames.length];
+        for (int i = 0; i < poolNames.length; i++) poolKeys[i] = "\"" + escape(poolNames[i]) + "\":[";
+        this.active = newBatch();
+        this.spare = newBatch();
+        open();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "jvmdoctor-gc-log");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private Record[] newBatch() {
+        Record[] batch = new Record[BATCH];
+        for (int i = 0; i < batch.length; i++) batch[i] = new Record(poolNames.length);
+        return batch;
+    }
+
+    private void open() throws IOException {
+        OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        written = Files.size(path);
+    }
+
+    synchronized void offer(long time, String gc, String action, String cause, long id, long durationMs,
+                            String[] pools, Map<String, MemoryUsage> before, Map<String, MemoryUsage> after) {
+        if (count == active.length) {
+            dropped++;
+            return;
+        }
+        Record r = active[count++];
+        r.time = time;
+        r.gc = gc;
+        r.action = action;
+        r.cause = cause;
+        r.id = id;
+        r.durationMs = durationMs;
+        for (int i = 0; i < pools.length; i++) {
+            MemoryUsage b = before.get(pools[i]);
+            MemoryUsage a = after.get(pools[i]);
+            r.before[i] = b == null ? -1 : b.getUsed();
+            r.after[i] = a == null ? -1 : a.getUsed();
+        }
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    private void flush() {
+        Record[] batch;
+        int n;
+        synchronized (this) {
+            if (count == 0) return;
+            batch = active;
+            n = count;
+            active = spare;
+            spare = batch;
+            count = 0;
+        }
+        // only the flusher thread touches the file
+        try {
+            StringBuilder sb = new StringBuilder(256);
+            for (int i = 0; i < n; i++) {
+                Record r = batch[i];
+                sb.setLength(0);
+                sb.append("{\"time\":").append(r.time)
+                  .append(",\"gc\":\"").append(escape(r.gc))
+                  .append("\",\"action\":\"").append(escape(r.action))
+                  .append("\",\"cause\":\"").append(escape(r.cause))
+                  .append("\",\"id\":").append(r.id)
+                  .append(",\"durationMs\":").append(r.durationMs)
+                  .append(",\"pools\":{");
+                boolean first = true;
+                for (int p = 0; p < poolKeys.length; p++) {
+                    if (r.before[p] < 0) continue;
+                    if (!first) sb.append(',');
+                    first = false;
+                    sb.append(poolKeys[p]).append(r.before[p]).append(',').append(r.after[p]).append(']');
+                }
+                sb.append("}}\n");
+                writer.append(sb);
+                written += sb.length();
+            }
+            writer.flush();
+            if (written >= MAX_BYTES) rotate();
+        } catch (IOException e) {
+            System.err.println("Failed to write GC log: " + e.getMessage());
+        }
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            Path from = Paths.get(path + "." + i);
+            if (Files.exists(from)) Files.move(from, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (MAX_FILES > 0) Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        else Files.delete(path);
+        open();
+    }
+
+    /** Writes what is pending and closes the file. */
+    void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static String escape(String s) {
+        if (s == null) return "";
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                if (sb == null) sb = new StringBuilder(s.substring(0, i));
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else sb.append(String.format("\\u%04x", (int) c));
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+}
@@ -0,0 +1,250 @@
+package com.jvmdoctor;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes GC notifications into metrics: pause histograms per collector, collection counts per
+ * cause, per-pool usage before and after, and allocation/promotion volumes and rates. All state is
+ * allocated when the listener is installed; a notification only updates numbers. When a GC log is
+ * enabled the same decoded values are handed to a {@link GcLogWriter}, which writes them in batches.
+ */
+public class GcTelemetry extends Collector {
+    private static GcTelemetry instance;
+
+    private final NotificationListener listener = (n, handback) -> {
+        // runs on a JMX notification thread, so its cost is measured here rather than per thread
+        SelfOverhead self = SelfOverhead.active();
+        if (self == null) {
+            onNotification(n);
+            return;
+        }
+        long cpu = self.cpuNow();
+        long alloc = self.allocatedNow();
+        onNotification(n);
+        self.charge("gc_listener", self.cpuNow() - cpu, self.allocatedNow() - alloc);
+    };
+    private final NotificationFilter filter = n -> GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(n.getType());
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    // heap pools only; code cache and metaspace do not change across a collection in a useful way
+    private final String[] poolNames;
+    private final boolean[] oldPool;
+    private final long[] lastBefore;
+    private final long[] lastAfter;
+    private final long[] reclaimed;
+
+    private final Map<String, LatencyHistogram> pauses = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, long[]>> causes = new ConcurrentHashMap<>();
+
+    private long allocatedBytes;
+    private long promotedBytes;
+    private double allocationRate;
+    private double promotionRate;
+    // heap used after, and JVM-relative start/end of, the previous collection
+    private long prevHeapAfter = -1;
+    private long prevStart = -1;
+    private long prevEnd = -1;
+
+    private volatile GcLogWriter log;
+
+    private GcTelemetry() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (p.getType() == MemoryType.HEAP) pools.add(p);
+        }
+        int n = pools.size();
+        poolNames = new String[n];
+        oldPool = new boolean[n];
+        lastBefore = new long[n];
+        lastAfter = new long[n];
+        reclaimed = new long[n];
+        for (int i = 0; i < n; i++) {
+            MemoryPoolMXBean p = pools.get(i);
+            poolNames[i] = p.getName();
+            oldPool[i] = p.getName().contains("Old Gen") || p.getName().contains("Tenured");
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            pauses.put(gc.getName(), new LatencyHistogram());
+        }
+    }
+
+    /** This JVM's GC telemetry; the heap pools and collectors it reports on are read when it is created. */
+    public static synchronized GcTelemetry get() {
+        if (instance == null) {
+            instance = new GcTelemetry();
+            instance.register(CollectorRegistry.defaultRegistry);
+        }
+        return instance;
+    }
+
+    public synchronized boolean isInstalled() {
+        return !emitters.isEmpty();
+    }
+
+    public synchronized void install() {
+        if (!emitters.isEmpty()) return;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) gc;
+                emitter.addNotificationListener(listener, filter, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    public synchronized void uninstall() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener, filter, null);
+            } catch (Exception e) {
+                // already gone
+            }
+        }
+        emitters.clear();
+    }
+
+    /** Starts writing decoded collections to {@code path}, replacing any current log. */
+    public void startLog(String path) throws IOException {
+        GcLogWriter w = new GcLogWriter(path, poolNames);
+        synchronized (this) {
+            install();
+            GcLogWriter old = log;
+            log = w;
+            if (old != null) old.close();
+        }
+    }
+
+    public void stopLog() {
+        GcLogWriter old;
+        synchronized (this) {
+            old = log;
+            log = null;
+        }
+        if (old != null) old.close();
+    }
+
+    private synchronized void onNotification(Notification n) {
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) n.getUserData());
+        GcInfo gc = info.getGcInfo();
+        String name = info.getGcName();
+        String cause = info.getGcCause();
+        long durationMs = gc.getDuration();
+
+        pauses.computeIfAbsent(name, k -> new LatencyHistogram()).record(durationMs * 1_000_000L);
+        causes.computeIfAbsent(name, k -> new ConcurrentHashMap<>()).computeIfAbsent(cause, k -> new long[1])[0]++;
+
+        Map<String, MemoryUsage> before = gc.getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> after = gc.getMemoryUsageAfterGc();
+        long heapBefore = 0, heapAfter = 0, oldGrowth = 0;
+        for (int i = 0; i < poolNames.length; i++) {
+            MemoryUsage b = before.get(poolNames[i]);
+            MemoryUsage a = after.get(poolNames[i]);
+            if (b == null || a == null) continue;
+            lastBefore[i] = b.getUsed();
+            lastAfter[i] = a.getUsed();
+            if (b.getUsed() > a.getUsed()) reclaimed[i] += b.getUsed() - a.getUsed();
+            heapBefore += b.getUsed();
+            heapAfter += a.getUsed();
+            if (oldPool[i]) oldGrowth += a.getUsed() - b.getUsed();
+        }
+
+        // allocated since the previous collection ended: what the heap grew by in between
+        if (prevHeapAfter >= 0 && heapBefore > prevHeapAfter) {
+            long allocated = heapBefore - prevHeapAfter;
+            allocatedBytes += allocated;
+            long window = gc.getStartTime() - prevEnd;
+            if (window > 0) allocationRate = allocated * 1000.0 / window;
+        }
+        // objects copied into the old generation by a young collection
+        if (info.getGcAction().contains("minor") && oldGrowth > 0) {
+            promotedBytes += oldGrowth;
+            long window = gc.getStartTime() - prevStart;
+            if (prevStart >= 0 && window > 0) promotionRate = oldGrowth * 1000.0 / window;
+        }
+        prevHeapAfter = heapAfter;
+        prevStart = gc.getStartTime();
+        prevEnd = gc.getEndTime();
+
+        GcLogWriter w = log;
+        if (w != null) {
+            w.offer(jvmStartMillis + gc.getStartTime(), name, info.getGcAction(), cause, gc.getId(), durationMs,
+                poolNames, before, after);
+        }
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<>();
+        List<String> gcLabel = List.of("gc");
+        List<MetricFamilySamples.Sample> pauseSamples = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> e : pauses.entrySet()) {
+            e.getValue().addSamples(pauseSamples, "jvmdoctor_gc_pause_seconds", gcLabel, List.of(e.getKey()));
+        }
+        mfs.add(new MetricFamilySamples("jvmdoctor_gc_pause_seconds", Type.HISTOGRAM,
+            "Collection durations from GC notifications, millisecond resolution (cycle time for concurrent collectors).", pauseSamples));
+
+        List<String> causeLabels = List.of("gc", "cause");
+        List<MetricFamilySamples.Sample> causeSamples = new ArrayList<>();
+        for (var byGc : causes.entrySet()) {
+            for (var byCause : byGc.getValue().entrySet()) {
+                causeSamples.add(new MetricFamilySamples.Sample("jvmdoctor_gc_collections_total", causeLabels,
+                    List.of(byGc.getKey(), byCause.getKey()), byCause.getValue()[0]));
+            }
+        }
+        mfs.add(new MetricFamilySamples("jvmdoctor_gc_collections", Type.COUNTER, "Collections by collector and cause.", causeSamples));
+
+        List<String> poolLabel = List.of("pool");
+        List<MetricFamilySamples.Sample> beforeSamples = new ArrayList<>();
+        List<MetricFamilySamples.Sample> afterSamples = new ArrayList<>();
+        List<MetricFamilySamples.Sample> reclaimedSamples = new ArrayList<>();
+        for (int i = 0; i < poolNames.length; i++) {
+            List<String> pool = List.of(poolNames[i]);
+            beforeSamples.add(new MetricFamilySamples.Sample("jvmdoctor_gc_pool_before_bytes", poolLabel, pool, lastBefore[i]));
+            afterSamples.add(new MetricFamilySamples.Sample("jvmdoctor_gc_pool_after_bytes", poolLabel, pool, lastAfter[i]));
+            reclaimedSamples.add(new MetricFamilySamples.Sample("jvmdoctor_gc_pool_reclaimed_bytes_total", poolLabel, pool, reclaimed[i]));
+        }
+        mfs.add(new MetricFamilySamples("jvmdoctor_gc_pool_before_bytes", Type.GAUGE, "Pool usage before the last collection that touched it.", beforeSamples));
+        mfs.add(new MetricFamilySamples("jvmdoctor_gc_pool_after_bytes", Type.GAUGE, "Pool usage after the last collection that touched it.", afterSamples));
+        mfs.add(new MetricFamilySamples("jvmdoctor_gc_pool_reclaimed_bytes", Type.COUNTER, "Bytes freed from each pool by collections.", reclaimedSamples));
+
+        mfs.add(single("jvmdoctor_gc_allocated_bytes", Type.COUNTER, "jvmdoctor_gc_allocated_bytes_total",
+            "Heap allocated between collections, measured at each collection.", allocatedBytes));
+        mfs.add(single("jvmdoctor_gc_promoted_bytes", Type.COUNTER, "jvmdoctor_gc_promoted_bytes_total",
+            "Old generation growth across young collections.", promotedBytes));
+        mfs.add(single("jvmdoctor_gc_allocation_rate_bytes_per_second", Type.GAUGE, "jvmdoctor_gc_allocation_rate_bytes_per_second",
+            "Allocation rate between the last two collections.", allocationRate));
+        mfs.add(single("jvmdoctor_gc_promotion_rate_bytes_per_second", Type.GAUGE, "jvmdoctor_gc_promotion_rate_bytes_per_second",
+            "Promotion rate over the interval before the last young collection.", promotionRate));
+        GcLogWriter w = log;
+        if (w != null) {
+            mfs.add(single("jvmdoctor_gc_log_dropped", Type.COUNTER, "jvmdoctor_gc_log_dropped_total",
+                "GC log records dropped because the writer fell behind.", w.dropped()));
+        }
+        return mfs;
+    }
+
+    private static MetricFamilySamples single(String family, Type type, String sample, String help, double value) {
+        return new MetricFamilySamples(family, type, help,
+            List.of(new MetricFamilySamples.Sample(sample, List.of(), List.of(), value)));
+    }
+}
@@ -0,0 +1,199 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Always-on JFR consumer. A {@link RecordingStream} delivers GC pause, safepoint, monitor-enter,
+ * thread-park, socket and file I/O events, which are folded straight into fixed-bucket histograms
+ * and top-N tables and exported with the rest of the registry. Nothing is kept per event, so the
+ * cost is the JFR event itself plus a few atomic adds; stack traces are not collected. The one
+ * exception is the start of each safepoint, held until its {@code jdk.SafepointEnd} arrives, since
+ * {@code jdk.SafepointBegin} only spans the time it took threads to stop.
+ */
+public class JfrStreamingAggregator extends Collector {
+    // events shorter than this are not emitted by JFR at all; the main knob on overhead
+    private static final long THRESHOLD_MS = Long.parseLong(System.getenv().getOrDefault("JVMDOCTOR_JFR_THRESHOLD_MS", "10"));
+    private static final int TOP_N = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_JFR_TOP_N", "10"));
+
+    private static final List<String> NO_LABELS = Collections.emptyList();
+    private static final List<String> OP = List.of("op");
+    private static final List<String> READ = List.of("read");
+    private static final List<String> WRITE = List.of("write");
+
+    private static JfrStreamingAggregator instance;
+
+    private final LatencyHistogram gcPause = new LatencyHistogram();
+    private final LatencyHistogram safepointSync = new LatencyHistogram();
+    private final LatencyHistogram safepointPause = new LatencyHistogram();
+    // safepoint id -> start of its jdk.SafepointBegin; only touched by the stream thread
+    private final Map<Long, Instant> safepointStarts = new HashMap<>();
+    private final LatencyHistogram monitorEnter = new LatencyHistogram();
+    private final LatencyHistogram threadPark = new LatencyHistogram();
+    private final LatencyHistogram socketRead = new LatencyHistogram();
+    private final LatencyHistogram socketWrite = new LatencyHistogram();
+    private final LatencyHistogram fileRead = new LatencyHistogram();
+    private final LatencyHistogram fileWrite = new LatencyHistogram();
+
+    private final TopTable monitorClasses = TopTable.forTop(TOP_N);
+    private final TopTable parkedClasses = TopTable.forTop(TOP_N);
+    private final TopTable socketAddresses = TopTable.forTop(TOP_N);
+    private final TopTable filePaths = TopTable.forTop(TOP_N);
+
+    private RecordingStream stream;
+
+    /** The aggregator behind the JFR latency histograms; the recording stream only runs between start and stop. */
+    public static synchronized JfrStreamingAggregator get() {
+        if (instance == null) {
+            instance = new JfrStreamingAggregator();
+            instance.register(CollectorRegistry.defaultRegistry);
+        }
+        return instance;
+    }
+
+    public synchronized boolean isRunning() {
+        return stream != null;
+    }
+
+    public synchronized void start() {
+        if (stream != null) return;
+        Duration threshold = Duration.ofMillis(THRESHOLD_MS);
+        safepointStarts.clear();
+        RecordingStream rs = new RecordingStream();
+        // the stream reads back from the disk repository; keep only what it has not consumed yet
+        rs.setMaxAge(Duration.ofSeconds(30));
+        rs.enable("jdk.GCPhasePause").withoutStackTrace();
+        rs.enable("jdk.SafepointBegin").withoutStackTrace();
+        rs.enable("jdk.SafepointEnd").withoutStackTrace();
+        rs.enable("jdk.JavaMonitorEnter").withThreshold(threshold).withoutStackTrace();
+        rs.enable("jdk.ThreadPark").withThreshold(threshold).withoutStackTrace();
+        rs.enable("jdk.SocketRead").withThreshold(threshold).withoutStackTrace();
+        rs.enable("jdk.SocketWrite").withThreshold(threshold).withoutStackTrace();
+        rs.enable("jdk.FileRead").withThreshold(threshold).withoutStackTrace();
+        rs.enable("jdk.FileWrite").withThreshold(threshold).withoutStackTrace();
+
+        rs.onEvent("jdk.GCPhasePause", e -> gcPause.record(nanos(e)));
+        rs.onEvent("jdk.SafepointBegin", e -> {
+            safepointSync.record(nanos(e));
+            // a Begin whose End never arrives (the stream stopped in between) must not stay forever
+            if (safepointStarts.size() >= 64) safepointStarts.clear();
+            safepointStarts.put(e.getLong("safepointId"), e.getStartTime());
+        });
+        rs.onEvent("jdk.SafepointEnd", e -> {
+            Instant begin = safepointStarts.remove(e.getLong("safepointId"));
+            if (begin != null) safepointPause.record(Duration.between(begin, e.getEndTime()).toNanos());
+        });
+        rs.onEvent("jdk.JavaMonitorEnter", e -> {
+            long d = nanos(e);
+            monitorEnter.record(d);
+            monitorClasses.add(className(e, "monitorClass"), d);
+        });
+        rs.onEvent("jdk.ThreadPark", e -> {
+            long d = nanos(e);
+            threadPark.record(d);
+            parkedClasses.add(className(e, "parkedClass"), d);
+        });
+        rs.onEvent("jdk.SocketRead", e -> socket(e, socketRead));
+        rs.onEvent("jdk.SocketWrite", e -> socket(e, socketWrite));
+        rs.onEvent("jdk.FileRead", e -> file(e, fileRead));
+        rs.onEvent("jdk.FileWrite", e -> file(e, fileWrite));
+        // startAsync() uses a non-daemon thread, which would keep the application from exiting
+        Thread t = new Thread(() -> {
+            try {
+                rs.start();
+            } catch (IllegalStateException e) {
+                // stopped before the thread got going
+            }
+        }, "jvmdoctor-jfr-stream");
+        t.setDaemon(true);
+        t.start();
+        stream = rs;
+    }
+
+    public synchronized void stop() {
+        if (stream == null) return;
+        stream.close();
+        stream = null;
+    }
+
+    private static long nanos(RecordedEvent e) {
+        return e.getDuration().toNanos();
+    }
+
+    private static String className(RecordedEvent e, String field) {
+        RecordedClass c = e.hasField(field) ? e.getClass(field) : null;
+        return c == null ? "unknown" : c.getName();
+    }
+
+    private void socket(RecordedEvent e, LatencyHistogram h) {
+        long d = nanos(e);
+        h.record(d);
+        String host = e.getString("host");
+        if (host == null || host.isEmpty()) host = e.getString("address");
+        socketAddresses.add(host + ":" + e.getInt("port"), d);
+    }
+
+    private void file(RecordedEvent e, LatencyHistogram h) {
+        long d = nanos(e);
+        h.record(d);
+        String path = e.getString("path");
+        filePaths.add(path == null ? "unknown" : path, d);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<>();
+        mfs.add(histogram("jvmdoctor_jfr_gc_pause_seconds", "GC pause durations from JFR.", NO_LABELS, gcPause));
+        mfs.add(histogram("jvmdoctor_jfr_safepoint_sync_seconds",
+            "Time to safepoint: from the safepoint request until every thread had stopped.", NO_LABELS, safepointSync));
+        mfs.add(histogram("jvmdoctor_jfr_safepoint_pause_seconds",
+            "Safepoint pauses, from the safepoint request until threads were released.", NO_LABELS, safepointPause));
+        mfs.add(histogram("jvmdoctor_jfr_monitor_enter_seconds",
+            "Time threads blocked entering a contended monitor, for waits above the JFR threshold.", NO_LABELS, monitorEnter));
+        mfs.add(histogram("jvmdoctor_jfr_thread_park_seconds",
+            "Time threads spent parked, for parks above the JFR threshold.", NO_LABELS, threadPark));
+
+        List<MetricFamilySamples.Sample> socket = new ArrayList<>();
+        socketRead.addSamples(socket, "jvmdoctor_jfr_socket_io_seconds", OP, READ);
+        socketWrite.addSamples(socket, "jvmdoctor_jfr_socket_io_seconds", OP, WRITE);
+        mfs.add(new MetricFamilySamples("jvmdoctor_jfr_socket_io_seconds", Type.HISTOGRAM,
+            "Socket read and write durations above the JFR threshold.", socket));
+        List<MetricFamilySamples.Sample> file = new ArrayList<>();
+        fileRead.addSamples(file, "jvmdoctor_jfr_file_io_seconds", OP, READ);
+        fileWrite.addSamples(file, "jvmdoctor_jfr_file_io_seconds", OP, WRITE);
+        mfs.add(new MetricFamilySamples("jvmdoctor_jfr_file_io_seconds", Type.HISTOGRAM,
+            "File read and write durations above the JFR threshold.", file));
+
+        mfs.add(top("jvmdoctor_jfr_monitor_enter_top_seconds", "Monitor classes with the most blocked time.", "class", monitorClasses));
+        mfs.add(top("jvmdoctor_jfr_thread_park_top_seconds", "Parked-on classes with the most parked time.", "class", parkedClasses));
+        mfs.add(top("jvmdoctor_jfr_socket_io_top_seconds", "Remote endpoints with the most socket I/O time.", "address", socketAddresses));
+        mfs.add(top("jvmdoctor_jfr_file_io_top_seconds", "Files with the most I/O time.", "path", filePaths));
+        return mfs;
+    }
+
+    private static MetricFamilySamples histogram(String name, String help, List<String> labels, LatencyHistogram h) {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        h.addSamples(samples, name, labels, labels);
+        return new MetricFamilySamples(name, Type.HISTOGRAM, help, samples);
+    }
+
+    private static MetricFamilySamples top(String name, String help, String label, TopTable table) {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        List<String> labels = List.of(label);
+        for (TopTable.Entry e : table.top(TOP_N)) {
+            samples.add(new MetricFamilySamples.Sample(name, labels, List.of(e.key), e.total / 1e9));
+        }
+        return new MetricFamilySamples(name, Type.GAUGE, help, samples);
+    }
+}
@@ -0,0 +1,65 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed power-of-two buckets from 100 µs to ~52 s. Recording is a bucket
+ * index computation and two atomic adds, so it can sit on an event stream without allocating.
+ */
+public class LatencyHistogram {
+    private static final long FIRST_BOUND_NANOS = 100_000L;
+    private static final int BUCKETS = 20;
+    private static final String[] LE = new String[BUCKETS + 1];
+
+    static {
+        for (int i = 0; i < BUCKETS; i++) LE[i] = Collector.doubleToGoString(FIRST_BOUND_NANOS * (1L << i) / 1e9);
+        LE[BUCKETS] = "+Inf";
+    }
+
+    // per bucket, not cumulative; the last slot is +Inf
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        sumNanos.addAndGet(nanos);
+    }
+
+    // smallest i with nanos <= FIRST_BOUND_NANOS * 2^i
+    static int bucket(long nanos) {
+        long q = (nanos + FIRST_BOUND_NANOS - 1) / FIRST_BOUND_NANOS;
+        if (q <= 1) return 0;
+        return Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(q - 1));
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i <= BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    public long sumNanos() {
+        return sumNanos.get();
+    }
+
+    /** Appends {@code name_bucket}, {@code name_count} and {@code name_sum} samples in seconds. */
+    public void addSamples(List<Collector.MetricFamilySamples.Sample> out, String name, List<String> labelNames, List<String> labelValues) {
+        List<String> bucketNames = new ArrayList<>(labelNames);
+        bucketNames.add("le");
+        long cumulative = 0;
+        for (int i = 0; i <= BUCKETS; i++) {
+            cumulative += counts.get(i);
+            List<String> values = new ArrayList<>(labelValues);
+            values.add(LE[i]);
+            out.add(new Collector.MetricFamilySamples.Sample(name + "_bucket", bucketNames, values, cumulative));
+        }
+        out.add(new Collector.MetricFamilySamples.Sample(name + "_count", labelNames, labelValues, cumulative));
+        out.add(new Collector.MetricFamilySamples.Sample(name + "_sum", labelNames, labelValues, sumNanos.get() / 1e9));
+    }
+}
@@ -0,0 +1,371 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Samples thread states and lock contention. Every interval a daemon thread reads every thread's
+ * state and blocked/waited counters (without stacks), groups the threads blocked on a monitor or
+ * waiting for an owned {@code java.util.concurrent} lock by that lock, and then takes the stacks of
+ * just the owners. Waiting time, estimated from the samples, is aggregated per lock, per lock class,
+ * and per lock class and owner stack in bounded {@link TopTable}s, so the locks behind a convoy and
+ * what their owners were doing stand out without a series of thread dumps. Only the per-class table
+ * is exported, since every new monitor would otherwise be a new series. Thread contention monitoring
+ * is turned on while sampling and back off when stopped. Deadlocks are looked for every
+ * {@code JVMDOCTOR_DEADLOCK_CHECK_MS}.
+ */
+public class LockContentionSampler extends Collector {
+    private static final long DEFAULT_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("JVMDOCTOR_LOCK_SAMPLER_INTERVAL_MS", "1000"));
+    private static final long DEADLOCK_CHECK_MS = Long.parseLong(System.getenv().getOrDefault("JVMDOCTOR_DEADLOCK_CHECK_MS", "10000"));
+    private static final int OWNER_DEPTH = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_LOCK_OWNER_DEPTH", "16"));
+    private static final int TOP_N = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_LOCK_TOP_N", "10"));
+
+    private static final List<String> NO_LABELS = Collections.emptyList();
+    private static final List<String> STATE = List.of("state");
+    private static final List<String> LOCK_CLASS = List.of("lock_class");
+
+    private static LockContentionSampler instance;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean contentionTimes;
+    // whether start() turned contention monitoring on, so stop() turns it back off
+    private boolean enabledContention;
+    private final LatencyHistogram tickTime = new LatencyHistogram();
+
+    // guarded by this
+    private final TopTable locks = TopTable.forTop(TOP_N);
+    private final TopTable lockClasses = TopTable.forTop(TOP_N);
+    private final TopTable ownerStacks = TopTable.forTop(TOP_N);
+    // what was last seen of each lock in the table; pruned with it
+    private final Map<String, LockDetail> details = new HashMap<>();
+    // thread id -> {blocked count, blocked ms, waited count, waited ms} at the last tick
+    private final Map<Long, long[]> lastCounters = new HashMap<>();
+    private final Map<Thread.State, Integer> states = new EnumMap<>(Thread.State.class);
+    private long blockedCount, blockedMillis, waitedCount, waitedMillis;
+    private int maxWaiters;
+    private long ticks;
+
+    private Set<Long> deadlockIds = Collections.emptySet();
+    private long deadlocksFound;
+
+    private Thread sampler;
+    private volatile long intervalNanos;
+
+    private static class LockDetail {
+        String owner;
+        List<String> ownerStack = Collections.emptyList();
+        int waiters;
+    }
+
+    private LockContentionSampler() {
+        contentionTimes = threads.isThreadContentionMonitoringSupported();
+    }
+
+    /** The sampler for this JVM; getting it is cheap, as contention monitoring is only switched on by {@link #start}. */
+    public static synchronized LockContentionSampler get() {
+        if (instance == null) {
+            instance = new LockContentionSampler();
+            instance.register(CollectorRegistry.defaultRegistry);
+        }
+        return instance;
+    }
+
+    public synchronized boolean isRunning() {
+        return sampler != null;
+    }
+
+    /** Starts sampling every {@code intervalMillis} (the configured default if not positive). */
+    public synchronized void start(long intervalMillis) {
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis > 0 ? intervalMillis : DEFAULT_INTERVAL_MS);
+        if (sampler != null) return;
+        if (contentionTimes && !threads.isThreadContentionMonitoringEnabled()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+            enabledContention = true;
+        }
+        Thread t = new Thread(this::run, "jvmdoctor-locks");
+        t.setDaemon(true);
+        sampler = t;
+        t.start();
+    }
+
+    public synchronized void stop() {
+        if (sampler == null) return;
+        sampler.interrupt();
+        sampler = null;
+        if (enabledContention) {
+            threads.setThreadContentionMonitoringEnabled(false);
+            enabledContention = false;
+        }
+    }
+
+    private void run() {
+        Thread self = Thread.currentThread();
+        long next = System.nanoTime();
+        long prev = next;
+        long nextDeadlockCheck = next;
+        while (!self.isInterrupted()) {
+            next += intervalNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                if (self.isInterrupted()) break;
+            } else {
+                next = System.nanoTime();
+            }
+            long t0 = System.nanoTime();
+            try {
+                tick(t0 - prev);
+                if (t0 - nextDeadlockCheck >= 0) {
+                    findDeadlocks();
+                    nextDeadlockCheck = t0 + TimeUnit.MILLISECONDS.toNanos(DEADLOCK_CHECK_MS);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Lock sampler tick failed: " + e.getMessage());
+            }
+            prev = t0;
+            tickTime.record(System.nanoTime() - t0);
+        }
+    }
+
+    // one round: states and counters of every thread, then stacks of the owners of contended locks
+    private void tick(long elapsedNanos) {
+        long[] ids = threads.getAllThreadIds();
+        ThreadInfo[] infos = threads.getThreadInfo(ids, 0);
+        Map<String, List<ThreadInfo>> waiting = new HashMap<>();
+        Map<Thread.State, Integer> counts = new EnumMap<>(Thread.State.class);
+        Set<Long> alive = new HashSet<>();
+        long bc = 0, bt = 0, wc = 0, wt = 0;
+        synchronized (this) {
+            for (ThreadInfo info : infos) {
+                if (info == null) continue;
+                counts.merge(info.getThreadState(), 1, Integer::sum);
+                alive.add(info.getThreadId());
+                long[] last = lastCounters.computeIfAbsent(info.getThreadId(), k -> new long[4]);
+                bc += info.getBlockedCount() - last[0];
+                wc += info.getWaitedCount() - last[2];
+                last[0] = info.getBlockedCount();
+                last[2] = info.getWaitedCount();
+                // -1 while monitoring is off
+                if (contentionTimes && info.getBlockedTime() >= 0) {
+                    bt += Math.max(0, info.getBlockedTime() - last[1]);
+                    wt += Math.max(0, info.getWaitedTime() - last[3]);
+                    last[1] = Math.max(0, info.getBlockedTime());
+                    last[3] = Math.max(0, info.getWaitedTime());
+                }
+                if (contended(info)) waiting.computeIfAbsent(lockKey(info.getLockInfo()), k -> new ArrayList<>()).add(info);
+            }
+            lastCounters.keySet().retainAll(alive);
+            blockedCount += bc;
+            blockedMillis += bt;
+            waitedCount += wc;
+            waitedMillis += wt;
+            states.clear();
+            states.putAll(counts);
+            ticks++;
+        }
+
+        Map<Long, ThreadInfo> owners = new HashMap<>();
+        if (!waiting.isEmpty()) {
+            Set<Long> ownerIds = new HashSet<>();
+            for (List<ThreadInfo> ws : waiting.values()) ownerIds.add(ws.get(0).getLockOwnerId());
+            long[] o = new long[ownerIds.size()];
+            int i = 0;
+            for (long id : ownerIds) o[i++] = id;
+            for (ThreadInfo info : threads.getThreadInfo(o, OWNER_DEPTH)) {
+                if (info != null) owners.put(info.getThreadId(), info);
+            }
+        }
+
+        synchronized (this) {
+            int most = 0;
+            for (Map.Entry<String, List<ThreadInfo>> e : waiting.entrySet()) {
+                List<ThreadInfo> ws = e.getValue();
+                most = Math.max(most, ws.size());
+                // each waiter is charged the time since the previous round
+                long weight = elapsedNanos * ws.size();
+                locks.add(e.getKey(), weight);
+                lockClasses.add(ws.get(0).getLockInfo().getClassName(), weight);
+                ThreadInfo owner = owners.get(ws.get(0).getLockOwnerId());
+                LockDetail d = details.computeIfAbsent(e.getKey(), k -> new LockDetail());
+                d.waiters = ws.size();
+                d.owner = ws.get(0).getLockOwnerName();
+                if (owner != null) {
+                    d.ownerStack = frames(owner.getStackTrace());
+                    ownerStacks.add(ws.get(0).getLockInfo().getClassName() + ";" + String.join(";", d.ownerStack), weight);
+                }
+            }
+            maxWaiters = most;
+            if (details.size() > locks.capacity() * 2) {
+                Set<String> keep = new HashSet<>();
+                for (TopTable.Entry e : locks.top(locks.capacity())) keep.add(e.key);
+                details.keySet().retainAll(keep);
+            }
+        }
+    }
+
+    // blocked on a monitor, or parked on a lock some thread owns (not a bare wait or condition)
+    private static boolean contended(ThreadInfo info) {
+        if (info.getLockInfo() == null || info.getLockOwnerId() < 0) return false;
+        Thread.State s = info.getThreadState();
+        return s == Thread.State.BLOCKED || s == Thread.State.WAITING || s == Thread.State.TIMED_WAITING;
+    }
+
+    private static String lockKey(LockInfo lock) {
+        return lock.getClassName() + "@" + Integer.toHexString(lock.getIdentityHashCode());
+    }
+
+    // outermost frame first, as in collapsed stacks
+    private static List<String> frames(StackTraceElement[] stack) {
+        String[] out = new String[stack.length];
+        for (int i = 0; i < stack.length; i++) {
+            StackTraceElement f = stack[stack.length - 1 - i];
+            out[i] = f.getClassName() + "." + f.getMethodName() + (f.getLineNumber() > 0 ? ":" + f.getLineNumber() : "");
+        }
+        return Arrays.asList(out);
+    }
+
+    /** Looks for deadlocked threads now; returns one row per deadlocked thread, empty if there are none. */
+    public List<Map<String, Object>> findDeadlocks() {
+        long[] ids = threads.findDeadlockedThreads();
+        if (ids == null) {
+            synchronized (this) {
+                deadlockIds = Collections.emptySet();
+            }
+            return Collections.emptyList();
+        }
+        ThreadInfo[] infos = threads.getThreadInfo(ids, OWNER_DEPTH);
+        List<Map<String, Object>> rows = new ArrayList<>();
+        Set<Long> idSet = new HashSet<>();
+        StringBuilder msg = new StringBuilder("Deadlock detected:");
+        for (ThreadInfo info : infos) {
+            if (info == null) continue;
+            idSet.add(info.getThreadId());
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("thread", info.getThreadName());
+            row.put("threadId", info.getThreadId());
+            row.put("state", info.getThreadState().name());
+            if (info.getLockInfo() != null) row.put("lock", lockKey(info.getLockInfo()));
+            row.put("owner", info.getLockOwnerName());
+            row.put("stack", frames(info.getStackTrace()));
+            rows.add(row);
+            msg.append("\n  \"").append(info.getThreadName()).append("\" waiting for ").append(row.get("lock"))
+                .append(" held by \"").append(info.getLockOwnerName()).append('"');
+        }
+        synchronized (this) {
+            if (!idSet.equals(deadlockIds)) {
+                deadlocksFound++;
+                System.err.println(msg);
+            }
+            deadlockIds = idSet;
+        }
+        return rows;
+    }
+
+    /** The {@code limit} locks with the most estimated waiting time, with what was last seen of their owners. */
+    public synchronized List<Map<String, Object>> hotLocks(int limit) {
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (TopTable.Entry e : locks.top(limit > 0 ? limit : TOP_N)) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("lock", e.key);
+            row.put("waitSeconds", e.total / 1e9);
+            row.put("samples", e.count);
+            row.put("errorSeconds", e.error / 1e9);
+            LockDetail d = details.get(e.key);
+            if (d != null) {
+                row.put("lastWaiters", d.waiters);
+                row.put("lastOwner", d.owner);
+                row.put("lastOwnerStack", d.ownerStack);
+            }
+            out.add(row);
+        }
+        return out;
+    }
+
+    /** The {@code limit} owner stacks, per lock class, that threads spent the most time waiting behind. */
+    public synchronized List<Map<String, Object>> ownerStacks(int limit) {
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (TopTable.Entry e : ownerStacks.top(limit > 0 ? limit : TOP_N)) {
+            int sep = e.key.indexOf(';');
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("lockClass", sep < 0 ? e.key : e.key.substring(0, sep));
+            row.put("ownerStack", sep < 0 ? Collections.emptyList() : Arrays.asList(e.key.substring(sep + 1).split(";")));
+            row.put("waitSeconds", e.total / 1e9);
+            row.put("samples", e.count);
+            out.add(row);
+        }
+        return out;
+    }
+
+    public synchronized Map<String, Long> stats() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("running", sampler != null ? 1L : 0L);
+        m.put("intervalMillis", TimeUnit.NANOSECONDS.toMillis(intervalNanos));
+        m.put("ticks", ticks);
+        m.put("blockedCount", blockedCount);
+        m.put("blockedMillis", blockedMillis);
+        m.put("waitedCount", waitedCount);
+        m.put("waitedMillis", waitedMillis);
+        m.put("maxWaiters", (long) maxWaiters);
+        m.put("deadlockedThreads", (long) deadlockIds.size());
+        m.put("deadlocksFound", deadlocksFound);
+        m.put("avgTickMicros", ticks == 0 ? 0L : tickTime.sumNanos() / ticks / 1000);
+        return m;
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<>();
+        List<MetricFamilySamples.Sample> st = new ArrayList<>();
+        for (Thread.State s : Thread.State.values()) {
+            st.add(new MetricFamilySamples.Sample("jvmdoctor_thread_states", STATE, List.of(s.name().toLowerCase()), states.getOrDefault(s, 0)));
+        }
+        mfs.add(new MetricFamilySamples("jvmdoctor_thread_states", Type.GAUGE, "Threads in each state at the last lock sampler round.", st));
+        mfs.add(counter("jvmdoctor_thread_blocked", "Times threads blocked entering a monitor.", blockedCount));
+        mfs.add(counter("jvmdoctor_thread_waited", "Times threads waited or parked.", waitedCount));
+        if (contentionTimes) {
+            mfs.add(counter("jvmdoctor_thread_blocked_seconds", "Time threads spent blocked entering a monitor.", blockedMillis / 1e3));
+            mfs.add(counter("jvmdoctor_thread_waited_seconds", "Time threads spent waiting or parked.", waitedMillis / 1e3));
+        }
+        List<MetricFamilySamples.Sample> hot = new ArrayList<>();
+        for (TopTable.Entry e : lockClasses.top(TOP_N)) {
+            hot.add(new MetricFamilySamples.Sample("jvmdoctor_lock_wait_top_seconds_total", LOCK_CLASS, List.of(e.key), e.total / 1e9));
+        }
+        mfs.add(new MetricFamilySamples("jvmdoctor_lock_wait_top_seconds", Type.COUNTER,
+            "Thread time spent waiting for locks of the classes waited on most, estimated from samples.", hot));
+        mfs.add(gauge("jvmdoctor_lock_max_waiters", "Most threads waiting for one lock at the last round.", maxWaiters));
+        mfs.add(gauge("jvmdoctor_deadlocked_threads", "Threads deadlocked at the last check.", deadlockIds.size()));
+        mfs.add(counter("jvmdoctor_deadlocks_found", "Distinct deadlocks found.", deadlocksFound));
+        List<MetricFamilySamples.Sample> tick = new ArrayList<>();
+        tickTime.addSamples(tick, "jvmdoctor_lock_sampler_tick_seconds", NO_LABELS, NO_LABELS);
+        mfs.add(new MetricFamilySamples("jvmdoctor_lock_sampler_tick_seconds", Type.HISTOGRAM,
+            "Time to take one round of thread states and owner stacks.", tick));
+        return mfs;
+    }
+
+    private static MetricFamilySamples counter(String name, String help, double value) {
+        return new MetricFamilySamples(name, Type.COUNTER, help,
+            List.of(new MetricFamilySamples.Sample(name + "_total", NO_LABELS, NO_LABELS, value)));
+    }
+
+    private static MetricFamilySamples gauge(String name, String help, double value) {
+        return new MetricFamilySamples(name, Type.GAUGE, help,
+            List.of(new MetricFamilySamples.Sample(name, NO_LABELS, NO_LABELS, value)));
+    }
+}
@@ -0,0 +1,111 @@
+package com.jvmdoctor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The agent's /metrics endpoint, serving {@link ExpositionCache} snapshots as they are (gzipped when
+ * the scraper accepts it). Requests filtered with {@code name[]} are rare and bypass the cache.
+ */
+public class MetricsHttpServer {
+    private static final int THREADS = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_METRICS_HTTP_THREADS", "2"));
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final CollectorRegistry registry;
+    private final ExpositionCache cache;
+
+    public MetricsHttpServer(int port, CollectorRegistry registry, ExpositionCache cache) throws IOException {
+        this.registry = registry;
+        this.cache = cache;
+        server = HttpServer.create(new InetSocketAddress(port), 3);
+        executor = Executors.newFixedThreadPool(Math.max(1, THREADS), r -> {
+            Thread t = new Thread(r, "jvmdoctor-metrics-http");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/-/healthy", ex -> respond(ex, "Exporter is Healthy.".getBytes(StandardCharsets.UTF_8), "text/plain", false));
+        server.createContext("/", this::metrics);
+        server.start();
+    }
+
+    private void metrics(HttpExchange ex) throws IOException {
+        try {
+            boolean gzip = acceptsGzip(ex);
+            Set<String> names = names(ex.getRequestURI().getRawQuery());
+            if (names.isEmpty()) {
+                ExpositionCache.Snapshot s = cache.get();
+                respond(ex, gzip ? s.gzip : s.text, TextFormat.CONTENT_TYPE_004, gzip);
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                    TextFormat.write004(w, registry.filteredMetricFamilySamples(names));
+                }
+                respond(ex, out.toByteArray(), TextFormat.CONTENT_TYPE_004, false);
+            }
+        } finally {
+            ex.close();
+        }
+    }
+
+    private static boolean acceptsGzip(HttpExchange ex) {
+        for (String v : ex.getRequestHeaders().getOrDefault("Accept-Encoding", List.of())) {
+            for (String enc : v.split(",")) {
+                if (enc.trim().toLowerCase().startsWith("gzip")) return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> names(String query) {
+        Set<String> names = new HashSet<>();
+        if (query == null) return names;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            String key = URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8);
+            if ("name[]".equals(key)) names.add(URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return names;
+    }
+
+    private static void respond(HttpExchange ex, byte[] body, String contentType, boolean gzip) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", contentType);
+        if (gzip) ex.getResponseHeaders().set("Content-Encoding", "gzip");
+        if ("HEAD".equals(ex.getRequestMethod())) {
+            ex.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+            ex.sendResponseHeaders(200, -1);
+            return;
+        }
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
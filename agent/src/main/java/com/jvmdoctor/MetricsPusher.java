@@ -0,0 +1,310 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Pushes the registry to the central backend. Each collection is taken from the shared
+ * {@link ExpositionCache} and encoded into a reusable buffer (with explicit timestamps, so several intervals
+ * can share one request), gzipped with a reused {@link Deflater}, and sent over one keep-alive client.
+ * With a {@link PushSpool}, batches the backend does not take are kept on disk and replayed, oldest
+ * first and at a limited rate, before any newer batch is sent.
+ */
+public class MetricsPusher {
+    private static final int REPLAY_PER_SEC = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_SPOOL_REPLAY_PER_SEC", "10"));
+
+    private final ExpositionCache cache;
+    private final PushSpool spool;
+    private final URI target;
+    private final int batchSize;
+    private final HttpClient client = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofSeconds(5))
+        .build();
+
+    private final Buffer text = new Buffer(64 * 1024);
+    private final Buffer gzip = new Buffer(16 * 1024);
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private int pending;
+    // replay stays within four fifths of the push interval so the live cadence is kept
+    private volatile long replayBudgetMs = 4000;
+
+    /** {@code spool} may be null, in which case failed batches are discarded. */
+    public MetricsPusher(ExpositionCache cache, PushSpool spool, String centralUrl, String instance, int batchSize) {
+        this.cache = cache;
+        this.spool = spool;
+        this.target = URI.create(centralUrl + "/api/metrics/push?instance=" + URLEncoder.encode(instance, StandardCharsets.UTF_8));
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /** The interval the caller pushes at, after any scaling by the overhead governor. */
+    public void setInterval(long intervalMs) {
+        replayBudgetMs = Math.max(0, intervalMs) * 4 / 5;
+    }
+
+    /** Collects the registry into the current batch and sends the batch once it is full. */
+    public void collectAndPush() throws IOException, InterruptedException {
+        // reuses a scrape's collection when one happened within the cache TTL, stamped with its time
+        ExpositionCache.Snapshot s = cache.get();
+        encode(Collections.enumeration(s.families), s.timestampMs, text);
+        pending++;
+        if (pending >= batchSize) flush();
+    }
+
+    /** Everything {@link #collectAndPush} does for one collection short of sending; returns the gzipped size. */
+    int encodeBatch() {
+        ExpositionCache.Snapshot s = cache.get();
+        encode(Collections.enumeration(s.families), s.timestampMs, text);
+        gzip(text, gzip);
+        text.reset();
+        return gzip.size;
+    }
+
+    /**
+     * Sends whatever is batched, after replaying spooled batches. A batch that cannot be sent, or that
+     * would overtake spooled ones still waiting, is spooled; without a spool it is discarded.
+     */
+    public void flush() throws IOException, InterruptedException {
+        if (pending == 0) return;
+        try {
+            gzip(text, gzip);
+            try {
+                if (spool != null && !spool.isEmpty()) {
+                    replay();
+                    if (!spool.isEmpty()) {
+                        spool.append(gzip.bytes, 0, gzip.size);
+                        return;
+                    }
+                }
+                send(gzip.bytes, gzip.size);
+            } catch (RejectedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (spool != null) spool.append(gzip.bytes, 0, gzip.size);
+                throw e;
+            }
+        } finally {
+            text.reset();
+            pending = 0;
+        }
+    }
+
+    private void replay() throws IOException, InterruptedException {
+        long pauseMs = 1000L / Math.max(1, REPLAY_PER_SEC);
+        long deadline = System.nanoTime() + replayBudgetMs * 1_000_000L;
+        byte[] batch;
+        while (System.nanoTime() < deadline && (batch = spool.peek()) != null) {
+            try {
+                send(batch, batch.length);
+            } catch (RejectedException e) {
+                // the backend will never take it; retrying would block everything behind it
+                System.err.println("Dropping spooled batch: " + e.getMessage());
+            }
+            spool.ack();
+            Thread.sleep(pauseMs);
+        }
+    }
+
+    private void send(byte[] body, int length) throws IOException, InterruptedException {
+        HttpRequest req = HttpRequest.newBuilder(target)
+            .timeout(Duration.ofSeconds(10))
+            .header("Content-Type", "text/plain; version=0.0.4")
+            .header("Content-Encoding", "gzip")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body, 0, length))
+            .build();
+        HttpResponse<Void> resp = client.send(req, HttpResponse.BodyHandlers.discarding());
+        int status = resp.statusCode();
+        if (status >= 400 && status < 500 && status != 408 && status != 429) {
+            throw new RejectedException("Central backend returned " + status);
+        }
+        if (status != 200) {
+            throw new IOException("Central backend returned " + status);
+        }
+    }
+
+    /** A batch the backend refused outright, as opposed to being unavailable. */
+    static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    static void encode(Enumeration<Collector.MetricFamilySamples> families, long timestampMs, Buffer out) {
+        while (families.hasMoreElements()) {
+            Collector.MetricFamilySamples family = families.nextElement();
+            out.ascii("# TYPE ").utf8(family.name).put(' ').ascii(typeName(family.type)).put('\n');
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                out.utf8(sample.name);
+                List<String> names = sample.labelNames;
+                if (!names.isEmpty()) {
+                    out.put('{');
+                    for (int i = 0; i < names.size(); i++) {
+                        if (i > 0) out.put(',');
+                        out.utf8(names.get(i)).put('=').put('"').labelValue(sample.labelValues.get(i)).put('"');
+                    }
+                    out.put('}');
+                }
+                out.put(' ').number(sample.value).put(' ');
+                out.number(sample.timestampMs != null ? sample.timestampMs : timestampMs).put('\n');
+            }
+        }
+    }
+
+    private static String typeName(Collector.Type type) {
+        switch (type) {
+            case COUNTER: return "counter";
+            case GAUGE: return "gauge";
+            case SUMMARY: return "summary";
+            case HISTOGRAM: return "histogram";
+            default: return "untyped";
+        }
+    }
+
+    private void gzip(Buffer in, Buffer out) {
+        out.reset();
+        out.put((byte) 0x1f).put((byte) 0x8b).put((byte) 8).put((byte) 0)
+            .put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0xff);
+        deflater.reset();
+        deflater.setInput(in.bytes, 0, in.size);
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.ensure(8 * 1024);
+            out.size += deflater.deflate(out.bytes, out.size, out.bytes.length - out.size);
+        }
+        crc.reset();
+        crc.update(in.bytes, 0, in.size);
+        out.intLE((int) crc.getValue()).intLE(in.size);
+    }
+
+    /** Growable byte buffer that is reset rather than reallocated between pushes. */
+    static class Buffer {
+        byte[] bytes;
+        int size;
+
+        Buffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void reset() { size = 0; }
+
+        void ensure(int extra) {
+            if (size + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+
+        Buffer put(char c) { return put((byte) c); }
+
+        Buffer put(byte b) {
+            ensure(1);
+            bytes[size++] = b;
+            return this;
+        }
+
+        Buffer ascii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) bytes[size++] = (byte) s.charAt(i);
+            return this;
+        }
+
+        Buffer utf8(String s) {
+            return utf8(s, 0, s.length());
+        }
+
+        Buffer utf8(String s, int from, int to) {
+            ensure((to - from) * 3);
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    bytes[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[size++] = (byte) (0xc0 | (c >> 6));
+                    bytes[size++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    ensure(4);
+                    bytes[size++] = (byte) (0xf0 | (cp >> 18));
+                    bytes[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    bytes[size++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    bytes[size++] = (byte) (0xe0 | (c >> 12));
+                    bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[size++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return this;
+        }
+
+        Buffer labelValue(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '\\' || c == '"') {
+                    put('\\').put(c);
+                } else if (c == '\n') {
+                    put('\\').put('n');
+                } else if (c < 0x80) {
+                    put(c);
+                } else {
+                    int j = i + 1;
+                    while (j < s.length() && s.charAt(j) >= 0x80) j++;
+                    utf8(s, i, j);
+                    i = j - 1;
+                }
+            }
+            return this;
+        }
+
+        Buffer number(long v) {
+            ensure(20);
+            if (v < 0) {
+                if (v == Long.MIN_VALUE) return ascii(Long.toString(v));
+                bytes[size++] = '-';
+                v = -v;
+            }
+            int start = size;
+            do {
+                bytes[size++] = (byte) ('0' + (v % 10));
+                v /= 10;
+            } while (v != 0);
+            for (int i = start, j = size - 1; i < j; i++, j--) {
+                byte t = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = t;
+            }
+            return this;
+        }
+
+        Buffer number(double d) {
+            if (d == Double.POSITIVE_INFINITY) return ascii("+Inf");
+            if (d == Double.NEGATIVE_INFINITY) return ascii("-Inf");
+            if (d != d) return ascii("NaN");
+            // integral values (counts, byte sizes, thread counts) are the common case and need no String
+            if (d == Math.rint(d) && Math.abs(d) < 1e15 && !(d == 0 && 1 / d < 0)) return number((long) d);
+            return ascii(Double.toString(d));
+        }
+
+        Buffer intLE(int v) {
+            ensure(4);
+            bytes[size++] = (byte) v;
+            bytes[size++] = (byte) (v >>> 8);
+            bytes[size++] = (byte) (v >>> 16);
+            bytes[size++] = (byte) (v >>> 24);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the agent's CPU share within a budget. Each window over budget doubles the push interval and
+ * the exposition cache TTL, up to {@code 2^MAX_STEPS} times; beyond that the stack sampler and then the
+ * JFR event stream are stopped. After {@code CALM_WINDOWS} windows under half the budget it steps back:
+ * a stopped collector is restarted first if its cost when it was stopped would fit, otherwise the
+ * intervals are halved.
+ */
+public class OverheadGovernor extends Collector {
+    private static final int MAX_STEPS = 3;
+    private static final int CALM_WINDOWS = 3;
+    private static final List<String> NO_LABELS = Collections.emptyList();
+    private static final List<String> COLLECTOR = List.of("collector");
+
+    private final double budget;
+    private final ExpositionCache cache;
+    private volatile int step;
+    private int calm;
+    private long changes;
+
+    // CPU share each collector had when it was stopped; negative while it is not stopped by us
+    private volatile double samplerCost = -1;
+    private volatile double jfrCost = -1;
+    private long samplerIntervalMillis;
+
+    /** {@code budget} is a share of the CPUs available to the JVM, e.g. 0.01. */
+    public OverheadGovernor(double budget, ExpositionCache cache) {
+        this.budget = budget;
+        this.cache = cache;
+    }
+
+    /** {@code millis} stretched by the current throttling step. */
+    public long scale(long millis) {
+        return millis << step;
+    }
+
+    /** Called once per window with the agent's CPU share and that of each subsystem. */
+    synchronized void observe(double ratio, Map<String, Double> bySubsystem) {
+        if (ratio > budget) {
+            calm = 0;
+            raise(ratio, bySubsystem);
+        } else if (ratio < budget / 2) {
+            if (++calm >= CALM_WINDOWS) {
+                calm = 0;
+                lower(ratio);
+            }
+        } else {
+            calm = 0;
+        }
+    }
+
+    private void raise(double ratio, Map<String, Double> bySubsystem) {
+        if (step < MAX_STEPS) {
+            setStep(step + 1, ratio);
+            return;
+        }
+        if (samplerCost < 0 && SamplingProfiler.running()) {
+            SamplingProfiler sp = SamplingProfiler.get();
+            samplerIntervalMillis = sp.stats().get("intervalMillis");
+            sp.stop();
+            samplerCost = bySubsystem.getOrDefault("sampler", 0.0);
+            changed("stack sampler stopped", ratio);
+        } else if (jfrCost < 0 && JfrStreamingAggregator.get().isRunning()) {
+            JfrStreamingAggregator.get().stop();
+            jfrCost = bySubsystem.getOrDefault("jfr", 0.0);
+            changed("JFR event stream stopped", ratio);
+        }
+    }
+
+    private void lower(double ratio) {
+        // the collector stopped last comes back first
+        if (jfrCost >= 0 && ratio + jfrCost < budget) {
+            jfrCost = -1;
+            try {
+                JfrStreamingAggregator.get().start();
+            } catch (Exception e) {
+                System.err.println("Failed to restart JFR event streaming: " + e.getMessage());
+            }
+            changed("JFR event stream restarted", ratio);
+        } else if (samplerCost >= 0 && jfrCost < 0 && ratio + samplerCost < budget) {
+            samplerCost = -1;
+            SamplingProfiler.get().start(samplerIntervalMillis);
+            changed("stack sampler restarted", ratio);
+        } else if (step > 0) {
+            setStep(step - 1, ratio);
+        }
+    }
+
+    private void setStep(int s, double ratio) {
+        step = s;
+        cache.scaleTtl(1 << s);
+        changed("intervals scaled " + (1 << s) + "x", ratio);
+    }
+
+    private void changed(String what, double ratio) {
+        changes++;
+        System.err.printf("JVMDoctor agent at %.2f%% CPU (budget %.2f%%): %s%n", ratio * 100, budget * 100, what);
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<>();
+        mfs.add(gauge("jvmdoctor_self_cpu_budget_ratio", "CPU share the agent throttles itself to stay within.", budget));
+        mfs.add(gauge("jvmdoctor_self_interval_scale", "Factor applied to the push interval and metrics cache TTL.", 1 << step));
+        mfs.add(new MetricFamilySamples("jvmdoctor_self_throttle_changes", Type.COUNTER, "Throttling steps taken or undone.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_self_throttle_changes_total", NO_LABELS, NO_LABELS, changes))));
+        mfs.add(new MetricFamilySamples("jvmdoctor_self_collector_stopped", Type.GAUGE, "Collectors stopped to stay within the budget.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_self_collector_stopped", COLLECTOR, List.of("sampler"), samplerCost >= 0 ? 1 : 0),
+                new MetricFamilySamples.Sample("jvmdoctor_self_collector_stopped", COLLECTOR, List.of("jfr"), jfrCost >= 0 ? 1 : 0))));
+        return mfs;
+    }
+
+    private static MetricFamilySamples gauge(String name, String help, double value) {
+        return new MetricFamilySamples(name, Type.GAUGE, help,
+            List.of(new MetricFamilySamples.Sample(name, NO_LABELS, NO_LABELS, value)));
+    }
+}
@@ -0,0 +1,251 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Store-and-forward queue for push batches the backend did not take. Batches are appended as
+ * length- and CRC-prefixed records to fixed-size memory-mapped segment files; each segment's header
+ * holds the position up to which its records have been acknowledged, so replay resumes where it left
+ * off after a restart. When the segments exceed the size cap the oldest one is deleted, losing the
+ * oldest data rather than filling the disk. Each segment is mapped in its own arena and unmapped
+ * before its file is deleted, so dropped segments give their disk space back at once.
+ */
+public class PushSpool extends Collector {
+    private static final int MAGIC = 0x4a445350; // "JDSP"
+    // magic, acknowledged position
+    private static final int HEADER = 8;
+    private static final List<String> NO_LABELS = Collections.emptyList();
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long nextSeq;
+
+    private long spooled;
+    private long replayed;
+    private long dropped;
+
+    private static class Segment {
+        final Path path;
+        final Arena arena;
+        final ByteBuffer buf;
+        int writePos = HEADER;
+        int readPos = HEADER;
+        int pending;
+
+        Segment(Path path, Arena arena, ByteBuffer buf) {
+            this.path = path;
+            this.arena = arena;
+            this.buf = buf;
+        }
+
+        // unmaps before deleting; a file still mapped keeps its blocks until the mapping is collected
+        void delete() throws IOException {
+            arena.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    public PushSpool(Path dir, int segmentBytes, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(1, maxBytes / segmentBytes);
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "spool-*.seg")) {
+            for (Path p : ds) files.add(p);
+        }
+        files.sort((a, b) -> Long.compare(seq(a), seq(b)));
+        for (Path p : files) {
+            nextSeq = Math.max(nextSeq, seq(p) + 1);
+            Segment s = map(p, false);
+            if (s == null || s.pending == 0) {
+                if (s != null) s.delete();
+                else Files.deleteIfExists(p);
+                continue;
+            }
+            segments.addLast(s);
+        }
+    }
+
+    private static long seq(Path p) {
+        String n = p.getFileName().toString();
+        try {
+            return Long.parseLong(n.substring(6, n.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // maps an existing segment (recovering its positions) or a new, empty one
+    private Segment map(Path p, boolean create) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (create) ch.truncate(0);
+            if (!create && ch.size() != segmentBytes) return null;
+            // shared: appends and replays come from different threads
+            Arena arena = Arena.ofShared();
+            Segment s;
+            try {
+                s = new Segment(p, arena, ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes, arena).asByteBuffer());
+            } catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+            if (create) {
+                s.buf.putInt(0, MAGIC);
+                s.buf.putInt(4, HEADER);
+                return s;
+            }
+            if (s.buf.getInt(0) != MAGIC) {
+                arena.close();
+                return null;
+            }
+            int read = s.buf.getInt(4);
+            // records are written length last and the slot after each is zeroed first, so the chain
+            // stops at a zero length wherever a crash interrupted an append
+            int pos = HEADER;
+            int pending = 0;
+            while (pos + 8 <= segmentBytes) {
+                int len = s.buf.getInt(pos);
+                if (len <= 0 || pos + 8 + len > segmentBytes) break;
+                if (pos >= read) pending++;
+                pos += 8 + len;
+            }
+            s.writePos = pos;
+            s.readPos = Math.min(Math.max(read, HEADER), pos);
+            s.pending = pending;
+            return s;
+        }
+    }
+
+    /** Appends a batch; returns false if it can never fit in a segment. */
+    public synchronized boolean append(byte[] b, int off, int len) throws IOException {
+        if (len <= 0 || len + 8 > segmentBytes - HEADER) {
+            dropped++;
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePos + 8 + len > segmentBytes) {
+            while (segments.size() >= maxSegments) dropOldest();
+            tail = map(dir.resolve("spool-" + (nextSeq++) + ".seg"), true);
+            segments.addLast(tail);
+        }
+        crc.reset();
+        crc.update(b, off, len);
+        // ends the chain here, in case the space after this record holds older, replayed records
+        int next = tail.writePos + 8 + len;
+        if (next + 4 <= segmentBytes) tail.buf.putInt(next, 0);
+        tail.buf.putInt(tail.writePos + 4, (int) crc.getValue());
+        tail.buf.put(tail.writePos + 8, b, off, len);
+        tail.buf.putInt(tail.writePos, len);
+        tail.writePos += 8 + len;
+        tail.pending++;
+        spooled++;
+        return true;
+    }
+
+    private void dropOldest() throws IOException {
+        Segment s = segments.pollFirst();
+        if (s == null) return;
+        dropped += s.pending;
+        s.delete();
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Segment s : segments) {
+            if (s.pending > 0) return false;
+        }
+        return true;
+    }
+
+    /** The oldest unacknowledged batch, or null if there is none. Corrupt records are skipped. */
+    public synchronized byte[] peek() throws IOException {
+        while (true) {
+            Segment s = segments.peekFirst();
+            if (s == null) return null;
+            if (s.readPos >= s.writePos) {
+                if (s == segments.peekLast()) return null;
+                segments.pollFirst();
+                s.delete();
+                continue;
+            }
+            int len = s.buf.getInt(s.readPos);
+            byte[] out = new byte[len];
+            s.buf.get(s.readPos + 8, out, 0, len);
+            crc.reset();
+            crc.update(out, 0, len);
+            if ((int) crc.getValue() == s.buf.getInt(s.readPos + 4)) return out;
+            dropped++;
+            advance(s, len);
+        }
+    }
+
+    /** Acknowledges the batch last returned by {@link #peek}. */
+    public synchronized void ack() throws IOException {
+        Segment s = segments.peekFirst();
+        if (s == null || s.readPos >= s.writePos) return;
+        advance(s, s.buf.getInt(s.readPos));
+        replayed++;
+    }
+
+    private void advance(Segment s, int len) throws IOException {
+        s.readPos += 8 + len;
+        s.pending--;
+        s.buf.putInt(4, s.readPos);
+        if (s.readPos < s.writePos) return;
+        // fully replayed: delete it, or start the tail segment over
+        if (s != segments.peekLast()) {
+            segments.pollFirst();
+            s.delete();
+        } else {
+            s.buf.putInt(HEADER, 0);
+            s.writePos = HEADER;
+            s.readPos = HEADER;
+            s.buf.putInt(4, HEADER);
+        }
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        long pending = 0;
+        long bytes = 0;
+        for (Segment s : segments) {
+            pending += s.pending;
+            bytes += s.writePos - s.readPos;
+        }
+        List<MetricFamilySamples> mfs = new ArrayList<>();
+        mfs.add(gauge("jvmdoctor_spool_pending_batches", "Push batches waiting in the spool.", pending));
+        mfs.add(gauge("jvmdoctor_spool_pending_bytes", "Bytes of push batches waiting in the spool.", bytes));
+        mfs.add(counter("jvmdoctor_spool_spooled_batches", "Push batches written to the spool.", spooled));
+        mfs.add(counter("jvmdoctor_spool_replayed_batches", "Spooled batches delivered to the backend.", replayed));
+        mfs.add(counter("jvmdoctor_spool_dropped_batches", "Spooled batches lost to the size cap or corruption.", dropped));
+        return mfs;
+    }
+
+    private static MetricFamilySamples gauge(String name, String help, double value) {
+        return new MetricFamilySamples(name, Type.GAUGE, help,
+            List.of(new MetricFamilySamples.Sample(name, NO_LABELS, NO_LABELS, value)));
+    }
+
+    private static MetricFamilySamples counter(String name, String help, double value) {
+        return new MetricFamilySamples(name, Type.COUNTER, help,
+            List.of(new MetricFamilySamples.Sample(name + "_total", NO_LABELS, NO_LABELS, value)));
+    }
+}
@@ -0,0 +1,213 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stack sampler for CPU profiling without native tooling. Every interval a daemon thread takes the
+ * stacks of all RUNNABLE threads and folds them into a {@link CallTree}; snapshots come out as
+ * collapsed stacks. Each tick is timed (the stack walk happens at a safepoint, so this is roughly
+ * the pause the application sees) and the sampler's own CPU time is tracked, so the cost of leaving
+ * it on is visible in the {@code jvmdoctor_sampler_*} metrics.
+ */
+public class SamplingProfiler extends Collector {
+    private static final long DEFAULT_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("JVMDOCTOR_SAMPLER_INTERVAL_MS", "20"));
+    private static final int MAX_DEPTH = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_SAMPLER_MAX_DEPTH", "64"));
+    private static final int MAX_NODES = Integer.parseInt(System.getenv().getOrDefault("JVMDOCTOR_SAMPLER_MAX_NODES", "100000"));
+    // bounds the frame cache when classes are generated at runtime
+    private static final int MAX_CACHED_FRAMES = 65536;
+
+    private static final List<String> NO_LABELS = Collections.emptyList();
+    // native methods that block while the thread still reports RUNNABLE
+    private static final Set<String> IDLE_NATIVE = Set.of(
+        "java.lang.ref.Reference.waitForReferencePendingList",
+        "sun.nio.ch.EPoll.wait",
+        "sun.nio.ch.KQueue.poll",
+        "sun.nio.ch.WEPoll.wait",
+        "sun.nio.ch.Net.poll",
+        "sun.nio.ch.Net.accept",
+        "sun.nio.ch.NioSocketImpl.accept0",
+        "java.net.PlainSocketImpl.socketAccept");
+
+    private static SamplingProfiler instance;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final LatencyHistogram tickTime = new LatencyHistogram();
+
+    // guarded by this; the sampler thread holds the lock only while folding one tick
+    private CallTree tree = new CallTree(MAX_NODES);
+    private final Map<StackTraceElement, Integer> frameCache = new HashMap<>();
+    private final int[] stack = new int[MAX_DEPTH];
+
+    private Thread sampler;
+    private volatile long intervalNanos;
+    private volatile long samples;
+    private volatile long ticks;
+    // summed over every run, so the counters survive a stop and start
+    private volatile long samplerCpuNanos;
+    private volatile long runningNanos;
+
+    /** The stack sampler for this JVM; its metrics are exported from creation but stay empty until started. */
+    public static synchronized SamplingProfiler get() {
+        if (instance == null) {
+            instance = new SamplingProfiler();
+            instance.register(CollectorRegistry.defaultRegistry);
+        }
+        return instance;
+    }
+
+    /** Whether the sampler exists and is running, without creating it. */
+    static synchronized boolean running() {
+        return instance != null && instance.isRunning();
+    }
+
+    public synchronized boolean isRunning() {
+        return sampler != null;
+    }
+
+    /** Starts sampling every {@code intervalMillis} (the configured default if not positive). */
+    public synchronized void start(long intervalMillis) {
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis > 0 ? intervalMillis : DEFAULT_INTERVAL_MS);
+        if (sampler != null) return;
+        Thread t = new Thread(this::run, "jvmdoctor-sampler");
+        t.setDaemon(true);
+        sampler = t;
+        t.start();
+    }
+
+    public synchronized void stop() {
+        if (sampler == null) return;
+        sampler.interrupt();
+        sampler = null;
+    }
+
+    /** Collapsed stacks sampled so far; with {@code reset} the next snapshot starts from zero. */
+    public synchronized String snapshot(boolean reset) {
+        String out = tree.collapsed();
+        if (reset) {
+            tree = new CallTree(MAX_NODES);
+            frameCache.clear();
+        }
+        return out;
+    }
+
+    public synchronized Map<String, Long> stats() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("running", sampler != null ? 1L : 0L);
+        m.put("intervalMillis", TimeUnit.NANOSECONDS.toMillis(intervalNanos));
+        m.put("ticks", ticks);
+        m.put("samples", samples);
+        m.put("treeSamples", tree.samples());
+        m.put("truncatedSamples", tree.truncated());
+        m.put("nodes", (long) tree.nodes());
+        m.put("frames", (long) tree.frames());
+        m.put("avgTickMicros", ticks == 0 ? 0L : tickTime.sumNanos() / ticks / 1000);
+        m.put("samplerCpuMillis", TimeUnit.NANOSECONDS.toMillis(samplerCpuNanos));
+        // parts per million of one core spent in the sampler thread
+        m.put("samplerCpuPpm", runningNanos == 0 ? 0L : samplerCpuNanos * 1_000_000 / runningNanos);
+        return m;
+    }
+
+    private void run() {
+        Thread self = Thread.currentThread();
+        boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+        long last = System.nanoTime();
+        long cpuLast = cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+        long next = last;
+        while (!self.isInterrupted()) {
+            next += intervalNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                if (self.isInterrupted()) break;
+            } else {
+                // fell behind (long safepoint, suspended VM): skip the missed ticks rather than burst
+                next = System.nanoTime();
+            }
+            long t0 = System.nanoTime();
+            ThreadInfo[] infos = threads.dumpAllThreads(false, false, MAX_DEPTH);
+            int n = fold(infos, self.threadId());
+            long t1 = System.nanoTime();
+            tickTime.record(t1 - t0);
+            long cpu = cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+            account(n, t1 - last, cpu - cpuLast);
+            last = t1;
+            cpuLast = cpu;
+        }
+    }
+
+    // synchronized because a stopped sampler may still be finishing a tick when the next one starts
+    private synchronized void account(int n, long elapsedNanos, long cpuNanos) {
+        samples += n;
+        ticks++;
+        runningNanos += elapsedNanos;
+        samplerCpuNanos += cpuNanos;
+    }
+
+    private synchronized int fold(ThreadInfo[] infos, long selfId) {
+        int n = 0;
+        for (ThreadInfo info : infos) {
+            if (info == null || info.getThreadId() == selfId || info.getThreadState() != Thread.State.RUNNABLE) continue;
+            StackTraceElement[] frames = info.getStackTrace();
+            if (frames.length == 0 || idle(frames[0])) continue;
+            int depth = 0;
+            // the trace is leaf first; the tree wants the outermost caller first. A frame the full
+            // tree has no room for ends the stack there
+            for (int i = frames.length - 1; i >= 0 && depth < stack.length; i--) {
+                if ((stack[depth++] = frameId(frames[i])) < 0) break;
+            }
+            tree.add(stack, depth);
+            n++;
+        }
+        return n;
+    }
+
+    private static boolean idle(StackTraceElement leaf) {
+        return leaf.isNativeMethod() && IDLE_NATIVE.contains(leaf.getClassName() + "." + leaf.getMethodName());
+    }
+
+    private int frameId(StackTraceElement e) {
+        Integer id = frameCache.get(e);
+        if (id == null) {
+            if (frameCache.size() >= MAX_CACHED_FRAMES) frameCache.clear();
+            id = tree.frameId(e.getClassName() + "." + e.getMethodName());
+            if (id >= 0) frameCache.put(e, id);
+        }
+        return id;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<>();
+        Map<String, Long> s = stats();
+        mfs.add(new MetricFamilySamples("jvmdoctor_sampler_running", Type.GAUGE, "1 while the stack sampler is on.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_sampler_running", NO_LABELS, NO_LABELS, s.get("running")))));
+        mfs.add(new MetricFamilySamples("jvmdoctor_sampler_samples", Type.COUNTER, "Thread stacks sampled.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_sampler_samples_total", NO_LABELS, NO_LABELS, s.get("samples")))));
+        mfs.add(new MetricFamilySamples("jvmdoctor_sampler_truncated_samples", Type.COUNTER,
+            "Samples charged to a shorter stack because the call tree was full.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_sampler_truncated_samples_total", NO_LABELS, NO_LABELS, s.get("truncatedSamples")))));
+        mfs.add(new MetricFamilySamples("jvmdoctor_sampler_nodes", Type.GAUGE, "Nodes in the sampler call tree.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_sampler_nodes", NO_LABELS, NO_LABELS, s.get("nodes")))));
+        mfs.add(new MetricFamilySamples("jvmdoctor_sampler_cpu_seconds", Type.COUNTER, "CPU time used by the sampler thread.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_sampler_cpu_seconds_total", NO_LABELS, NO_LABELS, samplerCpuNanos / 1e9))));
+        List<MetricFamilySamples.Sample> tick = new ArrayList<>();
+        tickTime.addSamples(tick, "jvmdoctor_sampler_tick_seconds", NO_LABELS, NO_LABELS);
+        mfs.add(new MetricFamilySamples("jvmdoctor_sampler_tick_seconds", Type.HISTOGRAM,
+            "Time to capture and fold one round of stacks.", tick));
+        return mfs;
+    }
+}
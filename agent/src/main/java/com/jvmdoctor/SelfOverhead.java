@@ -0,0 +1,237 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What the agent itself costs, per subsystem. Every window the agent's threads, recognised by name,
+ * are read for CPU time and allocated bytes; work done on threads the agent does not own (GC
+ * notification listeners) is measured in place and {@link #charge charged}. The CPU share of the
+ * window is handed to an {@link OverheadGovernor}, if there is one.
+ */
+public class SelfOverhead extends Collector {
+    private static final List<String> NO_LABELS = Collections.emptyList();
+    private static final List<String> SUBSYSTEM = List.of("subsystem");
+
+    // thread name prefix -> subsystem; other jvmdoctor- threads are counted as "other"
+    private static final String[][] THREADS = {
+        {"jvmdoctor-push", "push"},
+        {"jvmdoctor-metrics-http", "http"},
+        {"jvmdoctor-sampler", "sampler"},
+        {"jvmdoctor-jfr-stream", "jfr"},
+        {"jvmdoctor-gc-log", "gc_log"},
+        {"jvmdoctor-locks", "locks"},
+        {"jvmdoctor-alloc", "alloc"},
+        {"jvmdoctor-overhead", "overhead"},
+    };
+
+    private static SelfOverhead instance;
+    // the started instance, for code on other threads that charges its work only while tracking is on
+    private static volatile SelfOverhead active;
+
+    private final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final boolean allocSupported;
+    private final int cpus = Runtime.getRuntime().availableProcessors();
+
+    // thread id -> subsystem, null for threads that are not the agent's
+    private final Map<Long, String> subsystems = new HashMap<>();
+    // thread id -> {cpu, allocated} at the last read
+    private final Map<Long, long[]> lastRead = new HashMap<>();
+    // subsystem -> {cpu nanos, allocated bytes} in total and in the current window
+    private final Map<String, long[]> totals = new LinkedHashMap<>();
+    private final Map<String, long[]> window = new HashMap<>();
+    private double cpuRatio;
+    private boolean sampled;
+
+    private OverheadGovernor governor;
+    private Thread thread;
+
+    private SelfOverhead() {
+        boolean alloc = threads.isThreadAllocatedMemorySupported();
+        if (alloc && !threads.isThreadAllocatedMemoryEnabled()) threads.setThreadAllocatedMemoryEnabled(true);
+        allocSupported = alloc;
+        if (threads.isThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) threads.setThreadCpuTimeEnabled(true);
+    }
+
+    /**
+     * The agent's own cost accounting. Creating it turns on per-thread CPU and allocation measurement
+     * for the whole JVM, so it is only created when overhead tracking is on.
+     */
+    public static synchronized SelfOverhead get() {
+        if (instance == null) {
+            instance = new SelfOverhead();
+            instance.register(CollectorRegistry.defaultRegistry);
+        }
+        return instance;
+    }
+
+    /** The instance if overhead tracking has been started, else null; never creates it. */
+    public static SelfOverhead active() {
+        return active;
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    /** Starts reading the agent's threads every {@code windowMillis}; {@code governor} may be null. */
+    public synchronized void start(long windowMillis, OverheadGovernor governor) {
+        if (thread != null || !threads.isThreadCpuTimeSupported()) return;
+        this.governor = governor;
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(100, windowMillis));
+        Thread t = new Thread(() -> run(windowNanos), "jvmdoctor-overhead");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+        active = this;
+    }
+
+    public synchronized void stop() {
+        if (thread == null) return;
+        active = null;
+        thread.interrupt();
+        thread = null;
+    }
+
+    /** Adds work done on a thread the agent does not own, as measured by {@link #cpuNow} and {@link #allocatedNow}. */
+    public synchronized void charge(String subsystem, long cpuNanos, long allocatedBytes) {
+        add(subsystem, Math.max(0, cpuNanos), Math.max(0, allocatedBytes), true);
+    }
+
+    /** CPU time of the calling thread, for measuring work to {@link #charge}. */
+    public long cpuNow() {
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    public long allocatedNow() {
+        return allocSupported ? threads.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    private void run(long windowNanos) {
+        Thread self = Thread.currentThread();
+        long windowStart = System.nanoTime();
+        while (!self.isInterrupted()) {
+            LockSupport.parkNanos(windowNanos);
+            if (self.isInterrupted()) break;
+            long now = System.nanoTime();
+            Map<String, Double> ratios = sample(now - windowStart);
+            windowStart = now;
+            OverheadGovernor g = governor;
+            if (g != null) {
+                try {
+                    g.observe(cpuRatio, ratios);
+                } catch (RuntimeException e) {
+                    System.err.println("Overhead governor failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // reads every agent thread, closes the window and returns each subsystem's share of the available CPU
+    private synchronized Map<String, Double> sample(long elapsedNanos) {
+        long[] ids = threads.getAllThreadIds();
+        Set<Long> alive = new HashSet<>();
+        List<Long> unknown = new ArrayList<>();
+        for (long id : ids) {
+            alive.add(id);
+            if (!subsystems.containsKey(id)) unknown.add(id);
+        }
+        subsystems.keySet().retainAll(alive);
+        lastRead.keySet().retainAll(alive);
+        if (!unknown.isEmpty()) {
+            // only new threads are looked up by name; ids are not reused
+            long[] u = new long[unknown.size()];
+            for (int i = 0; i < u.length; i++) u[i] = unknown.get(i);
+            ThreadInfo[] infos = threads.getThreadInfo(u, 0);
+            for (int i = 0; i < u.length; i++) {
+                subsystems.put(u[i], infos[i] == null ? null : subsystemOf(infos[i].getThreadName()));
+            }
+        }
+
+        List<Long> ours = new ArrayList<>();
+        for (Map.Entry<Long, String> e : subsystems.entrySet()) if (e.getValue() != null) ours.add(e.getKey());
+        long[] ourIds = new long[ours.size()];
+        for (int i = 0; i < ourIds.length; i++) ourIds[i] = ours.get(i);
+        long[] cpu = threads.getThreadCpuTime(ourIds);
+        long[] alloc = allocSupported ? threads.getThreadAllocatedBytes(ourIds) : new long[ourIds.length];
+        for (int i = 0; i < ourIds.length; i++) {
+            if (cpu[i] < 0) continue; // exited since getAllThreadIds
+            long[] last = lastRead.get(ourIds[i]);
+            // threads are charged from their start, but what came before the first window is not in it
+            boolean inWindow = last != null || sampled;
+            if (last == null) {
+                last = new long[2];
+                lastRead.put(ourIds[i], last);
+            }
+            add(subsystems.get(ourIds[i]), cpu[i] - last[0], Math.max(0, alloc[i] - last[1]), inWindow);
+            last[0] = cpu[i];
+            last[1] = Math.max(0, alloc[i]);
+        }
+
+        double available = (double) elapsedNanos * cpus;
+        Map<String, Double> ratios = new HashMap<>();
+        long windowCpu = 0;
+        for (Map.Entry<String, long[]> e : window.entrySet()) {
+            windowCpu += e.getValue()[0];
+            ratios.put(e.getKey(), e.getValue()[0] / available);
+            e.getValue()[0] = 0;
+            e.getValue()[1] = 0;
+        }
+        cpuRatio = windowCpu / available;
+        sampled = true;
+        return ratios;
+    }
+
+    private void add(String subsystem, long cpuNanos, long allocatedBytes, boolean inWindow) {
+        long[] t = totals.computeIfAbsent(subsystem, k -> new long[2]);
+        t[0] += cpuNanos;
+        t[1] += allocatedBytes;
+        if (!inWindow) return;
+        long[] w = window.computeIfAbsent(subsystem, k -> new long[2]);
+        w[0] += cpuNanos;
+        w[1] += allocatedBytes;
+    }
+
+    static String subsystemOf(String threadName) {
+        for (String[] t : THREADS) {
+            if (threadName.startsWith(t[0])) return t[1];
+        }
+        return threadName.startsWith("jvmdoctor-") ? "other" : null;
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> cpu = new ArrayList<>();
+        List<MetricFamilySamples.Sample> alloc = new ArrayList<>();
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            List<String> value = List.of(e.getKey());
+            cpu.add(new MetricFamilySamples.Sample("jvmdoctor_self_cpu_seconds_total", SUBSYSTEM, value, e.getValue()[0] / 1e9));
+            alloc.add(new MetricFamilySamples.Sample("jvmdoctor_self_allocated_bytes_total", SUBSYSTEM, value, e.getValue()[1]));
+        }
+        List<MetricFamilySamples> mfs = new ArrayList<>();
+        mfs.add(new MetricFamilySamples("jvmdoctor_self_cpu_seconds", Type.COUNTER,
+            "CPU time spent by the agent, per subsystem.", cpu));
+        if (allocSupported) {
+            mfs.add(new MetricFamilySamples("jvmdoctor_self_allocated_bytes", Type.COUNTER,
+                "Bytes allocated by the agent, per subsystem.", alloc));
+        }
+        mfs.add(new MetricFamilySamples("jvmdoctor_self_cpu_ratio", Type.GAUGE,
+            "The agent's share of the CPUs available to the JVM over the last window.",
+            List.of(new MetricFamilySamples.Sample("jvmdoctor_self_cpu_ratio", NO_LABELS, NO_LABELS, cpuRatio))));
+        return mfs;
+    }
+}
@@ -0,0 +1,85 @@
+package com.jvmdoctor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heaviest keys by total weight in bounded memory (Space-Saving). When the table is full, a new
+ * key takes over the lightest slot and inherits its weight, so a key that is really heavy can
+ * never be missing; totals of late arrivals are overestimated by at most {@link Entry#error}.
+ */
+public class TopTable {
+    private final String[] keys;
+    private final long[] totals;
+    private final long[] counts;
+    private final long[] errors;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private int size;
+
+    public static class Entry {
+        public final String key;
+        public final long total;
+        public final long count;
+        public final long error;
+
+        Entry(String key, long total, long count, long error) {
+            this.key = key;
+            this.total = total;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    /**
+     * A table for reporting the top {@code n}, holding four times that many keys: a key just below the
+     * cut keeps its slot and its weight while it competes, so the reported ranks do not churn.
+     */
+    public static TopTable forTop(int n) {
+        return new TopTable(Math.max(1, n) * 4);
+    }
+
+    public TopTable(int capacity) {
+        keys = new String[capacity];
+        totals = new long[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+    }
+
+    public synchronized void add(String key, long weight) {
+        Integer slot = slots.get(key);
+        int i;
+        if (slot != null) {
+            i = slot;
+        } else if (size < keys.length) {
+            i = size++;
+            keys[i] = key;
+            slots.put(key, i);
+        } else {
+            i = 0;
+            for (int j = 1; j < size; j++) {
+                if (totals[j] < totals[i]) i = j;
+            }
+            slots.remove(keys[i]);
+            keys[i] = key;
+            slots.put(key, i);
+            errors[i] = totals[i];
+            counts[i] = 0;
+        }
+        totals[i] += weight;
+        counts[i]++;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    /** The {@code n} heaviest entries, heaviest first. */
+    public synchronized List<Entry> top(int n) {
+        List<Entry> out = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) out.add(new Entry(keys[i], totals[i], counts[i], errors[i]));
+        out.sort((a, b) -> Long.compare(b.total, a.total));
+        return out.size() > n ? out.subList(0, n) : out;
+    }
+}
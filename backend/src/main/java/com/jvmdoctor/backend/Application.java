@@ -7,5 +7,8 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 public class Application {
     public static void main(String[] args) {
         SpringApplication.run(Application.class, args);
+        FleetScraper.start();
+        JvmDiscovery.start();
+        HsperfCollector.start();
     }
 }
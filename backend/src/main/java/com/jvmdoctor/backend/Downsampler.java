@@ -0,0 +1,93 @@
+package com.jvmdoctor.backend;
+
+/**
+ * Series transforms for charting: counter rates and Largest-Triangle-Three-Buckets downsampling,
+ * both in place on {@link TimeSeries.Samples} arrays.
+ */
+public final class Downsampler {
+    private Downsampler() {}
+
+    /** Drops NaN and infinite values (stale markers and the like), which no chart can draw. */
+    public static TimeSeries.Samples finite(TimeSeries.Samples in) {
+        TimeSeries.Samples out = new TimeSeries.Samples();
+        for (int i = 0; i < in.size; i++) {
+            if (Double.isFinite(in.v[i])) out.add(in.t[i], in.v[i]);
+        }
+        return out;
+    }
+
+    /**
+     * Per-second rate of a counter over a trailing {@code windowMs} (between consecutive samples if
+     * 0), compensating for counter resets. Only points at or after {@code from} are returned; earlier
+     * samples serve as the start of the first windows.
+     */
+    public static TimeSeries.Samples rate(TimeSeries.Samples in, long windowMs, long from) {
+        int n = in.size;
+        // undo resets: after a drop, everything that follows is offset by the value before it
+        double[] adjusted = new double[n];
+        double offset = 0;
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && in.v[i] < in.v[i - 1]) offset += in.v[i - 1];
+            adjusted[i] = in.v[i] + offset;
+        }
+        TimeSeries.Samples out = new TimeSeries.Samples();
+        int j = 0;
+        for (int i = 1; i < n; i++) {
+            if (windowMs > 0) {
+                while (in.t[j] < in.t[i] - windowMs) j++;
+            } else {
+                j = i - 1;
+            }
+            long dt = in.t[i] - in.t[j];
+            if (j >= i || dt <= 0 || in.t[i] < from) continue;
+            out.add(in.t[i], (adjusted[i] - adjusted[j]) * 1000.0 / dt);
+        }
+        return out;
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets: keeps the first and last points and, from each of
+     * {@code threshold - 2} equal buckets in between, the point forming the largest triangle with the
+     * point kept from the previous bucket and the average of the next bucket. Peaks and dips survive,
+     * unlike with averaging or striding.
+     */
+    public static TimeSeries.Samples lttb(TimeSeries.Samples in, int threshold) {
+        int n = in.size;
+        if (threshold >= n || threshold < 3) return in;
+        TimeSeries.Samples out = new TimeSeries.Samples();
+        double every = (double) (n - 2) / (threshold - 2);
+        int a = 0;
+        out.add(in.t[0], in.v[0]);
+        for (int b = 0; b < threshold - 2; b++) {
+            int nextStart = (int) Math.floor((b + 1) * every) + 1;
+            int nextEnd = Math.min((int) Math.floor((b + 2) * every) + 1, n);
+            double avgT = 0;
+            double avgV = 0;
+            for (int k = nextStart; k < nextEnd; k++) {
+                avgT += in.t[k];
+                avgV += in.v[k];
+            }
+            int count = Math.max(1, nextEnd - nextStart);
+            avgT /= count;
+            avgV /= count;
+
+            int start = (int) Math.floor(b * every) + 1;
+            int end = (int) Math.floor((b + 1) * every) + 1;
+            double ta = in.t[a];
+            double va = in.v[a];
+            double max = -1;
+            int pick = start;
+            for (int k = start; k < end; k++) {
+                double area = Math.abs((ta - avgT) * (in.v[k] - va) - (ta - in.t[k]) * (avgV - va));
+                if (area > max) {
+                    max = area;
+                    pick = k;
+                }
+            }
+            out.add(in.t[pick], in.v[pick]);
+            a = pick;
+        }
+        out.add(in.t[n - 1], in.v[n - 1]);
+        return out;
+    }
+}
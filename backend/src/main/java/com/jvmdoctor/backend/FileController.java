@@ -1,41 +1,253 @@
 package com.jvmdoctor.backend;
 
-import org.springframework.core.io.InputStreamResource;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Artifact downloads. Files are served with the container's sendfile where it offers it and otherwise
+ * with {@link FileChannel#transferTo} in chunks, so no file passes through the heap whole. Single byte
+ * ranges, {@code If-Range} and ETags let interrupted downloads resume; text artifacts are gzipped when
+ * the client accepts it. Streamed downloads are limited in number and may share a byte rate cap.
+ */
 @RestController
 public class FileController {
-    private static final String ALLOWED_PREFIX = "/tmp"; // restrict downloads to /tmp for now
+    static final String ALLOWED_PREFIX = "/tmp"; // restrict downloads to /tmp for now
+    private static final int CONCURRENCY = Integer.parseInt(System.getenv().getOrDefault("FILE_DOWNLOAD_CONCURRENCY", "4"));
+    // across all downloads; 0 for no limit, which also allows sendfile
+    private static final long MAX_BYTES_PER_SEC = Long.parseLong(System.getenv().getOrDefault("FILE_DOWNLOAD_MAX_BYTES_PER_SEC", "0"));
+    private static final int CHUNK = 1 << 20;
 
-    @GetMapping("/api/files/download")
-    public ResponseEntity<?> download(@RequestParam("path") String filePath) {
+    private static final Semaphore downloads = new Semaphore(CONCURRENCY);
+    private static final Object rateLock = new Object();
+    private static long rateNextNanos;
+
+    @RequestMapping(value = "/api/files/download", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void download(@RequestParam("path") String filePath, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Path requested = Paths.get(filePath).toAbsolutePath().normalize();
+        Path p;
+        BasicFileAttributes attrs;
+        try {
+            if (!requested.startsWith(ALLOWED_PREFIX)) {
+                resp.sendError(403, "Forbidden");
+                return;
+            }
+            // everything after the check uses the resolved path, never following a link, so a link
+            // swapped into /tmp after the check cannot reach outside it
+            p = requested.toRealPath();
+            if (!p.startsWith(ALLOWED_PREFIX)) {
+                resp.sendError(403, "Forbidden");
+                return;
+            }
+            attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            resp.sendError(404);
+            return;
+        }
+        if (!attrs.isRegularFile()) {
+            resp.sendError(404);
+            return;
+        }
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        String name = requested.getFileName().toString();
+        String type = contentType(name);
+        boolean gzip = isText(type) && acceptsGzip(req) && req.getHeader(HttpHeaders.RANGE) == null;
+        // the gzipped variant is different bytes, so it gets its own tag
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + (gzip ? "-gz" : "") + "\"";
+
+        boolean inline = type.startsWith("image/") || type.equals("application/json") || type.equals("text/plain");
+        resp.setHeader(HttpHeaders.CONTENT_DISPOSITION, (inline ? "inline" : "attachment") + "; filename=\"" + name + "\"");
+        resp.setContentType(type);
+        resp.setHeader(HttpHeaders.ETAG, etag);
+        resp.setDateHeader(HttpHeaders.LAST_MODIFIED, modified);
+        resp.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (isText(type)) resp.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        if (notModified(req, etag, modified)) {
+            resp.setStatus(304);
+            return;
+        }
+
+        long start = 0;
+        long end = size;
+        String range = req.getHeader(HttpHeaders.RANGE);
+        if (range != null && ifRangeMatches(req, etag, modified)) {
+            long[] r = parseRange(range, size);
+            if (r == null) {
+                resp.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                resp.sendError(416);
+                return;
+            }
+            if (r.length == 2) {
+                start = r[0];
+                end = r[1];
+                resp.setStatus(206);
+                resp.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + size);
+            }
+        }
+        if (gzip) {
+            resp.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        } else {
+            resp.setContentLengthLong(end - start);
+        }
+        if ("HEAD".equals(req.getMethod())) return;
+
+        if (!downloads.tryAcquire()) {
+            resp.reset();
+            resp.setHeader(HttpHeaders.RETRY_AFTER, "5");
+            resp.sendError(503, "too many downloads in progress");
+            return;
+        }
+        try {
+            if (!gzip && MAX_BYTES_PER_SEC <= 0 && Boolean.TRUE.equals(req.getAttribute("org.apache.tomcat.sendfile.support"))) {
+                // the connector copies the file to the socket in the kernel once this method returns, so
+                // for sendfile the permit bounds how many are handed over at once, not how long they run
+                req.setAttribute("org.apache.tomcat.sendfile.filename", p.toString());
+                req.setAttribute("org.apache.tomcat.sendfile.start", start);
+                req.setAttribute("org.apache.tomcat.sendfile.end", end);
+                return;
+            }
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+                if (gzip) {
+                    try (GZIPOutputStream out = new GZIPOutputStream(resp.getOutputStream(), 64 * 1024)) {
+                        copy(ch, start, end, Channels.newChannel(out));
+                    }
+                } else {
+                    OutputStream out = resp.getOutputStream();
+                    copy(ch, start, end, Channels.newChannel(out));
+                    out.flush();
+                }
+            }
+        } finally {
+            downloads.release();
+        }
+    }
+
+    private static void copy(FileChannel ch, long start, long end, WritableByteChannel out) throws IOException {
+        long pos = start;
+        while (pos < end) {
+            long n = ch.transferTo(pos, Math.min(CHUNK, end - pos), out);
+            if (n <= 0) break; // the file was truncated under us
+            pos += n;
+            throttle(n);
+        }
+    }
+
+    // reserves {@code bytes} of the shared rate and sleeps until they are due
+    private static void throttle(long bytes) throws IOException {
+        if (MAX_BYTES_PER_SEC <= 0) return;
+        long waitNanos;
+        synchronized (rateLock) {
+            long now = System.nanoTime();
+            if (rateNextNanos < now) rateNextNanos = now;
+            rateNextNanos += bytes * 1_000_000_000L / MAX_BYTES_PER_SEC;
+            waitNanos = rateNextNanos - now;
+        }
+        if (waitNanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("download interrupted");
+        }
+    }
+
+    /** [start, end) of a single satisfiable range; an empty array to serve the whole file; null if unsatisfiable. */
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=")) return new long[0];
+        String spec = header.substring(6).trim();
+        // several ranges would need multipart/byteranges; serving the whole file is allowed instead
+        if (spec.contains(",")) return new long[0];
+        int dash = spec.indexOf('-');
+        if (dash < 0) return new long[0];
         try {
-            Path p = Paths.get(filePath).toAbsolutePath().normalize();
-            if (!p.startsWith(ALLOWED_PREFIX)) return ResponseEntity.status(403).body("Forbidden");
-            File f = p.toFile();
-            if (!f.exists()) return ResponseEntity.notFound().build();
-            InputStreamResource resource = new InputStreamResource(new FileInputStream(f));
-            MediaType mediaType = MediaType.APPLICATION_OCTET_STREAM;
-            if (f.getName().endsWith(".svg")) mediaType = MediaType.valueOf("image/svg+xml");
-            if (f.getName().endsWith(".jfr")) mediaType = MediaType.APPLICATION_OCTET_STREAM;
-            boolean inline = mediaType.toString().startsWith("image/");
-            return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, (inline ? "inline" : "attachment") + "; filename=\"" + f.getName() + "\"")
-                .contentLength(f.length())
-                .contentType(mediaType)
-                .body(resource);
-        } catch (Exception e) {
-            return ResponseEntity.internalServerError().body(e.getMessage());
+            String a = spec.substring(0, dash).trim();
+            String b = spec.substring(dash + 1).trim();
+            if (a.isEmpty()) {
+                long suffix = Long.parseLong(b);
+                if (suffix <= 0 || size == 0) return null;
+                return new long[]{Math.max(0, size - suffix), size};
+            }
+            long start = Long.parseLong(a);
+            long end = b.isEmpty() ? size : Math.min(size, Long.parseLong(b) + 1);
+            if (start >= size || end <= start) return null;
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
         }
     }
+
+    private static boolean notModified(HttpServletRequest req, String etag, long modified) {
+        String inm = req.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (inm != null) return tagMatches(inm, etag);
+        long ims = dateHeader(req, HttpHeaders.IF_MODIFIED_SINCE);
+        return ims >= 0 && modified / 1000 <= ims / 1000;
+    }
+
+    private static boolean ifRangeMatches(HttpServletRequest req, String etag, long modified) {
+        String ifRange = req.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) return true;
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.equals(etag);
+        long date = dateHeader(req, HttpHeaders.IF_RANGE);
+        return date >= 0 && modified / 1000 == date / 1000;
+    }
+
+    private static boolean tagMatches(String header, String etag) {
+        for (String t : header.split(",")) {
+            t = t.trim();
+            if (t.equals("*") || t.equals(etag) || t.equals("W/" + etag)) return true;
+        }
+        return false;
+    }
+
+    private static long dateHeader(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        for (String v : Collections.list(req.getHeaders(HttpHeaders.ACCEPT_ENCODING))) {
+            for (String enc : v.split(",")) {
+                String e = enc.trim().toLowerCase();
+                if (e.startsWith("gzip") && !e.replace(" ", "").endsWith(";q=0")) return true;
+            }
+        }
+        return false;
+    }
+
+    private static String contentType(String name) {
+        if (name.endsWith(".svg")) return "image/svg+xml";
+        if (name.endsWith(".json")) return "application/json";
+        if (name.endsWith(".collapsed") || name.endsWith(".log") || name.endsWith(".txt")) return "text/plain";
+        return "application/octet-stream";
+    }
+
+    private static boolean isText(String type) {
+        return type.startsWith("text/") || type.equals("image/svg+xml") || type.equals("application/json");
+    }
 }
@@ -0,0 +1,40 @@
+package com.jvmdoctor.backend;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/analysis/flamegraph")
+public class FlameGraphController {
+
+    /** Renders a JFR recording under /tmp; returns the output path and parse stats. */
+    @PostMapping
+    public ResponseEntity<?> render(@RequestBody Map<String, Object> cfg) {
+        Object path = cfg.get("path");
+        if (path == null) return ResponseEntity.badRequest().body(Map.of("error", "path is required"));
+        Path p = Paths.get(path.toString()).toAbsolutePath().normalize();
+        if (!p.startsWith(FileController.ALLOWED_PREFIX)) return ResponseEntity.status(403).body(Map.of("error", "Forbidden"));
+        if (!Files.isRegularFile(p)) return ResponseEntity.notFound().build();
+        String event = cfg.containsKey("event") ? cfg.get("event").toString() : "cpu";
+        String output = cfg.containsKey("output") ? cfg.get("output").toString() : "svg";
+        String base = p.toString().endsWith(".jfr") ? p.toString().substring(0, p.toString().length() - 4) : p.toString();
+        Path out = Paths.get(cfg.containsKey("filename") ? cfg.get("filename").toString() : base + "-" + event + "." + output)
+            .toAbsolutePath().normalize();
+        if (!out.startsWith(FileController.ALLOWED_PREFIX)) return ResponseEntity.status(403).body(Map.of("error", "Forbidden"));
+        try {
+            return ResponseEntity.ok(new JfrFlameGraph(p, event).render(output, out));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResponseEntity.internalServerError().body(Map.of("error", "interrupted"));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage() == null ? e.toString() : e.getMessage()));
+        }
+    }
+}
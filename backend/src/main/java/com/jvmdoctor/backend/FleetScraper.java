@@ -0,0 +1,247 @@
+package com.jvmdoctor.backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Scrapes every managed process and every registered agent once per interval, whoever is watching.
+ * Each target runs on its own schedule, offset by a hash of its URL plus a little random jitter so
+ * targets do not fire together; requests go out on the async {@link HttpClient} under a global
+ * concurrency limit and a per-request timeout. Results are ingested into {@link MetricsStore} and the
+ * latest body is kept per target for readers such as {@code GET /api/processes/{id}/metrics}, until
+ * {@code METRICS_SCRAPE_STALE_FAILURES} scrapes in a row have failed. Targets registered by attaching
+ * to a JVM are dropped when {@link JvmDiscovery} sees that JVM exit.
+ */
+public class FleetScraper {
+    private static final long INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("METRICS_SCRAPE_INTERVAL_MS", "5000"));
+    private static final long TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("METRICS_SCRAPE_TIMEOUT_MS", "3000"));
+    private static final long JITTER_MS = Long.parseLong(System.getenv().getOrDefault("METRICS_SCRAPE_JITTER_MS",
+        String.valueOf(INTERVAL_MS / 10)));
+    private static final int CONCURRENCY = Integer.parseInt(System.getenv().getOrDefault("METRICS_SCRAPE_CONCURRENCY", "16"));
+    private static final int STALE_FAILURES = Integer.parseInt(System.getenv().getOrDefault("METRICS_SCRAPE_STALE_FAILURES", "3"));
+
+    private static final Map<String, Target> targets = new ConcurrentHashMap<>();
+    private static final Semaphore permits = new Semaphore(CONCURRENCY);
+    private static final HttpClient client = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofMillis(TIMEOUT_MS))
+        .build();
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fleet-scraper");
+        t.setDaemon(true);
+        return t;
+    });
+    private static volatile boolean started;
+
+    public static class Target {
+        public final String url;
+        public final String instance;
+        // null for targets registered by hand or by attach; otherwise the managed process id
+        public final Long processId;
+        // the JVM an attach registered this target for, or null
+        public final Long pid;
+        volatile ScheduledFuture<?> schedule;
+        // the jittered scrape of the current round, not yet started
+        volatile ScheduledFuture<?> pending;
+        volatile CompletableFuture<byte[]> inFlight;
+        volatile byte[] lastBody;
+        volatile long lastScrapeMs;
+        volatile long lastSuccessMs;
+        volatile long lastDurationMs = -1;
+        volatile int lastSamples;
+        volatile String lastError;
+        volatile long successes;
+        volatile long failures;
+        volatile long skipped;
+        volatile int consecutiveFailures;
+
+        Target(String url, String instance, Long processId, Long pid) {
+            this.url = url;
+            this.instance = instance;
+            this.processId = processId;
+            this.pid = pid;
+        }
+
+        public Map<String, Object> status() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("url", url);
+            m.put("instance", instance);
+            if (processId != null) m.put("processId", processId);
+            if (pid != null) m.put("pid", pid);
+            m.put("up", successes > 0 && consecutiveFailures == 0 ? 1 : 0);
+            m.put("lastScrape", lastScrapeMs);
+            m.put("lastSuccess", lastSuccessMs);
+            m.put("lastDurationMs", lastDurationMs);
+            m.put("lastSamples", lastSamples);
+            m.put("successes", successes);
+            m.put("failures", failures);
+            m.put("skipped", skipped);
+            m.put("consecutiveFailures", consecutiveFailures);
+            if (lastError != null) m.put("lastError", lastError);
+            return m;
+        }
+    }
+
+    /** Starts scraping managed processes; registered targets are scraped from when they are added. */
+    public static synchronized void start() {
+        if (started) return;
+        started = true;
+        JvmDiscovery.addListener(new JvmDiscovery.Listener() {
+            @Override
+            public void added(JvmDiscovery.Jvm jvm) {
+            }
+
+            @Override
+            public void removed(JvmDiscovery.Jvm jvm) {
+                for (Target t : targets.values()) if (t.pid != null && t.pid == jvm.pid) remove(t.url);
+            }
+        });
+        scheduler.scheduleWithFixedDelay(FleetScraper::reconcile, 0, Math.min(INTERVAL_MS, 1000), TimeUnit.MILLISECONDS);
+    }
+
+    // keeps one target per live managed process
+    private static void reconcile() {
+        try {
+            Map<String, ProcessManager.ManagedProcess> live = new LinkedHashMap<>();
+            for (ProcessManager.ManagedProcess mp : ProcessManager.listProcesses()) live.put(processUrl(mp.port), mp);
+            for (Target t : targets.values()) {
+                ProcessManager.ManagedProcess mp = live.get(t.url);
+                if (t.processId != null && (mp == null || mp.id != t.processId)) remove(t.url);
+            }
+            for (Map.Entry<String, ProcessManager.ManagedProcess> e : live.entrySet()) {
+                if (!targets.containsKey(e.getKey())) add(e.getKey(), "localhost:" + e.getValue().port, e.getValue().id, null);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Fleet scraper reconcile failed: " + e.getMessage());
+        }
+    }
+
+    private static String processUrl(int port) {
+        return "http://localhost:" + port + "/metrics";
+    }
+
+    /** Registers an agent's metrics URL; {@code instance} names it in the store. */
+    public static Target addTarget(String url, String instance) {
+        return addTarget(url, instance, null);
+    }
+
+    /** Registers the agent just attached to JVM {@code pid}; it is removed when that JVM exits. */
+    public static Target addTarget(String url, String instance, Long pid) {
+        URI uri = URI.create(url);
+        if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme())) throw new IllegalArgumentException("url must be http(s)");
+        return add(url, instance == null || instance.isEmpty() ? uri.getAuthority() : instance, null, pid);
+    }
+
+    private static Target add(String url, String instance, Long processId, Long pid) {
+        Target t = new Target(url, instance, processId, pid);
+        Target prev = targets.putIfAbsent(url, t);
+        if (prev != null) return prev;
+        long offset = Math.floorMod(url.hashCode(), Math.max(1, INTERVAL_MS));
+        t.schedule = scheduler.scheduleAtFixedRate(() -> {
+            long jitter = JITTER_MS > 0 ? ThreadLocalRandom.current().nextLong(JITTER_MS) : 0;
+            t.pending = scheduler.schedule(() -> {
+                if (targets.get(t.url) == t) scrape(t);
+            }, jitter, TimeUnit.MILLISECONDS);
+        }, offset, INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return t;
+    }
+
+    public static boolean remove(String url) {
+        Target t = targets.remove(url);
+        if (t == null) return false;
+        ScheduledFuture<?> f = t.schedule;
+        if (f != null) f.cancel(false);
+        ScheduledFuture<?> p = t.pending;
+        if (p != null) p.cancel(false);
+        return true;
+    }
+
+    public static List<Map<String, Object>> list() {
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (Target t : targets.values()) out.add(t.status());
+        return out;
+    }
+
+    /**
+     * The latest body scraped from managed process {@code id}. If it has not been scraped yet, or
+     * the last good body was dropped after repeated failures, one scrape is started (or joined) and
+     * awaited, so a process that stopped answering fails instead of serving old numbers.
+     */
+    public static byte[] latest(ProcessManager.ManagedProcess mp) throws Exception {
+        Target t = targets.get(processUrl(mp.port));
+        if (t == null) t = add(processUrl(mp.port), "localhost:" + mp.port, mp.id, null);
+        byte[] body = t.lastBody;
+        if (body != null) return body;
+        return scrape(t).get(TIMEOUT_MS + 1000, TimeUnit.MILLISECONDS);
+    }
+
+    // one request per target at a time; callers arriving meanwhile share it
+    private static synchronized CompletableFuture<byte[]> scrape(Target t) {
+        CompletableFuture<byte[]> running = t.inFlight;
+        if (running != null && !running.isDone()) return running;
+        if (!permits.tryAcquire()) {
+            // the fleet is slower than the interval; skip rather than queue up behind it
+            t.skipped++;
+            return CompletableFuture.failedFuture(new IOException("scrape concurrency limit reached"));
+        }
+        long t0 = System.nanoTime();
+        HttpRequest req = HttpRequest.newBuilder(URI.create(t.url))
+            .timeout(Duration.ofMillis(TIMEOUT_MS))
+            .header("Accept-Encoding", "gzip")
+            .GET()
+            .build();
+        CompletableFuture<byte[]> f = client.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray())
+            .thenApply(resp -> {
+                if (resp.statusCode() != 200) throw new IllegalStateException("HTTP " + resp.statusCode());
+                return decode(resp);
+            })
+            .whenComplete((body, err) -> {
+                permits.release();
+                t.lastScrapeMs = System.currentTimeMillis();
+                t.lastDurationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+                if (err != null) {
+                    Throwable cause = err.getCause() != null ? err.getCause() : err;
+                    t.failures++;
+                    t.consecutiveFailures++;
+                    t.lastError = cause.getMessage() == null ? cause.toString() : cause.getMessage();
+                    if (t.consecutiveFailures >= STALE_FAILURES) t.lastBody = null;
+                    return;
+                }
+                t.lastSamples = MetricsStore.ingest(t.instance, body, body.length, t.lastScrapeMs);
+                t.lastBody = body;
+                t.lastSuccessMs = t.lastScrapeMs;
+                t.successes++;
+                t.consecutiveFailures = 0;
+                t.lastError = null;
+            });
+        t.inFlight = f;
+        return f;
+    }
+
+    private static byte[] decode(HttpResponse<byte[]> resp) {
+        byte[] body = resp.body();
+        if (!resp.headers().firstValue("Content-Encoding").orElse("").contains("gzip")) return body;
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalStateException("bad gzip body: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.jvmdoctor.backend;
+
+import java.util.Arrays;
+
+/**
+ * Append-only block of samples compressed the way Gorilla / Prometheus chunks are:
+ * timestamps as delta-of-delta with variable bit widths, values as XOR against the previous value.
+ * Not thread-safe; callers synchronize on the owning series.
+ */
+public class GorillaChunk {
+    static final int MAX_SAMPLES = 120;
+
+    private long[] words = new long[4];
+    private int bitLen;
+    private int count;
+
+    private long minTime;
+    private long lastTime;
+    private long lastDelta;
+    private long lastValueBits;
+    private int lastLeading = -1;
+    private int lastTrailing;
+
+    public int count() { return count; }
+    public long minTime() { return minTime; }
+    public long maxTime() { return lastTime; }
+    public boolean isFull() { return count >= MAX_SAMPLES; }
+
+    /** Bytes held by this chunk, used for memory accounting. */
+    public long sizeBytes() { return 16L + (long) words.length * 8 + 56; }
+
+    /** Returns false if {@code t} is not after the last sample (out of order or duplicate). */
+    public boolean append(long t, double v) {
+        long bits = Double.doubleToRawLongBits(v);
+        if (count == 0) {
+            writeBits(t, 64);
+            writeBits(bits, 64);
+            minTime = t;
+        } else {
+            if (t <= lastTime) return false;
+            long delta = t - lastTime;
+            writeDod(delta - lastDelta);
+            writeXor(bits);
+            lastDelta = delta;
+        }
+        lastTime = t;
+        lastValueBits = bits;
+        count++;
+        return true;
+    }
+
+    /** Drops spare capacity once the chunk will no longer be appended to. */
+    public void seal() {
+        int used = (bitLen + 63) >>> 6;
+        if (used < words.length) words = Arrays.copyOf(words, Math.max(used, 1));
+    }
+
+    private void writeDod(long dod) {
+        if (dod == 0) {
+            writeBits(0, 1);
+        } else if (fits(dod, 14)) {
+            writeBits(0b10, 2);
+            writeBits(dod, 14);
+        } else if (fits(dod, 17)) {
+            writeBits(0b110, 3);
+            writeBits(dod, 17);
+        } else if (fits(dod, 20)) {
+            writeBits(0b1110, 4);
+            writeBits(dod, 20);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(dod, 64);
+        }
+    }
+
+    private void writeXor(long bits) {
+        long xor = bits ^ lastValueBits;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        writeBits(1, 1);
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+            writeBits(0, 1);
+            writeBits(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+        } else {
+            int significant = 64 - leading - trailing;
+            writeBits(1, 1);
+            writeBits(leading, 5);
+            // 64 significant bits does not fit in 6 bits; 0 is never a valid length so it stands in for 64
+            writeBits(significant == 64 ? 0 : significant, 6);
+            writeBits(xor >>> trailing, significant);
+            lastLeading = leading;
+            lastTrailing = trailing;
+        }
+    }
+
+    private static boolean fits(long x, int nbits) {
+        return -((1L << (nbits - 1)) - 1) <= x && x <= 1L << (nbits - 1);
+    }
+
+    private void writeBits(long v, int n) {
+        int idx = bitLen >>> 6;
+        if (idx + 1 >= words.length) words = Arrays.copyOf(words, words.length * 2);
+        if (n < 64) v &= (1L << n) - 1;
+        int free = 64 - (bitLen & 63);
+        if (n <= free) {
+            words[idx] |= v << (free - n);
+        } else {
+            int rest = n - free;
+            words[idx] |= v >>> rest;
+            words[idx + 1] |= v << (64 - rest);
+        }
+        bitLen += n;
+    }
+
+    public Reader reader() {
+        return new Reader(words, count);
+    }
+
+    /** Sequential decoder. {@link #next()} advances; {@link #time} and {@link #value} hold the current sample. */
+    public static class Reader {
+        private final long[] words;
+        private final int total;
+        private int pos;
+        private int read;
+        private long delta;
+        private long valueBits;
+        private int leading;
+        private int trailing;
+
+        public long time;
+        public double value;
+
+        Reader(long[] words, int total) {
+            this.words = words;
+            this.total = total;
+        }
+
+        public boolean next() {
+            if (read >= total) return false;
+            if (read == 0) {
+                time = readBits(64);
+                valueBits = readBits(64);
+            } else {
+                delta += readDod();
+                time += delta;
+                readXor();
+            }
+            value = Double.longBitsToDouble(valueBits);
+            read++;
+            return true;
+        }
+
+        private long readDod() {
+            if (readBits(1) == 0) return 0;
+            if (readBits(1) == 0) return signed(readBits(14), 14);
+            if (readBits(1) == 0) return signed(readBits(17), 17);
+            if (readBits(1) == 0) return signed(readBits(20), 20);
+            return readBits(64);
+        }
+
+        private void readXor() {
+            if (readBits(1) == 0) return;
+            if (readBits(1) != 0) {
+                leading = (int) readBits(5);
+                int significant = (int) readBits(6);
+                if (significant == 0) significant = 64;
+                trailing = 64 - leading - significant;
+            }
+            int significant = 64 - leading - trailing;
+            valueBits ^= readBits(significant) << trailing;
+        }
+
+        private static long signed(long raw, int nbits) {
+            return raw > (1L << (nbits - 1)) ? raw - (1L << nbits) : raw;
+        }
+
+        private long readBits(int n) {
+            int idx = pos >>> 6;
+            int free = 64 - (pos & 63);
+            long r;
+            if (n <= free) {
+                r = words[idx] >>> (free - n);
+            } else {
+                int rest = n - free;
+                r = (words[idx] << rest) | (words[idx + 1] >>> (64 - rest));
+            }
+            if (n < 64) r &= (1L << n) - 1;
+            pos += n;
+            return r;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.jvmdoctor.backend;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+@RestController
+@RequestMapping("/api/analysis/heap")
+public class HeapAnalysisController {
+
+    @PostMapping
+    public ResponseEntity<?> analyze(@RequestBody Map<String, Object> cfg) {
+        Object path = cfg.get("path");
+        if (path == null) return ResponseEntity.badRequest().body(Map.of("error", "path is required"));
+        Path p = Paths.get(path.toString()).toAbsolutePath().normalize();
+        if (!p.startsWith(FileController.ALLOWED_PREFIX)) return ResponseEntity.status(403).body(Map.of("error", "Forbidden"));
+        if (!Files.isRegularFile(p)) return ResponseEntity.notFound().build();
+        try {
+            var a = HeapAnalysisManager.submit(p);
+            return ResponseEntity.accepted().body(Map.of("analysisId", a.id, "taskId", a.taskId));
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(503).body(Map.of("error", "task queue is full"));
+        }
+    }
+
+    @GetMapping
+    public ResponseEntity<?> list() {
+        return ResponseEntity.ok(HeapAnalysisManager.list());
+    }
+
+    /** Status while running; the full report once done. */
+    @GetMapping("/{id}")
+    public ResponseEntity<?> get(@PathVariable("id") long id) {
+        var a = HeapAnalysisManager.get(id);
+        if (a == null) return ResponseEntity.notFound().build();
+        Map<String, Object> body = new LinkedHashMap<>(a.status());
+        var report = a.report;
+        if (report != null) body.put("report", report);
+        return ResponseEntity.ok(body);
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<?> delete(@PathVariable("id") long id) {
+        return HeapAnalysisManager.remove(id) ? ResponseEntity.ok(Map.of("deleted", true)) : ResponseEntity.notFound().build();
+    }
+}
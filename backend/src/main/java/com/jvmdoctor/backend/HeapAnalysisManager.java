@@ -0,0 +1,103 @@
+package com.jvmdoctor.backend;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Heap dump analyses run through {@link TaskManager}, with their progress and reports. */
+public class HeapAnalysisManager {
+    private static final int TOP_N = Integer.parseInt(System.getenv().getOrDefault("HPROF_TOP_N", "50"));
+
+    private static final Map<Long, Analysis> analyses = new ConcurrentHashMap<>();
+    private static final AtomicLong idGen = new AtomicLong(1);
+
+    public static class Analysis {
+        public final long id;
+        public final String path;
+        public final long startTime = System.currentTimeMillis();
+        volatile long taskId;
+        volatile String status = "queued";
+        volatile HprofAnalyzer analyzer;
+        volatile Map<String, Object> report;
+        volatile String error;
+        volatile long endTime = -1;
+
+        Analysis(long id, String path) {
+            this.id = id;
+            this.path = path;
+        }
+
+        public Map<String, Object> status() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", id);
+            m.put("taskId", taskId);
+            m.put("path", path);
+            m.put("status", status);
+            HprofAnalyzer a = analyzer;
+            if (a != null && "running".equals(status)) m.put("phase", a.phase());
+            m.put("startTime", startTime);
+            m.put("endTime", endTime);
+            if (error != null) m.put("error", error);
+            return m;
+        }
+    }
+
+    /** Queues an analysis of {@code path}. Throws RejectedExecutionException when the task queue is full. */
+    public static Analysis submit(Path path) {
+        Analysis a = new Analysis(idGen.getAndIncrement(), path.toString());
+        analyses.put(a.id, a);
+        try {
+            a.taskId = TaskManager.submit(TaskManager.HEAP_ANALYSIS, null, TaskManager.Priority.NORMAL, "analyze " + path, t -> {
+                run(a, path);
+                // mirror the outcome onto the task
+                if ("cancelled".equals(a.status)) throw new CancellationException();
+                if ("failed".equals(a.status)) throw new IllegalStateException(a.error);
+                return Map.of("analysisId", a.id);
+            }).id;
+        } catch (RuntimeException e) {
+            analyses.remove(a.id);
+            throw e;
+        }
+        return a;
+    }
+
+    private static void run(Analysis a, Path path) {
+        a.status = "running";
+        try {
+            a.analyzer = new HprofAnalyzer(path, TOP_N);
+            a.report = a.analyzer.analyze();
+            a.status = "done";
+        } catch (CancellationException | InterruptedException e) {
+            a.status = "cancelled";
+        } catch (Exception e) {
+            a.status = "failed";
+            a.error = e.getMessage() == null ? e.toString() : e.getMessage();
+        } finally {
+            a.endTime = System.currentTimeMillis();
+            // analyze() has unmapped its indexes; only the phase was still read from it
+            a.analyzer = null;
+        }
+    }
+
+    public static Analysis get(long id) {
+        return analyses.get(id);
+    }
+
+    public static List<Map<String, Object>> list() {
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (Analysis a : analyses.values()) out.add(a.status());
+        return out;
+    }
+
+    public static boolean remove(long id) {
+        Analysis a = analyses.remove(id);
+        if (a == null) return false;
+        TaskManager.cancel(a.taskId);
+        return true;
+    }
+}
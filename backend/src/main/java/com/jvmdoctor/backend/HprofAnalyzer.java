@@ -0,0 +1,974 @@
+package com.jvmdoctor.backend;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap dump analysis that never loads the dump onto the Java heap. The file is memory-mapped and
+ * walked record by record; every per-object index (id to object number, record offset, class,
+ * shallow size, outgoing references, dominators, retained sizes) lives in {@link OffHeapArray}s
+ * backed by temp files, all unmapped when {@link #analyze} returns. Heap dump segments are cut into chunks at record boundaries and the chunks
+ * are parsed in parallel. The dominator tree uses the iterative Cooper-Harvey-Kennedy algorithm
+ * over a synthetic root that points at every GC root.
+ *
+ * Sizes are approximations: shallow sizes assume an object header of two ids and 8-byte alignment,
+ * and the per-class retained size counts only objects not dominated by another object of the same
+ * class. Duplicate strings and arrays are grouped by a 64-bit content hash.
+ */
+public class HprofAnalyzer {
+    private static final int THREADS = Integer.parseInt(System.getenv().getOrDefault("HPROF_PARSE_THREADS",
+        String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final long CHUNK_BYTES = Long.parseLong(System.getenv().getOrDefault("HPROF_CHUNK_MB", "64")) << 20;
+    private static final int CHILDREN_PER_DOMINATOR = 5;
+    private static final int SAMPLE_CHARS = 100;
+
+    // top-level records
+    private static final int UTF8 = 0x01, LOAD_CLASS = 0x02, HEAP_DUMP = 0x0C, HEAP_DUMP_SEGMENT = 0x1C;
+    // heap dump sub-records
+    private static final int ROOT_UNKNOWN = 0xFF, ROOT_JNI_GLOBAL = 0x01, ROOT_JNI_LOCAL = 0x02, ROOT_JAVA_FRAME = 0x03,
+        ROOT_NATIVE_STACK = 0x04, ROOT_STICKY_CLASS = 0x05, ROOT_THREAD_BLOCK = 0x06, ROOT_MONITOR_USED = 0x07,
+        ROOT_THREAD_OBJECT = 0x08, CLASS_DUMP = 0x20, INSTANCE_DUMP = 0x21, OBJ_ARRAY_DUMP = 0x22, PRIM_ARRAY_DUMP = 0x23;
+    private static final int OBJECT = 2, BOOLEAN = 4, BYTE = 8;
+    private static final String[] PRIMITIVE_ARRAYS = {"boolean[]", "char[]", "float[]", "double[]", "byte[]", "short[]", "int[]", "long[]"};
+    private static final int CLASS_OBJECT = 8, UNKNOWN_CLASS = 9, SYNTHETIC_CLASSES = 10;
+
+    private final MappedFile file;
+    // every index and scratch array of one analysis, released when it ends
+    private final OffHeapArena arena = new OffHeapArena();
+    private final int topN;
+    private volatile String phase = "opening";
+
+    private int idSize;
+    private final List<long[]> segments = new ArrayList<>();
+    private OffHeapLongMap utf8;
+    private final Map<Long, Long> classNameIds = new HashMap<>();
+    private long stringClassId;
+
+    private final List<ClassInfo> classes = new ArrayList<>();
+    private OffHeapLongMap classIndex;
+    private int stringClass = -1;
+
+    private long objects;
+    private long roots;
+    private OffHeapLongMap ids;
+    private OffHeapArray offsets;
+    private OffHeapArray classOf;
+    private OffHeapArray shallow;
+    private OffHeapArray edgeStart;
+    private OffHeapArray edges;
+    private OffHeapLongMap arrayCounts, arraySamples, stringCounts, stringSamples;
+
+    private long reachable;
+    private OffHeapArray postOrder;
+    private OffHeapArray state;
+    private OffHeapArray idom;
+    private OffHeapArray retained;
+
+    private static class ClassInfo {
+        final long id;
+        long superId;
+        long loaderId;
+        long protectionDomainId;
+        long[] fieldNames = new long[0];
+        byte[] fieldTypes = new byte[0];
+        long[] staticRefs = new long[0];
+        long staticBytes;
+        String name;
+        // instance layout flattened over the superclass chain, this class first
+        int[] refOffsets = new int[0];
+        int valueOffset = -1;
+        int coderOffset = -1;
+
+        ClassInfo(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    /** A run of whole sub-records inside one heap dump segment. */
+    private static class Chunk {
+        final long start;
+        long end;
+        long objects;
+        long primitiveArrays;
+        long strings;
+        long firstIndex;
+        long[] roots = new long[16];
+        int rootCount;
+        final List<ClassInfo> classes = new ArrayList<>();
+
+        Chunk(long start) {
+            this.start = start;
+        }
+
+        void addRoot(long id) {
+            if (rootCount == roots.length) roots = Arrays.copyOf(roots, rootCount * 2);
+            roots[rootCount++] = id;
+        }
+    }
+
+    private interface RecordVisitor {
+        /** {@code pos} is the first byte after the sub-record tag. */
+        void visit(int tag, long pos) throws IOException;
+    }
+
+    public HprofAnalyzer(Path path, int topN) throws IOException {
+        this.file = new MappedFile(path);
+        this.topN = topN;
+    }
+
+    public String phase() {
+        return phase;
+    }
+
+    public Map<String, Object> analyze() throws Exception {
+        long started = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "hprof-parse");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            phase = "scanning records";
+            scanTopLevel();
+            phase = "indexing objects";
+            List<Chunk> chunks = layout(pool);
+            index(pool, chunks);
+            phase = "resolving references";
+            resolve(pool, chunks);
+            phase = "computing dominators";
+            depthFirst();
+            dominators(pool);
+            phase = "computing retained sizes";
+            retainedSizes();
+            phase = "building reports";
+            Map<String, Object> report = new LinkedHashMap<>();
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("idSize", idSize);
+            summary.put("objects", objects);
+            summary.put("classes", classes.size() - SYNTHETIC_CLASSES);
+            summary.put("gcRoots", roots);
+            summary.put("reachable", reachable - 1);
+            summary.put("references", edgeStart.getLong(objects + 1));
+            summary.put("parseThreads", THREADS);
+            report.put("summary", summary);
+            report.put("classHistogram", classHistogram(summary));
+            report.put("dominators", dominatorTop());
+            report.put("duplicateStrings", duplicateStrings());
+            report.put("duplicateArrays", duplicateArrays());
+            summary.put("elapsedMs", System.currentTimeMillis() - started);
+            phase = "done";
+            return report;
+        } finally {
+            pool.shutdownNow();
+            // unmapping under a parse thread that is still running would crash the backend, so the
+            // mappings are left to the collector if the pool does not stop
+            if (awaitStopped(pool)) {
+                arena.close();
+                file.close();
+            }
+        }
+    }
+
+    // workers check for interrupts every few thousand records, so this is normally immediate
+    private static boolean awaitStopped(ExecutorService pool) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (true) {
+                try {
+                    return pool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---- pass 1: top-level records ----
+
+    private void scanTopLevel() throws IOException {
+        long pos = 0;
+        while (pos < 64 && pos < file.size() && file.u1(pos) != 0) pos++;
+        String header = new String(file.bytes(0, (int) pos), StandardCharsets.US_ASCII);
+        if (!header.startsWith("JAVA PROFILE")) throw new IOException("not an HPROF file");
+        idSize = file.i4(pos + 1);
+        if (idSize != 4 && idSize != 8) throw new IOException("unsupported id size " + idSize);
+        long first = pos + 1 + 4 + 8;
+
+        long utf8Count = 0;
+        for (pos = first; pos + 9 <= file.size(); pos += 9 + file.u4(pos + 5)) {
+            if (file.u1(pos) == UTF8) utf8Count++;
+        }
+        utf8 = new OffHeapLongMap(arena, utf8Count);
+        for (pos = first; pos + 9 <= file.size(); ) {
+            int tag = file.u1(pos);
+            long len = file.u4(pos + 5);
+            long body = pos + 9;
+            long end = Math.min(body + len, file.size());
+            if (tag == UTF8) {
+                utf8.put(file.id(body, idSize), pos);
+            } else if (tag == LOAD_CLASS) {
+                classNameIds.put(file.id(body + 4, idSize), file.id(body + 8 + idSize, idSize));
+            } else if (tag == HEAP_DUMP || tag == HEAP_DUMP_SEGMENT) {
+                segments.add(new long[]{body, end});
+            }
+            pos = body + len;
+        }
+        for (Map.Entry<Long, Long> e : classNameIds.entrySet()) {
+            if ("java/lang/String".equals(utf8(e.getValue()))) stringClassId = e.getKey();
+        }
+    }
+
+    private String utf8(long id) {
+        long pos = utf8.get(id, -1);
+        if (pos < 0) return null;
+        int len = (int) (file.u4(pos + 5) - idSize);
+        return new String(file.bytes(pos + 9 + idSize, len), StandardCharsets.UTF_8);
+    }
+
+    // ---- pass 2: chunk boundaries, object counts, classes ----
+
+    private List<Chunk> layout(ExecutorService pool) throws Exception {
+        List<Callable<List<Chunk>>> scans = new ArrayList<>();
+        for (long[] seg : segments) scans.add(() -> layoutSegment(seg[0], seg[1]));
+        List<Chunk> chunks = new ArrayList<>();
+        for (List<Chunk> part : runAll(pool, scans)) chunks.addAll(part);
+
+        for (int t = 0; t < PRIMITIVE_ARRAYS.length; t++) classes.add(new ClassInfo(0, PRIMITIVE_ARRAYS[t]));
+        classes.add(new ClassInfo(0, "java.lang.Class"));
+        classes.add(new ClassInfo(0, "unknown"));
+        long primitiveArrays = 0, strings = 0;
+        for (Chunk c : chunks) {
+            classes.addAll(c.classes);
+            objects += c.objects;
+            roots += c.rootCount;
+            primitiveArrays += c.primitiveArrays;
+            strings += c.strings;
+        }
+        if (objects >= Integer.MAX_VALUE) throw new IOException("too many objects: " + objects);
+        classIndex = new OffHeapLongMap(arena, classes.size());
+        Map<Long, ClassInfo> byId = new HashMap<>();
+        for (int i = SYNTHETIC_CLASSES; i < classes.size(); i++) {
+            ClassInfo ci = classes.get(i);
+            classIndex.put(ci.id, i);
+            byId.put(ci.id, ci);
+            if ("java.lang.Class".equals(ci.name)) classes.set(CLASS_OBJECT, ci);
+            if (ci.id == stringClassId) stringClass = i;
+        }
+        for (int i = SYNTHETIC_CLASSES; i < classes.size(); i++) flattenLayout(classes.get(i), byId);
+
+        ids = new OffHeapLongMap(arena, objects);
+        // node 0 is the synthetic root; objects are 1..objects
+        offsets = OffHeapArray.longs(arena, objects + 1);
+        classOf = OffHeapArray.ints(arena, objects + 1);
+        shallow = OffHeapArray.longs(arena, objects + 1);
+        edgeStart = OffHeapArray.longs(arena, objects + 2);
+        arrayCounts = new OffHeapLongMap(arena, primitiveArrays);
+        arraySamples = new OffHeapLongMap(arena, primitiveArrays);
+        stringCounts = new OffHeapLongMap(arena, strings);
+        stringSamples = new OffHeapLongMap(arena, strings);
+        long next = 1;
+        for (Chunk c : chunks) {
+            c.firstIndex = next;
+            next += c.objects;
+        }
+        return chunks;
+    }
+
+    private List<Chunk> layoutSegment(long start, long end) throws IOException {
+        List<Chunk> out = new ArrayList<>();
+        Chunk c = new Chunk(start);
+        long pos = start;
+        int records = 0;
+        while (pos < end) {
+            if (pos - c.start >= CHUNK_BYTES) {
+                c.end = pos;
+                out.add(c);
+                c = new Chunk(pos);
+            }
+            if ((++records & 0xffff) == 0 && Thread.currentThread().isInterrupted()) throw new CancellationException();
+            int tag = file.u1(pos);
+            long p = pos + 1;
+            switch (tag) {
+                case ROOT_UNKNOWN: case ROOT_JNI_GLOBAL: case ROOT_JNI_LOCAL: case ROOT_JAVA_FRAME: case ROOT_NATIVE_STACK:
+                case ROOT_STICKY_CLASS: case ROOT_THREAD_BLOCK: case ROOT_MONITOR_USED: case ROOT_THREAD_OBJECT:
+                    c.addRoot(file.id(p, idSize));
+                    break;
+                case CLASS_DUMP:
+                    c.classes.add(parseClass(p));
+                    c.objects++;
+                    break;
+                case INSTANCE_DUMP:
+                    c.objects++;
+                    if (stringClassId != 0 && file.id(p + idSize + 4, idSize) == stringClassId) c.strings++;
+                    break;
+                case OBJ_ARRAY_DUMP:
+                    c.objects++;
+                    break;
+                case PRIM_ARRAY_DUMP:
+                    c.objects++;
+                    c.primitiveArrays++;
+                    break;
+                default:
+                    throw new IOException("unsupported heap dump sub-record 0x" + Integer.toHexString(tag) + " at " + pos);
+            }
+            pos = p + bodySize(tag, p);
+        }
+        c.end = end;
+        out.add(c);
+        return out;
+    }
+
+    private long bodySize(int tag, long p) {
+        switch (tag) {
+            case ROOT_UNKNOWN: case ROOT_STICKY_CLASS: case ROOT_MONITOR_USED: return idSize;
+            case ROOT_JNI_GLOBAL: return 2L * idSize;
+            case ROOT_JNI_LOCAL: case ROOT_JAVA_FRAME: case ROOT_THREAD_OBJECT: return idSize + 8;
+            case ROOT_NATIVE_STACK: case ROOT_THREAD_BLOCK: return idSize + 4;
+            case CLASS_DUMP: return classDumpSize(p);
+            case INSTANCE_DUMP: return 2L * idSize + 8 + file.u4(p + 2L * idSize + 4);
+            case OBJ_ARRAY_DUMP: return 2L * idSize + 8 + file.u4(p + idSize + 4) * idSize;
+            case PRIM_ARRAY_DUMP: return idSize + 9 + file.u4(p + idSize + 4) * typeSize(file.u1(p + idSize + 8));
+            default: throw new IllegalStateException("unexpected tag " + tag);
+        }
+    }
+
+    private long classDumpSize(long p) {
+        long q = p + 7L * idSize + 8;
+        int constants = file.u2(q);
+        q += 2;
+        for (int i = 0; i < constants; i++) q += 3 + typeSize(file.u1(q + 2));
+        int statics = file.u2(q);
+        q += 2;
+        for (int i = 0; i < statics; i++) q += idSize + 1 + typeSize(file.u1(q + idSize));
+        int fields = file.u2(q);
+        q += 2 + (long) fields * (idSize + 1);
+        return q - p;
+    }
+
+    private int typeSize(int type) {
+        switch (type) {
+            case OBJECT: return idSize;
+            case BOOLEAN: case BYTE: return 1;
+            case 5: case 9: return 2;
+            case 6: case 10: return 4;
+            case 7: case 11: return 8;
+            default: throw new IllegalStateException("unknown basic type " + type);
+        }
+    }
+
+    private ClassInfo parseClass(long p) {
+        long id = file.id(p, idSize);
+        Long nameId = classNameIds.get(id);
+        String name = nameId == null ? null : utf8(nameId);
+        ClassInfo ci = new ClassInfo(id, name == null ? "0x" + Long.toHexString(id) : prettyName(name));
+        ci.superId = file.id(p + idSize + 4, idSize);
+        ci.loaderId = file.id(p + 2L * idSize + 4, idSize);
+        ci.protectionDomainId = file.id(p + 4L * idSize + 4, idSize);
+        long q = p + 7L * idSize + 8;
+        int constants = file.u2(q);
+        q += 2;
+        for (int i = 0; i < constants; i++) q += 3 + typeSize(file.u1(q + 2));
+        int statics = file.u2(q);
+        q += 2;
+        long[] refs = new long[statics];
+        int nrefs = 0;
+        for (int i = 0; i < statics; i++) {
+            int type = file.u1(q + idSize);
+            if (type == OBJECT) {
+                long ref = file.id(q + idSize + 1, idSize);
+                if (ref != 0) refs[nrefs++] = ref;
+            }
+            ci.staticBytes += typeSize(type);
+            q += idSize + 1 + typeSize(type);
+        }
+        ci.staticRefs = Arrays.copyOf(refs, nrefs);
+        int fields = file.u2(q);
+        q += 2;
+        ci.fieldNames = new long[fields];
+        ci.fieldTypes = new byte[fields];
+        for (int i = 0; i < fields; i++) {
+            ci.fieldNames[i] = file.id(q, idSize);
+            ci.fieldTypes[i] = (byte) file.u1(q + idSize);
+            q += idSize + 1;
+        }
+        return ci;
+    }
+
+    private void flattenLayout(ClassInfo ci, Map<Long, ClassInfo> byId) {
+        int[] refs = new int[8];
+        int n = 0;
+        int offset = 0;
+        boolean isString = ci.id == stringClassId;
+        for (ClassInfo c = ci; c != null; c = c.superId == 0 ? null : byId.get(c.superId)) {
+            for (int i = 0; i < c.fieldTypes.length; i++) {
+                int type = c.fieldTypes[i];
+                if (type == OBJECT) {
+                    if (n == refs.length) refs = Arrays.copyOf(refs, n * 2);
+                    refs[n++] = offset;
+                }
+                if (isString && c == ci) {
+                    String field = utf8(c.fieldNames[i]);
+                    if ("value".equals(field) && type == OBJECT) ci.valueOffset = offset;
+                    if ("coder".equals(field) && type == BYTE) ci.coderOffset = offset;
+                }
+                offset += typeSize(type);
+            }
+        }
+        ci.refOffsets = Arrays.copyOf(refs, n);
+    }
+
+    static String prettyName(String internal) {
+        int dims = 0;
+        while (dims < internal.length() && internal.charAt(dims) == '[') dims++;
+        String base = internal.substring(dims);
+        if (dims > 0) {
+            switch (base) {
+                case "Z": base = "boolean"; break;
+                case "C": base = "char"; break;
+                case "F": base = "float"; break;
+                case "D": base = "double"; break;
+                case "B": base = "byte"; break;
+                case "S": base = "short"; break;
+                case "I": base = "int"; break;
+                case "J": base = "long"; break;
+                default:
+                    if (base.startsWith("L") && base.endsWith(";")) base = base.substring(1, base.length() - 1);
+            }
+        }
+        return base.replace('/', '.') + "[]".repeat(dims);
+    }
+
+    // ---- pass 3: per-object index, reference counts, array hashes ----
+
+    private void index(ExecutorService pool, List<Chunk> chunks) throws Exception {
+        List<Callable<Void>> work = new ArrayList<>();
+        for (Chunk c : chunks) work.add(() -> { indexChunk(c); return null; });
+        runAll(pool, work);
+        // edgeStart[i + 1] holds node i's reference count; turn the counts into offsets
+        edgeStart.setLong(1, roots);
+        for (long i = 1; i <= objects + 1; i++) edgeStart.setLong(i, edgeStart.getLong(i) + edgeStart.getLong(i - 1));
+        edges = OffHeapArray.ints(arena, Math.max(1, edgeStart.getLong(objects + 1)));
+    }
+
+    private void indexChunk(Chunk c) throws IOException {
+        long[] next = {c.firstIndex};
+        walk(c, (tag, p) -> {
+            long idx;
+            switch (tag) {
+                case CLASS_DUMP: {
+                    idx = next[0]++;
+                    ClassInfo ci = classes.get((int) classIndex.get(file.id(p, idSize), UNKNOWN_CLASS));
+                    classOf.setInt(idx, CLASS_OBJECT);
+                    shallow.setLong(idx, align(2L * idSize + ci.staticBytes));
+                    long refs = ci.staticRefs.length;
+                    if (ci.superId != 0) refs++;
+                    if (ci.loaderId != 0) refs++;
+                    if (ci.protectionDomainId != 0) refs++;
+                    edgeStart.setLong(idx + 1, refs);
+                    break;
+                }
+                case INSTANCE_DUMP: {
+                    idx = next[0]++;
+                    long classId = file.id(p + idSize + 4, idSize);
+                    int ci = (int) classIndex.get(classId, UNKNOWN_CLASS);
+                    long len = file.u4(p + 2L * idSize + 4);
+                    long data = p + 2L * idSize + 8;
+                    classOf.setInt(idx, ci);
+                    shallow.setLong(idx, align(2L * idSize + len));
+                    long refs = classId != 0 ? 1 : 0;
+                    for (int off : classes.get(ci).refOffsets) {
+                        if (off + idSize <= len && file.id(data + off, idSize) != 0) refs++;
+                    }
+                    edgeStart.setLong(idx + 1, refs);
+                    break;
+                }
+                case OBJ_ARRAY_DUMP: {
+                    idx = next[0]++;
+                    long count = file.u4(p + idSize + 4);
+                    long classId = file.id(p + idSize + 8, idSize);
+                    classOf.setInt(idx, (int) classIndex.get(classId, UNKNOWN_CLASS));
+                    shallow.setLong(idx, align(2L * idSize + 4 + count * idSize));
+                    long refs = classId != 0 ? 1 : 0;
+                    long data = p + 2L * idSize + 8;
+                    for (long i = 0; i < count; i++) {
+                        if (file.id(data + i * idSize, idSize) != 0) refs++;
+                    }
+                    edgeStart.setLong(idx + 1, refs);
+                    break;
+                }
+                case PRIM_ARRAY_DUMP: {
+                    idx = next[0]++;
+                    long count = file.u4(p + idSize + 4);
+                    int type = file.u1(p + idSize + 8);
+                    long bytes = count * typeSize(type);
+                    classOf.setInt(idx, type - BOOLEAN);
+                    shallow.setLong(idx, align(2L * idSize + 4 + bytes));
+                    if (count > 0) {
+                        long h = contentHash(p + idSize + 9, bytes, type);
+                        if (arrayCounts.add(h, 1) == 1) arraySamples.put(h, idx);
+                    }
+                    break;
+                }
+                default:
+                    return;
+            }
+            ids.put(file.id(p, idSize), idx);
+            offsets.setLong(idx, p);
+        });
+    }
+
+    private long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private void walk(Chunk c, RecordVisitor visitor) throws IOException {
+        int records = 0;
+        for (long pos = c.start; pos < c.end; ) {
+            if ((++records & 0xffff) == 0 && Thread.currentThread().isInterrupted()) throw new CancellationException();
+            int tag = file.u1(pos);
+            visitor.visit(tag, pos + 1);
+            pos = pos + 1 + bodySize(tag, pos + 1);
+        }
+    }
+
+    private long contentHash(long data, long bytes, int type) {
+        long h = 0x9E3779B97F4A7C15L * (type + 1) ^ bytes;
+        long i = 0;
+        for (; i + 8 <= bytes; i += 8) h = mix(h ^ file.i8(data + i));
+        for (; i < bytes; i++) h = mix(h ^ file.u1(data + i));
+        h = mix(h);
+        return h == 0 ? 1 : h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // ---- pass 4: reference targets and duplicate strings ----
+
+    private void resolve(ExecutorService pool, List<Chunk> chunks) throws Exception {
+        long cursor = 0;
+        for (Chunk c : chunks) {
+            for (int i = 0; i < c.rootCount; i++) edges.setInt(cursor++, target(c.roots[i]));
+        }
+        List<Callable<Void>> work = new ArrayList<>();
+        for (Chunk c : chunks) work.add(() -> { resolveChunk(c); return null; });
+        runAll(pool, work);
+    }
+
+    private int target(long id) {
+        return id == 0 ? -1 : (int) ids.get(id, -1);
+    }
+
+    private void resolveChunk(Chunk c) throws IOException {
+        long[] next = {c.firstIndex};
+        walk(c, (tag, p) -> {
+            switch (tag) {
+                case CLASS_DUMP: {
+                    long idx = next[0]++;
+                    long e = edgeStart.getLong(idx);
+                    ClassInfo ci = classes.get((int) classIndex.get(file.id(p, idSize), UNKNOWN_CLASS));
+                    if (ci.superId != 0) edges.setInt(e++, target(ci.superId));
+                    if (ci.loaderId != 0) edges.setInt(e++, target(ci.loaderId));
+                    if (ci.protectionDomainId != 0) edges.setInt(e++, target(ci.protectionDomainId));
+                    for (long ref : ci.staticRefs) edges.setInt(e++, target(ref));
+                    break;
+                }
+                case INSTANCE_DUMP: {
+                    long idx = next[0]++;
+                    long e = edgeStart.getLong(idx);
+                    long classId = file.id(p + idSize + 4, idSize);
+                    long len = file.u4(p + 2L * idSize + 4);
+                    long data = p + 2L * idSize + 8;
+                    int cls = classOf.getInt(idx);
+                    if (classId != 0) edges.setInt(e++, target(classId));
+                    for (int off : classes.get(cls).refOffsets) {
+                        if (off + idSize > len) continue;
+                        long ref = file.id(data + off, idSize);
+                        if (ref != 0) edges.setInt(e++, target(ref));
+                    }
+                    if (cls == stringClass) countString(idx, classes.get(cls), data, len);
+                    break;
+                }
+                case OBJ_ARRAY_DUMP: {
+                    long idx = next[0]++;
+                    long e = edgeStart.getLong(idx);
+                    long count = file.u4(p + idSize + 4);
+                    long classId = file.id(p + idSize + 8, idSize);
+                    if (classId != 0) edges.setInt(e++, target(classId));
+                    long data = p + 2L * idSize + 8;
+                    for (long i = 0; i < count; i++) {
+                        long ref = file.id(data + i * idSize, idSize);
+                        if (ref != 0) edges.setInt(e++, target(ref));
+                    }
+                    break;
+                }
+                case PRIM_ARRAY_DUMP:
+                    next[0]++;
+                    break;
+                default:
+            }
+        });
+    }
+
+    private void countString(long idx, ClassInfo string, long data, long len) {
+        if (string.valueOffset < 0 || string.valueOffset + idSize > len) return;
+        int array = target(file.id(data + string.valueOffset, idSize));
+        if (array <= 0 || classOf.getInt(array) >= CLASS_OBJECT) return;
+        long p = offsets.getLong(array);
+        long count = file.u4(p + idSize + 4);
+        int type = file.u1(p + idSize + 8);
+        int coder = string.coderOffset >= 0 && string.coderOffset < len ? file.u1(data + string.coderOffset) : 0;
+        long h = mix(contentHash(p + idSize + 9, count * typeSize(type), type) ^ coder);
+        if (h == 0) h = 1;
+        if (stringCounts.add(h, 1) == 1) stringSamples.put(h, idx);
+    }
+
+    // ---- pass 5: dominator tree ----
+
+    /** Iterative DFS from the synthetic root; numbers reachable nodes in post order. */
+    private void depthFirst() throws IOException {
+        long n = objects + 1;
+        // 0 unvisited, -1 on the stack, k + 1 once it is k-th in post order
+        state = OffHeapArray.ints(arena, n);
+        postOrder = OffHeapArray.ints(arena, n);
+        OffHeapArray stackNodes = OffHeapArray.ints(arena, n);
+        OffHeapArray stackCursor = OffHeapArray.longs(arena, n);
+        long sp = 0, post = 0;
+        stackNodes.setInt(0, 0);
+        stackCursor.setLong(0, edgeStart.getLong(0));
+        state.setInt(0, -1);
+        sp = 1;
+        while (sp > 0) {
+            if ((post & 0xfffff) == 0 && Thread.currentThread().isInterrupted()) throw new CancellationException();
+            int node = stackNodes.getInt(sp - 1);
+            long cur = stackCursor.getLong(sp - 1);
+            long end = edgeStart.getLong(node + 1L);
+            boolean pushed = false;
+            while (cur < end) {
+                int t = edges.getInt(cur++);
+                if (t > 0 && state.getInt(t) == 0) {
+                    state.setInt(t, -1);
+                    stackCursor.setLong(sp - 1, cur);
+                    stackNodes.setInt(sp, t);
+                    stackCursor.setLong(sp, edgeStart.getLong(t));
+                    sp++;
+                    pushed = true;
+                    break;
+                }
+            }
+            if (!pushed) {
+                sp--;
+                postOrder.setInt(post, node);
+                state.setInt(node, (int) (++post));
+            }
+        }
+        reachable = post;
+    }
+
+    // reverse post order number of a reachable node; the root is 0
+    private long rpo(int node) {
+        return reachable - state.getInt(node);
+    }
+
+    private int nodeAt(long rpo) {
+        return postOrder.getInt(reachable - 1 - rpo);
+    }
+
+    private void dominators(ExecutorService pool) throws Exception {
+        long r = reachable;
+        // predecessor lists in reverse post order numbers
+        OffHeapArray predStart = OffHeapArray.longs(arena, r + 1);
+        forEachReachable(pool, (from, to) -> {
+            for (long b = from; b < to; b++) {
+                int node = nodeAt(b);
+                for (long e = edgeStart.getLong(node), end = edgeStart.getLong(node + 1L); e < end; e++) {
+                    int t = edges.getInt(e);
+                    if (t >= 0 && state.getInt(t) > 0) predStart.addLong(rpo(t) + 1, 1);
+                }
+            }
+        });
+        for (long i = 1; i <= r; i++) predStart.setLong(i, predStart.getLong(i) + predStart.getLong(i - 1));
+        OffHeapArray preds = OffHeapArray.ints(arena, Math.max(1, predStart.getLong(r)));
+        OffHeapArray fill = OffHeapArray.longs(arena, r);
+        forEachReachable(pool, (from, to) -> {
+            for (long b = from; b < to; b++) {
+                int node = nodeAt(b);
+                for (long e = edgeStart.getLong(node), end = edgeStart.getLong(node + 1L); e < end; e++) {
+                    int t = edges.getInt(e);
+                    if (t < 0 || state.getInt(t) <= 0) continue;
+                    long tb = rpo(t);
+                    preds.setInt(predStart.getLong(tb) + fill.addLong(tb, 1) - 1, (int) b);
+                }
+            }
+        });
+
+        // Cooper, Harvey, Kennedy: "A Simple, Fast Dominance Algorithm"
+        idom = OffHeapArray.ints(arena, r);
+        for (long b = 1; b < r; b++) idom.setInt(b, -1);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (long b = 1; b < r; b++) {
+                if ((b & 0xfffff) == 0 && Thread.currentThread().isInterrupted()) throw new CancellationException();
+                int newIdom = -1;
+                for (long e = predStart.getLong(b), end = predStart.getLong(b + 1); e < end; e++) {
+                    int p = preds.getInt(e);
+                    if (idom.getInt(p) < 0) continue;
+                    newIdom = newIdom < 0 ? p : intersect(p, newIdom);
+                }
+                if (newIdom >= 0 && idom.getInt(b) != newIdom) {
+                    idom.setInt(b, newIdom);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (a > b) a = idom.getInt(a);
+            while (b > a) b = idom.getInt(b);
+        }
+        return a;
+    }
+
+    private interface RangeTask {
+        void run(long from, long to) throws Exception;
+    }
+
+    private void forEachReachable(ExecutorService pool, RangeTask task) throws Exception {
+        long r = reachable;
+        long step = Math.max(1 << 16, r / (THREADS * 4L) + 1);
+        List<Callable<Void>> work = new ArrayList<>();
+        for (long from = 0; from < r; from += step) {
+            long f = from, t = Math.min(r, from + step);
+            work.add(() -> { task.run(f, t); return null; });
+        }
+        runAll(pool, work);
+    }
+
+    private void retainedSizes() throws IOException {
+        long r = reachable;
+        retained = OffHeapArray.longs(arena, r);
+        for (long b = 1; b < r; b++) retained.setLong(b, shallow.getLong(nodeAt(b)));
+        // a node's immediate dominator always comes earlier in reverse post order
+        for (long b = r - 1; b >= 1; b--) {
+            int d = idom.getInt(b);
+            if (d >= 0) retained.addLong(d, retained.getLong(b));
+        }
+    }
+
+    // ---- reports ----
+
+    private List<Map<String, Object>> classHistogram(Map<String, Object> summary) {
+        int n = classes.size();
+        long[] count = new long[n];
+        long[] shallowSum = new long[n];
+        long[] retainedSum = new long[n];
+        long totalShallow = 0;
+        for (long i = 1; i <= objects; i++) {
+            int c = classOf.getInt(i);
+            long s = shallow.getLong(i);
+            count[c]++;
+            shallowSum[c] += s;
+            totalShallow += s;
+        }
+        for (long b = 1; b < reachable; b++) {
+            int c = classOf.getInt(nodeAt(b));
+            int d = idom.getInt(b);
+            // objects held by another object of the same class are already in that object's retained size
+            if (d <= 0 || classOf.getInt(nodeAt(d)) != c) retainedSum[c] += retained.getLong(b);
+        }
+        summary.put("shallowBytes", totalShallow);
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> shallowSum[i]).reversed());
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (int i = 0; i < n && out.size() < topN; i++) {
+            int c = order[i];
+            if (count[c] == 0) break;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("class", classes.get(c).name);
+            m.put("count", count[c]);
+            m.put("shallowBytes", shallowSum[c]);
+            m.put("retainedBytes", retainedSum[c]);
+            out.add(m);
+        }
+        return out;
+    }
+
+    private Map<String, Object> describe(long b) {
+        int node = nodeAt(b);
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", "0x" + Long.toHexString(file.id(offsets.getLong(node), idSize)));
+        m.put("class", classes.get(classOf.getInt(node)).name);
+        m.put("shallowBytes", shallow.getLong(node));
+        m.put("retainedBytes", retained.getLong(b));
+        return m;
+    }
+
+    private List<Map<String, Object>> dominatorTop() {
+        PriorityQueue<long[]> top = new PriorityQueue<>(Comparator.comparingLong(e -> e[1]));
+        for (long b = 1; b < reachable; b++) {
+            if (idom.getInt(b) != 0) continue;
+            offer(top, b, retained.getLong(b), topN);
+        }
+        Map<Long, PriorityQueue<long[]>> children = new HashMap<>();
+        for (long[] e : top) children.put(e[0], new PriorityQueue<>(Comparator.comparingLong(x -> x[1])));
+        for (long b = 1; b < reachable; b++) {
+            PriorityQueue<long[]> q = children.get((long) idom.getInt(b));
+            if (q != null) offer(q, b, retained.getLong(b), CHILDREN_PER_DOMINATOR);
+        }
+        List<long[]> sorted = drainDescending(top);
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (long[] e : sorted) {
+            Map<String, Object> m = describe(e[0]);
+            List<Map<String, Object>> kids = new ArrayList<>();
+            for (long[] k : drainDescending(children.get(e[0]))) kids.add(describe(k[0]));
+            m.put("children", kids);
+            out.add(m);
+        }
+        return out;
+    }
+
+    private List<Map<String, Object>> duplicateStrings() {
+        PriorityQueue<long[]> top = duplicates(stringCounts, stringSamples, this::stringBytes);
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (long[] e : drainDescending(top)) {
+            long idx = e[2];
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("value", stringSample(idx));
+            m.put("count", e[3]);
+            m.put("wastedBytes", e[1]);
+            out.add(m);
+        }
+        return out;
+    }
+
+    private List<Map<String, Object>> duplicateArrays() {
+        PriorityQueue<long[]> top = duplicates(arrayCounts, arraySamples, idx -> shallow.getLong(idx));
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (long[] e : drainDescending(top)) {
+            long idx = e[2];
+            long p = offsets.getLong(idx);
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("type", classes.get(classOf.getInt(idx)).name);
+            m.put("length", file.u4(p + idSize + 4));
+            m.put("count", e[3]);
+            m.put("wastedBytes", e[1]);
+            out.add(m);
+        }
+        return out;
+    }
+
+    private interface SizeOf {
+        long of(long idx);
+    }
+
+    // entries are {hash, wasted bytes, sample index, count}, ordered by wasted bytes
+    private PriorityQueue<long[]> duplicates(OffHeapLongMap counts, OffHeapLongMap samples, SizeOf size) {
+        PriorityQueue<long[]> top = new PriorityQueue<>(Comparator.comparingLong(e -> e[1]));
+        for (long s = 0; s < counts.capacity(); s++) {
+            long key = counts.keyAt(s);
+            long count = counts.valueAt(s);
+            if (key == 0 || count < 2) continue;
+            long sample = samples.get(key, -1);
+            if (sample < 0) continue;
+            long wasted = (count - 1) * size.of(sample);
+            if (top.size() < topN) top.add(new long[]{key, wasted, sample, count});
+            else if (wasted > top.peek()[1]) {
+                top.poll();
+                top.add(new long[]{key, wasted, sample, count});
+            }
+        }
+        return top;
+    }
+
+    // bytes held by one copy of a string: the String object plus its backing array
+    private long stringBytes(long idx) {
+        long array = stringArray(idx);
+        return shallow.getLong(idx) + (array > 0 ? shallow.getLong(array) : 0);
+    }
+
+    private long stringArray(long idx) {
+        ClassInfo s = classes.get(stringClass);
+        long data = offsets.getLong(idx) + 2L * idSize + 8;
+        return target(file.id(data + s.valueOffset, idSize));
+    }
+
+    private String stringSample(long idx) {
+        ClassInfo s = classes.get(stringClass);
+        long data = offsets.getLong(idx) + 2L * idSize + 8;
+        long array = stringArray(idx);
+        if (array <= 0) return null;
+        long p = offsets.getLong(array);
+        int count = (int) Math.min(file.u4(p + idSize + 4), Integer.MAX_VALUE);
+        int type = file.u1(p + idSize + 8);
+        long values = p + idSize + 9;
+        boolean utf16 = type == 5 || (s.coderOffset >= 0 && file.u1(data + s.coderOffset) == 1);
+        int chars = utf16 ? (type == 5 ? count : count / 2) : count;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Math.min(chars, SAMPLE_CHARS); i++) {
+            // compact strings store UTF-16 in platform order; HotSpot dumps them as is, assume little-endian
+            if (type == 5) sb.append((char) file.u2(values + 2L * i));
+            else if (utf16) sb.append((char) (file.u1(values + 2L * i) | (file.u1(values + 2L * i + 1) << 8)));
+            else sb.append((char) file.u1(values + i));
+        }
+        if (chars > SAMPLE_CHARS) sb.append("...");
+        return sb.toString();
+    }
+
+    private static void offer(PriorityQueue<long[]> q, long b, long size, int limit) {
+        if (q.size() < limit) q.add(new long[]{b, size});
+        else if (size > q.peek()[1]) {
+            q.poll();
+            q.add(new long[]{b, size});
+        }
+    }
+
+    private static List<long[]> drainDescending(PriorityQueue<long[]> q) {
+        List<long[]> out = new ArrayList<>();
+        while (!q.isEmpty()) out.add(q.poll());
+        Collections.reverse(out);
+        return out;
+    }
+
+    private static <T> List<T> runAll(ExecutorService pool, List<? extends Callable<T>> work) throws Exception {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> c : work) futures.add(pool.submit(c));
+        List<T> out = new ArrayList<>();
+        try {
+            for (Future<T> f : futures) out.add(f.get());
+        } catch (ExecutionException e) {
+            for (Future<T> f : futures) f.cancel(true);
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,271 @@
+package com.jvmdoctor.backend;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baseline telemetry for every JVM on the node, agent or not, read from the hsperfdata files HotSpot
+ * keeps under {@code <tmp>/hsperfdata_<user>/<pid>}. Each file is mapped once through an
+ * {@link HsperfdataReader}, and the counters worth keeping (heap generations and spaces, GC counts and
+ * times, class loading, JIT, safepoints, threads) are resolved to offsets; each read then encodes
+ * those values straight from the mapping into a reused buffer that is ingested into
+ * {@link MetricsStore} as instance {@code hsperf:<pid>}. Files come and go with {@link JvmDiscovery};
+ * a JVM whose clock counter stops moving is dropped as well.
+ */
+public class HsperfCollector {
+    private static final long INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("HSPERF_INTERVAL_MS", "500"));
+    private static final long STALE_MS = Long.parseLong(System.getenv().getOrDefault("HSPERF_STALE_MS", "10000"));
+
+    private static final Map<Path, Jvm> jvms = new ConcurrentHashMap<>();
+    // discovered files not yet initialised by their JVM
+    private static final Map<Path, JvmDiscovery.Jvm> pending = new ConcurrentHashMap<>();
+    // files left behind by a JVM that stopped; skipped until discovery sees them removed or recreated
+    private static final Set<Path> stale = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "hsperf-collector");
+        t.setDaemon(true);
+        return t;
+    });
+    private static volatile boolean started;
+
+    // plain counters: hsperfdata name, exported name; tick counters are converted to seconds
+    private static final String[][] COUNTERS = {
+        {"sun.rt.safepoints", "jvmdoctor_hsperf_safepoints_total"},
+        {"sun.rt.safepointTime", "jvmdoctor_hsperf_safepoint_seconds_total"},
+        {"sun.rt.safepointSyncTime", "jvmdoctor_hsperf_safepoint_sync_seconds_total"},
+        {"java.cls.loadedClasses", "jvmdoctor_hsperf_classes_loaded_total"},
+        {"java.cls.unloadedClasses", "jvmdoctor_hsperf_classes_unloaded_total"},
+        {"sun.cls.time", "jvmdoctor_hsperf_class_load_seconds_total"},
+        {"sun.ci.totalCompiles", "jvmdoctor_hsperf_jit_compilations_total"},
+        {"sun.ci.totalBailouts", "jvmdoctor_hsperf_jit_bailouts_total"},
+        {"sun.ci.totalInvalidates", "jvmdoctor_hsperf_jit_invalidations_total"},
+        {"java.ci.totalTime", "jvmdoctor_hsperf_jit_seconds_total"},
+        {"java.threads.live", "jvmdoctor_hsperf_threads"},
+        {"java.threads.daemon", "jvmdoctor_hsperf_daemon_threads"},
+        {"sun.gc.metaspace.used", "jvmdoctor_hsperf_metaspace_used_bytes"},
+        {"sun.gc.metaspace.capacity", "jvmdoctor_hsperf_metaspace_capacity_bytes"},
+        {"sun.os.hrt.ticks", "jvmdoctor_hsperf_uptime_seconds"},
+    };
+
+    /** A counter to export: its entry and the series text that precedes the value. */
+    private static final class Probe {
+        final HsperfdataReader.Entry entry;
+        final byte[] series;
+        final boolean ticks;
+
+        Probe(HsperfdataReader.Entry entry, String series) {
+            this.entry = entry;
+            this.series = (series + " ").getBytes(StandardCharsets.UTF_8);
+            this.ticks = entry.units == HsperfdataReader.UNITS_TICKS;
+        }
+    }
+
+    static final class Jvm {
+        final HsperfdataReader reader;
+        final String instance;
+        final long discovered = System.currentTimeMillis();
+        private List<Probe> probes = List.of();
+        private HsperfdataReader.Entry clock;
+        private double frequency = 1;
+        private byte[] out = new byte[4096];
+        private int len;
+        volatile long lastClock = -1;
+        volatile long lastClockChangeMs = System.currentTimeMillis();
+        volatile long lastReadMs;
+        volatile int lastSamples;
+        volatile long reads;
+
+        Jvm(HsperfdataReader reader, String instance) {
+            this.reader = reader;
+            this.instance = instance;
+            resolve();
+        }
+
+        // maps counter names to probes; rerun when the JVM adds entries
+        void resolve() {
+            HsperfdataReader r = reader;
+            long hz = r.getLong("sun.os.hrt.frequency", 0);
+            frequency = hz > 0 ? hz : 1_000_000_000L;
+            clock = r.entry("sun.os.hrt.ticks");
+            List<Probe> ps = new ArrayList<>();
+            for (String[] c : COUNTERS) {
+                HsperfdataReader.Entry e = r.entry(c[0]);
+                if (e != null && e.isLong()) ps.add(new Probe(e, c[1]));
+            }
+            for (Map.Entry<Integer, HsperfdataReader.Entry> c : r.indexed("sun.gc.collector.", ".name").entrySet()) {
+                String base = "sun.gc.collector." + c.getKey();
+                String label = "{collector=\"" + escape(r.getString(c.getValue().name)) + "\"}";
+                probe(ps, base + ".invocations", "jvmdoctor_hsperf_gc_collections_total" + label);
+                probe(ps, base + ".time", "jvmdoctor_hsperf_gc_seconds_total" + label);
+            }
+            for (Map.Entry<Integer, HsperfdataReader.Entry> g : r.indexed("sun.gc.generation.", ".name").entrySet()) {
+                String base = "sun.gc.generation." + g.getKey();
+                String gen = escape(r.getString(g.getValue().name));
+                probe(ps, base + ".capacity", "jvmdoctor_hsperf_generation_capacity_bytes{generation=\"" + gen + "\"}");
+                probe(ps, base + ".maxCapacity", "jvmdoctor_hsperf_generation_max_bytes{generation=\"" + gen + "\"}");
+                for (Map.Entry<Integer, HsperfdataReader.Entry> s : r.indexed(base + ".space.", ".name").entrySet()) {
+                    String sbase = base + ".space." + s.getKey();
+                    String label = "{generation=\"" + gen + "\",space=\"" + escape(r.getString(s.getValue().name)) + "\"}";
+                    probe(ps, sbase + ".used", "jvmdoctor_hsperf_space_used_bytes" + label);
+                    probe(ps, sbase + ".capacity", "jvmdoctor_hsperf_space_capacity_bytes" + label);
+                }
+            }
+            probes = ps;
+        }
+
+        private void probe(List<Probe> ps, String name, String series) {
+            HsperfdataReader.Entry e = reader.entry(name);
+            if (e != null && e.isLong()) ps.add(new Probe(e, series));
+        }
+
+        // encodes every probe's current value and ingests the result
+        void read(long now) {
+            if (reader.reindex()) resolve();
+            if (clock != null) {
+                long c = reader.getLong(clock);
+                if (c != lastClock) {
+                    lastClock = c;
+                    lastClockChangeMs = now;
+                }
+            }
+            len = 0;
+            for (Probe p : probes) {
+                long v = reader.getLong(p.entry);
+                put(p.series);
+                if (p.ticks) put(Double.toString(v / frequency).getBytes(StandardCharsets.US_ASCII));
+                else put(Long.toString(v).getBytes(StandardCharsets.US_ASCII));
+                put((byte) '\n');
+            }
+            lastSamples = MetricsStore.ingest(instance, out, len, now);
+            lastReadMs = now;
+            reads++;
+        }
+
+        private void put(byte[] b) {
+            if (len + b.length > out.length) out = Arrays.copyOf(out, Math.max(out.length * 2, len + b.length));
+            System.arraycopy(b, 0, out, len, b.length);
+            len += b.length;
+        }
+
+        private void put(byte b) {
+            if (len == out.length) out = Arrays.copyOf(out, out.length * 2);
+            out[len++] = b;
+        }
+
+        Map<String, Object> status() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("pid", reader.pid);
+            m.put("instance", instance);
+            m.put("path", reader.path.toString());
+            String cmd = reader.getString("sun.rt.javaCommand");
+            if (cmd != null) m.put("command", cmd);
+            String vm = reader.getString("java.property.java.vm.version");
+            if (vm != null) m.put("vmVersion", vm);
+            if (lastClock >= 0) m.put("uptimeSeconds", lastClock / frequency);
+            m.put("discovered", discovered);
+            m.put("counters", probes.size());
+            m.put("lastRead", lastReadMs);
+            m.put("lastSamples", lastSamples);
+            m.put("reads", reads);
+            return m;
+        }
+    }
+
+    private static String escape(String s) {
+        if (s == null) return "unknown";
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /** Starts reading the JVMs {@link JvmDiscovery} finds; {@code HSPERF_ENABLED=false} turns this off. */
+    public static synchronized void start() {
+        if (started || "false".equalsIgnoreCase(System.getenv().getOrDefault("HSPERF_ENABLED", "true"))) return;
+        started = true;
+        JvmDiscovery.addListener(new JvmDiscovery.Listener() {
+            @Override
+            public void added(JvmDiscovery.Jvm jvm) {
+                pending.put(jvm.path, jvm);
+                open(jvm, System.currentTimeMillis());
+            }
+
+            @Override
+            public void removed(JvmDiscovery.Jvm jvm) {
+                pending.remove(jvm.path);
+                stale.remove(jvm.path);
+                close(jvm.path);
+            }
+        });
+        scheduler.scheduleAtFixedRate(HsperfCollector::readAll, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // a file just created may not be initialised yet; it is retried on each read until STALE_MS
+    private static synchronized void open(JvmDiscovery.Jvm jvm, long now) {
+        if (jvms.containsKey(jvm.path) || stale.contains(jvm.path)) {
+            pending.remove(jvm.path);
+            return;
+        }
+        try {
+            HsperfdataReader r = HsperfdataReader.open(jvm.path, jvm.pid);
+            String root = JvmDiscovery.ROOTS.get(jvm.root).toString();
+            jvms.put(jvm.path, new Jvm(r, jvm.root == 0 ? "hsperf:" + jvm.pid : "hsperf:" + jvm.pid + "@" + root));
+            pending.remove(jvm.path);
+        } catch (IOException | RuntimeException e) {
+            if (now - jvm.discovered > STALE_MS) {
+                pending.remove(jvm.path);
+                System.err.println("Cannot read hsperfdata " + jvm.path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static synchronized void close(Path f) {
+        Jvm j = jvms.remove(f);
+        if (j == null) return;
+        try {
+            j.reader.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    static void readAll() {
+        long now = System.currentTimeMillis();
+        for (JvmDiscovery.Jvm p : pending.values()) open(p, now);
+        for (Map.Entry<Path, Jvm> f : jvms.entrySet()) {
+            Jvm j = f.getValue();
+            // a JVM that crashed leaves its file behind, but its clock no longer advances
+            if (now - j.lastClockChangeMs > STALE_MS) {
+                close(f.getKey());
+                stale.add(f.getKey());
+                continue;
+            }
+            try {
+                if (j.reader.accessible()) j.read(now);
+            } catch (RuntimeException e) {
+                System.err.println("hsperfdata read failed for " + j.instance + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** The JVMs being read, with their command line and read counts. */
+    public static List<Map<String, Object>> list() {
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (Jvm j : jvms.values()) out.add(j.status());
+        out.sort((a, b) -> Long.compare((Long) a.get("pid"), (Long) b.get("pid")));
+        return out;
+    }
+
+    /** The reader for {@code pid}, or null if no hsperfdata file for it is being read. */
+    public static HsperfdataReader reader(long pid) {
+        for (Jvm j : jvms.values()) if (j.reader.pid == pid) return j.reader;
+        return null;
+    }
+}
@@ -0,0 +1,187 @@
+package com.jvmdoctor.backend;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A JVM's jvmstat counters, read from its memory-mapped {@code hsperfdata_<user>/<pid>} file. The
+ * prologue and entry table are decoded once into name -> data offset; after that a counter is a
+ * single read from the shared mapping, which the JVM keeps updating, so reading copies nothing and
+ * needs no attach. Entries the JVM adds later are picked up by {@link #reindex}.
+ */
+public class HsperfdataReader implements AutoCloseable {
+    static final int MAGIC = 0xcafec0c0;
+    // prologue offsets
+    private static final int BYTE_ORDER = 4;
+    private static final int ACCESSIBLE = 7;
+    private static final int USED = 8;
+    private static final int ENTRY_OFFSET = 24;
+    private static final int NUM_ENTRIES = 28;
+
+    static final byte TYPE_LONG = 'J';
+    static final byte TYPE_BYTE = 'B';
+    public static final int UNITS_BYTES = 2;
+    public static final int UNITS_TICKS = 3;
+    public static final int UNITS_STRING = 5;
+
+    public final Path path;
+    public final long pid;
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+
+    /** Where a counter's value lives in the mapping. */
+    public static final class Entry {
+        public final String name;
+        final int dataOffset;
+        final byte type;
+        final int units;
+        final int length;
+
+        Entry(String name, int dataOffset, byte type, int units, int length) {
+            this.name = name;
+            this.dataOffset = dataOffset;
+            this.type = type;
+            this.units = units;
+            this.length = length;
+        }
+
+        public boolean isLong() {
+            return type == TYPE_LONG && length == 0;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private int indexed;
+    private int nextEntry;
+
+    private HsperfdataReader(Path path, long pid, FileChannel channel, MappedByteBuffer buf) {
+        this.path = path;
+        this.pid = pid;
+        this.channel = channel;
+        this.buf = buf;
+    }
+
+    /** Maps {@code path} and indexes its entries; fails if it is not a jvmstat file. */
+    public static HsperfdataReader open(Path path, long pid) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size < 32) throw new IOException("not an hsperfdata file: " + path);
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            // the magic is written big-endian whatever the byte order of the rest
+            b.order(ByteOrder.BIG_ENDIAN);
+            if (b.getInt(0) != MAGIC) throw new IOException("bad hsperfdata magic in " + path);
+            b.order(b.get(BYTE_ORDER) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            HsperfdataReader r = new HsperfdataReader(path, pid, ch, b);
+            r.reindex();
+            return r;
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /** Whether the JVM has finished initialising the file. */
+    public boolean accessible() {
+        return buf.get(ACCESSIBLE) != 0;
+    }
+
+    /** Indexes entries added since the last call; returns whether there were any. */
+    public synchronized boolean reindex() {
+        if (indexed == 0) nextEntry = buf.getInt(ENTRY_OFFSET);
+        int count = buf.getInt(NUM_ENTRIES);
+        int limit = Math.min(buf.capacity(), buf.getInt(USED));
+        int before = indexed;
+        while (indexed < count && nextEntry > 0 && nextEntry + 20 <= limit) {
+            int pos = nextEntry;
+            int length = buf.getInt(pos);
+            int nameOffset = buf.getInt(pos + 4);
+            int vectorLength = buf.getInt(pos + 8);
+            byte type = buf.get(pos + 12);
+            int units = buf.get(pos + 14) & 0xff;
+            int dataOffset = buf.getInt(pos + 16);
+            // an entry still being written, or a corrupt table: try again on the next call
+            if (length <= 0 || pos + length > limit || nameOffset <= 0 || dataOffset <= 0 || dataOffset > length) break;
+            String name = cString(pos + nameOffset, pos + length);
+            entries.put(name, new Entry(name, pos + dataOffset, type, units, vectorLength));
+            nextEntry = pos + length;
+            indexed++;
+        }
+        return indexed > before;
+    }
+
+    private String cString(int from, int limit) {
+        int end = from;
+        while (end < limit && buf.get(end) != 0) end++;
+        byte[] b = new byte[end - from];
+        buf.get(from, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    public synchronized Entry entry(String name) {
+        return entries.get(name);
+    }
+
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /** The current value of a long counter. */
+    public long getLong(Entry e) {
+        return buf.getLong(e.dataOffset);
+    }
+
+    /** A long counter by name, or {@code dflt} if there is none. */
+    public long getLong(String name, long dflt) {
+        Entry e = entry(name);
+        return e == null || !e.isLong() ? dflt : getLong(e);
+    }
+
+    /** A string counter by name, or null if there is none. */
+    public String getString(String name) {
+        Entry e = entry(name);
+        if (e == null || e.type != TYPE_BYTE || e.length <= 0) return null;
+        return cString(e.dataOffset, e.dataOffset + e.length);
+    }
+
+    /** Every counter, longs as numbers and strings as text. */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        for (Entry e : entries()) {
+            if (e.isLong()) out.put(e.name, getLong(e));
+            else if (e.type == TYPE_BYTE && e.units == UNITS_STRING) out.put(e.name, cString(e.dataOffset, e.dataOffset + e.length));
+        }
+        return out;
+    }
+
+    /** Entries whose names match {@code prefix + <n> + suffix}, by n. */
+    public synchronized Map<Integer, Entry> indexed(String prefix, String suffix) {
+        Map<Integer, Entry> out = new HashMap<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            String n = e.getKey();
+            if (!n.startsWith(prefix) || !n.endsWith(suffix) || n.length() <= prefix.length() + suffix.length()) continue;
+            String mid = n.substring(prefix.length(), n.length() - suffix.length());
+            try {
+                out.put(Integer.parseInt(mid), e.getValue());
+            } catch (NumberFormatException ignore) {
+                // a deeper name such as generation.0.space.1.used under generation.<n>.used
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
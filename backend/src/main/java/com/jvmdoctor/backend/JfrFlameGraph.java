@@ -0,0 +1,258 @@
+package com.jvmdoctor.backend;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Turns a JFR recording into a flame graph without async-profiler. The file is split at chunk
+ * boundaries (each chunk carries its own constant pools, so it parses on its own) and chunks are
+ * parsed in parallel, each into its own {@link StackTrie}; the tries are then merged in order.
+ * Stack traces and frames are constant-pool objects shared by all events of a chunk, so each distinct
+ * stack is walked into the trie once and every further sample is a single array update.
+ */
+public class JfrFlameGraph {
+    private static final int THREADS = Integer.parseInt(System.getenv().getOrDefault("JFR_PARSE_THREADS",
+        String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final int CHUNK_HEADER = 68;
+    private static final int MAGIC = 0x464c5200; // "FLR\0"
+
+    public static final Set<String> EVENTS = Set.of("cpu", "alloc");
+    public static final Set<String> FORMATS = Set.of("svg", "collapsed", "json");
+
+    private static final Set<String> ALLOC_SAMPLE = Set.of("jdk.ObjectAllocationSample");
+    private static final Set<String> ALLOC_TLAB = Set.of("jdk.ObjectAllocationInNewTLAB", "jdk.ObjectAllocationOutsideTLAB");
+
+    private final Path recording;
+    private final String event;
+
+    public JfrFlameGraph(Path recording, String event) {
+        if (!EVENTS.contains(event)) throw new IllegalArgumentException("unsupported event: " + event + " (expected one of " + EVENTS + ")");
+        this.recording = recording;
+        this.event = event;
+    }
+
+    // the trie of one chunk, plus what it counted
+    private static class Folded {
+        final StackTrie samples = new StackTrie();
+        // allocation samples and TLAB events overlap, so they fold separately and one is picked
+        final StackTrie tlab = new StackTrie();
+        long events;
+        long tlabEvents;
+    }
+
+    /** Parses the recording and writes the graph to {@code out} in {@code format}; returns stats. */
+    public Map<String, Object> render(String format, Path out) throws IOException, InterruptedException {
+        if (!FORMATS.contains(format)) throw new IllegalArgumentException("unsupported format: " + format + " (expected one of " + FORMATS + ")");
+        long t0 = System.nanoTime();
+        List<long[]> chunks = chunks();
+        Folded merged = fold(chunks);
+        boolean useTlab = merged.events == 0 && merged.tlabEvents > 0;
+        StackTrie trie = useTlab ? merged.tlab : merged.samples;
+        long events = useTlab ? merged.tlabEvents : merged.events;
+        String unit = "cpu".equals(event) ? "samples" : "bytes";
+        String title = ("cpu".equals(event) ? "CPU samples" : "Allocated bytes") + " - " + recording.getFileName();
+
+        try (Writer w = new BufferedWriter(Files.newBufferedWriter(out, StandardCharsets.UTF_8), 1 << 16)) {
+            switch (format) {
+                case "svg" -> trie.writeSvg(w, title, unit);
+                case "json" -> trie.writeJson(w, 0.0001);
+                default -> trie.writeCollapsed(w);
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("path", out.toString());
+        stats.put("event", event);
+        stats.put("format", format);
+        stats.put("events", events);
+        stats.put("total", trie.total());
+        stats.put("unit", unit);
+        stats.put("chunks", chunks.size());
+        stats.put("frames", trie.frames());
+        stats.put("nodes", trie.nodes());
+        stats.put("elapsedMs", (System.nanoTime() - t0) / 1_000_000);
+        return stats;
+    }
+
+    // [offset, size] of every complete chunk
+    private List<long[]> chunks() throws IOException {
+        List<long[]> out = new ArrayList<>();
+        try (FileChannel ch = FileChannel.open(recording, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer header = ByteBuffer.allocate(16);
+            long pos = 0;
+            while (pos + CHUNK_HEADER <= size) {
+                header.clear();
+                while (header.hasRemaining() && ch.read(header, pos + header.position()) > 0) { }
+                if (header.getInt(0) != MAGIC) {
+                    if (out.isEmpty()) throw new IOException("not a JFR recording: " + recording);
+                    break;
+                }
+                long chunkSize = header.getLong(8);
+                // a chunk still being written has size 0 until it is finished
+                if (chunkSize < CHUNK_HEADER || pos + chunkSize > size) break;
+                out.add(new long[]{pos, chunkSize});
+                pos += chunkSize;
+            }
+        }
+        if (out.isEmpty()) throw new IOException("no complete chunk in " + recording);
+        return out;
+    }
+
+    private Folded fold(List<long[]> chunks) throws IOException, InterruptedException {
+        if (chunks.size() == 1) return foldFile(recording);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, chunks.size())), r -> {
+            Thread t = new Thread(r, "jfr-flamegraph");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Folded>> parts = new ArrayList<>();
+            for (long[] c : chunks) parts.add(pool.submit(() -> foldChunk(c[0], c[1])));
+            Folded total = new Folded();
+            for (Future<Folded> f : parts) {
+                Folded part = f.get();
+                total.samples.merge(part.samples);
+                total.tlab.merge(part.tlab);
+                total.events += part.events;
+                total.tlabEvents += part.tlabEvents;
+            }
+            return total;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            if (cause instanceof InterruptedException ie) throw ie;
+            throw new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // RecordingFile only reads whole files, so a chunk is copied out first (page cache to page cache)
+    private Folded foldChunk(long offset, long size) throws IOException, InterruptedException {
+        Path tmp = Files.createTempFile(Path.of(OffHeapArray.TEMP_DIR), "jvmdoctor-chunk-", ".jfr");
+        try {
+            try (FileChannel in = FileChannel.open(recording, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                long done = 0;
+                while (done < size) done += in.transferTo(offset + done, size - done, out);
+            }
+            return foldFile(tmp);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Folded foldFile(Path file) throws IOException, InterruptedException {
+        Folded folded = new Folded();
+        boolean cpu = "cpu".equals(event);
+        Map<RecordedStackTrace, Integer> stackNodes = new IdentityHashMap<>();
+        Map<RecordedStackTrace, Integer> tlabNodes = new IdentityHashMap<>();
+        Map<RecordedMethod, Integer> methodIds = new IdentityHashMap<>();
+        Map<RecordedMethod, Integer> tlabMethodIds = new IdentityHashMap<>();
+        int[] stack = new int[64];
+        long n = 0;
+        try (RecordingFile rf = new RecordingFile(file)) {
+            while (rf.hasMoreEvents()) {
+                RecordedEvent e = rf.readEvent();
+                if ((++n & 0xffff) == 0 && Thread.interrupted()) throw new InterruptedException();
+                String type = e.getEventType().getName();
+                if (cpu) {
+                    if (!"jdk.ExecutionSample".equals(type)) continue;
+                    int node = node(folded.samples, e.getStackTrace(), stackNodes, methodIds, stack);
+                    if (node < 0) continue;
+                    folded.samples.addAt(node, 1);
+                    folded.events++;
+                } else if (ALLOC_SAMPLE.contains(type)) {
+                    int node = node(folded.samples, e.getStackTrace(), stackNodes, methodIds, stack);
+                    if (node < 0) continue;
+                    folded.samples.addAt(allocated(folded.samples, node, e), e.getLong("weight"));
+                    folded.events++;
+                } else if (ALLOC_TLAB.contains(type)) {
+                    int node = node(folded.tlab, e.getStackTrace(), tlabNodes, tlabMethodIds, stack);
+                    if (node < 0) continue;
+                    long bytes = e.hasField("tlabSize") ? e.getLong("tlabSize") : e.getLong("allocationSize");
+                    folded.tlab.addAt(allocated(folded.tlab, node, e), bytes);
+                    folded.tlabEvents++;
+                }
+            }
+        }
+        return folded;
+    }
+
+    // trie node for a stack trace, walking it in only the first time the trace is seen
+    private static int node(StackTrie trie, RecordedStackTrace st, Map<RecordedStackTrace, Integer> nodes,
+                            Map<RecordedMethod, Integer> methodIds, int[] stack) {
+        if (st == null) return -1;
+        Integer cached = nodes.get(st);
+        if (cached != null) return cached;
+        List<RecordedFrame> frames = st.getFrames();
+        int depth = 0;
+        if (st.isTruncated()) stack[depth++] = trie.frameId("[truncated]");
+        // JFR lists the leaf first; the trie wants the outermost caller first
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            RecordedMethod m = frames.get(i).getMethod();
+            if (m == null) continue;
+            Integer id = methodIds.get(m);
+            if (id == null) {
+                RecordedClass c = m.getType();
+                id = trie.frameId((c == null ? "" : c.getName() + ".") + m.getName());
+                methodIds.put(m, id);
+            }
+            if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+            stack[depth++] = id;
+        }
+        int node = trie.node(stack, depth);
+        nodes.put(st, node);
+        return node;
+    }
+
+    // the allocated type as an extra leaf frame, as async-profiler shows it
+    private static int allocated(StackTrie trie, int node, RecordedEvent e) {
+        RecordedClass c = e.getClass("objectClass");
+        return c == null ? node : trie.child(node, trie.frameId(typeName(c.getName()) + "_[k]"));
+    }
+
+    // "[[Ljava.lang.String;" -> "java.lang.String[][]"
+    static String typeName(String name) {
+        int dims = 0;
+        while (dims < name.length() && name.charAt(dims) == '[') dims++;
+        if (dims == 0) return name;
+        String base = switch (name.charAt(dims)) {
+            case 'Z' -> "boolean";
+            case 'B' -> "byte";
+            case 'C' -> "char";
+            case 'S' -> "short";
+            case 'I' -> "int";
+            case 'J' -> "long";
+            case 'F' -> "float";
+            case 'D' -> "double";
+            default -> name.substring(dims + 1, name.length() - 1);
+        };
+        return base + "[]".repeat(dims);
+    }
+}
@@ -0,0 +1,175 @@
+package com.jvmdoctor.backend;
+
+import com.sun.tools.attach.VirtualMachine;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps one JMX connection per target pid so control operations skip the attach / start agent /
+ * connect sequence. Concurrent callers for a pid share a single in-flight connect; connections
+ * idle for a while are validated before reuse and closed after {@code JMX_IDLE_TIMEOUT_MS}.
+ */
+public class JmxConnectionPool {
+    private static final long IDLE_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("JMX_IDLE_TIMEOUT_MS", "300000"));
+    // connections unused for longer than this get a cheap round trip before being handed out
+    private static final long VALIDATE_AFTER_MS = 10_000;
+    // how long a caller waits for a connect another caller already started
+    private static final long CONNECT_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("JMX_CONNECT_TIMEOUT_MS", "30000"));
+
+    private static final Map<Long, CompletableFuture<Entry>> pool = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jmx-pool-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        sweeper.scheduleWithFixedDelay(JmxConnectionPool::evictIdle, 30, 30, TimeUnit.SECONDS);
+    }
+
+    public interface JmxCall<T> {
+        T call(MBeanServerConnection mbsc) throws Exception;
+    }
+
+    private static class Entry {
+        final long pid;
+        final JMXConnector connector;
+        final MBeanServerConnection mbsc;
+        final AtomicInteger inUse = new AtomicInteger();
+        volatile long lastUsed = System.currentTimeMillis();
+        volatile boolean broken;
+
+        Entry(long pid, JMXConnector connector, MBeanServerConnection mbsc) {
+            this.pid = pid;
+            this.connector = connector;
+            this.mbsc = mbsc;
+        }
+    }
+
+    /**
+     * Runs {@code call} against the pooled connection for {@code pid}. A connection that fails
+     * validation is replaced before the call; the call itself is never retried, since operations
+     * such as heap dumps are not safe to repeat. If it fails with an {@link IOException} the
+     * connection is dropped and the exception rethrown.
+     */
+    public static <T> T execute(long pid, JmxCall<T> call) throws Exception {
+        Entry e = acquire(pid);
+        e.inUse.incrementAndGet();
+        try {
+            return call.call(e.mbsc);
+        } catch (IOException ex) {
+            invalidate(e);
+            throw ex;
+        } finally {
+            e.lastUsed = System.currentTimeMillis();
+            e.inUse.decrementAndGet();
+        }
+    }
+
+    /** Closes and forgets the connection for {@code pid}, e.g. when the process is stopped. */
+    public static void evict(long pid) {
+        CompletableFuture<Entry> f = pool.remove(pid);
+        if (f != null) f.thenAccept(JmxConnectionPool::close);
+    }
+
+    public static int size() {
+        return pool.size();
+    }
+
+    private static Entry acquire(long pid) throws Exception {
+        while (true) {
+            CompletableFuture<Entry> created = new CompletableFuture<>();
+            CompletableFuture<Entry> f = pool.putIfAbsent(pid, created);
+            if (f == null) {
+                f = created;
+                try {
+                    created.complete(connect(pid));
+                } catch (Exception e) {
+                    pool.remove(pid, created);
+                    created.completeExceptionally(e);
+                }
+            }
+            Entry e;
+            try {
+                e = f.get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ex) {
+                throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+            } catch (TimeoutException ex) {
+                throw new IOException("timed out connecting to pid " + pid + " after " + CONNECT_TIMEOUT_MS + " ms");
+            }
+            if (isHealthy(e)) return e;
+            invalidate(e);
+        }
+    }
+
+    private static boolean isHealthy(Entry e) {
+        if (e.broken) return false;
+        if (System.currentTimeMillis() - e.lastUsed < VALIDATE_AFTER_MS) return true;
+        try {
+            e.mbsc.getMBeanCount();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static Entry connect(long pid) throws Exception {
+        VirtualMachine vm = VirtualMachine.attach(String.valueOf(pid));
+        String connectorAddress;
+        try {
+            connectorAddress = vm.startLocalManagementAgent();
+        } finally {
+            vm.detach();
+        }
+        JMXConnector conn = JMXConnectorFactory.connect(new JMXServiceURL(connectorAddress));
+        Entry e = new Entry(pid, conn, conn.getMBeanServerConnection());
+        conn.addConnectionNotificationListener((n, handback) -> {
+            String type = n.getType();
+            if (JMXConnectionNotification.CLOSED.equals(type) || JMXConnectionNotification.FAILED.equals(type)) {
+                e.broken = true;
+            }
+        }, null, null);
+        return e;
+    }
+
+    private static void invalidate(Entry e) {
+        e.broken = true;
+        pool.computeIfPresent(e.pid, (pid, f) -> f.isDone() && !f.isCompletedExceptionally() && f.join() == e ? null : f);
+        close(e);
+    }
+
+    private static void close(Entry e) {
+        try {
+            e.connector.close();
+        } catch (IOException ignore) {}
+    }
+
+    static void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, CompletableFuture<Entry>> me : pool.entrySet()) {
+            CompletableFuture<Entry> f = me.getValue();
+            if (!f.isDone() || f.isCompletedExceptionally()) continue;
+            Entry e = f.join();
+            boolean gone = ProcessHandle.of(e.pid).isEmpty();
+            boolean idle = e.inUse.get() == 0 && now - e.lastUsed > IDLE_TIMEOUT_MS;
+            if (gone || idle || e.broken) {
+                if (pool.remove(me.getKey(), f)) close(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package com.jvmdoctor.backend;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The JVMs on this node, kept in memory instead of scanning for them on every request. A JVM is
+ * known by its hsperfdata file; a {@link WatchService} on the hsperfdata roots and on each
+ * {@code hsperfdata_<user>} directory reports files as JVMs create and delete them, and every
+ * {@code DISCOVERY_RECONCILE_MS} the directories are rescanned and each pid checked against the
+ * {@code /proc} paired with its root to catch missed events and JVMs that died without cleaning up.
+ * Main class, JVM arguments and whether our agent is loaded are read from the file in the
+ * background once a JVM is found. Listing returns a prebuilt snapshot; additions, removals and
+ * enrichments go to {@link Listener}s and SSE subscribers.
+ */
+public class JvmDiscovery {
+    private static final long RECONCILE_MS = Long.parseLong(System.getenv().getOrDefault("DISCOVERY_RECONCILE_MS", "30000"));
+    // the node's own /tmp, and the host's as mounted in the DaemonSet, plus java.io.tmpdir, which is
+    // where HotSpot puts hsperfdata on macOS
+    static final List<Path> ROOTS = withTmpdir(paths(System.getenv().getOrDefault("HSPERF_ROOTS", "/tmp,/host/root/tmp")));
+    // paired with ROOTS by position: pids under /host/root/tmp live in /host/proc, not in our /proc
+    private static final List<Path> PROC_ROOTS = paths(System.getenv().getOrDefault("DISCOVERY_PROC_ROOTS", "/proc,/host/proc"));
+    private static final Pattern AGENT_ARG = Pattern.compile("-javaagent:(\\S*jvmdoctor\\S*?)(?:=(\\d+))?(?:\\s|$)", Pattern.CASE_INSENSITIVE);
+
+    private static final Map<Path, Jvm> jvms = new ConcurrentHashMap<>();
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private static final List<SseEmitter> subscribers = new CopyOnWriteArrayList<>();
+    // a single sender keeps every subscriber's events in order; they are rare and small
+    private static final ExecutorService senders = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "jvm-discovery-events");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final AtomicLong eventSeq = new AtomicLong();
+    private static final AtomicLong watchEvents = new AtomicLong();
+    private static final AtomicLong reconciles = new AtomicLong();
+    // file reads stay off the discovery thread and off requests
+    private static final ScheduledExecutorService enricher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jvm-discovery-enrich");
+        t.setDaemon(true);
+        return t;
+    });
+    private static volatile List<Map<String, Object>> snapshot = List.of();
+    private static volatile boolean started;
+    private static WatchService watcher;
+    private static final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+
+    /** Told of JVMs as they appear and go, on the discovery thread. */
+    public interface Listener {
+        void added(Jvm jvm);
+        void removed(Jvm jvm);
+    }
+
+    public static final class Jvm {
+        public final long pid;
+        public final Path path;
+        // position of the hsperfdata root in HSPERF_ROOTS
+        public final int root;
+        public final long discovered = System.currentTimeMillis();
+        volatile Map<String, Object> details;
+        volatile Integer agentPort;
+
+        Jvm(long pid, Path path, int root) {
+            this.pid = pid;
+            this.path = path;
+            this.root = root;
+        }
+
+        Map<String, Object> summary() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", String.valueOf(pid));
+            m.put("pid", pid);
+            Map<String, Object> d = details;
+            m.put("displayName", d == null ? "" : d.getOrDefault("command", ""));
+            if (d != null && d.containsKey("mainClass")) m.put("mainClass", d.get("mainClass"));
+            m.put("agent", agentPort != null || (d != null && Boolean.TRUE.equals(d.get("agent"))));
+            m.put("path", path.toString());
+            m.put("discovered", discovered);
+            return m;
+        }
+
+        /** Summary plus JVM arguments, VM version and start time. */
+        public Map<String, Object> describe() {
+            enrich(this);
+            Map<String, Object> m = summary();
+            Map<String, Object> d = details;
+            if (d != null) for (Map.Entry<String, Object> e : d.entrySet()) m.putIfAbsent(e.getKey(), e.getValue());
+            if (agentPort != null) m.put("agentPort", agentPort);
+            return m;
+        }
+    }
+
+    private static List<Path> paths(String spec) {
+        List<Path> out = new ArrayList<>();
+        for (String s : spec.split(",")) if (!s.isBlank()) out.add(Paths.get(s.trim()).toAbsolutePath().normalize());
+        return out;
+    }
+
+    private static List<Path> withTmpdir(List<Path> roots) {
+        String tmp = System.getProperty("java.io.tmpdir");
+        if (tmp != null && !tmp.isBlank()) {
+            Path p = Paths.get(tmp).toAbsolutePath().normalize();
+            if (!roots.contains(p)) roots.add(p);
+        }
+        return List.copyOf(roots);
+    }
+
+    public static void addListener(Listener l) {
+        listeners.add(l);
+        for (Jvm j : jvms.values()) l.added(j);
+    }
+
+    public static synchronized void start() {
+        if (started) return;
+        started = true;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            System.err.println("No file watching for JVM discovery, rescanning every " + RECONCILE_MS + " ms: " + e.getMessage());
+        }
+        reconcile();
+        Thread t = new Thread(JvmDiscovery::run, "jvm-discovery");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void run() {
+        long nextReconcile = System.currentTimeMillis() + RECONCILE_MS;
+        while (true) {
+            try {
+                long wait = nextReconcile - System.currentTimeMillis();
+                WatchKey key = null;
+                if (wait > 0) {
+                    if (watcher != null) key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+                    else Thread.sleep(wait);
+                }
+                if (key != null) {
+                    handle(key);
+                } else if (System.currentTimeMillis() >= nextReconcile) {
+                    reconcile();
+                    nextReconcile = System.currentTimeMillis() + RECONCILE_MS;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("JVM discovery failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static synchronized void handle(WatchKey key) {
+        Path dir = watched.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            watchEvents.incrementAndGet();
+            if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (dir == null) continue;
+            Path child = dir.resolve((Path) ev.context());
+            int root = ROOTS.indexOf(dir);
+            if (root >= 0) {
+                // a new hsperfdata_<user> directory under a root
+                if (ev.kind() == StandardWatchEventKinds.ENTRY_CREATE && isUserDir(child)) scanUserDir(child, root, null);
+            } else if (ev.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                long pid = pidOf(child);
+                if (pid >= 0) add(child, pid, ROOTS.indexOf(dir.getParent()));
+            } else if (ev.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                remove(child);
+            }
+        }
+        if (!key.reset()) watched.remove(key);
+        if (overflow) reconcile();
+    }
+
+    // rescans every directory and drops JVMs whose file is gone or whose process is not running
+    static synchronized void reconcile() {
+        reconciles.incrementAndGet();
+        Set<Path> seen = new HashSet<>();
+        for (int i = 0; i < ROOTS.size(); i++) {
+            Path root = ROOTS.get(i);
+            if (!Files.isDirectory(root)) continue;
+            watch(root);
+            try (DirectoryStream<Path> users = Files.newDirectoryStream(root, "hsperfdata_*")) {
+                for (Path dir : users) if (isUserDir(dir)) scanUserDir(dir, i, seen);
+            } catch (IOException e) {
+                System.err.println("Cannot scan " + root + ": " + e.getMessage());
+            }
+        }
+        for (Jvm j : jvms.values()) {
+            if (!seen.contains(j.path) || !alive(j.pid, j.root)) remove(j.path);
+            else if (j.details == null) enrichLater(j);
+        }
+    }
+
+    private static boolean isUserDir(Path p) {
+        return p.getFileName().toString().startsWith("hsperfdata_") && Files.isDirectory(p);
+    }
+
+    private static void scanUserDir(Path dir, int root, Set<Path> seen) {
+        watch(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                long pid = pidOf(f);
+                if (pid < 0) continue;
+                if (seen != null) seen.add(f);
+                if (!jvms.containsKey(f) && alive(pid, root)) add(f, pid, root);
+            }
+        } catch (IOException e) {
+            // another user's directory we may not list
+        }
+    }
+
+    private static void watch(Path dir) {
+        if (watcher == null || watched.containsValue(dir)) return;
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            watched.put(key, dir);
+        } catch (IOException e) {
+            // not ours to watch; reconciliation still covers it
+        }
+    }
+
+    private static long pidOf(Path f) {
+        String name = f.getFileName().toString();
+        if (name.isEmpty() || name.length() > 10) return -1;
+        for (int i = 0; i < name.length(); i++) if (!Character.isDigit(name.charAt(i))) return -1;
+        return Long.parseLong(name);
+    }
+
+    // a pid is only meaningful in the /proc of its own root; a root without one (macOS, or the
+    // tmpdir appended to ROOTS) shares our process table
+    private static boolean alive(long pid, int root) {
+        Path proc = root < PROC_ROOTS.size() ? PROC_ROOTS.get(root) : null;
+        if (proc != null && Files.isDirectory(proc)) return Files.exists(proc.resolve(Long.toString(pid)));
+        return ProcessHandle.of(pid).isPresent();
+    }
+
+    private static void add(Path f, long pid, int root) {
+        Jvm j = new Jvm(pid, f, Math.max(0, root));
+        if (jvms.putIfAbsent(f, j) != null) return;
+        rebuild();
+        for (Listener l : listeners) {
+            try {
+                l.added(j);
+            } catch (RuntimeException e) {
+                System.err.println("JVM discovery listener failed: " + e.getMessage());
+            }
+        }
+        publish("added", j.summary());
+        enrichLater(j);
+    }
+
+    private static void remove(Path f) {
+        Jvm j = jvms.remove(f);
+        if (j == null) return;
+        rebuild();
+        for (Listener l : listeners) {
+            try {
+                l.removed(j);
+            } catch (RuntimeException e) {
+                System.err.println("JVM discovery listener failed: " + e.getMessage());
+            }
+        }
+        publish("removed", j.summary());
+    }
+
+    private static synchronized void rebuild() {
+        List<Map<String, Object>> out = new ArrayList<>(jvms.size());
+        for (Jvm j : jvms.values()) out.add(j.summary());
+        out.sort((a, b) -> Long.compare((Long) a.get("pid"), (Long) b.get("pid")));
+        snapshot = List.copyOf(out);
+    }
+
+    private static void enrichLater(Jvm j) {
+        enrichLater(j, 0);
+    }
+
+    // a JVM that has just created its file has not written its strings yet, so a failed read is
+    // retried a few times before being left to the next reconcile
+    private static void enrichLater(Jvm j, int attempt) {
+        enricher.schedule(() -> {
+            if (j.details != null || jvms.get(j.path) != j) return;
+            enrich(j);
+            if (jvms.get(j.path) != j) return;
+            if (j.details == null) {
+                if (attempt < 10) enrichLater(j, attempt + 1);
+                return;
+            }
+            rebuild();
+            publish("changed", j.summary());
+        }, attempt == 0 ? 0 : 200, TimeUnit.MILLISECONDS);
+    }
+
+    // reads what the JVM published about itself; once per JVM
+    private static void enrich(Jvm j) {
+        if (j.details != null) return;
+        Map<String, Object> d = new LinkedHashMap<>();
+        try (HsperfdataReader r = HsperfdataReader.open(j.path, j.pid)) {
+            if (!r.accessible()) return;
+            String cmd = r.getString("sun.rt.javaCommand");
+            // every HotSpot JVM publishes it, just not in its first milliseconds
+            if (cmd == null) return;
+            String vmArgs = r.getString("java.rt.vmArgs");
+            d.put("command", cmd);
+            String main = cmd.trim().split("\\s+", 2)[0];
+            if (!main.isEmpty()) d.put("mainClass", main);
+            if (vmArgs != null) d.put("jvmArgs", vmArgs);
+            String vm = r.getString("java.property.java.vm.version");
+            if (vm != null) d.put("vmVersion", vm);
+            long startMs = r.getLong("sun.rt.createVmBeginTime", 0);
+            if (startMs > 0) d.put("started", startMs);
+            Matcher m = vmArgs == null ? null : AGENT_ARG.matcher(vmArgs);
+            if (m != null && m.find()) {
+                d.put("agent", true);
+                // the agent's only argument is its metrics port
+                d.put("agentPort", m.group(2) == null ? 9404 : Integer.parseInt(m.group(2)));
+            } else {
+                d.put("agent", false);
+            }
+        } catch (IOException | RuntimeException e) {
+            // still being created, or not readable by us; retried on the next reconcile
+            return;
+        }
+        j.details = d;
+    }
+
+    /** The JVMs on this node; entries still being enriched carry only pid and path. */
+    public static List<Map<String, Object>> list() {
+        return snapshot;
+    }
+
+    public static Jvm get(long pid) {
+        for (Jvm j : jvms.values()) if (j.pid == pid) return j;
+        return null;
+    }
+
+    /** Records that our agent was attached to {@code pid} and serves metrics on {@code port}. */
+    public static void markAgent(long pid, int port) {
+        Jvm j = get(pid);
+        if (j == null) return;
+        j.agentPort = port;
+        rebuild();
+        publish("changed", j.summary());
+    }
+
+    public static Map<String, Object> stats() {
+        return Map.of(
+            "jvms", jvms.size(),
+            "watchedDirectories", watched.size(),
+            "watchEvents", watchEvents.get(),
+            "reconciles", reconciles.get(),
+            "subscribers", subscribers.size());
+    }
+
+    /** An SSE stream that starts with the current list and then carries added, removed and changed events. */
+    public static SseEmitter subscribe() {
+        SseEmitter emitter = new SseEmitter(Long.MAX_VALUE);
+        Runnable remove = () -> subscribers.remove(emitter);
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        senders.execute(() -> {
+            // taken on the sender, so no event falls between the snapshot and the first event sent
+            send(emitter, "snapshot", list());
+            subscribers.add(emitter);
+        });
+        return emitter;
+    }
+
+    private static void publish(String type, Map<String, Object> jvm) {
+        if (subscribers.isEmpty()) return;
+        senders.execute(() -> {
+            for (SseEmitter e : subscribers) send(e, type, jvm);
+        });
+    }
+
+    private static void send(SseEmitter emitter, String type, Object data) {
+        try {
+            emitter.send(SseEmitter.event().id(Long.toString(eventSeq.incrementAndGet())).name(type).data(data));
+        } catch (IOException | IllegalStateException e) {
+            subscribers.remove(emitter);
+            try { emitter.complete(); } catch (Exception ignore) {}
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.jvmdoctor.backend;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Delivers process log lines to SSE subscribers off the output reader thread. Every
+ * {@code LOG_FANOUT_INTERVAL_MS} a ticker checks each subscriber's backlog and hands it to a virtual
+ * thread that sends everything pending as one batched event. A subscriber whose previous delivery
+ * is still running is skipped, so a slow browser only delays itself; once its backlog exceeds
+ * {@code LOG_SUBSCRIBER_MAX_LAG} lines that arrived after it subscribed (half the process's ring by
+ * default, never more than the ring holds) it either skips ahead (drop-oldest) or is disconnected;
+ * the initial replay of the buffer does not count towards the limit.
+ */
+public class LogFanout {
+    private static final long INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("LOG_FANOUT_INTERVAL_MS", "25"));
+    // 0: derived from the ring, see maxLag
+    private static final int MAX_LAG = Integer.parseInt(System.getenv().getOrDefault("LOG_SUBSCRIBER_MAX_LAG", "0"));
+    private static final LogSubscriber.OverflowPolicy DEFAULT_POLICY =
+        parsePolicy(System.getenv().getOrDefault("LOG_SUBSCRIBER_POLICY", "drop-oldest"));
+
+    private static final Map<Long, CopyOnWriteArrayList<LogSubscriber>> subscribers = new ConcurrentHashMap<>();
+    private static final AtomicLong disconnected = new AtomicLong();
+
+    private static final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+    private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "log-fanout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        ticker.scheduleWithFixedDelay(LogFanout::tick, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static LogSubscriber.OverflowPolicy parsePolicy(String name) {
+        if (name == null) return DEFAULT_POLICY;
+        return "disconnect".equalsIgnoreCase(name) ? LogSubscriber.OverflowPolicy.DISCONNECT : LogSubscriber.OverflowPolicy.DROP_OLDEST;
+    }
+
+    static void open(long processId) {
+        subscribers.put(processId, new CopyOnWriteArrayList<>());
+    }
+
+    /** Returns null if the process has no log stream. */
+    static SseEmitter subscribe(long processId, LogRingBuffer buffer, long afterSeq, LogSubscriber.OverflowPolicy policy) {
+        var subs = subscribers.get(processId);
+        if (subs == null) return null;
+        SseEmitter emitter = new SseEmitter(Long.MAX_VALUE);
+        LogSubscriber sub = new LogSubscriber(emitter, buffer, afterSeq, policy, maxLag(buffer));
+        subs.add(sub);
+        Runnable remove = () -> {
+            sub.close();
+            subs.remove(sub);
+        };
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        return emitter;
+    }
+
+    /** Flushes what each subscriber has not seen yet, then completes their streams. */
+    static void close(long processId) {
+        var subs = subscribers.remove(processId);
+        if (subs == null) return;
+        for (LogSubscriber sub : subs) {
+            senders.execute(() -> {
+                sub.deliver();
+                sub.close();
+                try { sub.emitter.complete(); } catch (Exception ignore) {}
+            });
+        }
+    }
+
+    public static List<Map<String, Object>> stats(long processId) {
+        var subs = subscribers.get(processId);
+        if (subs == null) return null;
+        return subs.stream().map(LogSubscriber::stats).collect(Collectors.toList());
+    }
+
+    public static long disconnectedCount() {
+        return disconnected.get();
+    }
+
+    // lag past the ring is lines already overwritten, so the limit never exceeds it; by default it is
+    // half the ring, leaving the other half as headroom for lines arriving while a batch is sent
+    static int maxLag(LogRingBuffer buffer) {
+        int ring = buffer.capacity();
+        return MAX_LAG > 0 ? Math.min(MAX_LAG, ring) : Math.max(1, ring / 2);
+    }
+
+    private static void tick() {
+        for (var subs : subscribers.values()) {
+            for (LogSubscriber sub : subs) {
+                if (sub.isClosed()) {
+                    subs.remove(sub);
+                    continue;
+                }
+                long lag = sub.lag();
+                if (lag == 0) continue;
+                boolean over = sub.newLag() > sub.maxLag;
+                if (over && sub.policy == LogSubscriber.OverflowPolicy.DISCONNECT) {
+                    disconnected.incrementAndGet();
+                    sub.close();
+                    subs.remove(sub);
+                    try { sub.emitter.complete(); } catch (Exception ignore) {}
+                    continue;
+                }
+                if (!sub.scheduled.compareAndSet(false, true)) continue;
+                if (over) sub.dropOverflow(sub.maxLag);
+                senders.execute(() -> {
+                    try {
+                        sub.deliver();
+                    } finally {
+                        sub.scheduled.set(false);
+                    }
+                });
+            }
+        }
+    }
+}
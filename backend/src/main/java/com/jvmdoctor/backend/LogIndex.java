@@ -0,0 +1,377 @@
+package com.jvmdoctor.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Case-insensitive trigram index over one process's {@link LogRingBuffer}, maintained by the output
+ * reader as lines arrive. Trigrams hash into buckets, each holding the ascending sequence numbers of
+ * lines that contain one of its trigrams. Collisions only add false positives; every candidate line
+ * is checked against the real filter before it is returned. The bucket table starts small and is
+ * quadrupled, re-indexing the retained lines, whenever half of it is in use, so a quiet process
+ * does not pay for the table a chatty one needs.
+ */
+public class LogIndex {
+    private static final int MIN_BUCKET_BITS = 10;
+    private static final int MAX_BUCKET_BITS = 16;
+    private static final int CANDIDATE_BATCH = 256;
+    private static final Pattern EXTENDED_FLAG = Pattern.compile("\\(\\?[a-wyzA-Z-]*x");
+
+    private final LogRingBuffer buffer;
+    private int bucketBits = MIN_BUCKET_BITS;
+    private Postings[] buckets = new Postings[1 << MIN_BUCKET_BITS];
+    // buckets that are not null
+    private int used;
+    private final int sweepEvery;
+    private long sinceSweep;
+
+    public LogIndex(LogRingBuffer buffer) {
+        this.buffer = buffer;
+        this.sweepEvery = Math.max(buffer.capacity(), 4096);
+    }
+
+    /** Indexes a line just appended to the buffer. Called from the buffer's writer thread only. */
+    public synchronized void add(long seq, String line) {
+        long oldest = buffer.firstSeq();
+        if (used * 2 > buckets.length && bucketBits < MAX_BUCKET_BITS) grow(seq);
+        index(seq, line, oldest);
+        // buckets that stop receiving lines never trim themselves; sweep them once per buffer turnover
+        if (++sinceSweep >= sweepEvery) {
+            sinceSweep = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                Postings p = buckets[i];
+                if (p == null) continue;
+                p.trimBefore(oldest);
+                if (p.size == 0) {
+                    buckets[i] = null;
+                    used--;
+                }
+            }
+        }
+    }
+
+    private void index(long seq, String line, long oldest) {
+        int n = line.length();
+        for (int i = 0; i + 2 < n; i++) {
+            int b = hash(line.charAt(i), line.charAt(i + 1), line.charAt(i + 2)) >>> (32 - bucketBits);
+            Postings p = buckets[b];
+            if (p == null) {
+                buckets[b] = p = new Postings();
+                used++;
+            }
+            p.trimBefore(oldest);
+            p.add(seq);
+        }
+    }
+
+    // re-indexes the retained lines older than seq, which is being added
+    private void grow(long seq) {
+        bucketBits = Math.min(MAX_BUCKET_BITS, bucketBits + 2);
+        buckets = new Postings[1 << bucketBits];
+        used = 0;
+        long oldest = buffer.firstSeq();
+        buffer.readAfter(oldest - 1, Integer.MAX_VALUE, (s, l) -> {
+            if (s >= seq) return false;
+            index(s, l, oldest);
+            return true;
+        });
+    }
+
+    /** Newest-first lines containing {@code contains} (all lines if null or empty), at most {@code limit}. */
+    public List<String> searchContains(String contains, int limit) {
+        if (contains == null || contains.isEmpty()) return search(List.of(), s -> true, limit);
+        return search(List.of(contains), s -> s.contains(contains), limit);
+    }
+
+    /** Newest-first lines matching {@code regex}, at most {@code limit}. */
+    public List<String> searchRegex(String regex, boolean ignoreCase, int limit) {
+        Pattern p = PatternCache.get(regex, ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
+        return search(requiredLiterals(regex), s -> p.matcher(s).find(), limit);
+    }
+
+    /**
+     * Newest-first lines matching {@code filter}, stopping at {@code limit}. {@code required} are
+     * substrings every match must contain (ignoring case); when none is long enough to have a
+     * trigram, every retained line is scanned.
+     */
+    public List<String> search(List<String> required, Predicate<String> filter, int limit) {
+        List<String> out = new ArrayList<>();
+        if (limit <= 0) return out;
+        int[] keys = trigramHashes(required);
+        if (keys.length == 0) {
+            buffer.readBackwards((seq, line) -> {
+                if (filter.test(line)) out.add(line);
+                return out.size() < limit;
+            });
+            return out;
+        }
+        long[] batch = new long[CANDIDATE_BATCH];
+        long before = Long.MAX_VALUE;
+        while (out.size() < limit) {
+            int n = candidates(keys, before, batch);
+            for (int i = 0; i < n && out.size() < limit; i++) {
+                String line = buffer.get(batch[i]);
+                if (line != null && filter.test(line)) out.add(line);
+            }
+            if (n < batch.length) break;
+            before = batch[n - 1];
+        }
+        return out;
+    }
+
+    /**
+     * Fills {@code out} with sequence numbers below {@code before} present in the bucket of every
+     * trigram hash, newest first. Hashes rather than buckets are passed in, as the table may have
+     * grown since the caller's last batch.
+     */
+    private synchronized int candidates(int[] keys, long before, long[] out) {
+        Postings driver = null;
+        for (int k : keys) {
+            Postings p = buckets[k >>> (32 - bucketBits)];
+            if (p == null || p.size == 0) return 0;
+            if (driver == null || p.size < driver.size) driver = p;
+        }
+        long oldest = buffer.firstSeq();
+        int n = 0;
+        for (int i = driver.lastIndexBefore(before); i >= 0 && n < out.length; i--) {
+            long seq = driver.get(i);
+            if (seq < oldest) break;
+            boolean all = true;
+            for (int k : keys) {
+                Postings p = buckets[k >>> (32 - bucketBits)];
+                if (p != driver && !p.contains(seq)) { all = false; break; }
+            }
+            if (all) out[n++] = seq;
+        }
+        return n;
+    }
+
+    private static int[] trigramHashes(List<String> required) {
+        int[] keys = new int[0];
+        int n = 0;
+        for (String s : required) {
+            for (int i = 0; i + 2 < s.length(); i++) {
+                int b = hash(s.charAt(i), s.charAt(i + 1), s.charAt(i + 2));
+                if (n == keys.length) keys = Arrays.copyOf(keys, Math.max(8, n * 2));
+                keys[n++] = b;
+            }
+        }
+        keys = Arrays.stream(keys, 0, n).distinct().toArray();
+        return keys;
+    }
+
+    // kept whole; a bucket is the top bucketBits bits of it, however large the table is at the time
+    private static int hash(char a, char b, char c) {
+        int h = (Character.toLowerCase(a) * 31 + Character.toLowerCase(b)) * 31 + Character.toLowerCase(c);
+        return h * 0x9E3779B1;
+    }
+
+    /**
+     * Literal substrings any match of {@code regex} must contain. Conservative: alternation, optional
+     * or repeated-zero-times pieces, classes and groups contribute nothing, so the result may be empty
+     * but never names text a match could lack.
+     */
+    static List<String> requiredLiterals(String regex) {
+        List<String> runs = new ArrayList<>();
+        if (EXTENDED_FLAG.matcher(regex).find() || regex.contains("\\Q")) return runs;
+        int n = regex.length();
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < n; i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') { i++; continue; }
+            if (c == '[') { i = skipClass(regex, i); continue; }
+            if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (c == '|' && depth == 0) return runs;
+        }
+        for (int i = 0; i < n; ) {
+            char c = regex.charAt(i);
+            char literal;
+            int next;
+            if (c == '\\') {
+                if (i + 1 >= n) break;
+                char d = regex.charAt(i + 1);
+                if (Character.isLetterOrDigit(d)) {
+                    flush(run, runs);
+                    i = skipEscape(regex, i);
+                    continue;
+                }
+                literal = d;
+                next = i + 2;
+            } else if (c == '[') {
+                flush(run, runs);
+                i = skipQuantifier(regex, skipClass(regex, i) + 1);
+                continue;
+            } else if (c == '(') {
+                flush(run, runs);
+                i = skipQuantifier(regex, skipGroup(regex, i) + 1);
+                continue;
+            } else if (c == '.' || c == '^' || c == '$' || c == ')') {
+                flush(run, runs);
+                i = skipQuantifier(regex, i + 1);
+                continue;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            char q = next < n ? regex.charAt(next) : 0;
+            if (q == '?' || q == '*' || q == '{') {
+                // the character may be absent from a match
+                flush(run, runs);
+                i = skipQuantifier(regex, next);
+            } else if (q == '+') {
+                run.append(literal);
+                flush(run, runs);
+                i = skipQuantifier(regex, next);
+            } else {
+                run.append(literal);
+                i = next;
+            }
+        }
+        flush(run, runs);
+        return runs;
+    }
+
+    private static void flush(StringBuilder run, List<String> runs) {
+        if (run.length() >= 3) runs.add(run.toString());
+        run.setLength(0);
+    }
+
+    private static int skipQuantifier(String re, int i) {
+        int n = re.length();
+        if (i >= n) return i;
+        char c = re.charAt(i);
+        if (c == '{') {
+            int close = re.indexOf('}', i);
+            i = close < 0 ? n : close + 1;
+        } else if (c == '?' || c == '*' || c == '+') {
+            i++;
+        } else {
+            return i;
+        }
+        // lazy or possessive suffix
+        if (i < n && (re.charAt(i) == '?' || re.charAt(i) == '+')) i++;
+        return i;
+    }
+
+    // returns the index of the closing bracket
+    private static int skipClass(String re, int i) {
+        int n = re.length();
+        int depth = 0;
+        i++;
+        if (i < n && re.charAt(i) == '^') i++;
+        if (i < n && re.charAt(i) == ']') i++;
+        for (; i < n; i++) {
+            char c = re.charAt(i);
+            if (c == '\\') i++;
+            else if (c == '[') depth++;
+            else if (c == ']') {
+                if (depth == 0) return i;
+                depth--;
+            }
+        }
+        return n;
+    }
+
+    // returns the index of the closing parenthesis
+    private static int skipGroup(String re, int i) {
+        int n = re.length();
+        int depth = 0;
+        for (; i < n; i++) {
+            char c = re.charAt(i);
+            if (c == '\\') i++;
+            else if (c == '[') i = skipClass(re, i);
+            else if (c == '(') depth++;
+            else if (c == ')' && --depth == 0) return i;
+        }
+        return n;
+    }
+
+    // returns the index just past an escape such as \d, \x41, A, \p{Alpha}, \k<name> or \12
+    private static int skipEscape(String re, int i) {
+        int n = re.length();
+        char d = re.charAt(i + 1);
+        i += 2;
+        switch (d) {
+            case 'x':
+                if (i < n && re.charAt(i) == '{') {
+                    int close = re.indexOf('}', i);
+                    return close < 0 ? n : close + 1;
+                }
+                return Math.min(n, i + 2);
+            case 'u': return Math.min(n, i + 4);
+            case 'c': return Math.min(n, i + 1);
+            case 'p': case 'P': case 'N':
+                if (i < n && re.charAt(i) == '{') {
+                    int close = re.indexOf('}', i);
+                    return close < 0 ? n : close + 1;
+                }
+                return Math.min(n, i + 1);
+            case 'k': {
+                int close = re.indexOf('>', i);
+                return close < 0 ? n : close + 1;
+            }
+            default:
+                if (Character.isDigit(d)) {
+                    while (i < n && Character.isDigit(re.charAt(i))) i++;
+                }
+                return skipQuantifier(re, i);
+        }
+    }
+
+    /** Ascending sequence numbers in a growable circular array. */
+    private static class Postings {
+        long[] seqs = new long[4];
+        int head;
+        int size;
+
+        long get(int i) {
+            return seqs[(head + i) & (seqs.length - 1)];
+        }
+
+        void add(long seq) {
+            // a line with the same trigram (or bucket) twice is recorded once
+            if (size > 0 && get(size - 1) == seq) return;
+            if (size == seqs.length) {
+                long[] grown = new long[seqs.length * 2];
+                for (int i = 0; i < size; i++) grown[i] = get(i);
+                seqs = grown;
+                head = 0;
+            }
+            seqs[(head + size) & (seqs.length - 1)] = seq;
+            size++;
+        }
+
+        void trimBefore(long oldest) {
+            while (size > 0 && seqs[head] < oldest) {
+                head = (head + 1) & (seqs.length - 1);
+                size--;
+            }
+        }
+
+        /** Index of the last entry below {@code before}, or -1. */
+        int lastIndexBefore(long before) {
+            int lo = 0, hi = size - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (get(mid) < before) { found = mid; lo = mid + 1; } else hi = mid - 1;
+            }
+            return found;
+        }
+
+        boolean contains(long seq) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long v = get(mid);
+                if (v == seq) return true;
+                if (v < seq) lo = mid + 1; else hi = mid - 1;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.jvmdoctor.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity log tail with a single writer (the process output reader) and any number of
+ * lock-free readers. Every line gets a sequence number starting at 1; readers keep the last
+ * sequence they saw as a cursor and resume from it without copying the buffer.
+ */
+public class LogRingBuffer {
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    private final int retained;
+    // sequence number of the newest published line, 0 when empty
+    private final AtomicLong head = new AtomicLong();
+
+    public interface LineVisitor {
+        /** Return false to stop reading. */
+        boolean visit(long seq, String line);
+    }
+
+    /** A buffer keeping exactly the last {@code lines} lines. */
+    public LogRingBuffer(int lines) {
+        this.retained = Math.max(lines, 1);
+        // a power of two for masking, with at least one spare slot: the writer may be overwriting
+        // the slot just past the retained window
+        int capacity = Integer.highestOneBit(retained) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /** Appends a line and returns its sequence number. Must only be called from the writer thread. */
+    public long append(String line) {
+        long seq = head.get() + 1;
+        slots.setRelease((int) (seq & mask), line);
+        head.setRelease(seq);
+        return seq;
+    }
+
+    public long lastSeq() {
+        return head.getAcquire();
+    }
+
+    /** Oldest sequence number still readable, or {@code lastSeq() + 1} if the buffer is empty. */
+    public long firstSeq() {
+        return Math.max(1, head.getAcquire() - retained + 1);
+    }
+
+    public int capacity() {
+        return retained;
+    }
+
+    /**
+     * Visits lines with sequence numbers greater than {@code after}, oldest first, up to {@code max}
+     * lines. Lines that have already been overwritten are skipped. Returns the sequence number of the
+     * last line visited, or {@code after} if none was.
+     */
+    public long readAfter(long after, int max, LineVisitor visitor) {
+        long last = head.getAcquire();
+        long seq = Math.max(after + 1, last - retained + 1);
+        long end = Math.min(last, seq + max - 1);
+        long cursor = after;
+        for (; seq <= end; seq++) {
+            String line = slots.getAcquire((int) (seq & mask));
+            if (!stillValid(seq)) continue;
+            cursor = seq;
+            if (!visitor.visit(seq, line)) break;
+        }
+        return cursor;
+    }
+
+    /** Visits retained lines newest first until the visitor returns false. */
+    public void readBackwards(LineVisitor visitor) {
+        long last = head.getAcquire();
+        long first = Math.max(1, last - retained + 1);
+        for (long seq = last; seq >= first; seq--) {
+            String line = slots.getAcquire((int) (seq & mask));
+            // once one line has been overwritten, every older one has been too
+            if (!stillValid(seq)) return;
+            if (!visitor.visit(seq, line)) return;
+        }
+    }
+
+    /** Returns the line with the given sequence number, or null if it is no longer retained. */
+    public String get(long seq) {
+        if (seq < 1 || seq > head.getAcquire()) return null;
+        String line = slots.getAcquire((int) (seq & mask));
+        return stillValid(seq) ? line : null;
+    }
+
+    // A slot read for seq is good as long as the writer has not started on seq + capacity, i.e. the
+    // published head is still inside the retained window. The acquire read of the slot orders this check after it.
+    private boolean stillValid(long seq) {
+        return head.getAcquire() - seq < retained;
+    }
+}
@@ -0,0 +1,115 @@
+package com.jvmdoctor.backend;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An SSE client tailing one process's {@link LogRingBuffer}. The subscriber owns a cursor (the last
+ * sequence number sent), so a delivery sends exactly the lines the client has not seen yet, and a
+ * reconnecting client can pass its Last-Event-ID to pick up where it left off. The lines between the
+ * cursor and the buffer head act as the subscriber's queue; {@link LogFanout} bounds it.
+ */
+public class LogSubscriber {
+    // cap on lines per SSE event so a first delivery of a large buffer does not build one huge string
+    private static final int MAX_LINES_PER_EVENT = 1000;
+    private static final AtomicLong idGen = new AtomicLong(1);
+
+    public enum OverflowPolicy { DROP_OLDEST, DISCONNECT }
+
+    final long id = idGen.getAndIncrement();
+    final SseEmitter emitter;
+    final OverflowPolicy policy;
+    final int maxLag;
+    private final LogRingBuffer buffer;
+    // the buffer head when the client subscribed; lines up to it are the initial replay
+    private final long joinedAt;
+    private volatile long cursor;
+    private volatile boolean closed;
+    // set while a delivery is queued or running, so a slow client never has two in flight
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+
+    LogSubscriber(SseEmitter emitter, LogRingBuffer buffer, long cursor, OverflowPolicy policy, int maxLag) {
+        this.emitter = emitter;
+        this.buffer = buffer;
+        // lines already gone when the client (re)connects are not counted against it
+        this.cursor = Math.max(cursor, buffer.firstSeq() - 1);
+        this.joinedAt = buffer.lastSeq();
+        this.policy = policy;
+        this.maxLag = maxLag;
+    }
+
+    long lag() {
+        return Math.max(0, buffer.lastSeq() - cursor);
+    }
+
+    /**
+     * Pending lines that arrived after the client subscribed. The overflow policy looks only at
+     * these, so the replay of what was already buffered is never counted as falling behind.
+     */
+    long newLag() {
+        return Math.max(0, buffer.lastSeq() - Math.max(cursor, joinedAt));
+    }
+
+    /** Drop-oldest: moves the cursor forward so at most {@code maxLag} lines are pending. */
+    synchronized void dropOverflow(int maxLag) {
+        long floor = buffer.lastSeq() - maxLag;
+        if (cursor < floor) skipTo(floor);
+    }
+
+    // lines before the new cursor are never sent; count them
+    private void skipTo(long seq) {
+        dropped.addAndGet(seq - cursor);
+        cursor = seq;
+    }
+
+    /** Sends every line after the cursor as batched events. Serialized per subscriber so lines are neither duplicated nor reordered. */
+    synchronized void deliver() {
+        while (!closed && cursor < buffer.lastSeq()) {
+            // the ring may have overwritten lines while an earlier send was blocked
+            long floor = buffer.firstSeq() - 1;
+            if (cursor < floor) skipTo(floor);
+            StringBuilder batch = new StringBuilder();
+            long last = buffer.readAfter(cursor, MAX_LINES_PER_EVENT, (seq, line) -> {
+                if (batch.length() > 0) batch.append('\n');
+                batch.append(line);
+                return true;
+            });
+            if (last == cursor) return;
+            try {
+                emitter.send(SseEmitter.event().id(Long.toString(last)).data(batch.toString()));
+            } catch (Exception e) {
+                closed = true;
+                return;
+            }
+            delivered.addAndGet(last - cursor);
+            events.incrementAndGet();
+            cursor = last;
+        }
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    Map<String, Object> stats() {
+        return Map.of(
+            "id", id,
+            "policy", policy.name().toLowerCase().replace('_', '-'),
+            "cursor", cursor,
+            "lag", lag(),
+            "maxLag", maxLag,
+            "delivered", delivered.get(),
+            "events", events.get(),
+            "dropped", dropped.get());
+    }
+}
@@ -0,0 +1,85 @@
+package com.jvmdoctor.backend;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of a file of any size, mapped in 1 GiB windows. Reads take an absolute position,
+ * so any number of threads can share one instance. Big-endian, as HPROF is.
+ */
+public class MappedFile implements AutoCloseable {
+    private static final int WINDOW_BITS = 30;
+    private static final long WINDOW_MASK = (1L << WINDOW_BITS) - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] windows;
+    private final long size;
+
+    public MappedFile(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        int n = (int) ((size + WINDOW_MASK) >>> WINDOW_BITS);
+        windows = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long start = (long) i << WINDOW_BITS;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << WINDOW_BITS, size - start));
+            windows[i].order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int u1(long pos) {
+        return windows[(int) (pos >>> WINDOW_BITS)].get((int) (pos & WINDOW_MASK)) & 0xff;
+    }
+
+    public int u2(long pos) {
+        int off = (int) (pos & WINDOW_MASK);
+        if (off + 2 <= windows[(int) (pos >>> WINDOW_BITS)].limit()) {
+            return windows[(int) (pos >>> WINDOW_BITS)].getShort(off) & 0xffff;
+        }
+        return (u1(pos) << 8) | u1(pos + 1);
+    }
+
+    public int i4(long pos) {
+        int off = (int) (pos & WINDOW_MASK);
+        MappedByteBuffer w = windows[(int) (pos >>> WINDOW_BITS)];
+        if (off + 4 <= w.limit()) return w.getInt(off);
+        return (u2(pos) << 16) | u2(pos + 2);
+    }
+
+    public long u4(long pos) {
+        return i4(pos) & 0xffffffffL;
+    }
+
+    public long i8(long pos) {
+        int off = (int) (pos & WINDOW_MASK);
+        MappedByteBuffer w = windows[(int) (pos >>> WINDOW_BITS)];
+        if (off + 8 <= w.limit()) return w.getLong(off);
+        return ((long) i4(pos) << 32) | u4(pos + 4);
+    }
+
+    /** An object id of {@code idSize} (4 or 8) bytes. */
+    public long id(long pos, int idSize) {
+        return idSize == 8 ? i8(pos) : u4(pos);
+    }
+
+    public byte[] bytes(long pos, int len) {
+        byte[] out = new byte[len];
+        for (int i = 0; i < len; i++) out[i] = (byte) u1(pos + i);
+        return out;
+    }
+
+    /** Unmaps the file; nothing may read from it afterwards. */
+    @Override
+    public void close() throws IOException {
+        for (MappedByteBuffer w : windows) OffHeapArena.unmap(w);
+        channel.close();
+    }
+}
@@ -1,18 +1,151 @@
 package com.jvmdoctor.backend;
 
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
 @RestController
 @RequestMapping("/api/metrics")
 public class MetricsController {
 
     @CrossOrigin(origins = "*")
     @PostMapping("/push")
-    public ResponseEntity<?> pushMetrics(@RequestBody String metrics) {
-        // For now, just log the metrics. In production, store in database or forward to monitoring system
-        System.out.println("Received metrics from agent:");
-        System.out.println(metrics);
-        return ResponseEntity.ok().build();
+    public ResponseEntity<?> pushMetrics(@RequestBody byte[] metrics,
+                                         @RequestParam(value = "instance", required = false) String instance,
+                                         @RequestHeader(value = "Content-Encoding", required = false) String encoding,
+                                         HttpServletRequest request) throws IOException {
+        String source = instance != null && !instance.isEmpty() ? instance : request.getRemoteAddr();
+        if (encoding != null && encoding.contains("gzip")) {
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(metrics))) {
+                metrics = in.readAllBytes();
+            }
+        }
+        int stored = MetricsStore.ingest(source, metrics, metrics.length, System.currentTimeMillis());
+        return ResponseEntity.ok(Map.of("samples", stored));
+    }
+
+    @GetMapping("/query")
+    public ResponseEntity<?> query(@RequestParam("name") String name,
+                                   @RequestParam Map<String, String> params,
+                                   @RequestParam(value = "start", required = false) Long start,
+                                   @RequestParam(value = "end", required = false) Long end) {
+        long to = end == null ? System.currentTimeMillis() : end;
+        long from = start == null ? to - 3_600_000L : start;
+        // any parameter other than the reserved ones is an exact-match label filter
+        Map<String, String> matchers = new LinkedHashMap<>(params);
+        matchers.remove("name");
+        matchers.remove("start");
+        matchers.remove("end");
+
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (TimeSeries s : MetricsStore.select(name, matchers)) {
+            TimeSeries.Samples samples = s.range(from, to);
+            if (samples.size == 0) continue;
+            result.add(Map.of("name", s.name, "labels", s.labels, "timestamps", samples.times(), "values", finite(samples)));
+        }
+        return ResponseEntity.ok(Map.of("series", result));
+    }
+
+    /**
+     * Chart-ready series for one or more selectors ({@code query} may repeat), each downsampled to at
+     * most {@code points} points with LTTB; {@code rate(selector[window])} is applied before
+     * downsampling, on full-resolution data.
+     */
+    @GetMapping("/range")
+    public ResponseEntity<?> range(@RequestParam("query") List<String> queries,
+                                   @RequestParam(value = "start", required = false) Long start,
+                                   @RequestParam(value = "end", required = false) Long end,
+                                   @RequestParam(value = "points", required = false) Integer points,
+                                   @RequestParam(value = "limit", required = false) Integer limit) {
+        long t0 = System.nanoTime();
+        long to = end == null ? System.currentTimeMillis() : end;
+        long from = start == null ? to - 3_600_000L : start;
+        int maxPoints = points == null ? 500 : Math.max(3, Math.min(points, 10_000));
+        int maxSeries = limit == null ? 100 : Math.max(1, Math.min(limit, 1000));
+        List<SeriesSelector> selectors = new ArrayList<>();
+        try {
+            for (String q : queries) selectors.add(SeriesSelector.parse(q));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+
+        List<Map<String, Object>> result = new ArrayList<>();
+        boolean truncated = false;
+        for (int i = 0; i < selectors.size(); i++) {
+            SeriesSelector sel = selectors.get(i);
+            for (TimeSeries s : MetricsStore.select(sel)) {
+                if (result.size() == maxSeries) {
+                    truncated = true;
+                    break;
+                }
+                TimeSeries.Samples samples = Downsampler.finite(s.range(sel.rate ? from - sel.rateWindowMs : from, to));
+                if (sel.rate) samples = Downsampler.rate(samples, sel.rateWindowMs, from);
+                if (samples.size == 0) continue;
+                samples = Downsampler.lttb(samples, maxPoints);
+                Map<String, Object> series = new LinkedHashMap<>();
+                series.put("query", queries.get(i));
+                series.put("name", s.name);
+                series.put("labels", s.labels);
+                series.put("timestamps", samples.times());
+                series.put("values", samples.values());
+                result.add(series);
+            }
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("series", result);
+        body.put("truncated", truncated);
+        body.put("tookMicros", (System.nanoTime() - t0) / 1000);
+        return ResponseEntity.ok(body);
+    }
+
+    @GetMapping("/names")
+    public List<String> names() {
+        return MetricsStore.metricNames();
+    }
+
+    /** Scrape targets with their last duration, sample count and failures. */
+    @GetMapping("/targets")
+    public List<Map<String, Object>> targets() {
+        return FleetScraper.list();
+    }
+
+    @PostMapping("/targets")
+    public ResponseEntity<?> addTarget(@RequestBody Map<String, Object> cfg) {
+        Object url = cfg.get("url");
+        if (url == null) return ResponseEntity.badRequest().body(Map.of("error", "url is required"));
+        Object instance = cfg.get("instance");
+        try {
+            return ResponseEntity.ok(FleetScraper.addTarget(url.toString(), instance == null ? null : instance.toString()).status());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    @DeleteMapping("/targets")
+    public ResponseEntity<?> removeTarget(@RequestParam("url") String url) {
+        return FleetScraper.remove(url) ? ResponseEntity.ok(Map.of("removed", true)) : ResponseEntity.notFound().build();
+    }
+
+    @GetMapping("/stats")
+    public Map<String, Object> stats() {
+        return MetricsStore.stats();
+    }
+
+    // JSON has no NaN/Inf; send them as null so the arrays stay aligned with the timestamps
+    private static Double[] finite(TimeSeries.Samples samples) {
+        Double[] out = new Double[samples.size];
+        for (int i = 0; i < samples.size; i++) {
+            double v = samples.v[i];
+            out[i] = Double.isFinite(v) ? v : null;
+        }
+        return out;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,225 @@
+package com.jvmdoctor.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process time-series store for metrics pushed by agents. Series are interned per instance by
+ * their raw {@code name{labels}} bytes, so a push only allocates for series that are new; samples
+ * go into {@link GorillaChunk}s and are dropped once they fall out of the retention window.
+ */
+public class MetricsStore {
+    private static final long RETENTION_MS = TimeUnit.MINUTES.toMillis(
+        Long.parseLong(System.getenv().getOrDefault("METRICS_RETENTION_MINUTES", "360")));
+    private static final int MAX_SERIES = Integer.parseInt(System.getenv().getOrDefault("METRICS_MAX_SERIES", "500000"));
+
+    // per-instance lookup tables keyed by raw series bytes
+    private static final Map<String, SeriesTable> instances = new ConcurrentHashMap<>();
+    // metric name -> series, for queries
+    private static final Map<String, List<TimeSeries>> byName = new ConcurrentHashMap<>();
+    // label names/values repeat across every instance; share one copy
+    private static final Map<String, String> interned = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger seriesCount = new AtomicInteger();
+    private static final AtomicLong samplesIngested = new AtomicLong();
+    private static final AtomicLong samplesRejected = new AtomicLong();
+    private static final AtomicLong seriesRejected = new AtomicLong();
+
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics-retention");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        sweeper.scheduleWithFixedDelay(MetricsStore::enforceRetention, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Ingests a text exposition payload from {@code instance}. Samples without an explicit timestamp
+     * are stamped with {@code defaultTimestamp}. Returns the number of samples stored.
+     */
+    public static int ingest(String instance, byte[] buf, int len, long defaultTimestamp) {
+        int[] stored = new int[1];
+        while (true) {
+            SeriesTable table = instances.computeIfAbsent(instance, SeriesTable::new);
+            synchronized (table) {
+                // lost a race with the retention sweep removing this (empty) table; take the new one
+                if (table.retired) continue;
+                PrometheusTextParser.parse(buf, len, (b, start, nameEnd, end, value, ts) -> {
+                    TimeSeries s = table.getOrCreate(b, start, nameEnd, end);
+                    if (s == null) {
+                        samplesRejected.incrementAndGet();
+                        return;
+                    }
+                    if (s.append(ts == Long.MIN_VALUE ? defaultTimestamp : ts, value)) stored[0]++;
+                    else samplesRejected.incrementAndGet();
+                });
+            }
+            break;
+        }
+        samplesIngested.addAndGet(stored[0]);
+        return stored[0];
+    }
+
+    /** Series named {@code name} whose labels include every entry of {@code matchers}. */
+    public static List<TimeSeries> select(String name, Map<String, String> matchers) {
+        List<TimeSeries> all = byName.get(name);
+        if (all == null) return List.of();
+        List<TimeSeries> out = new ArrayList<>();
+        for (TimeSeries s : all) {
+            boolean ok = true;
+            for (Map.Entry<String, String> m : matchers.entrySet()) {
+                if (!m.getValue().equals(s.labels.get(m.getKey()))) { ok = false; break; }
+            }
+            if (ok) out.add(s);
+        }
+        return out;
+    }
+
+    /** Series matching a parsed selector. */
+    public static List<TimeSeries> select(SeriesSelector selector) {
+        List<TimeSeries> all = byName.get(selector.name);
+        if (all == null) return List.of();
+        List<TimeSeries> out = new ArrayList<>();
+        for (TimeSeries s : all) {
+            if (selector.matches(s.labels)) out.add(s);
+        }
+        return out;
+    }
+
+    public static List<String> metricNames() {
+        List<String> names = new ArrayList<>(byName.keySet());
+        names.sort(null);
+        return names;
+    }
+
+    public static Map<String, Object> stats() {
+        long bytes = 0;
+        long samples = 0;
+        for (List<TimeSeries> list : byName.values()) {
+            for (TimeSeries s : list) {
+                bytes += s.sizeBytes();
+                samples += s.sampleCount();
+            }
+        }
+        return Map.of(
+            "instances", instances.size(),
+            "series", seriesCount.get(),
+            "samples", samples,
+            "bytes", bytes,
+            "samplesIngested", samplesIngested.get(),
+            "samplesRejected", samplesRejected.get(),
+            "seriesRejected", seriesRejected.get(),
+            "retentionMillis", RETENTION_MS);
+    }
+
+    static void enforceRetention() {
+        long cutoff = System.currentTimeMillis() - RETENTION_MS;
+        for (SeriesTable table : instances.values()) {
+            synchronized (table) {
+                table.dropBefore(cutoff);
+                if (table.size == 0) {
+                    table.retired = true;
+                    instances.remove(table.instance, table);
+                }
+            }
+        }
+    }
+
+    private static String intern(String s) {
+        String prev = interned.putIfAbsent(s, s);
+        return prev == null ? s : prev;
+    }
+
+    /** Open-addressing table from raw series bytes to series, guarded by its own monitor. */
+    private static class SeriesTable {
+        final String instance;
+        TimeSeries[] slots = new TimeSeries[64];
+        int size;
+        boolean retired;
+
+        SeriesTable(String instance) {
+            this.instance = instance;
+        }
+
+        TimeSeries getOrCreate(byte[] buf, int start, int nameEnd, int end) {
+            int h = hash(buf, start, end);
+            int mask = slots.length - 1;
+            int i = h & mask;
+            TimeSeries s;
+            while ((s = slots[i]) != null) {
+                if (s.hash == h && Arrays.equals(s.key, 0, s.key.length, buf, start, end)) return s;
+                i = (i + 1) & mask;
+            }
+            if (seriesCount.get() >= MAX_SERIES) {
+                seriesRejected.incrementAndGet();
+                return null;
+            }
+            s = create(buf, start, nameEnd, end, h);
+            slots[i] = s;
+            if (++size * 2 > slots.length) rehash(slots.length * 2);
+            return s;
+        }
+
+        private TimeSeries create(byte[] buf, int start, int nameEnd, int end, int h) {
+            String name = intern(PrometheusTextParser.metricName(buf, start, nameEnd));
+            Map<String, String> parsed = PrometheusTextParser.labels(buf, nameEnd, end);
+            Map<String, String> labels = new java.util.LinkedHashMap<>();
+            labels.put("instance", intern(instance));
+            parsed.forEach((k, v) -> labels.put(intern(k), intern(v)));
+            TimeSeries s = new TimeSeries(name, java.util.Collections.unmodifiableMap(labels),
+                Arrays.copyOfRange(buf, start, end), h);
+            byName.computeIfAbsent(name, n -> new CopyOnWriteArrayList<>()).add(s);
+            seriesCount.incrementAndGet();
+            return s;
+        }
+
+        void dropBefore(long cutoff) {
+            boolean removed = false;
+            for (int i = 0; i < slots.length; i++) {
+                TimeSeries s = slots[i];
+                if (s != null && s.dropBefore(cutoff)) {
+                    slots[i] = null;
+                    List<TimeSeries> list = byName.get(s.name);
+                    if (list != null) list.remove(s);
+                    seriesCount.decrementAndGet();
+                    size--;
+                    removed = true;
+                }
+            }
+            if (removed) rehash(slots.length);
+        }
+
+        // also used to compact after removals, since open addressing cannot simply null out a slot
+        private void rehash(int capacity) {
+            TimeSeries[] old = slots;
+            slots = new TimeSeries[capacity];
+            int mask = capacity - 1;
+            for (TimeSeries s : old) {
+                if (s == null) continue;
+                int i = s.hash & mask;
+                while (slots[i] != null) i = (i + 1) & mask;
+                slots[i] = s;
+            }
+        }
+
+        private static int hash(byte[] buf, int start, int end) {
+            int h = 0x811c9dc5;
+            for (int i = start; i < end; i++) {
+                h ^= buf[i];
+                h *= 0x01000193;
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
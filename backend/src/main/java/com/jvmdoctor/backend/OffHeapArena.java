@@ -0,0 +1,81 @@
+package com.jvmdoctor.backend;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Owns the mappings and temp files behind a group of {@link OffHeapArray}s. Closing it unmaps them
+ * all and deletes any temp file that could not be unlinked when it was mapped, so a heap analysis
+ * gives its address space and disk back when it ends rather than whenever the collector gets to the
+ * buffers. The backend is compiled for Java 21, where {@code java.lang.foreign.Arena} is still a
+ * preview API, so buffers are unmapped through the JDK's own cleaner: nothing may touch an array
+ * once its arena is closed.
+ */
+public class OffHeapArena implements AutoCloseable {
+    private static final MethodHandle UNMAP = unmapper();
+
+    private final List<MappedByteBuffer> buffers = new ArrayList<>();
+    private final List<Path> files = new ArrayList<>();
+    private boolean closed;
+
+    private static MethodHandle unmapper() {
+        try {
+            Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+            Field f = unsafe.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            return MethodHandles.lookup()
+                .findVirtual(unsafe, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                .bindTo(f.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the mappings are then released by the collector
+            return null;
+        }
+    }
+
+    /** Unmaps {@code b} now; it must not be used afterwards. */
+    static void unmap(MappedByteBuffer b) {
+        if (UNMAP == null) return;
+        try {
+            UNMAP.invokeExact((ByteBuffer) b);
+        } catch (Throwable ignore) {
+        }
+    }
+
+    synchronized void add(MappedByteBuffer b) {
+        if (closed) {
+            unmap(b);
+            throw new IllegalStateException("arena is closed");
+        }
+        buffers.add(b);
+    }
+
+    // a temp file that is still linked, to delete once its mapping is gone
+    synchronized void addFile(Path f) {
+        files.add(f);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        for (MappedByteBuffer b : buffers) unmap(b);
+        buffers.clear();
+        for (Path f : files) {
+            try {
+                Files.deleteIfExists(f);
+            } catch (IOException e) {
+                f.toFile().deleteOnExit();
+            }
+        }
+        files.clear();
+    }
+}
@@ -0,0 +1,108 @@
+package com.jvmdoctor.backend;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Zero-filled primitive array backed by a memory-mapped temp file, for indexes too large for the
+ * Java heap. The mapping belongs to an {@link OffHeapArena} and goes away when the arena is closed.
+ * The file is unlinked as soon as it is mapped, so the space is released with the mapping even if
+ * the backend dies mid-analysis; the OS pages it to disk as needed. Elements are
+ * addressed either as longs or as ints (separate index spaces over the same bytes) and support
+ * atomic updates, so several threads may fill one array.
+ */
+public class OffHeapArray {
+    static final String TEMP_DIR = System.getenv().getOrDefault("HPROF_TEMP_DIR", System.getProperty("java.io.tmpdir"));
+
+    private static final int WINDOW_BITS = 30;
+    private static final long WINDOW_MASK = (1L << WINDOW_BITS) - 1;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer[] windows;
+    private final long bytes;
+
+    public static OffHeapArray longs(OffHeapArena arena, long count) throws IOException {
+        return new OffHeapArray(arena, count * 8);
+    }
+
+    public static OffHeapArray ints(OffHeapArena arena, long count) throws IOException {
+        return new OffHeapArray(arena, count * 4);
+    }
+
+    private OffHeapArray(OffHeapArena arena, long bytes) throws IOException {
+        this.bytes = Math.max(bytes, 8);
+        Path file = Files.createTempFile(Paths.get(TEMP_DIR), "jvmdoctor-", ".idx");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(this.bytes);
+            FileChannel ch = raf.getChannel();
+            int n = (int) ((this.bytes + WINDOW_MASK) >>> WINDOW_BITS);
+            windows = new MappedByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long start = (long) i << WINDOW_BITS;
+                windows[i] = ch.map(FileChannel.MapMode.READ_WRITE, start, Math.min(1L << WINDOW_BITS, this.bytes - start));
+                arena.add(windows[i]);
+            }
+        } finally {
+            try {
+                Files.delete(file);
+            } catch (IOException e) {
+                // where a mapped file cannot be unlinked, the arena deletes it once unmapped
+                arena.addFile(file);
+            }
+        }
+    }
+
+    // windows are a multiple of 8 bytes, so an aligned element never straddles two
+    private MappedByteBuffer window(long byteOffset) {
+        return windows[(int) (byteOffset >>> WINDOW_BITS)];
+    }
+
+    public long getLong(long i) {
+        long b = i << 3;
+        return (long) LONGS.get(window(b), (int) (b & WINDOW_MASK));
+    }
+
+    public void setLong(long i, long v) {
+        long b = i << 3;
+        LONGS.set(window(b), (int) (b & WINDOW_MASK), v);
+    }
+
+    public boolean casLong(long i, long expected, long v) {
+        long b = i << 3;
+        return LONGS.compareAndSet(window(b), (int) (b & WINDOW_MASK), expected, v);
+    }
+
+    public long addLong(long i, long delta) {
+        long b = i << 3;
+        return (long) LONGS.getAndAdd(window(b), (int) (b & WINDOW_MASK), delta) + delta;
+    }
+
+    public int getInt(long i) {
+        long b = i << 2;
+        return (int) INTS.get(window(b), (int) (b & WINDOW_MASK));
+    }
+
+    public void setInt(long i, int v) {
+        long b = i << 2;
+        INTS.set(window(b), (int) (b & WINDOW_MASK), v);
+    }
+
+    /** Atomically adds {@code delta} and returns the previous value. */
+    public int getAndAddInt(long i, int delta) {
+        long b = i << 2;
+        return (int) INTS.getAndAdd(window(b), (int) (b & WINDOW_MASK), delta);
+    }
+
+    public long sizeInBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,73 @@
+package com.jvmdoctor.backend;
+
+import java.io.IOException;
+
+/**
+ * Fixed-capacity open-addressing map from non-zero long keys to long values, stored in an
+ * {@link OffHeapArray}. Inserts claim a slot by CAS on the key, so threads may insert concurrently;
+ * the table does not grow, so size it for the expected number of keys up front.
+ */
+public class OffHeapLongMap {
+    private final OffHeapArray table;
+    private final long mask;
+
+    public OffHeapLongMap(OffHeapArena arena, long expectedKeys) throws IOException {
+        long capacity = Long.highestOneBit(Math.max(16, expectedKeys * 2 - 1)) << 1;
+        this.mask = capacity - 1;
+        // key and value interleaved, so a probe touches one cache line
+        this.table = OffHeapArray.longs(arena, capacity * 2);
+    }
+
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    // slot holding key, claiming an empty one if needed
+    private long slot(long key) {
+        long i = hash(key) & mask;
+        for (long probes = 0; probes <= mask; probes++) {
+            long k = table.getLong(i * 2);
+            if (k == key) return i;
+            if (k == 0 && (table.casLong(i * 2, 0, key) || table.getLong(i * 2) == key)) return i;
+            i = (i + 1) & mask;
+        }
+        throw new IllegalStateException("off-heap map is full");
+    }
+
+    public void put(long key, long value) {
+        table.setLong(slot(key) * 2 + 1, value);
+    }
+
+    /** Adds {@code delta} to the value for {@code key} (0 if absent) and returns the new value. */
+    public long add(long key, long delta) {
+        return table.addLong(slot(key) * 2 + 1, delta);
+    }
+
+    /** Value for {@code key}, or {@code missing} if it is absent. */
+    public long get(long key, long missing) {
+        long i = hash(key) & mask;
+        for (long probes = 0; probes <= mask; probes++) {
+            long k = table.getLong(i * 2);
+            if (k == key) return table.getLong(i * 2 + 1);
+            if (k == 0) return missing;
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    public long capacity() {
+        return mask + 1;
+    }
+
+    /** Key in slot {@code i}, 0 if the slot is empty. For iteration. */
+    public long keyAt(long i) {
+        return table.getLong(i * 2);
+    }
+
+    public long valueAt(long i) {
+        return table.getLong(i * 2 + 1);
+    }
+}
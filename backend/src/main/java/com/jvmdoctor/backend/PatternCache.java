@@ -0,0 +1,32 @@
+package com.jvmdoctor.backend;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/** Bounded LRU cache of compiled log filter patterns, shared by all processes. */
+public class PatternCache {
+    private static final int MAX_PATTERNS = Integer.parseInt(System.getenv().getOrDefault("LOG_PATTERN_CACHE_SIZE", "64"));
+
+    private static final Map<String, Pattern> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > MAX_PATTERNS;
+        }
+    };
+
+    /** Throws {@link java.util.regex.PatternSyntaxException} for invalid patterns; those are not cached. */
+    public static Pattern get(String regex, int flags) {
+        String key = flags + ":" + regex;
+        synchronized (cache) {
+            Pattern p = cache.get(key);
+            if (p != null) return p;
+        }
+        // compile outside the lock; a duplicate compile under a race is harmless
+        Pattern p = Pattern.compile(regex, flags);
+        synchronized (cache) {
+            cache.put(key, p);
+        }
+        return p;
+    }
+}
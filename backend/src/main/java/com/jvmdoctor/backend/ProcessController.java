@@ -1,28 +1,35 @@
 package com.jvmdoctor.backend;
 
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 import com.sun.tools.attach.VirtualMachine;
-import com.sun.tools.attach.VirtualMachineDescriptor;
 import javax.management.*;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 @RestController
 @RequestMapping("/api/processes")
 public class ProcessController {
-    private final HttpClient client = HttpClient.newHttpClient();
+    private static final ObjectName AGENT_CONTROL = agentControlName();
+
+    private static ObjectName agentControlName() {
+        try {
+            return new ObjectName("com.jvmdoctor:type=AgentControl");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
     @CrossOrigin(origins = "*")
     @PostMapping("/start")
@@ -43,10 +50,15 @@ public class ProcessController {
         List<String> args = cfg.containsKey("args") ? (List<String>) cfg.get("args") : List.of();
 
         if (jarPath == null) return ResponseEntity.badRequest().body(Map.of("error", "jarPath is required"));
+        RestartPolicy restartPolicy;
+        try {
+            restartPolicy = RestartPolicy.fromConfig(cfg);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
 
         try {
-            
-            var mp = ProcessManager.startProcess(jarPath, agentPort, args, agentJar);
+            var mp = ProcessManager.startProcess(jarPath, agentPort, args, agentJar, restartPolicy);
             return ResponseEntity.created(URI.create("/api/processes/" + mp.id)).body(Map.of("id", mp.id));
         } catch (IOException e) {
             return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
@@ -60,7 +72,9 @@ public class ProcessController {
             "jar", mp.jarPath,
             "pid", mp.pid,
             "port", mp.port,
-            "cmd", mp.args
+            "cmd", mp.args,
+            "restartPolicy", mp.restartPolicy.name(),
+            "restarts", mp.restarts
         )).collect(Collectors.toList());
     }
 
@@ -76,11 +90,9 @@ public class ProcessController {
         if (list.isEmpty()) return ResponseEntity.notFound().build();
         var mp = list.get(0);
 
-        String url = "http://localhost:" + mp.port + "/metrics";
+        // served from the fleet scraper's latest result, so UI polling never reaches the JVM
         try {
-            HttpRequest r = HttpRequest.newBuilder(URI.create(url)).GET().build();
-            HttpResponse<String> resp = client.send(r, HttpResponse.BodyHandlers.ofString());
-            return ResponseEntity.ok(resp.body());
+            return ResponseEntity.ok(new String(FleetScraper.latest(mp), StandardCharsets.UTF_8));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
         }
@@ -95,8 +107,12 @@ public class ProcessController {
         int max = limit == null ? 200 : limit;
         if (regex != null && regex.booleanValue() && q != null) {
             boolean ic = ignoreCase != null && ignoreCase.booleanValue();
-            var lines = ProcessManager.queryLogsRegex(id, q, ic, max);
-            return ResponseEntity.ok(Map.of("lines", lines));
+            try {
+                var lines = ProcessManager.queryLogsRegex(id, q, ic, max);
+                return ResponseEntity.ok(Map.of("lines", lines));
+            } catch (PatternSyntaxException e) {
+                return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+            }
         } else {
             var lines = ProcessManager.queryLogs(id, q, max);
             return ResponseEntity.ok(Map.of("lines", lines));
@@ -105,15 +121,23 @@ public class ProcessController {
     
 
     @GetMapping("/{id}/logs/stream")
-    public SseEmitter streamLogs(@PathVariable("id") long id) {
-        SseEmitter emitter = ProcessManager.registerLogEmitter(id);
-        if (emitter == null) return null;
-        // send existing buffer first
-        var buf = ProcessManager.getLogBuffer(id);
-        if (buf != null) {
-            try { emitter.send(SseEmitter.event().data(String.join("\n", buf))); } catch (Exception ignore) {}
+    public SseEmitter streamLogs(@PathVariable("id") long id,
+                                 @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                                 @RequestParam(value = "after", required = false) Long after,
+                                 @RequestParam(value = "policy", required = false) String policy) {
+        // resume after the last sequence number the client saw; a fresh client gets the whole buffer
+        long cursor = after != null ? after : 0L;
+        if (lastEventId != null) {
+            try { cursor = Long.parseLong(lastEventId.trim()); } catch (NumberFormatException ignore) {}
         }
-        return emitter;
+        return ProcessManager.registerLogEmitter(id, cursor, LogFanout.parsePolicy(policy));
+    }
+
+    @GetMapping("/{id}/logs/subscribers")
+    public ResponseEntity<?> logSubscribers(@PathVariable("id") long id) {
+        var subs = LogFanout.stats(id);
+        if (subs == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok(Map.of("subscribers", subs, "disconnectedTotal", LogFanout.disconnectedCount()));
     }
 
     @PostMapping("/{id}/toggle")
@@ -123,19 +147,11 @@ public class ProcessController {
         var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
         if (list.isEmpty()) return ResponseEntity.notFound().build();
         var mp = list.get(0);
-        // try to connect via JMX by using Attach API
         try {
-            VirtualMachine vm = VirtualMachine.attach(String.valueOf(mp.pid));
-            // start local management agent if necessary
-            vm.startLocalManagementAgent();
-            String connectorAddress = vm.getAgentProperties().getProperty("com.sun.management.jmxremote.localConnectorAddress");
-            JMXServiceURL url = new JMXServiceURL(connectorAddress);
-            JMXConnector conn = JMXConnectorFactory.connect(url);
-            MBeanServerConnection mbsc = conn.getMBeanServerConnection();
-            ObjectName name = new ObjectName("com.jvmdoctor:type=AgentControl");
-            mbsc.setAttribute(name, new Attribute("SampleEnabled", enable));
-            conn.close();
-            vm.detach();
+            JmxConnectionPool.execute(mp.pid, mbsc -> {
+                mbsc.setAttribute(AGENT_CONTROL, new Attribute("SampleEnabled", enable));
+                return null;
+            });
             return ResponseEntity.ok(Map.of("enabled", enable));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
@@ -149,18 +165,10 @@ public class ProcessController {
         var mp = list.get(0);
         boolean ok = false;
         try {
-            VirtualMachine vm = VirtualMachine.attach(String.valueOf(mp.pid));
-            vm.startLocalManagementAgent();
-            String connectorAddress = vm.getAgentProperties().getProperty("com.sun.management.jmxremote.localConnectorAddress");
-            JMXServiceURL url = new JMXServiceURL(connectorAddress);
-            JMXConnector conn = JMXConnectorFactory.connect(url);
-            MBeanServerConnection mbsc = conn.getMBeanServerConnection();
-            ObjectName name = new ObjectName("com.jvmdoctor:type=AgentControl");
             String filename = cfg.containsKey("name") ? (String)cfg.get("name") : "recording";
             long maxAge = cfg.containsKey("maxAgeMillis") ? ((Number)cfg.get("maxAgeMillis")).longValue() : 0L;
-            mbsc.invoke(name, "startJfr", new Object[]{filename, maxAge}, new String[]{"java.lang.String","long"});
-            conn.close();
-            vm.detach();
+            JmxConnectionPool.execute(mp.pid, mbsc ->
+                mbsc.invoke(AGENT_CONTROL, "startJfr", new Object[]{filename, maxAge}, new String[]{"java.lang.String","long"}));
             ok = true;
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
@@ -174,17 +182,10 @@ public class ProcessController {
         if (list.isEmpty()) return ResponseEntity.notFound().build();
         var mp = list.get(0);
         try {
-            VirtualMachine vm = VirtualMachine.attach(String.valueOf(mp.pid));
-            vm.startLocalManagementAgent();
-            String connectorAddress = vm.getAgentProperties().getProperty("com.sun.management.jmxremote.localConnectorAddress");
-            JMXServiceURL url = new JMXServiceURL(connectorAddress);
-            JMXConnector conn = JMXConnectorFactory.connect(url);
-            MBeanServerConnection mbsc = conn.getMBeanServerConnection();
-            ObjectName name = new ObjectName("com.jvmdoctor:type=AgentControl");
             String target = cfg.containsKey("filename") ? (String) cfg.get("filename") : "dump.jfr";
-            String returned = (String) mbsc.invoke(name, "stopAndDumpJfr", new Object[]{target}, new String[]{"java.lang.String"});
-            conn.close();
-            vm.detach();
+            String returned = JmxConnectionPool.execute(mp.pid, mbsc ->
+                (String) mbsc.invoke(AGENT_CONTROL, "stopAndDumpJfr", new Object[]{target}, new String[]{"java.lang.String"}));
+            if (returned != null) ProcessJournal.artifact(mp.id, mp.pid, "jfr", returned);
             // return the path to the recording
             return ResponseEntity.ok(Map.of("path", returned));
         } catch (Exception e) {
@@ -192,24 +193,167 @@ public class ProcessController {
         }
     }
 
+    @PostMapping("/{id}/sampler/start")
+    public ResponseEntity<?> startSampler(@PathVariable("id") long id, @RequestBody Map<String,Object> cfg) {
+        var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
+        if (list.isEmpty()) return ResponseEntity.notFound().build();
+        var mp = list.get(0);
+        long interval = cfg.containsKey("intervalMs") ? ((Number)cfg.get("intervalMs")).longValue() : 0L;
+        try {
+            JmxConnectionPool.execute(mp.pid, mbsc ->
+                mbsc.invoke(AGENT_CONTROL, "startProfiler", new Object[]{interval}, new String[]{"long"}));
+            return ResponseEntity.ok(Map.of("started", true));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    @PostMapping("/{id}/sampler/stop")
+    public ResponseEntity<?> stopSampler(@PathVariable("id") long id) {
+        var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
+        if (list.isEmpty()) return ResponseEntity.notFound().build();
+        var mp = list.get(0);
+        try {
+            JmxConnectionPool.execute(mp.pid, mbsc -> mbsc.invoke(AGENT_CONTROL, "stopProfiler", new Object[0], new String[0]));
+            return ResponseEntity.ok(Map.of("stopped", true));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    /** The sampler's stacks so far as collapsed text, an SVG flame graph or d3-flame-graph JSON. */
+    @GetMapping("/{id}/sampler")
+    public ResponseEntity<?> samplerSnapshot(@PathVariable("id") long id,
+                                             @RequestParam(value = "format", required = false) String format,
+                                             @RequestParam(value = "reset", required = false) Boolean reset) {
+        var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
+        if (list.isEmpty()) return ResponseEntity.notFound().build();
+        var mp = list.get(0);
+        String fmt = format == null ? "collapsed" : format;
+        if (!JfrFlameGraph.FORMATS.contains(fmt)) return ResponseEntity.badRequest().body(Map.of("error", "format must be one of " + JfrFlameGraph.FORMATS));
+        boolean r = reset != null && reset.booleanValue();
+        try {
+            String collapsed = JmxConnectionPool.execute(mp.pid, mbsc ->
+                (String) mbsc.invoke(AGENT_CONTROL, "snapshotProfiler", new Object[]{r}, new String[]{"boolean"}));
+            if ("collapsed".equals(fmt)) return ResponseEntity.ok().contentType(MediaType.TEXT_PLAIN).body(collapsed);
+            StringWriter out = new StringWriter();
+            StackTrie trie = StackTrie.fromCollapsed(collapsed);
+            if ("svg".equals(fmt)) {
+                trie.writeSvg(out, "Sampled CPU stacks - pid " + mp.pid, "samples");
+                return ResponseEntity.ok().contentType(MediaType.valueOf("image/svg+xml")).body(out.toString());
+            }
+            trie.writeJson(out, 0.0001);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(out.toString());
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    @GetMapping("/{id}/sampler/stats")
+    public ResponseEntity<?> samplerStats(@PathVariable("id") long id) {
+        var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
+        if (list.isEmpty()) return ResponseEntity.notFound().build();
+        var mp = list.get(0);
+        try {
+            Object stats = JmxConnectionPool.execute(mp.pid, mbsc -> mbsc.getAttribute(AGENT_CONTROL, "ProfilerStats"));
+            return ResponseEntity.ok(stats);
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    @PostMapping("/{id}/jfr/stream")
+    public ResponseEntity<?> jfrStreaming(@PathVariable("id") long id, @RequestBody Map<String,Object> cfg) {
+        boolean enable = cfg.containsKey("enable") && Boolean.parseBoolean(cfg.get("enable").toString());
+
+        var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
+        if (list.isEmpty()) return ResponseEntity.notFound().build();
+        var mp = list.get(0);
+        try {
+            JmxConnectionPool.execute(mp.pid, mbsc -> {
+                mbsc.setAttribute(AGENT_CONTROL, new Attribute("JfrStreaming", enable));
+                return null;
+            });
+            return ResponseEntity.ok(Map.of("streaming", enable));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    @PostMapping("/{id}/locks/sampler")
+    public ResponseEntity<?> lockSampler(@PathVariable("id") long id, @RequestBody Map<String,Object> cfg) {
+        boolean enable = !cfg.containsKey("enable") || Boolean.parseBoolean(cfg.get("enable").toString());
+        long interval = cfg.containsKey("intervalMs") ? ((Number)cfg.get("intervalMs")).longValue() : 0L;
+        var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
+        if (list.isEmpty()) return ResponseEntity.notFound().build();
+        var mp = list.get(0);
+        try {
+            JmxConnectionPool.execute(mp.pid, mbsc -> enable
+                ? mbsc.invoke(AGENT_CONTROL, "startLockSampler", new Object[]{interval}, new String[]{"long"})
+                : mbsc.invoke(AGENT_CONTROL, "stopLockSampler", new Object[0], new String[0]));
+            return ResponseEntity.ok(Map.of("running", enable));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    /** The hot-lock table: locks by estimated waiting time, owner stacks waited behind, and sampler counters. */
+    @GetMapping("/{id}/locks")
+    public ResponseEntity<?> locks(@PathVariable("id") long id, @RequestParam(value = "limit", required = false) Integer limit) {
+        var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
+        if (list.isEmpty()) return ResponseEntity.notFound().build();
+        var mp = list.get(0);
+        int n = limit == null ? 0 : limit;
+        try {
+            Map<String, Object> out = JmxConnectionPool.execute(mp.pid, mbsc -> {
+                Map<String, Object> m = new LinkedHashMap<>();
+                m.put("hotLocks", mbsc.invoke(AGENT_CONTROL, "hotLocks", new Object[]{n}, new String[]{"int"}));
+                m.put("ownerStacks", mbsc.invoke(AGENT_CONTROL, "lockOwnerStacks", new Object[]{n}, new String[]{"int"}));
+                m.put("stats", mbsc.getAttribute(AGENT_CONTROL, "LockStats"));
+                return m;
+            });
+            return ResponseEntity.ok(out);
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    @GetMapping("/{id}/deadlocks")
+    public ResponseEntity<?> deadlocks(@PathVariable("id") long id) {
+        var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
+        if (list.isEmpty()) return ResponseEntity.notFound().build();
+        var mp = list.get(0);
+        try {
+            Object threads = JmxConnectionPool.execute(mp.pid, mbsc -> mbsc.invoke(AGENT_CONTROL, "findDeadlocks", new Object[0], new String[0]));
+            return ResponseEntity.ok(Map.of("threads", threads));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+    }
+
     @PostMapping("/{id}/heapdump")
     public ResponseEntity<?> heapDump(@PathVariable("id") long id, @RequestBody Map<String,Object> cfg) {
         var list = ProcessManager.listProcesses().stream().filter(mp -> mp.id == id).collect(Collectors.toList());
         if (list.isEmpty()) return ResponseEntity.notFound().build();
         var mp = list.get(0);
         String target = cfg.containsKey("filename") ? (String) cfg.get("filename") : "/tmp/heapdump-"+mp.pid+".hprof";
+        boolean analyze = cfg.containsKey("analyze") && Boolean.parseBoolean(cfg.get("analyze").toString());
         try {
-            VirtualMachine vm = VirtualMachine.attach(String.valueOf(mp.pid));
-            vm.startLocalManagementAgent();
-            String connectorAddress = vm.getAgentProperties().getProperty("com.sun.management.jmxremote.localConnectorAddress");
-            JMXServiceURL url = new JMXServiceURL(connectorAddress);
-            JMXConnector conn = JMXConnectorFactory.connect(url);
-            MBeanServerConnection mbsc = conn.getMBeanServerConnection();
-            ObjectName name = new ObjectName("com.jvmdoctor:type=AgentControl");
-            String returned = (String) mbsc.invoke(name, "takeHeapDump", new Object[]{target, Boolean.TRUE}, new String[]{"java.lang.String","boolean"});
-            conn.close();
-            vm.detach();
-            return ResponseEntity.ok(Map.of("path", returned));
+            // a dump pauses the target JVM and writes a file the size of its heap, so dumps are bounded
+            // per host and per JVM like profilers; the analysis is queued once the dump is written
+            TaskManager.Task task = TaskManager.submit(TaskManager.HEAP_DUMP, mp.pid, priority(cfg), "heap dump " + target, t -> {
+                t.progress(0, "dumping");
+                String returned = JmxConnectionPool.execute(mp.pid, mbsc ->
+                    (String) mbsc.invoke(AGENT_CONTROL, "takeHeapDump", new Object[]{target, Boolean.TRUE}, new String[]{"java.lang.String","boolean"}));
+                if (returned == null) throw new IOException("the agent did not dump the heap to " + target);
+                ProcessJournal.artifact(mp.id, mp.pid, "heapdump", returned);
+                if (!analyze) return Map.of("path", returned);
+                var a = HeapAnalysisManager.submit(Paths.get(returned));
+                return Map.of("path", returned, "analysisId", a.id);
+            });
+            return ResponseEntity.accepted().body(Map.of("taskId", task.id, "path", target));
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            return ResponseEntity.status(503).body(Map.of("error", e.getMessage()));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
         }
@@ -223,16 +367,9 @@ public class ProcessController {
         boolean on = cfg.containsKey("on") ? Boolean.parseBoolean(cfg.get("on").toString()) : true;
         String filename = cfg.containsKey("filename") ? (String) cfg.get("filename") : "/tmp/gc-"+mp.pid+".log";
         try {
-            VirtualMachine vm = VirtualMachine.attach(String.valueOf(mp.pid));
-            vm.startLocalManagementAgent();
-            String connectorAddress = vm.getAgentProperties().getProperty("com.sun.management.jmxremote.localConnectorAddress");
-            JMXServiceURL url = new JMXServiceURL(connectorAddress);
-            JMXConnector conn = JMXConnectorFactory.connect(url);
-            MBeanServerConnection mbsc = conn.getMBeanServerConnection();
-            ObjectName name = new ObjectName("com.jvmdoctor:type=AgentControl");
-            mbsc.invoke(name, "enableGcLogging", new Object[]{on, filename}, new String[]{"boolean","java.lang.String"});
-            conn.close();
-            vm.detach();
+            JmxConnectionPool.execute(mp.pid, mbsc ->
+                mbsc.invoke(AGENT_CONTROL, "enableGcLogging", new Object[]{on, filename}, new String[]{"boolean","java.lang.String"}));
+            if (on) ProcessJournal.artifact(mp.id, mp.pid, "gclog", filename);
             return ResponseEntity.ok(Map.of("gcLogging", on, "path", filename));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
@@ -241,20 +378,61 @@ public class ProcessController {
 
     @GetMapping("/{id}/history")
     public ResponseEntity<?> history(@PathVariable("id") long id) {
+        try {
+            // the journal has live runs and those of earlier backends alike, with their artifacts
+            Map<String, Object> run = ProcessJournal.latest(id);
+            if (run != null) return ResponseEntity.ok(run);
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+        // journaling is off or failed
         var h = ProcessManager.getProcessHistory(id);
-        if (h == null) return ResponseEntity.notFound().build();
-        return ResponseEntity.ok(Map.of("id", h.id, "pid", h.pid, "jar", h.jar, "startTime", h.startTime, "stopTime", h.stopTime, "cmd", h.cmd));
+        return h == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(h.toMap());
     }
 
+    /** Every journaled run, newest first, a page at a time; pass the returned {@code next} as {@code cursor}. */
     @GetMapping("/history")
-    public ResponseEntity<?> allHistory() {
-        return ResponseEntity.ok(ProcessManager.listProcesses().stream().map(mp -> ProcessManager.getProcessHistory(mp.id)).collect(Collectors.toList()));
+    public ResponseEntity<?> allHistory(@RequestParam(value = "from", required = false) Long from,
+                                        @RequestParam(value = "to", required = false) Long to,
+                                        @RequestParam(value = "jar", required = false) String jar,
+                                        @RequestParam(value = "cursor", required = false) Long cursor,
+                                        @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        try {
+            return ResponseEntity.ok(ProcessJournal.query(from, to, jar, cursor, Math.max(1, Math.min(limit, 1000))));
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
     }
 
+    /** JVMs on this node, from the discovery cache. */
     @GetMapping("/jvms")
-    public List<Map<String,String>> listLocalJvms() {
-        // VirtualMachineDescriptor id() and displayName() are strings — return Map<String,String>
-        return VirtualMachine.list().stream().map(d -> Map.of("id", d.id(), "displayName", d.displayName())).collect(Collectors.toList());
+    public List<Map<String, Object>> listLocalJvms() {
+        return JvmDiscovery.list();
+    }
+
+    /** JVMs appearing and going, after a snapshot of the current ones. */
+    @GetMapping(path = "/jvms/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter jvmEvents() {
+        return JvmDiscovery.subscribe();
+    }
+
+    @GetMapping("/jvms/{pid}")
+    public ResponseEntity<?> describeJvm(@PathVariable("pid") long pid) {
+        JvmDiscovery.Jvm j = JvmDiscovery.get(pid);
+        return j == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(j.describe());
+    }
+
+    /** JVMs on this node read through their hsperfdata files, agent or not. */
+    @GetMapping("/jvms/hsperf")
+    public List<Map<String, Object>> listHsperfJvms() {
+        return HsperfCollector.list();
+    }
+
+    /** Every jvmstat counter of one JVM, straight from its hsperfdata file. */
+    @GetMapping("/jvms/{pid}/hsperf")
+    public ResponseEntity<?> hsperfCounters(@PathVariable("pid") long pid) {
+        HsperfdataReader r = HsperfCollector.reader(pid);
+        return r == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(r.snapshot());
     }
 
     @PostMapping("/jvms/{pid}/attach")
@@ -266,6 +444,13 @@ public class ProcessController {
             VirtualMachine vm = VirtualMachine.attach(pid);
             vm.loadAgent(agentJar, agentArgs == null ? "" : agentArgs);
             vm.detach();
+            // the agent's only argument is its metrics port
+            int port = 9404;
+            try {
+                if (agentArgs != null && !agentArgs.isEmpty()) port = Integer.parseInt(agentArgs.trim());
+            } catch (NumberFormatException ignore) {}
+            FleetScraper.addTarget("http://localhost:" + port + "/metrics", "localhost:" + port, Long.parseLong(pid));
+            JvmDiscovery.markAgent(Long.parseLong(pid), port);
             return ResponseEntity.ok(Map.of("attached", true));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
@@ -280,16 +465,8 @@ public class ProcessController {
         String path = (String) cfg.get("path");
         if (path == null) return ResponseEntity.badRequest().body(Map.of("error","path required"));
         try {
-            VirtualMachine vm = VirtualMachine.attach(String.valueOf(mp.pid));
-            vm.startLocalManagementAgent();
-            String connectorAddress = vm.getAgentProperties().getProperty("com.sun.management.jmxremote.localConnectorAddress");
-            JMXServiceURL url = new JMXServiceURL(connectorAddress);
-            JMXConnector conn = JMXConnectorFactory.connect(url);
-            MBeanServerConnection mbsc = conn.getMBeanServerConnection();
-            ObjectName name = new ObjectName("com.jvmdoctor:type=AgentControl");
-            Boolean ok = (Boolean) mbsc.invoke(name, "loadNativeAgent", new Object[]{path}, new String[]{"java.lang.String"});
-            conn.close();
-            vm.detach();
+            Boolean ok = JmxConnectionPool.execute(mp.pid, mbsc ->
+                (Boolean) mbsc.invoke(AGENT_CONTROL, "loadNativeAgent", new Object[]{path}, new String[]{"java.lang.String"}));
             return ResponseEntity.ok(Map.of("loaded", ok));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
@@ -308,23 +485,90 @@ public class ProcessController {
         if (asyncHome != null) {
             script = asyncHome + "/profiler.sh";
         }
-        if (script == null) return ResponseEntity.status(500).body(Map.of("error","async-profiler not found; set ASYNC_PROFILER_HOME"));
 
         int duration = cfg.containsKey("duration") ? ((Number)cfg.get("duration")).intValue() : 10;
         String event = cfg.containsKey("event") ? (String) cfg.get("event") : "cpu";
         String output = cfg.containsKey("output") ? (String) cfg.get("output") : "svg";
         String filename = cfg.containsKey("filename") ? (String) cfg.get("filename") : "/tmp/profile-"+mp.pid+"."+output;
 
+        if (script == null) return runJfrProfiler(mp, duration, event, output, filename, priority(cfg));
+
         List<String> cmd = List.of(script, "-d", String.valueOf(duration), "-e", event, "-o", output, "-f", filename, String.valueOf(mp.pid));
         try {
-            long tid = TaskManager.submit(() -> {
+            TaskManager.Task task = TaskManager.submit(TaskManager.PROFILER, mp.pid, priority(cfg), "async-profiler " + event + " " + duration + "s", t -> {
+                Process proc = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+                try {
+                    long t0 = System.nanoTime();
+                    while (!proc.waitFor(250, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+                        t.progress((System.nanoTime() - t0) / 1e9 / duration, "profiling");
+                    }
+                } finally {
+                    proc.destroy();
+                }
+                if (proc.exitValue() != 0) throw new IOException("profiler.sh exited with " + proc.exitValue());
+                ProcessJournal.artifact(mp.id, mp.pid, "profile", filename);
+                return Map.of("path", filename);
+            });
+            return ResponseEntity.accepted().body(Map.of("taskId", task.id, "path", filename));
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            return ResponseEntity.status(503).body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    private static TaskManager.Priority priority(Map<String, Object> cfg) {
+        Object p = cfg.get("priority");
+        if (p == null) return TaskManager.Priority.NORMAL;
+        try {
+            return TaskManager.Priority.valueOf(p.toString().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return TaskManager.Priority.NORMAL;
+        }
+    }
+
+    // without async-profiler: a JFR recording with the "profile" settings, rendered by JfrFlameGraph
+    private ResponseEntity<?> runJfrProfiler(ProcessManager.ManagedProcess mp, int duration, String event, String output, String filename, TaskManager.Priority priority) {
+        if (!JfrFlameGraph.EVENTS.contains(event)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "event " + event + " needs async-profiler; set ASYNC_PROFILER_HOME"));
+        }
+        if (!"jfr".equals(output) && !JfrFlameGraph.FORMATS.contains(output)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "output " + output + " needs async-profiler; set ASYNC_PROFILER_HOME"));
+        }
+        String jfr = "jfr".equals(output) ? filename : "/tmp/profile-" + mp.pid + ".jfr";
+        try {
+            TaskManager.Task task = TaskManager.submit(TaskManager.PROFILER, mp.pid, priority, "jfr " + event + " " + duration + "s", t -> {
+                JmxConnectionPool.execute(mp.pid, mbsc ->
+                    mbsc.invoke(AGENT_CONTROL, "startJfrWithSettings", new Object[]{"jvmdoctor-profile", "profile"},
+                        new String[]{"java.lang.String", "java.lang.String"}));
+                // on cancellation the recording is still stopped and dumped, so the JVM is not left recording
+                boolean cancelled = false;
                 try {
-                    ProcessBuilder pb = new ProcessBuilder(cmd);
-                    Process proc = pb.start();
-                    proc.waitFor();
-                } catch (Exception ignore){}
+                    for (int s = 0; s < duration; s++) {
+                        t.progress((double) s / duration, "recording");
+                        Thread.sleep(1000L);
+                    }
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                }
+                t.progress(1, "dumping");
+                String dumped = JmxConnectionPool.execute(mp.pid, mbsc ->
+                    (String) mbsc.invoke(AGENT_CONTROL, "stopAndDumpJfr", new Object[]{jfr}, new String[]{"java.lang.String"}));
+                // the agent answers null when it was not recording or the dump failed
+                if (dumped == null) throw new IOException("the agent did not dump the recording to " + jfr);
+                ProcessJournal.artifact(mp.id, mp.pid, "jfr", dumped);
+                if (cancelled) throw new java.util.concurrent.CancellationException();
+                t.checkCancelled();
+                if (!"jfr".equals(output)) {
+                    t.progress(1, "rendering");
+                    new JfrFlameGraph(Paths.get(dumped), event).render(output, Paths.get(filename));
+                    ProcessJournal.artifact(mp.id, mp.pid, "profile", filename);
+                }
+                return Map.of("path", filename, "recording", dumped);
             });
-            return ResponseEntity.accepted().body(Map.of("taskId", tid, "path", filename));
+            return ResponseEntity.accepted().body(Map.of("taskId", task.id, "path", filename, "engine", "jfr"));
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            return ResponseEntity.status(503).body(Map.of("error", e.getMessage()));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
         }
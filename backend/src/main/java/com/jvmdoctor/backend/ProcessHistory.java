@@ -1,6 +1,8 @@
 package com.jvmdoctor.backend;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ProcessHistory {
     public final long id;
@@ -8,6 +10,8 @@ public class ProcessHistory {
     public final long pid;
     public final long startTime;
     public long stopTime;
+    public int exitCode = -1;
+    public int restarts;
     public final List<String> cmd;
 
     public ProcessHistory(long id, String jar, long pid, long startTime, List<String> cmd) {
@@ -20,4 +24,24 @@ public class ProcessHistory {
     }
 
     public void setStopTime(long t) { this.stopTime = t; }
+
+    public synchronized void recordExit(int code, long t) {
+        this.exitCode = code;
+        if (stopTime < 0) stopTime = t;
+    }
+
+    /** The same fields, in the same order, as a run read back from {@link ProcessJournal}. */
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", id);
+        m.put("startTime", startTime);
+        m.put("pid", pid);
+        m.put("jar", jar);
+        m.put("stopTime", stopTime);
+        m.put("exitCode", exitCode);
+        m.put("restarts", restarts);
+        m.put("cmd", cmd);
+        m.put("artifacts", List.of());
+        return m;
+    }
 }
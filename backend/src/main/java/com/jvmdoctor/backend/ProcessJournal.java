@@ -0,0 +1,470 @@
+package com.jvmdoctor.backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable process history: an append-only journal of start, exit, stop and artifact records, plus a
+ * memory-mapped index with one fixed-size entry per run (where its start record is, stop time, exit
+ * code, jar hash, last artifact), in start-time order. The index header says how much of the journal
+ * it reflects, so startup maps it and replays only what was written after; queries binary-search it
+ * by time and read only the start records of the page they return. Compaction rewrites both files
+ * without the finished runs past the retention, one record per event kept.
+ */
+public class ProcessJournal {
+    // not under tmp, which is cleaned and may not survive a reboot
+    private static final Path DIR = Paths.get(System.getenv().getOrDefault("PROCESS_JOURNAL_DIR",
+        System.getProperty("user.home") + "/.jvmdoctor/journal"));
+    private static final long RETENTION_MS = Long.parseLong(System.getenv().getOrDefault("PROCESS_JOURNAL_RETENTION_MS", "7776000000"));
+    private static final int MAX_RUNS = Integer.parseInt(System.getenv().getOrDefault("PROCESS_JOURNAL_MAX_RUNS", "100000"));
+    private static final long COMPACT_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("PROCESS_JOURNAL_COMPACT_INTERVAL_MS", "3600000"));
+
+    private static final int JOURNAL_MAGIC = 0x4a444a31; // "JDJ1"
+    private static final int INDEX_MAGIC = 0x4a444931; // "JDI1"
+    // magic, unused, generation
+    private static final int JOURNAL_HEADER = 16;
+    // magic, count, generation, journal offset covered, max id
+    private static final int INDEX_HEADER = 32;
+    private static final int ENTRY = 64;
+    // entry fields; the sort key is the start time, forced non-decreasing so the index stays searchable
+    private static final int E_SORT = 0;
+    private static final int E_START = 8;
+    private static final int E_OFFSET = 16;
+    private static final int E_ID = 24;
+    private static final int E_PID = 32;
+    private static final int E_STOP = 40;
+    private static final int E_ARTIFACT = 48;
+    private static final int E_EXIT = 56;
+    private static final int E_JAR = 60;
+
+    private static final byte START = 1;
+    private static final byte EXIT = 2;
+    private static final byte STOP = 3;
+    private static final byte ARTIFACT = 4;
+
+    private static FileChannel journal;
+    private static FileChannel indexChannel;
+    private static MappedByteBuffer index;
+    private static int count;
+    private static long maxId;
+    // latest run per process id, for the events that follow its start
+    private static final Map<Long, Integer> runs = new HashMap<>();
+    private static final CRC32 crc = new CRC32();
+    private static boolean enabled;
+
+    static {
+        try {
+            open();
+            enabled = true;
+            ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "process-journal-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Process journal compaction failed: " + e.getMessage());
+                }
+            }, 0, COMPACT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Process journal unavailable, history will not survive restarts: " + e.getMessage());
+        }
+    }
+
+    private static void open() throws IOException {
+        Files.createDirectories(DIR);
+        journal = FileChannel.open(DIR.resolve("journal.log"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long generation;
+        if (journal.size() < JOURNAL_HEADER) {
+            generation = ThreadLocalRandom.current().nextLong();
+            writeJournalHeader(journal, generation);
+        } else {
+            ByteBuffer h = read(journal, 0, JOURNAL_HEADER);
+            if (h.getInt(0) != JOURNAL_MAGIC) throw new IOException(DIR.resolve("journal.log") + " is not a process journal");
+            generation = h.getLong(8);
+        }
+        indexChannel = FileChannel.open(DIR.resolve("journal.idx"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapIndex(Math.max(1024, (int) ((indexChannel.size() - INDEX_HEADER) / ENTRY)));
+        long covered = index.getLong(16);
+        if (index.getInt(0) != INDEX_MAGIC || index.getLong(8) != generation || covered < JOURNAL_HEADER || covered > journal.size()) {
+            // missing, stale or from another journal generation: rebuild from the journal
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, 0);
+            index.putLong(8, generation);
+            index.putLong(24, 0);
+            covered = JOURNAL_HEADER;
+        }
+        count = index.getInt(4);
+        maxId = index.getLong(24);
+        replay(covered);
+    }
+
+    private static void writeJournalHeader(FileChannel ch, long generation) throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(JOURNAL_HEADER);
+        h.putInt(0, JOURNAL_MAGIC);
+        h.putLong(8, generation);
+        ch.truncate(0);
+        ch.write(h, 0);
+        ch.force(true);
+    }
+
+    private static void mapIndex(int capacity) throws IOException {
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) capacity * ENTRY);
+    }
+
+    private static int capacity() {
+        return (index.capacity() - INDEX_HEADER) / ENTRY;
+    }
+
+    // applies the journal from {@code pos}, truncating a torn last record
+    private static void replay(long pos) throws IOException {
+        long size = journal.size();
+        while (pos + 8 <= size) {
+            ByteBuffer h = read(journal, pos, 8);
+            int len = h.getInt(0);
+            if (len <= 0 || pos + 8 + len > size) break;
+            byte[] body = read(journal, pos + 8, len).array();
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != h.getInt(4)) break;
+            apply(pos, body);
+            pos += 8 + len;
+        }
+        if (pos < size) journal.truncate(pos);
+    }
+
+    private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) throw new IOException("unexpected end of journal at " + pos);
+        }
+        return b;
+    }
+
+    private static byte[] readBody(FileChannel ch, long pos) throws IOException {
+        return read(ch, pos + 8, read(ch, pos, 4).getInt(0)).array();
+    }
+
+    private static void append(byte[] body) throws IOException {
+        long pos = journal.size();
+        ByteBuffer b = ByteBuffer.allocate(8 + body.length);
+        crc.reset();
+        crc.update(body);
+        b.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+        while (b.hasRemaining()) journal.write(b, pos + b.position());
+        journal.force(false);
+        apply(pos, body);
+    }
+
+    // brings the index up to date with the record at {@code pos}; applying a record twice is harmless
+    private static void apply(long pos, byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        long id = in.readLong();
+        long time = in.readLong();
+        long pid = in.readLong();
+        if (type == START) {
+            if (count == capacity()) mapIndex(capacity() * 2);
+            int e = INDEX_HEADER + count * ENTRY;
+            long prevSort = count > 0 ? index.getLong(e - ENTRY + E_SORT) : Long.MIN_VALUE;
+            in.readInt(); // restarts
+            String jar = in.readUTF();
+            index.putLong(e + E_SORT, Math.max(prevSort, time));
+            index.putLong(e + E_START, time);
+            index.putLong(e + E_OFFSET, pos);
+            index.putLong(e + E_ID, id);
+            index.putLong(e + E_PID, pid);
+            index.putLong(e + E_STOP, -1);
+            index.putLong(e + E_ARTIFACT, -1);
+            index.putInt(e + E_EXIT, -1);
+            index.putInt(e + E_JAR, jar.hashCode());
+            runs.put(id, count);
+            count++;
+            maxId = Math.max(maxId, id);
+            index.putInt(4, count);
+            index.putLong(24, maxId);
+        } else {
+            Integer slot = runs.get(id);
+            int e = slot == null ? -1 : INDEX_HEADER + slot * ENTRY;
+            if (e >= 0 && index.getLong(e + E_PID) == pid) {
+                if (type == EXIT) {
+                    index.putInt(e + E_EXIT, in.readInt());
+                    if (index.getLong(e + E_STOP) < 0) index.putLong(e + E_STOP, time);
+                } else if (type == STOP) {
+                    if (index.getLong(e + E_STOP) < 0) index.putLong(e + E_STOP, time);
+                } else if (type == ARTIFACT) {
+                    index.putLong(e + E_ARTIFACT, pos);
+                }
+            }
+        }
+        index.putLong(16, pos + 8 + body.length);
+    }
+
+    private static byte[] record(byte type, long id, long time, long pid, RecordWriter fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeLong(id);
+            out.writeLong(time);
+            out.writeLong(pid);
+            if (fields != null) fields.write(out);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] startRecord(long id, long startTime, long pid, int restarts, String jar, List<String> cmd) {
+        return record(START, id, startTime, pid, out -> {
+            out.writeInt(restarts);
+            out.writeUTF(jar);
+            out.writeInt(cmd.size());
+            for (String c : cmd) out.writeUTF(c);
+        });
+    }
+
+    private static synchronized void write(String what, byte[] body) {
+        if (!enabled) return;
+        try {
+            append(body);
+        } catch (IOException e) {
+            System.err.println("Failed to journal " + what + ": " + e.getMessage());
+        }
+    }
+
+    /** The highest process id ever journaled, so ids are not reused across restarts. */
+    public static synchronized long maxId() {
+        return maxId;
+    }
+
+    public static void started(ProcessManager.ManagedProcess mp) {
+        write("process start", startRecord(mp.id, mp.startTime, mp.pid, mp.restarts, mp.jarPath, mp.args));
+    }
+
+    public static void exited(long id, long pid, int code, long time) {
+        write("process exit", record(EXIT, id, time, pid, out -> out.writeInt(code)));
+    }
+
+    public static void stopped(long id, long pid, long time) {
+        write("process stop", record(STOP, id, time, pid, null));
+    }
+
+    /** Records a file produced for the current run of {@code id}, e.g. a heap dump or recording. */
+    public static synchronized void artifact(long id, long pid, String kind, String path) {
+        if (!enabled) return;
+        Integer slot = runs.get(id);
+        long prev = slot == null ? -1 : index.getLong(INDEX_HEADER + slot * ENTRY + E_ARTIFACT);
+        write("artifact", artifactRecord(id, System.currentTimeMillis(), pid, kind, path, prev));
+    }
+
+    private static byte[] artifactRecord(long id, long time, long pid, String kind, String path, long prev) {
+        return record(ARTIFACT, id, time, pid, out -> {
+            out.writeUTF(kind);
+            out.writeUTF(path);
+            out.writeLong(prev);
+        });
+    }
+
+    // first slot whose sort key is >= {@code time}
+    private static int lowerBound(long time) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index.getLong(INDEX_HEADER + mid * ENTRY + E_SORT) < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Runs started in [{@code from}, {@code to}] (either may be null), newest first, optionally only
+     * of {@code jar}. {@code cursor} is the {@code next} value of the previous page.
+     */
+    public static synchronized Map<String, Object> query(Long from, Long to, String jar, Long cursor, int limit) throws IOException {
+        List<Map<String, Object>> entries = new ArrayList<>();
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("entries", entries);
+        if (!enabled) return page;
+        int hi = to == null || to == Long.MAX_VALUE ? count : lowerBound(to + 1);
+        if (cursor != null) hi = (int) Math.min(hi, Math.max(0, cursor));
+        int lo = from == null ? 0 : lowerBound(from);
+        int jarHash = jar == null ? 0 : jar.hashCode();
+        int slot = hi - 1;
+        for (; slot >= lo && entries.size() < limit; slot--) {
+            int e = INDEX_HEADER + slot * ENTRY;
+            long start = index.getLong(e + E_START);
+            if ((from != null && start < from) || (to != null && start > to)) continue;
+            if (jar != null && index.getInt(e + E_JAR) != jarHash) continue;
+            Map<String, Object> run = entry(slot);
+            if (jar != null && !jar.equals(run.get("jar"))) continue;
+            entries.add(run);
+        }
+        if (slot >= lo) page.put("next", slot + 1);
+        return page;
+    }
+
+    /** The latest journaled run of process {@code id}, or null. */
+    public static synchronized Map<String, Object> latest(long id) throws IOException {
+        if (!enabled) return null;
+        Integer slot = runs.get(id);
+        if (slot != null) return entry(slot);
+        for (int s = count - 1; s >= 0; s--) {
+            if (index.getLong(INDEX_HEADER + s * ENTRY + E_ID) == id) return entry(s);
+        }
+        return null;
+    }
+
+    private static Map<String, Object> entry(int slot) throws IOException {
+        int e = INDEX_HEADER + slot * ENTRY;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readBody(journal, index.getLong(e + E_OFFSET))));
+        in.readByte();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", in.readLong());
+        m.put("startTime", in.readLong());
+        m.put("pid", in.readLong());
+        int restarts = in.readInt();
+        m.put("jar", in.readUTF());
+        List<String> cmd = new ArrayList<>();
+        for (int n = in.readInt(); n > 0; n--) cmd.add(in.readUTF());
+        m.put("stopTime", index.getLong(e + E_STOP));
+        m.put("exitCode", index.getInt(e + E_EXIT));
+        m.put("restarts", restarts);
+        m.put("cmd", cmd);
+        List<Map<String, Object>> artifacts = new ArrayList<>();
+        for (long pos = index.getLong(e + E_ARTIFACT); pos >= 0; ) {
+            DataInputStream a = new DataInputStream(new ByteArrayInputStream(readBody(journal, pos)));
+            a.readByte();
+            a.readLong();
+            long time = a.readLong();
+            a.readLong();
+            Map<String, Object> art = new LinkedHashMap<>();
+            art.put("kind", a.readUTF());
+            art.put("path", a.readUTF());
+            art.put("time", time);
+            artifacts.add(0, art);
+            pos = a.readLong();
+        }
+        m.put("artifacts", artifacts);
+        return m;
+    }
+
+    /**
+     * Rewrites the journal without runs that started before PROCESS_JOURNAL_RETENTION_MS or beyond
+     * the newest PROCESS_JOURNAL_MAX_RUNS, folding each kept run's events into at most one record
+     * each. Runs whose process is still running are kept whatever their age, so their exit is not
+     * lost. Both files are written aside and renamed into place; a crash in between leaves a journal
+     * and an index of different generations, and the index is rebuilt on the next start.
+     */
+    public static synchronized void compact() throws IOException {
+        if (!enabled) return;
+        int first = Math.max(lowerBound(System.currentTimeMillis() - RETENTION_MS), count - MAX_RUNS);
+        if (first <= 0) return;
+        List<Integer> kept = new ArrayList<>();
+        for (int slot = 0; slot < first; slot++) {
+            if (running(index, slot)) kept.add(slot);
+        }
+        if (kept.size() == first) return;
+        for (int slot = first; slot < count; slot++) kept.add(slot);
+        FileChannel oldJournal = journal;
+        FileChannel oldIndexChannel = indexChannel;
+        MappedByteBuffer oldIndex = index;
+        int oldCount = count;
+        long keptMaxId = maxId;
+        Map<Long, Integer> oldRuns = new HashMap<>(runs);
+        Path journalTmp = DIR.resolve("journal.log.tmp");
+        Path indexTmp = DIR.resolve("journal.idx.tmp");
+        long generation = ThreadLocalRandom.current().nextLong();
+        try {
+            journal = FileChannel.open(journalTmp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            writeJournalHeader(journal, generation);
+            indexChannel = FileChannel.open(indexTmp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            mapIndex(Math.max(1024, kept.size()));
+            index.putInt(0, INDEX_MAGIC);
+            index.putLong(8, generation);
+            count = 0;
+            runs.clear();
+            for (int slot : kept) {
+                int e = INDEX_HEADER + slot * ENTRY;
+                long id = oldIndex.getLong(e + E_ID);
+                long pid = oldIndex.getLong(e + E_PID);
+                append(readBody(oldJournal, oldIndex.getLong(e + E_OFFSET)));
+                List<Long> chain = new ArrayList<>();
+                for (long pos = oldIndex.getLong(e + E_ARTIFACT); pos >= 0; ) {
+                    chain.add(0, pos);
+                    DataInputStream a = new DataInputStream(new ByteArrayInputStream(readBody(oldJournal, pos)));
+                    a.skipBytes(25);
+                    a.readUTF();
+                    a.readUTF();
+                    pos = a.readLong();
+                }
+                for (long pos : chain) {
+                    DataInputStream a = new DataInputStream(new ByteArrayInputStream(readBody(oldJournal, pos)));
+                    a.skipBytes(9);
+                    long time = a.readLong();
+                    a.readLong();
+                    long prev = index.getLong(INDEX_HEADER + (count - 1) * ENTRY + E_ARTIFACT);
+                    append(artifactRecord(id, time, pid, a.readUTF(), a.readUTF(), prev));
+                }
+                long stop = oldIndex.getLong(e + E_STOP);
+                int exit = oldIndex.getInt(e + E_EXIT);
+                if (exit != -1) append(record(EXIT, id, stop, pid, out -> out.writeInt(exit)));
+                else if (stop >= 0) append(record(STOP, id, stop, pid, null));
+            }
+            maxId = keptMaxId;
+            index.putLong(24, maxId);
+            index.force();
+            journal.force(true);
+            Files.move(indexTmp, DIR.resolve("journal.idx"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(journalTmp, DIR.resolve("journal.log"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            if (journal != oldJournal) journal.close();
+            if (indexChannel != oldIndexChannel) indexChannel.close();
+            journal = oldJournal;
+            indexChannel = oldIndexChannel;
+            index = oldIndex;
+            count = oldCount;
+            maxId = keptMaxId;
+            runs.clear();
+            runs.putAll(oldRuns);
+            throw e;
+        }
+        oldJournal.close();
+        oldIndexChannel.close();
+    }
+
+    // no exit or stop journaled, and the pid is still alive
+    private static boolean running(MappedByteBuffer idx, int slot) {
+        int e = INDEX_HEADER + slot * ENTRY;
+        if (idx.getLong(e + E_STOP) >= 0 || idx.getInt(e + E_EXIT) != -1) return false;
+        return ProcessHandle.of(idx.getLong(e + E_PID)).map(ProcessHandle::isAlive).orElse(false);
+    }
+}
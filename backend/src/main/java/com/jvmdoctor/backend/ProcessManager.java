@@ -1,29 +1,25 @@
 package com.jvmdoctor.backend;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.Deque;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
 
 public class ProcessManager {
     private static final Map<Long, ManagedProcess> processes = new ConcurrentHashMap<>();
     private static final int MAX_PROCESSES = Integer.parseInt(System.getenv().getOrDefault("MAX_PROCESSES", "20"));
-    // simple in-memory log tail storage for each process
-    private static final Map<Long, Deque<String>> logBuffers = new ConcurrentHashMap<>();
-    private static final Map<Long, CopyOnWriteArrayList<SseEmitter>> logEmitters = new ConcurrentHashMap<>();
+    private static final int LOG_BUFFER_LINES = Integer.parseInt(System.getenv().getOrDefault("LOG_BUFFER_LINES", "500"));
+    // in-memory log tail for each process
+    private static final Map<Long, LogRingBuffer> logBuffers = new ConcurrentHashMap<>();
+    private static final Map<Long, LogIndex> logIndexes = new ConcurrentHashMap<>();
     private static final Map<Long, ProcessHistory> history = new ConcurrentHashMap<>();
-    private static final AtomicLong idGen = new AtomicLong(1);
+    // ids continue from the journal so history entries from earlier runs of the backend stay distinct
+    private static final AtomicLong idGen = new AtomicLong(ProcessJournal.maxId() + 1);
 
     public static class ManagedProcess {
         public final long id;
@@ -32,18 +28,37 @@ public class ProcessManager {
         public final int port;
         public final String jarPath;
         public final List<String> args = new ArrayList<>();
+        public final RestartPolicy restartPolicy;
+        public final int restarts;
+        public final long startTime = System.currentTimeMillis();
+        final int consecutiveRestarts;
+        volatile boolean stopRequested;
+        volatile ScheduledFuture<?> pendingRestart;
 
         ManagedProcess(long id, Process process, int port, String jarPath, List<String> args) {
+            this(id, process, port, jarPath, args, RestartPolicy.NEVER, 0, 0);
+        }
+
+        ManagedProcess(long id, Process process, int port, String jarPath, List<String> args,
+                       RestartPolicy restartPolicy, int restarts, int consecutiveRestarts) {
             this.id = id;
             this.process = process;
             this.pid = process.pid();
             this.port = port;
             this.jarPath = jarPath;
             this.args.addAll(args);
+            this.restartPolicy = restartPolicy;
+            this.restarts = restarts;
+            this.consecutiveRestarts = consecutiveRestarts;
         }
     }
 
     public static ManagedProcess startProcess(String jarPath, int agentPort, List<String> extraArgs, String agentJar) throws IOException {
+        return startProcess(jarPath, agentPort, extraArgs, agentJar, RestartPolicy.NEVER);
+    }
+
+    public static ManagedProcess startProcess(String jarPath, int agentPort, List<String> extraArgs, String agentJar,
+                                              RestartPolicy restartPolicy) throws IOException {
         if (processes.size() >= MAX_PROCESSES) {
             throw new IOException("max processes reached");
         }
@@ -84,40 +99,57 @@ public class ProcessManager {
         pb.redirectErrorStream(true);
         Process p = pb.start();
 
-        ManagedProcess mp = new ManagedProcess(id, p, agentPort, jarPath, cmd);
+        ManagedProcess mp = new ManagedProcess(id, p, agentPort, jarPath, cmd, restartPolicy, 0, 0);
         processes.put(id, mp);
         history.put(id, new ProcessHistory(id, jarPath, mp.pid, System.currentTimeMillis(), mp.args));
-        logBuffers.put(id, new ConcurrentLinkedDeque<>());
-        logEmitters.put(id, new CopyOnWriteArrayList<>());
-
-        // consume output so child doesn't block
-        new Thread(() -> {
-            try (InputStream is = p.getInputStream();
-                 BufferedReader r = new BufferedReader(new InputStreamReader(is))) {
-                String line;
-                while ((line = r.readLine()) != null) {
-                    System.out.println("[proc-" + id + "] " + line);
-                    Deque<String> buffer = logBuffers.get(id);
-                    if (buffer != null) {
-                        buffer.addLast(line);
-                        if (buffer.size() > 500) buffer.removeFirst();
-                    }
-                    // dispatch to emitters
-                    CopyOnWriteArrayList<SseEmitter> emitters = logEmitters.get(id);
-                    if (emitters != null) {
-                        for (SseEmitter e : emitters) {
-                            try { e.send(SseEmitter.event().data(line)); } catch (Exception ignore) {}
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                // ignore
-            }
-        }, "proc-output-" + id).start();
+        ProcessJournal.started(mp);
+        LogRingBuffer buffer = new LogRingBuffer(LOG_BUFFER_LINES);
+        LogIndex index = new LogIndex(buffer);
+        logBuffers.put(id, buffer);
+        logIndexes.put(id, index);
+        LogFanout.open(id);
+        ProcessSupervisor.supervise(mp, buffer, index);
+
+        return mp;
+    }
 
+    /** Starts a fresh instance of {@code old} under the same id. Returns null if the process was stopped meanwhile. */
+    static ManagedProcess respawn(ManagedProcess old, int consecutiveRestarts) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(old.args);
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        ManagedProcess mp = new ManagedProcess(old.id, p, old.port, old.jarPath, old.args,
+            old.restartPolicy, old.restarts + 1, consecutiveRestarts);
+        if (!processes.replace(old.id, old, mp)) {
+            p.destroy();
+            return null;
+        }
+        JmxConnectionPool.evict(old.pid);
+        ProcessHistory h = new ProcessHistory(old.id, old.jarPath, mp.pid, mp.startTime, mp.args);
+        h.restarts = mp.restarts;
+        history.put(old.id, h);
+        ProcessJournal.started(mp);
+        ProcessSupervisor.supervise(mp, logBuffers.get(old.id), logIndexes.get(old.id));
         return mp;
     }
 
+    /**
+     * Drops a process that exited on its own from the live set so it no longer counts against
+     * MAX_PROCESSES. The log tail stays queryable until {@link #forgetLogs} runs.
+     */
+    static boolean release(ManagedProcess mp) {
+        if (!processes.remove(mp.id, mp)) return false;
+        JmxConnectionPool.evict(mp.pid);
+        LogFanout.close(mp.id);
+        return true;
+    }
+
+    static void forgetLogs(long id) {
+        if (processes.containsKey(id)) return;
+        logBuffers.remove(id);
+        logIndexes.remove(id);
+    }
+
     public static List<ManagedProcess> listProcesses() {
         return Collections.unmodifiableList(new ArrayList<>(processes.values()));
     }
@@ -125,50 +157,45 @@ public class ProcessManager {
     public static boolean stopProcess(long id) {
         ManagedProcess mp = processes.remove(id);
         if (mp == null) return false;
+        mp.stopRequested = true;
+        ProcessSupervisor.cancelRestart(mp);
+        JmxConnectionPool.evict(mp.pid);
         mp.process.destroy();
         var h = history.get(id);
-        if (h != null) h.setStopTime(System.currentTimeMillis());
+        long now = System.currentTimeMillis();
+        if (h != null) h.setStopTime(now);
+        ProcessJournal.stopped(id, mp.pid, now);
         logBuffers.remove(id);
-        CopyOnWriteArrayList<SseEmitter> emitters = logEmitters.remove(id);
-        if (emitters != null) {
-            for (SseEmitter e : emitters) {
-                try { e.complete(); } catch (Exception ignore) {}
-            }
-        }
+        logIndexes.remove(id);
+        LogFanout.close(id);
         return true;
     }
 
-    public static Deque<String> getLogBuffer(long id) {
+    public static LogRingBuffer getLogBuffer(long id) {
         return logBuffers.get(id);
     }
 
     public static ProcessHistory getProcessHistory(long id) { return history.get(id); }
 
+    /** Newest-first lines containing {@code contains} (all lines if null), at most {@code limit}. */
     public static List<String> queryLogs(long id, String contains, int limit) {
-        Deque<String> buf = logBuffers.get(id);
-        if (buf == null) return List.of();
-        List<String> filtered = buf.stream().filter(s -> contains == null || s.contains(contains)).collect(Collectors.toList());
-        int start = Math.max(0, filtered.size() - limit);
-        return filtered.subList(start, filtered.size());
+        LogIndex index = logIndexes.get(id);
+        return index == null ? List.of() : index.searchContains(contains, limit);
     }
     
+    /** Newest-first lines matching {@code regex}, at most {@code limit}. */
     public static List<String> queryLogsRegex(long id, String regex, boolean ignoreCase, int limit) {
-        Deque<String> buf = logBuffers.get(id);
-        if (buf == null) return List.of();
-        int flags = ignoreCase ? java.util.regex.Pattern.CASE_INSENSITIVE : 0;
-        java.util.regex.Pattern p = java.util.regex.Pattern.compile(regex, flags);
-        List<String> filtered = buf.stream().filter(s -> p.matcher(s).find()).collect(Collectors.toList());
-        int start = Math.max(0, filtered.size() - limit);
-        return filtered.subList(start, filtered.size());
+        LogIndex index = logIndexes.get(id);
+        return index == null ? List.of() : index.searchRegex(regex, ignoreCase, limit);
     }
 
-    public static SseEmitter registerLogEmitter(long id) {
-        SseEmitter emitter = new SseEmitter(Long.MAX_VALUE);
-        var emitters = logEmitters.get(id);
-        if (emitters == null) return null;
-        emitters.add(emitter);
-        emitter.onCompletion(() -> emitters.remove(emitter));
-        emitter.onTimeout(() -> emitters.remove(emitter));
-        return emitter;
+    /**
+     * Subscribes an SSE client to the process log. The client first receives every retained line
+     * after {@code afterSeq} (0 for the whole buffer), then new lines as they arrive.
+     */
+    public static SseEmitter registerLogEmitter(long id, long afterSeq, LogSubscriber.OverflowPolicy policy) {
+        LogRingBuffer buffer = logBuffers.get(id);
+        if (buffer == null) return null;
+        return LogFanout.subscribe(id, buffer, afterSeq, policy);
     }
 }
@@ -0,0 +1,101 @@
+package com.jvmdoctor.backend;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches managed processes: reads their output on a virtual thread, observes exits through
+ * {@link Process#onExit()}, records exit code and stop time, and then either restarts the process
+ * according to its {@link RestartPolicy} or releases everything held for it.
+ */
+public class ProcessSupervisor {
+    // how long the log tail of a process that exited on its own stays queryable
+    private static final long EXITED_LOG_RETENTION_MS = Long.parseLong(System.getenv().getOrDefault("EXITED_LOG_RETENTION_MS", "600000"));
+    private static final long READER_DRAIN_TIMEOUT_MS = 5000;
+
+    private static final ExecutorService exitHandlers = Executors.newVirtualThreadPerTaskExecutor();
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "process-supervisor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static void supervise(ProcessManager.ManagedProcess mp, LogRingBuffer buffer, LogIndex index) {
+        Thread reader = Thread.ofVirtual().name("proc-output-" + mp.id).start(() -> readOutput(mp, buffer, index));
+        mp.process.onExit().whenCompleteAsync((p, err) -> onExit(mp, reader, buffer, index), exitHandlers);
+    }
+
+    static void cancelRestart(ProcessManager.ManagedProcess mp) {
+        var pending = mp.pendingRestart;
+        if (pending != null) pending.cancel(false);
+    }
+
+    // consume output so child doesn't block
+    private static void readOutput(ProcessManager.ManagedProcess mp, LogRingBuffer buffer, LogIndex index) {
+        try (InputStream is = mp.process.getInputStream();
+             BufferedReader r = new BufferedReader(new InputStreamReader(is))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                System.out.println("[proc-" + mp.id + "] " + line);
+                // subscribers are served by LogFanout from the buffer; nothing here waits on a client
+                index.add(buffer.append(line), line);
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void onExit(ProcessManager.ManagedProcess mp, Thread reader, LogRingBuffer buffer, LogIndex index) {
+        try {
+            // let the reader drain what the process wrote before it died; it is the buffer's only writer
+            reader.join(READER_DRAIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int code = mp.process.exitValue();
+        long now = System.currentTimeMillis();
+        ProcessHistory h = ProcessManager.getProcessHistory(mp.id);
+        if (h != null && h.pid == mp.pid) h.recordExit(code, now);
+        ProcessJournal.exited(mp.id, mp.pid, code, now);
+        if (mp.stopRequested) return;
+
+        RestartPolicy policy = mp.restartPolicy;
+        // a run that outlived the longest backoff counts as healthy; start the backoff over
+        int consecutive = now - mp.startTime > policy.maxBackoffMs ? 0 : mp.consecutiveRestarts;
+        boolean canLog = !reader.isAlive();
+        if (policy.shouldRestart(code, consecutive)) {
+            long delay = policy.backoffMs(consecutive);
+            if (canLog) note(buffer, index, "process exited with code " + code + "; restarting in " + delay + " ms");
+            mp.pendingRestart = scheduler.schedule(() -> restart(mp, consecutive + 1, buffer, index, canLog), delay, TimeUnit.MILLISECONDS);
+        } else {
+            if (canLog) note(buffer, index, "process exited with code " + code);
+            release(mp);
+        }
+    }
+
+    private static void restart(ProcessManager.ManagedProcess old, int consecutive, LogRingBuffer buffer, LogIndex index, boolean canLog) {
+        if (old.stopRequested) return;
+        try {
+            ProcessManager.respawn(old, consecutive);
+        } catch (IOException e) {
+            if (canLog) note(buffer, index, "restart failed: " + e.getMessage());
+            release(old);
+        }
+    }
+
+    private static void release(ProcessManager.ManagedProcess mp) {
+        if (!ProcessManager.release(mp)) return;
+        scheduler.schedule(() -> ProcessManager.forgetLogs(mp.id), EXITED_LOG_RETENTION_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void note(LogRingBuffer buffer, LogIndex index, String message) {
+        String line = "[jvmdoctor] " + message;
+        index.add(buffer.append(line), line);
+    }
+}
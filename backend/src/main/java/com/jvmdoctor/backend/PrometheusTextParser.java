@@ -0,0 +1,245 @@
+package com.jvmdoctor.backend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parses the Prometheus text exposition format straight from the request bytes. Sample lines are
+ * reported as offsets into the buffer so the caller can look the series up without building a
+ * String per line; strings are only created for series seen for the first time.
+ */
+public final class PrometheusTextParser {
+
+    public interface SampleSink {
+        /**
+         * @param buf       the payload
+         * @param start     start of the series text ({@code name{labels}})
+         * @param nameEnd   end of the metric name
+         * @param end       end of the series text
+         * @param value     sample value
+         * @param timestamp explicit timestamp in ms, or {@code Long.MIN_VALUE} if the line had none
+         */
+        void sample(byte[] buf, int start, int nameEnd, int end, double value, long timestamp);
+    }
+
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private PrometheusTextParser() {}
+
+    /** Parses {@code buf[0, len)} and returns the number of samples reported. Malformed lines are skipped. */
+    public static int parse(byte[] buf, int len, SampleSink sink) {
+        int samples = 0;
+        int pos = 0;
+        while (pos < len) {
+            int eol = pos;
+            while (eol < len && buf[eol] != '\n') eol++;
+            int lineEnd = eol > pos && buf[eol - 1] == '\r' ? eol - 1 : eol;
+            if (parseLine(buf, pos, lineEnd, sink)) samples++;
+            pos = eol + 1;
+        }
+        return samples;
+    }
+
+    private static boolean parseLine(byte[] buf, int pos, int end, SampleSink sink) {
+        while (pos < end && isBlank(buf[pos])) pos++;
+        if (pos >= end || buf[pos] == '#') return false;
+
+        int start = pos;
+        while (pos < end && buf[pos] != '{' && !isBlank(buf[pos])) pos++;
+        int nameEnd = pos;
+        if (nameEnd == start) return false;
+        if (pos < end && buf[pos] == '{') {
+            pos = skipLabels(buf, pos + 1, end);
+            if (pos < 0) return false;
+        }
+        int seriesEnd = pos;
+
+        while (pos < end && isBlank(buf[pos])) pos++;
+        int valueStart = pos;
+        while (pos < end && !isBlank(buf[pos])) pos++;
+        if (pos == valueStart) return false;
+        double value = parseDouble(buf, valueStart, pos);
+        if (value != value && !isNaNToken(buf, valueStart, pos)) return false;
+
+        while (pos < end && isBlank(buf[pos])) pos++;
+        long timestamp = Long.MIN_VALUE;
+        if (pos < end) {
+            timestamp = parseLong(buf, pos, end);
+            if (timestamp == Long.MIN_VALUE) return false;
+        }
+        sink.sample(buf, start, nameEnd, seriesEnd, value, timestamp);
+        return true;
+    }
+
+    /** Returns the offset just past the closing brace, or -1 if the label block is unterminated. */
+    private static int skipLabels(byte[] buf, int pos, int end) {
+        boolean quoted = false;
+        while (pos < end) {
+            byte b = buf[pos];
+            if (quoted) {
+                if (b == '\\') pos++;
+                else if (b == '"') quoted = false;
+            } else if (b == '"') {
+                quoted = true;
+            } else if (b == '}') {
+                return pos + 1;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the series text of a sample into its metric name and labels. Only called when a series
+     * is first seen, so allocating here is fine.
+     */
+    public static String metricName(byte[] buf, int start, int nameEnd) {
+        return new String(buf, start, nameEnd - start, StandardCharsets.UTF_8);
+    }
+
+    public static Map<String, String> labels(byte[] buf, int nameEnd, int end) {
+        Map<String, String> labels = new LinkedHashMap<>();
+        int pos = nameEnd;
+        if (pos >= end || buf[pos] != '{') return labels;
+        pos++;
+        StringBuilder value = new StringBuilder();
+        while (pos < end) {
+            while (pos < end && (buf[pos] == ',' || isBlank(buf[pos]))) pos++;
+            if (pos >= end || buf[pos] == '}') break;
+            int keyStart = pos;
+            while (pos < end && buf[pos] != '=' && !isBlank(buf[pos])) pos++;
+            String key = new String(buf, keyStart, pos - keyStart, StandardCharsets.UTF_8);
+            while (pos < end && buf[pos] != '"') pos++;
+            pos++;
+            value.setLength(0);
+            int runStart = pos;
+            while (pos < end && buf[pos] != '"') {
+                if (buf[pos] == '\\' && pos + 1 < end) {
+                    value.append(new String(buf, runStart, pos - runStart, StandardCharsets.UTF_8));
+                    byte esc = buf[pos + 1];
+                    value.append(esc == 'n' ? '\n' : (char) esc);
+                    pos += 2;
+                    runStart = pos;
+                } else {
+                    pos++;
+                }
+            }
+            value.append(new String(buf, runStart, Math.min(pos, end) - runStart, StandardCharsets.UTF_8));
+            pos++;
+            labels.put(key, value.toString());
+        }
+        return labels;
+    }
+
+    /**
+     * Parses a decimal float without allocating. Values with at most 15 significant digits and a small
+     * exponent are exact (a single correctly rounded multiply or divide); anything else, including
+     * {@code +Inf}/{@code NaN}, falls back to {@link Double#parseDouble}.
+     */
+    static double parseDouble(byte[] buf, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (buf[pos] == '-' || buf[pos] == '+') {
+            negative = buf[pos] == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDigit = false;
+        boolean seenDot = false;
+        for (; pos < end; pos++) {
+            byte b = buf[pos];
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                if (mantissa == 0 && b == '0') {
+                    if (seenDot) scale--;
+                    continue;
+                }
+                if (digits >= 18) {
+                    if (!seenDot) scale++;
+                    digits++;
+                    continue;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (seenDot) scale--;
+            } else if (b == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                break;
+            }
+        }
+        if (!seenDigit) return slowParse(buf, start, end);
+        if (pos < end) {
+            byte b = buf[pos];
+            if (b != 'e' && b != 'E') return slowParse(buf, start, end);
+            pos++;
+            boolean expNegative = false;
+            if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+                expNegative = buf[pos] == '-';
+                pos++;
+            }
+            if (pos >= end) return slowParse(buf, start, end);
+            int exp = 0;
+            for (; pos < end; pos++) {
+                b = buf[pos];
+                if (b < '0' || b > '9' || exp > 10000) return slowParse(buf, start, end);
+                exp = exp * 10 + (b - '0');
+            }
+            scale += expNegative ? -exp : exp;
+        }
+        if (digits > 15) return slowParse(buf, start, end);
+        double d = mantissa;
+        if (mantissa != 0) {
+            if (scale < 0 && scale >= -22) d = d / POW10[-scale];
+            else if (scale > 0 && scale <= 22) d = d * POW10[scale];
+            else if (scale != 0) return slowParse(buf, start, end);
+        }
+        return negative ? -d : d;
+    }
+
+    private static double slowParse(byte[] buf, int start, int end) {
+        String s = new String(buf, start, end - start, StandardCharsets.US_ASCII);
+        switch (s) {
+            case "+Inf": case "Inf": return Double.POSITIVE_INFINITY;
+            case "-Inf": return Double.NEGATIVE_INFINITY;
+            case "NaN": return Double.NaN;
+            default:
+                try {
+                    return Double.parseDouble(s);
+                } catch (NumberFormatException e) {
+                    return Double.NaN;
+                }
+        }
+    }
+
+    private static boolean isNaNToken(byte[] buf, int start, int end) {
+        return end - start == 3 && buf[start] == 'N' && buf[start + 1] == 'a' && buf[start + 2] == 'N';
+    }
+
+    private static long parseLong(byte[] buf, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (buf[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        if (pos >= end || end - pos > 18) return Long.MIN_VALUE;
+        long v = 0;
+        for (; pos < end; pos++) {
+            byte b = buf[pos];
+            if (b < '0' || b > '9') return Long.MIN_VALUE;
+            v = v * 10 + (b - '0');
+        }
+        return negative ? -v : v;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -0,0 +1,58 @@
+package com.jvmdoctor.backend;
+
+import java.util.Map;
+
+/** When and how quickly {@link ProcessSupervisor} restarts a managed process that exits on its own. */
+public class RestartPolicy {
+    public enum Mode { NEVER, ON_FAILURE, ALWAYS }
+
+    public static final RestartPolicy NEVER = new RestartPolicy(Mode.NEVER, 0, 1000L, 60_000L);
+
+    public final Mode mode;
+    public final int maxRestarts;
+    public final long initialBackoffMs;
+    public final long maxBackoffMs;
+
+    public RestartPolicy(Mode mode, int maxRestarts, long initialBackoffMs, long maxBackoffMs) {
+        this.mode = mode;
+        this.maxRestarts = maxRestarts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = Math.max(initialBackoffMs, maxBackoffMs);
+    }
+
+    /** Reads {@code restartPolicy} ("never", "on-failure", "always"), {@code maxRestarts}, {@code restartBackoffMs} and {@code maxRestartBackoffMs}. */
+    public static RestartPolicy fromConfig(Map<String, Object> cfg) {
+        Object m = cfg.get("restartPolicy");
+        if (m == null) return NEVER;
+        Mode mode;
+        switch (m.toString().toLowerCase().replace('_', '-')) {
+            case "always": mode = Mode.ALWAYS; break;
+            case "on-failure": mode = Mode.ON_FAILURE; break;
+            case "never": return NEVER;
+            default: throw new IllegalArgumentException("unknown restartPolicy: " + m);
+        }
+        int max = cfg.containsKey("maxRestarts") ? ((Number) cfg.get("maxRestarts")).intValue() : 5;
+        long backoff = cfg.containsKey("restartBackoffMs") ? ((Number) cfg.get("restartBackoffMs")).longValue() : 1000L;
+        long maxBackoff = cfg.containsKey("maxRestartBackoffMs") ? ((Number) cfg.get("maxRestartBackoffMs")).longValue() : 60_000L;
+        return new RestartPolicy(mode, max, backoff, maxBackoff);
+    }
+
+    boolean shouldRestart(int exitCode, int consecutiveRestarts) {
+        if (consecutiveRestarts >= maxRestarts) return false;
+        switch (mode) {
+            case ALWAYS: return true;
+            case ON_FAILURE: return exitCode != 0;
+            default: return false;
+        }
+    }
+
+    /** Exponential backoff: initial, 2x, 4x, ... capped at the maximum. */
+    long backoffMs(int consecutiveRestarts) {
+        long delay = initialBackoffMs << Math.min(consecutiveRestarts, 20);
+        return delay <= 0 || delay > maxBackoffMs ? maxBackoffMs : delay;
+    }
+
+    public String name() {
+        return mode.name().toLowerCase().replace('_', '-');
+    }
+}
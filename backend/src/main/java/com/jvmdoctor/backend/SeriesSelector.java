@@ -0,0 +1,139 @@
+package com.jvmdoctor.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A PromQL-style series selector: {@code name{label="v", label!="v", label=~"re", label!~"re"}},
+ * optionally wrapped as {@code rate(selector[window])} with the window in s, m, h or d.
+ */
+public class SeriesSelector {
+    public final String name;
+    public final List<Matcher> matchers;
+    // 0 for a plain selector
+    public final long rateWindowMs;
+    public final boolean rate;
+
+    public static class Matcher {
+        public final String label;
+        public final String op;
+        public final String value;
+        private final Pattern pattern;
+
+        Matcher(String label, String op, String value) {
+            this.label = label;
+            this.op = op;
+            this.value = value;
+            // anchored, as in PromQL
+            this.pattern = op.endsWith("~") ? Pattern.compile(value) : null;
+        }
+
+        boolean matches(Map<String, String> labels) {
+            String v = labels.getOrDefault(label, "");
+            switch (op) {
+                case "=": return v.equals(value);
+                case "!=": return !v.equals(value);
+                case "=~": return pattern.matcher(v).matches();
+                default: return !pattern.matcher(v).matches();
+            }
+        }
+    }
+
+    private SeriesSelector(String name, List<Matcher> matchers, boolean rate, long rateWindowMs) {
+        this.name = name;
+        this.matchers = matchers;
+        this.rate = rate;
+        this.rateWindowMs = rateWindowMs;
+    }
+
+    public boolean matches(Map<String, String> labels) {
+        for (Matcher m : matchers) {
+            if (!m.matches(labels)) return false;
+        }
+        return true;
+    }
+
+    /** Parses {@code query}; throws IllegalArgumentException with the reason if it is malformed. */
+    public static SeriesSelector parse(String query) {
+        String q = query.trim();
+        boolean rate = false;
+        long window = 0;
+        if (q.startsWith("rate(") && q.endsWith(")")) {
+            rate = true;
+            q = q.substring(5, q.length() - 1).trim();
+            if (q.endsWith("]")) {
+                int open = q.lastIndexOf('[');
+                if (open < 0) throw new IllegalArgumentException("unbalanced [ in " + query);
+                window = duration(q.substring(open + 1, q.length() - 1).trim());
+                q = q.substring(0, open).trim();
+            }
+        }
+        int brace = q.indexOf('{');
+        String name = (brace < 0 ? q : q.substring(0, brace)).trim();
+        if (name.isEmpty() || !name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*")) throw new IllegalArgumentException("bad metric name in " + query);
+        List<Matcher> matchers = new ArrayList<>();
+        if (brace >= 0) {
+            if (!q.endsWith("}")) throw new IllegalArgumentException("unbalanced { in " + query);
+            parseMatchers(q.substring(brace + 1, q.length() - 1), matchers, query);
+        }
+        return new SeriesSelector(name, matchers, rate, window);
+    }
+
+    private static void parseMatchers(String body, List<Matcher> out, String query) {
+        int i = 0;
+        int n = body.length();
+        while (true) {
+            while (i < n && (body.charAt(i) == ' ' || body.charAt(i) == ',')) i++;
+            if (i >= n) return;
+            int start = i;
+            while (i < n && (Character.isLetterOrDigit(body.charAt(i)) || body.charAt(i) == '_')) i++;
+            String label = body.substring(start, i);
+            while (i < n && body.charAt(i) == ' ') i++;
+            String op;
+            if (body.startsWith("=~", i) || body.startsWith("!=", i) || body.startsWith("!~", i)) op = body.substring(i, i + 2);
+            else if (i < n && body.charAt(i) == '=') op = "=";
+            else throw new IllegalArgumentException("expected a matcher at " + start + " in " + query);
+            i += op.length();
+            while (i < n && body.charAt(i) == ' ') i++;
+            if (label.isEmpty() || i >= n || body.charAt(i) != '"') throw new IllegalArgumentException("expected a quoted value at " + i + " in " + query);
+            StringBuilder value = new StringBuilder();
+            i++;
+            while (i < n && body.charAt(i) != '"') {
+                char c = body.charAt(i++);
+                if (c == '\\' && i < n) {
+                    char e = body.charAt(i++);
+                    value.append(e == 'n' ? '\n' : e);
+                } else {
+                    value.append(c);
+                }
+            }
+            if (i >= n) throw new IllegalArgumentException("unterminated string in " + query);
+            i++;
+            try {
+                out.add(new Matcher(label, op, value.toString()));
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("bad regex for " + label + ": " + e.getDescription());
+            }
+        }
+    }
+
+    static long duration(String s) {
+        if (s.length() < 2) throw new IllegalArgumentException("bad range " + s);
+        long unit;
+        switch (s.charAt(s.length() - 1)) {
+            case 's': unit = 1000L; break;
+            case 'm': unit = 60_000L; break;
+            case 'h': unit = 3_600_000L; break;
+            case 'd': unit = 86_400_000L; break;
+            default: throw new IllegalArgumentException("bad range unit in " + s);
+        }
+        try {
+            return Long.parseLong(s.substring(0, s.length() - 1)) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad range " + s);
+        }
+    }
+}
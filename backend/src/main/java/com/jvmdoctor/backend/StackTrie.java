@@ -0,0 +1,289 @@
+package com.jvmdoctor.backend;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Call stacks folded into a prefix tree. Frame names are interned to ints and nodes live in parallel
+ * primitive arrays, with a (parent, frame) hash table for child lookup, so a trie holding millions of
+ * samples stays a few arrays. A node's parent always has a smaller index than the node, which makes
+ * merging and bottom-up passes single loops. Writes collapsed stacks, an SVG flame graph, or the
+ * d3-flame-graph JSON format.
+ */
+public class StackTrie {
+    private final List<String> frames = new ArrayList<>();
+    private final Map<String, Integer> frameIds = new HashMap<>();
+
+    private int[] parent = new int[1024];
+    private int[] frame = new int[1024];
+    private long[] self = new long[1024];
+    private int size = 1;
+
+    // (parent, frame) -> node + 1
+    private long[] keys = new long[2048];
+    private int[] values = new int[2048];
+
+    public StackTrie() {
+        parent[0] = -1;
+        frame[0] = -1;
+    }
+
+    public int frameId(String name) {
+        Integer id = frameIds.get(name);
+        if (id != null) return id;
+        frames.add(name);
+        frameIds.put(name, frames.size() - 1);
+        return frames.size() - 1;
+    }
+
+    public int child(int node, int frameId) {
+        long key = ((long) node << 32) | frameId;
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != 0) {
+            if (keys[i] == key) return values[i] - 1;
+            i = (i + 1) & mask;
+        }
+        int n = size++;
+        if (n == parent.length) {
+            parent = Arrays.copyOf(parent, n * 2);
+            frame = Arrays.copyOf(frame, n * 2);
+            self = Arrays.copyOf(self, n * 2);
+        }
+        parent[n] = node;
+        frame[n] = frameId;
+        keys[i] = key;
+        values[i] = n + 1;
+        if (size * 2 > keys.length) rehash();
+        return n;
+    }
+
+    private static int slot(long key, int mask) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == 0) continue;
+            int i = slot(oldKeys[j], mask);
+            while (values[i] != 0) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /** Node for a stack given as frame ids from the outermost caller to the leaf, created if needed. */
+    public int node(int[] stack, int depth) {
+        int node = 0;
+        for (int i = 0; i < depth; i++) node = child(node, stack[i]);
+        return node;
+    }
+
+    public void add(int[] stack, int depth, long weight) {
+        self[node(stack, depth)] += weight;
+    }
+
+    /** Adds {@code weight} to the stack ending at {@code node}. */
+    public void addAt(int node, long weight) {
+        self[node] += weight;
+    }
+
+    /** Parses collapsed stacks ("a;b;c 42" per line), as written by {@link #writeCollapsed}. */
+    public static StackTrie fromCollapsed(String text) {
+        StackTrie trie = new StackTrie();
+        int[] stack = new int[64];
+        for (String line : text.split("\n")) {
+            int sp = line.lastIndexOf(' ');
+            if (sp <= 0) continue;
+            long weight;
+            try {
+                weight = Long.parseLong(line.substring(sp + 1).trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String[] names = line.substring(0, sp).split(";");
+            if (names.length > stack.length) stack = new int[names.length];
+            for (int i = 0; i < names.length; i++) stack[i] = trie.frameId(names[i]);
+            trie.add(stack, names.length, weight);
+        }
+        return trie;
+    }
+
+    /** Folds {@code other} into this trie. */
+    public void merge(StackTrie other) {
+        int[] frameMap = new int[other.frames.size()];
+        for (int f = 0; f < frameMap.length; f++) frameMap[f] = frameId(other.frames.get(f));
+        int[] nodeMap = new int[other.size];
+        for (int n = 1; n < other.size; n++) {
+            nodeMap[n] = child(nodeMap[other.parent[n]], frameMap[other.frame[n]]);
+        }
+        for (int n = 0; n < other.size; n++) self[nodeMap[n]] += other.self[n];
+    }
+
+    public int nodes() {
+        return size;
+    }
+
+    public int frames() {
+        return frames.size();
+    }
+
+    private long[] totals() {
+        long[] total = Arrays.copyOf(self, size);
+        for (int n = size - 1; n > 0; n--) total[parent[n]] += total[n];
+        return total;
+    }
+
+    public long total() {
+        return totals()[0];
+    }
+
+    // children of every node, ordered by frame name as flame graphs are
+    private int[][] children() {
+        int[] count = new int[size];
+        for (int n = 1; n < size; n++) count[parent[n]]++;
+        int[][] out = new int[size][];
+        for (int n = 0; n < size; n++) out[n] = new int[count[n]];
+        int[] fill = new int[size];
+        for (int n = 1; n < size; n++) out[parent[n]][fill[parent[n]]++] = n;
+        for (int[] c : out) {
+            if (c.length > 1) {
+                Integer[] boxed = new Integer[c.length];
+                for (int i = 0; i < c.length; i++) boxed[i] = c[i];
+                Arrays.sort(boxed, (a, b) -> frames.get(frame[a]).compareTo(frames.get(frame[b])));
+                for (int i = 0; i < c.length; i++) c[i] = boxed[i];
+            }
+        }
+        return out;
+    }
+
+    /** One line per distinct stack: frames joined by ';', a space, and the weight. */
+    public void writeCollapsed(Writer out) throws IOException {
+        int[][] children = children();
+        StringBuilder path = new StringBuilder();
+        for (int c : children[0]) writeCollapsed(out, c, children, path);
+    }
+
+    private void writeCollapsed(Writer out, int node, int[][] children, StringBuilder path) throws IOException {
+        int mark = path.length();
+        if (mark > 0) path.append(';');
+        path.append(frames.get(frame[node]));
+        if (self[node] > 0) out.append(path).append(' ').append(Long.toString(self[node])).append('\n');
+        for (int c : children[node]) writeCollapsed(out, c, children, path);
+        path.setLength(mark);
+    }
+
+    /** d3-flame-graph JSON; nodes below {@code minFraction} of the total are left out. */
+    public void writeJson(Writer out, double minFraction) throws IOException {
+        long[] total = totals();
+        int[][] children = children();
+        long min = (long) Math.ceil(total[0] * minFraction);
+        writeJson(out, 0, "all", total, children, min);
+    }
+
+    private void writeJson(Writer out, int node, String name, long[] total, int[][] children, long min) throws IOException {
+        out.append("{\"name\":\"").append(escapeJson(name)).append("\",\"value\":").append(Long.toString(total[node])).append(",\"children\":[");
+        boolean first = true;
+        for (int c : children[node]) {
+            if (total[c] < min || total[c] == 0) continue;
+            if (!first) out.append(',');
+            first = false;
+            writeJson(out, c, frames.get(frame[c]), total, children, min);
+        }
+        out.append("]}");
+    }
+
+    private static final int SVG_WIDTH = 1200;
+    private static final int FRAME_HEIGHT = 16;
+    private static final int TOP_MARGIN = 36;
+    private static final double MIN_FRAME_PX = 0.1;
+
+    /** Classic flame graph: callers at the bottom, width proportional to weight, hover for details. */
+    public void writeSvg(Writer out, String title, String unit) throws IOException {
+        long[] total = totals();
+        int[][] children = children();
+        double scale = total[0] == 0 ? 0 : (SVG_WIDTH - 20) / (double) total[0];
+        int depth = maxDepth(0, 0, total, children, scale);
+        int height = TOP_MARGIN + (depth + 1) * FRAME_HEIGHT + 10;
+        out.append("<?xml version=\"1.0\" standalone=\"no\"?>\n")
+           .append("<svg version=\"1.1\" width=\"").append(Integer.toString(SVG_WIDTH)).append("\" height=\"").append(Integer.toString(height))
+           .append("\" xmlns=\"http://www.w3.org/2000/svg\">\n")
+           .append("<style>text{font-family:monospace;font-size:12px;pointer-events:none}rect:hover{stroke:#000;stroke-width:0.5}</style>\n")
+           .append("<rect width=\"100%\" height=\"100%\" fill=\"#f8f8f8\"/>\n")
+           .append("<text x=\"").append(Integer.toString(SVG_WIDTH / 2)).append("\" y=\"22\" text-anchor=\"middle\" style=\"font-size:16px\">")
+           .append(escapeXml(title)).append("</text>\n");
+        writeSvg(out, 0, "all", 0, 10, height - 10, total, children, scale, unit);
+        out.append("</svg>\n");
+    }
+
+    private int maxDepth(int node, int depth, long[] total, int[][] children, double scale) {
+        int max = depth;
+        for (int c : children[node]) {
+            if (total[c] * scale < MIN_FRAME_PX) continue;
+            max = Math.max(max, maxDepth(c, depth + 1, total, children, scale));
+        }
+        return max;
+    }
+
+    private void writeSvg(Writer out, int node, String name, int depth, double x, int bottom, long[] total,
+                          int[][] children, double scale, String unit) throws IOException {
+        double w = total[node] * scale;
+        double y = bottom - (depth + 1) * FRAME_HEIGHT;
+        String pct = String.format(Locale.ROOT, "%.2f", total[0] == 0 ? 0 : 100.0 * total[node] / total[0]);
+        out.append("<g><title>").append(escapeXml(name)).append(" (").append(Long.toString(total[node])).append(' ').append(unit)
+           .append(", ").append(pct).append("%)</title><rect x=\"").append(String.format(Locale.ROOT, "%.1f", x)).append("\" y=\"")
+           .append(String.format(Locale.ROOT, "%.0f", y)).append("\" width=\"").append(String.format(Locale.ROOT, "%.1f", w)).append("\" height=\"")
+           .append(Integer.toString(FRAME_HEIGHT - 1)).append("\" fill=\"").append(color(name)).append("\"/>");
+        int chars = (int) ((w - 6) / 7);
+        if (chars >= 3) {
+            String label = name.length() <= chars ? name : name.substring(0, chars - 2) + "..";
+            out.append("<text x=\"").append(String.format(Locale.ROOT, "%.1f", x + 3)).append("\" y=\"").append(String.format(Locale.ROOT, "%.0f", y + 11)).append("\">")
+               .append(escapeXml(label)).append("</text>");
+        }
+        out.append("</g>\n");
+        double cx = x;
+        for (int c : children[node]) {
+            double cw = total[c] * scale;
+            if (cw >= MIN_FRAME_PX) writeSvg(out, c, frames.get(frame[c]), depth + 1, cx, bottom, total, children, scale, unit);
+            cx += cw;
+        }
+    }
+
+    // warm palette keyed on the frame name, so a method keeps its color across graphs
+    private static String color(String name) {
+        int h = name.hashCode();
+        int r = 205 + Math.floorMod(h, 50);
+        int g = Math.floorMod(h >>> 8, 230);
+        int b = Math.floorMod(h >>> 16, 55);
+        return "rgb(" + r + "," + g + "," + b + ")";
+    }
+
+    private static String escapeXml(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String escapeJson(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.toString();
+    }
+}
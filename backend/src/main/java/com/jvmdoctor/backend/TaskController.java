@@ -10,7 +10,13 @@ import java.util.Map;
 public class TaskController {
     @GetMapping
     public ResponseEntity<?> list() {
-        return ResponseEntity.ok(TaskManager.list().keySet());
+        return ResponseEntity.ok(TaskManager.list());
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<?> get(@PathVariable("id") long id) {
+        TaskManager.Task t = TaskManager.get(id);
+        return t == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(t.status());
     }
 
     @PostMapping("/{id}/cancel")
@@ -18,4 +24,9 @@ public class TaskController {
         boolean ok = TaskManager.cancel(id);
         return ok ? ResponseEntity.ok(Map.of("cancelled", true)) : ResponseEntity.notFound().build();
     }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<?> remove(@PathVariable("id") long id) {
+        return TaskManager.remove(id) ? ResponseEntity.ok(Map.of("removed", true)) : ResponseEntity.notFound().build();
+    }
 }
@@ -1,36 +1,268 @@
 package com.jvmdoctor.backend;
 
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Runs diagnostic tasks (profiling, heap analysis) on virtual threads. Queued tasks start in priority
+ * order, subject to a global limit, a limit per kind across the host and a limit per kind per target
+ * JVM; a task held back by a limit does not hold back the tasks behind it. Tasks report progress and
+ * are cancelled by flagging and interrupting them; a running task stays running, and counts against
+ * the limits, until its body returns. Finished tasks are kept with their result or error for
+ * {@code TASK_RESULT_TTL_MS}.
+ */
 public class TaskManager {
-    private static final ExecutorService executor = new ThreadPoolExecutor(1, 2, 60L, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<>(50), new ThreadPoolExecutor.AbortPolicy());
+    private static final int MAX_RUNNING = Integer.parseInt(System.getenv().getOrDefault("TASK_MAX_RUNNING", "4"));
+    private static final int MAX_QUEUED = Integer.parseInt(System.getenv().getOrDefault("TASK_MAX_QUEUED", "50"));
+    private static final long RESULT_TTL_MS = Long.parseLong(System.getenv().getOrDefault("TASK_RESULT_TTL_MS", "3600000"));
+    private static final int MAX_RETAINED = Integer.parseInt(System.getenv().getOrDefault("TASK_MAX_RETAINED", "1000"));
+
+    public static final String PROFILER = "profiler";
+    public static final String HEAP_DUMP = "heap-dump";
+    public static final String HEAP_ANALYSIS = "heap-analysis";
+
+    // host-wide limits per kind; unlisted kinds are bounded only by TASK_MAX_RUNNING
+    private static final Map<String, Integer> KIND_LIMITS = Map.of(
+        PROFILER, Integer.parseInt(System.getenv().getOrDefault("MAX_CONCURRENT_PROFILER_TASKS", "2")),
+        HEAP_DUMP, Integer.parseInt(System.getenv().getOrDefault("MAX_CONCURRENT_HEAP_DUMPS", "1")),
+        HEAP_ANALYSIS, Integer.parseInt(System.getenv().getOrDefault("MAX_CONCURRENT_HEAP_ANALYSES", "1")));
+    // limits per kind per target JVM: one profiler attached to a JVM at a time, one dump of it at a time
+    private static final Map<String, Integer> PID_LIMITS = Map.of(PROFILER, 1, HEAP_DUMP, 1);
+
     private static final AtomicLong idGen = new AtomicLong(1);
-    private static final Map<Long, Future<?>> tasks = new ConcurrentHashMap<>();
+    private static final Map<Long, Task> tasks = new ConcurrentHashMap<>();
+    private static final PriorityQueue<Task> queue = new PriorityQueue<>((a, b) ->
+        a.priority != b.priority ? a.priority.compareTo(b.priority) : Long.compare(a.id, b.id));
+    private static final Map<String, Integer> runningByKind = new HashMap<>();
+    private static final Map<String, Integer> runningByPid = new HashMap<>();
+    private static int running;
+
+    public enum Priority { HIGH, NORMAL, LOW }
+
+    /** The work of a task; it may report progress through, and should check for cancellation with, {@code task}. */
+    @FunctionalInterface
+    public interface Body {
+        Object run(Task task) throws Exception;
+    }
+
+    public static class Task {
+        public final long id;
+        public final String kind;
+        // the target JVM, or null for tasks that do not attach to one
+        public final Long pid;
+        public final Priority priority;
+        public final String description;
+        public final long submitted = System.currentTimeMillis();
+        private final Body body;
+        volatile String state = "queued";
+        volatile long started;
+        volatile long ended;
+        volatile double progress = -1;
+        volatile String message;
+        volatile Object result;
+        volatile String error;
+        volatile Thread thread;
+        volatile boolean cancelRequested;
+
+        Task(long id, String kind, Long pid, Priority priority, String description, Body body) {
+            this.id = id;
+            this.kind = kind;
+            this.pid = pid;
+            this.priority = priority;
+            this.description = description;
+            this.body = body;
+        }
+
+        /** Records progress as a fraction in [0, 1] (or negative if unknown) with an optional message. */
+        public void progress(double fraction, String message) {
+            this.progress = fraction < 0 ? -1 : Math.min(1, fraction);
+            this.message = message;
+        }
+
+        /** Throws CancellationException once the task has been asked to cancel. */
+        public void checkCancelled() {
+            if (Thread.currentThread().isInterrupted() || cancelRequested) throw new CancellationException();
+        }
+
+        public boolean cancelRequested() {
+            return cancelRequested;
+        }
+
+        public String state() {
+            return state;
+        }
+
+        public Object result() {
+            return result;
+        }
+
+        // set only once the task will not run, or has stopped running
+        boolean finished() {
+            return ended > 0;
+        }
 
-    public static long submit(Runnable task) {
-        long id = idGen.getAndIncrement();
-        Future<?> f = executor.submit(task);
-        tasks.put(id, f);
-        return id;
+        public Map<String, Object> status() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", id);
+            m.put("kind", kind);
+            if (pid != null) m.put("pid", pid);
+            m.put("priority", priority.name().toLowerCase());
+            if (description != null) m.put("description", description);
+            m.put("state", state);
+            if (cancelRequested && !finished()) m.put("cancelRequested", true);
+            if (progress >= 0) m.put("progress", progress);
+            if (message != null) m.put("message", message);
+            m.put("submitted", submitted);
+            if (started > 0) m.put("started", started);
+            if (ended > 0) m.put("ended", ended);
+            if (result != null) m.put("result", result);
+            if (error != null) m.put("error", error);
+            return m;
+        }
+    }
+
+    /**
+     * Queues a task. Throws RejectedExecutionException when TASK_MAX_QUEUED tasks are already waiting.
+     */
+    public static Task submit(String kind, Long pid, Priority priority, String description, Body body) {
+        evict();
+        Task t = new Task(idGen.getAndIncrement(), kind, pid, priority, description, body);
+        synchronized (queue) {
+            if (queue.size() >= MAX_QUEUED) throw new RejectedExecutionException("task queue is full");
+            tasks.put(t.id, t);
+            queue.add(t);
+            dispatch();
+        }
+        return t;
+    }
+
+    // starts every queued task the limits allow, in priority order; called with the queue lock held
+    private static void dispatch() {
+        if (running >= MAX_RUNNING) return;
+        List<Task> held = new ArrayList<>();
+        Task t;
+        while (running < MAX_RUNNING && (t = queue.poll()) != null) {
+            if (!admits(t)) {
+                held.add(t);
+                continue;
+            }
+            running++;
+            runningByKind.merge(t.kind, 1, Integer::sum);
+            if (t.pid != null) runningByPid.merge(pidKey(t), 1, Integer::sum);
+            t.state = "running";
+            t.started = System.currentTimeMillis();
+            Task task = t;
+            t.thread = Thread.ofVirtual().name("task-" + t.id + "-" + t.kind).start(() -> run(task));
+        }
+        queue.addAll(held);
+    }
+
+    private static boolean admits(Task t) {
+        Integer kindLimit = KIND_LIMITS.get(t.kind);
+        if (kindLimit != null && runningByKind.getOrDefault(t.kind, 0) >= kindLimit) return false;
+        Integer pidLimit = PID_LIMITS.get(t.kind);
+        return t.pid == null || pidLimit == null || runningByPid.getOrDefault(pidKey(t), 0) < pidLimit;
+    }
+
+    private static String pidKey(Task t) {
+        return t.kind + ":" + t.pid;
+    }
+
+    private static void run(Task t) {
+        try {
+            t.result = t.body.run(t);
+            if (t.cancelRequested) {
+                t.state = "cancelled";
+            } else {
+                t.state = "done";
+                if (t.progress >= 0) t.progress = 1;
+            }
+        } catch (CancellationException | InterruptedException e) {
+            t.state = "cancelled";
+        } catch (Throwable e) {
+            t.state = t.cancelRequested ? "cancelled" : "failed";
+            t.error = e.getMessage() == null ? e.toString() : e.getMessage();
+        } finally {
+            t.thread = null;
+            t.ended = System.currentTimeMillis();
+            synchronized (queue) {
+                running--;
+                runningByKind.merge(t.kind, -1, Integer::sum);
+                if (t.pid != null) runningByPid.merge(pidKey(t), -1, Integer::sum);
+                dispatch();
+            }
+        }
+    }
+
+    // drops finished tasks past their TTL, and the oldest finished ones beyond TASK_MAX_RETAINED
+    private static void evict() {
+        long cutoff = System.currentTimeMillis() - RESULT_TTL_MS;
+        List<Task> finished = new ArrayList<>();
+        for (Iterator<Task> it = tasks.values().iterator(); it.hasNext(); ) {
+            Task t = it.next();
+            if (!t.finished()) continue;
+            if (t.ended < cutoff) it.remove();
+            else finished.add(t);
+        }
+        if (finished.size() <= MAX_RETAINED) return;
+        finished.sort((a, b) -> Long.compare(a.ended, b.ended));
+        for (int i = 0; i < finished.size() - MAX_RETAINED; i++) tasks.remove(finished.get(i).id);
+    }
+
+    public static Task get(long id) {
+        return tasks.get(id);
     }
 
     public static int getActiveCount() {
         int c = 0;
-        for (Future<?> f : tasks.values()) if (!f.isDone()) c++;
+        for (Task t : tasks.values()) if (!t.finished()) c++;
         return c;
     }
 
-    public static Map<Long, Future<?>> list() {
-        return tasks;
+    public static List<Map<String, Object>> list() {
+        evict();
+        List<Task> all = new ArrayList<>(tasks.values());
+        all.sort((a, b) -> Long.compare(b.id, a.id));
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (Task t : all) out.add(t.status());
+        return out;
     }
 
+    /**
+     * Cancels a queued or running task. A queued task is cancelled at once; a running one is flagged and
+     * interrupted, and becomes cancelled when its body stops.
+     */
     public static boolean cancel(long id) {
-        Future<?> f = tasks.remove(id);
-        if (f == null) return false;
-        return f.cancel(true);
+        Task t = tasks.get(id);
+        if (t == null || t.finished()) return false;
+        t.cancelRequested = true;
+        synchronized (queue) {
+            if (queue.remove(t)) {
+                t.state = "cancelled";
+                t.ended = System.currentTimeMillis();
+                return true;
+            }
+        }
+        Thread th = t.thread;
+        if (th != null) th.interrupt();
+        return true;
+    }
+
+    /** Forgets a finished task, or cancels and forgets an unfinished one. */
+    public static boolean remove(long id) {
+        Task t = tasks.get(id);
+        if (t == null) return false;
+        cancel(id);
+        tasks.remove(id);
+        return true;
     }
 }
@@ -0,0 +1,89 @@
+package com.jvmdoctor.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** One series: a metric name plus an interned label set, backed by a list of compressed chunks. */
+public class TimeSeries {
+    public final String name;
+    public final Map<String, String> labels;
+    // raw series text as pushed (name{labels}), used as the lookup key on ingest
+    final byte[] key;
+    final int hash;
+
+    private final List<GorillaChunk> chunks = new ArrayList<>();
+    private GorillaChunk head;
+
+    TimeSeries(String name, Map<String, String> labels, byte[] key, int hash) {
+        this.name = name;
+        this.labels = labels;
+        this.key = key;
+        this.hash = hash;
+    }
+
+    public synchronized boolean append(long t, double v) {
+        if (head == null || head.isFull()) {
+            if (head != null) head.seal();
+            head = new GorillaChunk();
+            chunks.add(head);
+        }
+        return head.append(t, v);
+    }
+
+    /** Samples with {@code start <= t <= end}, in time order. */
+    public synchronized Samples range(long start, long end) {
+        Samples out = new Samples();
+        for (GorillaChunk c : chunks) {
+            if (c.maxTime() < start || c.minTime() > end) continue;
+            GorillaChunk.Reader r = c.reader();
+            while (r.next()) {
+                if (r.time > end) break;
+                if (r.time >= start) out.add(r.time, r.value);
+            }
+        }
+        return out;
+    }
+
+    /** Drops chunks that end before {@code cutoff}; returns true if the series is now empty. */
+    synchronized boolean dropBefore(long cutoff) {
+        chunks.removeIf(c -> c != head && c.maxTime() < cutoff);
+        if (head != null && head.maxTime() < cutoff) {
+            chunks.remove(head);
+            head = null;
+        }
+        return chunks.isEmpty();
+    }
+
+    synchronized long sizeBytes() {
+        long total = key.length + 64L;
+        for (GorillaChunk c : chunks) total += c.sizeBytes();
+        return total;
+    }
+
+    synchronized int sampleCount() {
+        int n = 0;
+        for (GorillaChunk c : chunks) n += c.count();
+        return n;
+    }
+
+    /** Growable parallel arrays of timestamps and values. */
+    public static class Samples {
+        public long[] t = new long[16];
+        public double[] v = new double[16];
+        public int size;
+
+        public void add(long time, double value) {
+            if (size == t.length) {
+                t = java.util.Arrays.copyOf(t, size * 2);
+                v = java.util.Arrays.copyOf(v, size * 2);
+            }
+            t[size] = time;
+            v[size] = value;
+            size++;
+        }
+
+        public long[] times() { return java.util.Arrays.copyOf(t, size); }
+        public double[] values() { return java.util.Arrays.copyOf(v, size); }
+    }
+}
@@ -0,0 +1,42 @@
+plugins {
+    id("java")
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+dependencies {
+    implementation(project(":agent"))
+    implementation("io.prometheus:simpleclient_hotspot:0.16.0")
+    implementation("io.prometheus:simpleclient_common:0.16.0")
+}
+
+// the suites live in the Maven layout; the backend is built with Maven only, so the plain classes the
+// suites exercise are compiled in from its sources
+sourceSets {
+    main {
+        java.setSrcDirs(emptyList<String>())
+    }
+    named("jmh") {
+        java {
+            srcDir("src/main/java")
+            srcDir("../backend/src/main/java")
+            include(
+                "com/jvmdoctor/*.java",
+                "com/jvmdoctor/backend/*Benchmark.java",
+                "com/jvmdoctor/backend/LogIndex.java",
+                "com/jvmdoctor/backend/LogRingBuffer.java",
+                "com/jvmdoctor/backend/PatternCache.java",
+                "com/jvmdoctor/backend/MetricsStore.java",
+                "com/jvmdoctor/backend/TimeSeries.java",
+                "com/jvmdoctor/backend/GorillaChunk.java",
+                "com/jvmdoctor/backend/SeriesSelector.java",
+                "com/jvmdoctor/backend/PrometheusTextParser.java"
+            )
+        }
+    }
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    profilers.add("gc")
+    resultFormat.set("JSON")
+}
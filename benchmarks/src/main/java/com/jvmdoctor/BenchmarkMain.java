@@ -0,0 +1,26 @@
+package com.jvmdoctor;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH suites with the allocation profiler ({@code -prof gc}) on and results written as JSON to
+ * {@code jmh-result.json}, so runs before and after a change can be compared. Takes the usual JMH
+ * arguments: a benchmark regex, {@code -rff} for another result file, {@code -p} for parameters.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        Options opts = new OptionsBuilder()
+            .parent(cmd)
+            .addProfiler(GCProfiler.class)
+            .resultFormat(cmd.getResultFormat().orElse(ResultFormatType.JSON))
+            .result(cmd.getResult().orElse("jmh-result.json"))
+            .build();
+        new Runner(opts).run();
+    }
+}
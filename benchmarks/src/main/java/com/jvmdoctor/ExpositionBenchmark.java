@@ -0,0 +1,71 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import io.prometheus.client.hotspot.DefaultExports;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one /metrics scrape: encoding the registry from scratch (what every scrape paid before the
+ * exposition cache) against serving an {@link ExpositionCache} snapshot. {@code series} adds labelled
+ * application series on top of the {@link DefaultExports} JVM metrics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpositionBenchmark {
+    @Param({"0", "1000"})
+    public int series;
+
+    private CollectorRegistry registry;
+    private ExpositionCache cache;
+
+    @Setup
+    public void setup() {
+        registry = new CollectorRegistry();
+        DefaultExports.register(registry);
+        Gauge g = Gauge.build("bench_app_value", "Synthetic application series.").labelNames("endpoint", "status").register(registry);
+        for (int i = 0; i < series; i++) g.labels("/api/v1/resource/" + (i / 5), String.valueOf(200 + i % 5)).set(i);
+        cache = new ExpositionCache(registry);
+    }
+
+    @Benchmark
+    public int encodeRegistry() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        try (Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            TextFormat.write004(w, registry.metricFamilySamples());
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public byte[] cachedText() {
+        return cache.get().text;
+    }
+
+    @Benchmark
+    public byte[] cachedGzip() {
+        return cache.get().gzip;
+    }
+}
@@ -0,0 +1,62 @@
+package com.jvmdoctor;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.hotspot.DefaultExports;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The push thread's serialization: encoding a collection with explicit timestamps into the reused
+ * buffer, alone and followed by gzip, as {@link MetricsPusher} does before each send.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PushEncodeBenchmark {
+    @Param({"0", "1000"})
+    public int series;
+
+    private ExpositionCache.Snapshot snapshot;
+    private MetricsPusher pusher;
+    private final MetricsPusher.Buffer buffer = new MetricsPusher.Buffer(64 * 1024);
+
+    @Setup
+    public void setup() {
+        CollectorRegistry registry = new CollectorRegistry();
+        DefaultExports.register(registry);
+        Gauge g = Gauge.build("bench_app_value", "Synthetic application series.").labelNames("endpoint", "status").register(registry);
+        for (int i = 0; i < series; i++) g.labels("/api/v1/resource/" + (i / 5), String.valueOf(200 + i % 5)).set(i * 1.5);
+        ExpositionCache cache = new ExpositionCache(registry);
+        snapshot = cache.get();
+        // never sends; the URL only has to parse
+        pusher = new MetricsPusher(cache, null, "http://localhost:1", "bench", 1);
+    }
+
+    @Benchmark
+    public int encode() {
+        buffer.reset();
+        MetricsPusher.encode(Collections.enumeration(snapshot.families), snapshot.timestampMs, buffer);
+        return buffer.size;
+    }
+
+    @Benchmark
+    public int encodeAndGzip() {
+        return pusher.encodeBatch();
+    }
+}
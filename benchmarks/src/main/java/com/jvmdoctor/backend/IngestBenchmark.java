@@ -0,0 +1,68 @@
+package com.jvmdoctor.backend;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import io.prometheus.client.hotspot.DefaultExports;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The backend ingest path for one scrape or push of an agent's exposition: parsing alone, and parsing
+ * into {@link MetricsStore} (series lookup and chunk appends, with a later timestamp each time).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+    @Param({"0", "1000"})
+    public int series;
+
+    private byte[] payload;
+    private long timestamp;
+    private double sum;
+
+    @Setup
+    public void setup() throws IOException {
+        CollectorRegistry registry = new CollectorRegistry();
+        DefaultExports.register(registry);
+        Gauge g = Gauge.build("bench_app_value", "Synthetic application series.").labelNames("endpoint", "status").register(registry);
+        for (int i = 0; i < series; i++) g.labels("/api/v1/resource/" + (i / 5), String.valueOf(200 + i % 5)).set(i * 1.5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            TextFormat.write004(w, registry.metricFamilySamples());
+        }
+        payload = out.toByteArray();
+        timestamp = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public int parse() {
+        return PrometheusTextParser.parse(payload, payload.length, (buf, start, nameEnd, end, value, ts) -> sum += value);
+    }
+
+    @Benchmark
+    public int ingest() {
+        timestamp += 1000;
+        return MetricsStore.ingest("bench-" + series, payload, payload.length, timestamp);
+    }
+}
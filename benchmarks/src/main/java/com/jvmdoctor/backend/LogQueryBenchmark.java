@@ -0,0 +1,78 @@
+package com.jvmdoctor.backend;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process log path: appending a line to the ring buffer and its index, and the {@link LogIndex}
+ * searches {@code ProcessManager.queryLogs} and {@code queryLogsRegex} delegate to, on a buffer not
+ * tied to a running process, for a rare term and a common one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogQueryBenchmark {
+    @Param({"500", "5000", "50000"})
+    public int lines;
+
+    private LogRingBuffer buffer;
+    private LogIndex index;
+    private long n;
+
+    @Setup
+    public void setup() {
+        buffer = new LogRingBuffer(lines);
+        index = new LogIndex(buffer);
+        for (int i = 0; i < lines; i++) append();
+    }
+
+    private void append() {
+        long i = n++;
+        String line;
+        if (i % 100 == 0) line = "2026-01-01 12:00:00.000 ERROR [worker-" + (i % 16) + "] o.e.Client - Timeout after " + (i % 5000) + " ms calling inventory";
+        else if (i % 10 == 0) line = "2026-01-01 12:00:00.000 WARN  [worker-" + (i % 16) + "] o.e.Pool - pool at " + (i % 100) + "% capacity";
+        else line = "2026-01-01 12:00:00.000 INFO  [worker-" + (i % 16) + "] o.e.Handler - GET /api/items/" + i + " 200 in " + (i % 50) + " ms";
+        index.add(buffer.append(line), line);
+    }
+
+    @Benchmark
+    public long appendLine() {
+        append();
+        return n;
+    }
+
+    @Benchmark
+    public List<String> containsRare() {
+        return index.searchContains("ERROR", 100);
+    }
+
+    @Benchmark
+    public List<String> containsCommon() {
+        return index.searchContains("INFO", 100);
+    }
+
+    @Benchmark
+    public List<String> regex() {
+        return index.searchRegex("Timeout after \\d+ ms", false, 100);
+    }
+
+    @Benchmark
+    public List<String> regexIgnoreCase() {
+        return index.searchRegex("timeout after \\d{4} ms", true, 100);
+    }
+}
@@ -9,7 +9,8 @@ subprojects {
         mavenCentral()
     }
 
+    // the release the Maven build compiles for; the agent uses java.lang.foreign and Thread.threadId()
     java {
-        toolchain.languageVersion.set(JavaLanguageVersion.of(17))
+        toolchain.languageVersion.set(JavaLanguageVersion.of(25))
     }
 }
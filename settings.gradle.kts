@@ -1,2 +1,4 @@
 rootProject.name = "JVMDoctor"
 include("agent", "sample-app")
+// JMH suites, like the Maven profile of the same name: gradle -Pbenchmarks :benchmarks:jmh
+if (providers.gradleProperty("benchmarks").isPresent) include("benchmarks")
@@ -9,6 +9,8 @@ export default function App(){
   const [selected, setSelected] = useState(null)
   const [jfrPath, setJfrPath] = useState(null)
   const [profilePath, setProfilePath] = useState(null)
+  const [heapAnalysis, setHeapAnalysis] = useState(null)
+  const [samplerView, setSamplerView] = useState(null)
     const chartRef = useRef(null)
   const chartInstance = useRef(null)
   const dataPoints = useRef([])
@@ -41,25 +43,31 @@ export default function App(){
 
   async function fetchMetrics(force = true){
     if (!selected) return
-    const resp = await fetch('/api/processes/' + selected + '/metrics')
-    const text = await resp.text()
-    // parse prometheus metrics
-    const lines = text.split('\n')
-    for(const line of lines){
-      if(line.startsWith('jvmdoctor_thread_count')){
-        const v = parseFloat(line.split(' ').pop())
-        dataPoints.current.push({x: Date.now(), y: v})
-      }
-    }
+    const proc = processes.find(p => p.id === selected)
+    if (!proc) return
+    // pre-parsed, downsampled series from the backend store; the chart only ever holds `points` points
+    const instance = 'localhost:' + proc.port
+    const params = new URLSearchParams({ start: Date.now() - 15 * 60 * 1000, points: 300 })
+    params.append('query', 'jvmdoctor_thread_count{instance="' + instance + '"}')
+    params.append('query', 'rate(jvm_gc_collection_seconds_sum{instance="' + instance + '"}[1m])')
+    const resp = await fetch('/api/metrics/range?' + params)
+    if (!resp.ok) return
+    const data = await resp.json()
+    const datasets = data.series.map(s => ({
+      label: s.name === 'jvmdoctor_thread_count' ? 'threads' : 'GC s/s ' + (s.labels.gc || ''),
+      yAxisID: s.name === 'jvmdoctor_thread_count' ? 'y' : 'y1',
+      data: s.timestamps.map((t, i) => ({x: t, y: s.values[i]}))
+    }))
+    dataPoints.current = datasets
     if (!chartInstance.current){
       const ctx = chartRef.current.getContext('2d')
       chartInstance.current = new Chart(ctx, {
         type: 'line',
-        data: { datasets: [{ label:'threads', data: dataPoints.current }] },
-        options: { scales: { x: { type:'time', time: { unit:'second' } }, y: { beginAtZero:true } } }
+        data: { datasets: dataPoints.current },
+        options: { animation: false, scales: { x: { type:'time', time: { unit:'minute' } }, y: { beginAtZero:true }, y1: { beginAtZero:true, position:'right' } } }
       })
     } else {
-      chartInstance.current.data.datasets[0].data = dataPoints.current.slice(-60)
+      chartInstance.current.data.datasets = dataPoints.current
       chartInstance.current.update()
     }
   }
@@ -77,7 +85,8 @@ export default function App(){
     if (!caseSensitive) params.push('ignoreCase=true');
     const resp = await fetch('/api/processes/' + id + '/logs' + (params.length ? ('?' + params.join('&')) : ''))
     const body = await resp.json()
-    document.getElementById('log').innerText = body.lines.join('\n')
+    // the backend returns the newest lines first; show them in chronological order
+    document.getElementById('log').innerText = body.lines.slice().reverse().join('\n')
     document.getElementById('log').scrollTop = document.getElementById('log').scrollHeight
   }
 
@@ -124,6 +133,20 @@ export default function App(){
     }
   }
 
+  async function renderFlameGraph(){
+    const event = document.getElementById('profEvent').value
+    const resp = await fetch('/api/analysis/flamegraph', { method:'POST', headers:{'Content-Type':'application/json'}, body:JSON.stringify({path: jfrPath, event, output: 'svg'}) })
+    const data = await resp.json()
+    if (!resp.ok) alert('Flame graph failed: ' + JSON.stringify(data))
+    else setProfilePath(data.path)
+  }
+
+  async function sampler(id, action){
+    const resp = await fetch('/api/processes/' + id + '/sampler/' + action, { method:'POST', headers:{'Content-Type':'application/json'}, body:JSON.stringify({}) })
+    const data = await resp.json()
+    if (!resp.ok) alert('Sampler ' + action + ' failed: ' + JSON.stringify(data))
+  }
+
   async function runProfiler(id){
     const duration = parseInt(document.getElementById('profDuration').value)
     const event = document.getElementById('profEvent').value
@@ -143,6 +166,24 @@ export default function App(){
     }
   }
 
+  async function heapDumpAndAnalyze(id){
+    const resp = await fetch('/api/processes/' + id + '/heapdump', { method:'POST', headers:{'Content-Type':'application/json'}, body:JSON.stringify({analyze: true}) })
+    const data = await resp.json()
+    if (!resp.ok) { alert('Heap dump failed: ' + JSON.stringify(data)); return }
+    pollHeapAnalysis(data.analysisId)
+  }
+
+  async function pollHeapAnalysis(analysisId){
+    const resp = await fetch('/api/analysis/heap/' + analysisId)
+    const body = await resp.json()
+    setHeapAnalysis(body)
+    if (body.status === 'queued' || body.status === 'running') setTimeout(() => pollHeapAnalysis(analysisId), 2000)
+  }
+
+  function mb(bytes){
+    return (bytes / 1048576).toFixed(1) + ' MB'
+  }
+
   return (<Container sx={{paddingTop:4}}>
     <h1>JVMDoctor React UI</h1>
 
@@ -199,6 +240,7 @@ export default function App(){
         <button onClick={()=>startJfr(selected)}>Start JFR</button>
         <input id='jfrFile' placeholder='dump.jfr' defaultValue={'/tmp/jvmdoctor-'+selected+'.jfr'} />
         <button onClick={()=>stopJfr(selected)}>Stop + Dump JFR</button>
+        <button disabled={!jfrPath} onClick={()=>renderFlameGraph()}>Flame graph from JFR</button>
       </div>
       <div style={{display:'flex', gap:8, marginTop:8, alignItems:'center'}}>
         <input id='profDuration' placeholder='Duration (s)' defaultValue='10' />
@@ -206,6 +248,9 @@ export default function App(){
         <input id='profOutput' placeholder='Output' defaultValue='svg' />
         <input id='profFile' placeholder='file.svg' defaultValue={'/tmp/profile-'+selected+'.svg'} />
         <button onClick={()=>runProfiler(selected)}>Run profiler</button>
+        <button onClick={()=>sampler(selected, 'start')}>Start sampler</button>
+        <button onClick={()=>sampler(selected, 'stop')}>Stop sampler</button>
+        <button onClick={()=>setSamplerView(Date.now())}>Sampler flame graph</button>
         <input id='nativePath' placeholder='native lib path (optional)' style={{width:240}} />
         <button onClick={async ()=>{
           const path = document.getElementById('nativePath').value
@@ -214,6 +259,31 @@ export default function App(){
           alert('Native load: ' + JSON.stringify(data))
         }}>Load native</button>
       </div>
+      <div style={{display:'flex', gap:8, marginTop:8, alignItems:'center'}}>
+        <button onClick={()=>heapDumpAndAnalyze(selected)}>Heap dump + analyze</button>
+      </div>
+    </Paper>)}
+
+    {heapAnalysis && (<Paper sx={{p:2, mt:2}}>
+      <Typography variant='h6'>Heap analysis {heapAnalysis.id}: {heapAnalysis.status}{heapAnalysis.phase ? ' (' + heapAnalysis.phase + ')' : ''}</Typography>
+      <div>{heapAnalysis.path} {heapAnalysis.error && <span style={{color:'red'}}>{heapAnalysis.error}</span>}</div>
+      {heapAnalysis.report && (<div>
+        <div>{heapAnalysis.report.summary.objects} objects, {heapAnalysis.report.summary.classes} classes, {mb(heapAnalysis.report.summary.shallowBytes)} shallow, analyzed in {heapAnalysis.report.summary.elapsedMs} ms</div>
+        <h4>Classes</h4>
+        <table><thead><tr><th align='left'>Class</th><th>Count</th><th>Shallow</th><th>Retained (approx)</th></tr></thead><tbody>
+          {heapAnalysis.report.classHistogram.map(c => <tr key={c.class}><td>{c.class}</td><td align='right'>{c.count}</td><td align='right'>{mb(c.shallowBytes)}</td><td align='right'>{mb(c.retainedBytes)}</td></tr>)}
+        </tbody></table>
+        <h4>Biggest dominators</h4>
+        <ul>
+          {heapAnalysis.report.dominators.map(d => <li key={d.id}>{d.class} {d.id} retains {mb(d.retainedBytes)}
+            <ul>{d.children.map(k => <li key={k.id}>{k.class} {k.id} retains {mb(k.retainedBytes)}</li>)}</ul>
+          </li>)}
+        </ul>
+        <h4>Duplicate strings</h4>
+        <ul>{heapAnalysis.report.duplicateStrings.map((d, i) => <li key={i}>{d.count} x "{d.value}" wastes {mb(d.wastedBytes)}</li>)}</ul>
+        <h4>Duplicate arrays</h4>
+        <ul>{heapAnalysis.report.duplicateArrays.map((d, i) => <li key={i}>{d.count} x {d.type} of length {d.length} wastes {mb(d.wastedBytes)}</li>)}</ul>
+      </div>)}
     </Paper>)}
 
     <Paper sx={{p:2, mt:2}}>
@@ -230,6 +300,9 @@ export default function App(){
       {profilePath && (<div style={{marginTop:8}}>Profile: <a href={'/api/files/download?path=' + encodeURIComponent(profilePath)}>Download</a>
         {profilePath.endsWith('.svg') && (<div style={{marginTop:8}}><img src={'/api/files/download?path=' + encodeURIComponent(profilePath)} alt='profile' style={{width:'100%'}}/></div>)}
       </div>)}
+      {samplerView && selected && (<div style={{marginTop:8}}>Sampler: <a href={'/api/processes/' + selected + '/sampler?format=collapsed'}>Collapsed stacks</a>
+        <div style={{marginTop:8}}><img src={'/api/processes/' + selected + '/sampler?format=svg&t=' + samplerView} alt='sampler' style={{width:'100%'}}/></div>
+      </div>)}
     </Paper>
   </Container>)
 }